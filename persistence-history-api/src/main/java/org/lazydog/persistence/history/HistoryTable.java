@@ -41,6 +41,13 @@ public interface HistoryTable {
      */
     public void create() throws HistoryTableException;
 
+    /**
+     * Drop the history table, and all the history in it.
+     *
+     * @throws  HistoryTableException  if unable to drop the history table.
+     */
+    public void drop() throws HistoryTableException;
+
     /**
      * Check if the history table exists.
      *
@@ -50,6 +57,29 @@ public interface HistoryTable {
      */
     public boolean exists() throws HistoryTableException;
 
+    /**
+     * Find the version of the entity as of the time.
+     *
+     * @param  time  the time.
+     *
+     * @return  the last version with an action time at or before the time, or null if the entity did not exist at the time.
+     *
+     * @throws  HistoryTableException  if unable to find the version.
+     */
+    public HistoryVersion findAsOf(Date time) throws HistoryTableException;
+
+    /**
+     * Find the versions of the entity in the time range, in action time order.
+     *
+     * @param  from  the start of the time range, inclusive.
+     * @param  to    the end of the time range, exclusive.
+     *
+     * @return  the versions, read as the iterator advances.
+     *
+     * @throws  HistoryTableException  if unable to find the versions.
+     */
+    public HistoryVersionIterator findVersions(Date from, Date to) throws HistoryTableException;
+
     /**
      * Insert a row in the history table.
      * 
@@ -70,4 +100,22 @@ public interface HistoryTable {
      * @throws  HistoryTableException  if unable to populate the history table.
      */
     public void populate(String actionBy, Date actionTime) throws HistoryTableException;
+
+    /**
+     * Stream a snapshot of the history table as of the time.
+     *
+     * The handler receives the last version at or before the time of every
+     * entity in the history table that was not deleted at the time.  The
+     * versions are ordered by identifier within one pass, but passes over
+     * identifier ranges may run in parallel; the handler is never called
+     * concurrently.
+     *
+     * @param  time     the time.
+     * @param  handler  the history version handler.
+     *
+     * @return  the number of versions handled.
+     *
+     * @throws  HistoryTableException  if unable to read the snapshot.
+     */
+    public long snapshot(Date time, HistoryVersionHandler handler) throws HistoryTableException;
 }
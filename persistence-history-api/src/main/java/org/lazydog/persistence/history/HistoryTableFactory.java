@@ -19,14 +19,21 @@
 package org.lazydog.persistence.history;
 
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * History table factory.
  *
+ * A factory is discovered once per class loader and shared by all threads,
+ * so implementations must be thread safe.
+ *
  * @author  Ron Rickard
  */
 public abstract class HistoryTableFactory {
 
+    private static final ConcurrentMap<ClassLoader,HistoryTableFactory> factories = new ConcurrentHashMap<ClassLoader,HistoryTableFactory>();
+
     /**
      * Protected constructor.
      */
@@ -34,6 +41,16 @@ public abstract class HistoryTableFactory {
         // Do nothing.
     }
 
+    /**
+     * Close the history table factory.
+     *
+     * Stops the background threads and releases the resources of the
+     * factory.  The default implementation does nothing.
+     */
+    public void close() {
+        // Do nothing.
+    }
+
     /**
      * Get the history table.
      *
@@ -46,17 +63,29 @@ public abstract class HistoryTableFactory {
     public abstract HistoryTable getHistoryTable(Object entity);
 
     /**
-     * Create an instance of the history table factory.
+     * Get the class loader used to discover the factory.
+     *
+     * @return  the context class loader, or the class loader of this class if there is no context class loader.
+     */
+    private static ClassLoader getClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return (classLoader != null) ? classLoader : HistoryTableFactory.class.getClassLoader();
+    }
+
+    /**
+     * Load the history table factory.
+     *
+     * @param  classLoader  the class loader.
      *
      * @return  the history table factory.
      *
      * @throws  IllegalArgumentException   if not exactly one factory is found.
      * @throws  ServiceConfigurationError  if unable to create the factory due to a provider configuration error.
      */
-    public static synchronized HistoryTableFactory newInstance() {
+    private static HistoryTableFactory load(ClassLoader classLoader) {
 
         HistoryTableFactory factory = null;
-        ServiceLoader<HistoryTableFactory> factoryLoader = ServiceLoader.load(HistoryTableFactory.class);
+        ServiceLoader<HistoryTableFactory> factoryLoader = ServiceLoader.load(HistoryTableFactory.class, classLoader);
 
         // Loop through the services.
         for (HistoryTableFactory loadedFactory : factoryLoader) {
@@ -78,4 +107,90 @@ public abstract class HistoryTableFactory {
 
         return factory;
     }
+
+    /**
+     * Create an instance of the history table factory.
+     *
+     * The factory is discovered the first time it is requested for the
+     * context class loader and the same instance is returned afterwards.
+     * Only one thread discovers the factory, since creating a factory may
+     * start threads and acquire resources that a discarded instance would
+     * leak.  Later calls return the cached factory without locking.
+     *
+     * @return  the history table factory.
+     *
+     * @throws  IllegalArgumentException   if not exactly one factory is found.
+     * @throws  ServiceConfigurationError  if unable to create the factory due to a provider configuration error.
+     */
+    public static HistoryTableFactory newInstance() {
+
+        ClassLoader classLoader = getClassLoader();
+
+        // Get the cached factory.
+        HistoryTableFactory factory = factories.get(classLoader);
+
+        // Check if the factory is not cached.
+        if (factory == null) {
+
+            // Only one thread discovers the factory.
+            synchronized (factories) {
+
+                factory = factories.get(classLoader);
+                if (factory == null) {
+                    factory = load(classLoader);
+                    factories.put(classLoader, factory);
+                }
+            }
+        }
+
+        return factory;
+    }
+
+    /**
+     * Register the history table factory for the context class loader.
+     *
+     * A registered factory is returned by {@link #newInstance()} without
+     * service discovery.  A different factory already cached for the
+     * context class loader is replaced and closed.
+     *
+     * @param  factory  the history table factory.
+     *
+     * @throws  IllegalArgumentException  if the factory is null.
+     */
+    public static void register(HistoryTableFactory factory) {
+
+        // Check if the factory does not exist.
+        if (factory == null) {
+            throw new IllegalArgumentException("The history table factory is required.");
+        }
+
+        HistoryTableFactory replacedFactory;
+
+        // Replace the factory while no thread is discovering one.
+        synchronized (factories) {
+            replacedFactory = factories.put(getClassLoader(), factory);
+        }
+
+        // Check if a different factory was replaced.
+        if (replacedFactory != null && replacedFactory != factory) {
+            replacedFactory.close();
+        }
+    }
+
+    /**
+     * Unregister the history table factory for the context class loader.
+     *
+     * The factory is closed, and the next call to {@link #newInstance()}
+     * discovers the factory again.  Call this when the class loader is
+     * discarded, for example when an application is undeployed.
+     */
+    public static void unregister() {
+
+        HistoryTableFactory factory = factories.remove(getClassLoader());
+
+        // Check if a factory was registered.
+        if (factory != null) {
+            factory.close();
+        }
+    }
 }
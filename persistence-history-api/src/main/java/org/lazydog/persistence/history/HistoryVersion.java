@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * History version.
+ *
+ * One row of a history table: the column values of an entity after an
+ * action, and who performed the action and when.
+ *
+ * @author  Ron Rickard
+ */
+public final class HistoryVersion implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final HistoryTable.Action action;
+    private final String actionBy;
+    private final Date actionTime;
+    private final long historyId;
+    private final Map<String,Object> values;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  historyId   the history identifier.
+     * @param  values      the column values keyed by column name in column order.
+     * @param  action      the action.
+     * @param  actionBy    the action by.
+     * @param  actionTime  the action time.
+     */
+    private HistoryVersion(final long historyId, final Map<String,Object> values, final HistoryTable.Action action, final String actionBy, final Date actionTime) {
+        this.action = action;
+        this.actionBy = actionBy;
+        this.actionTime = new Date(actionTime.getTime());
+        this.historyId = historyId;
+        this.values = Collections.unmodifiableMap(new LinkedHashMap<String,Object>(values));
+    }
+
+    /**
+     * Get the action.
+     *
+     * @return  the action.
+     */
+    public HistoryTable.Action getAction() {
+        return this.action;
+    }
+
+    /**
+     * Get the action by.
+     *
+     * @return  the action by.
+     */
+    public String getActionBy() {
+        return this.actionBy;
+    }
+
+    /**
+     * Get the action time.
+     *
+     * @return  the action time.
+     */
+    public Date getActionTime() {
+        return new Date(this.actionTime.getTime());
+    }
+
+    /**
+     * Get the history identifier.
+     *
+     * @return  the history identifier.
+     */
+    public long getHistoryId() {
+        return this.historyId;
+    }
+
+    /**
+     * Get the column value.
+     *
+     * @param  columnName  the column name, in any case.
+     *
+     * @return  the column value, or null if there is no such column.
+     */
+    public Object getValue(final String columnName) {
+
+        Object value = this.values.get(columnName);
+
+        // Check if the column name is not in the stored case.
+        if (value == null) {
+
+            // Loop through the column values.
+            for (Map.Entry<String,Object> entry : this.values.entrySet()) {
+
+                // Check if the column name matches ignoring case.
+                if (entry.getKey().equalsIgnoreCase(columnName)) {
+                    value = entry.getValue();
+                    break;
+                }
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Get the column values.
+     *
+     * @return  the column values keyed by column name in column order.
+     */
+    public Map<String,Object> getValues() {
+        return this.values;
+    }
+
+    /**
+     * Create a new instance of the history version class.
+     *
+     * @param  historyId   the history identifier.
+     * @param  values      the column values keyed by column name in column order.
+     * @param  action      the action.
+     * @param  actionBy    the action by.
+     * @param  actionTime  the action time.
+     *
+     * @return  a new instance of the history version class.
+     */
+    public static HistoryVersion newInstance(final long historyId, final Map<String,Object> values, final HistoryTable.Action action, final String actionBy, final Date actionTime) {
+        return new HistoryVersion(historyId, values, action, actionBy, actionTime);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("HistoryVersion [historyId=")
+                .append(this.historyId)
+                .append(", action=")
+                .append(this.action)
+                .append(", actionBy=")
+                .append(this.actionBy)
+                .append(", actionTime=")
+                .append(this.actionTime)
+                .append(", values=")
+                .append(this.values)
+                .append("]")
+                .toString();
+    }
+}
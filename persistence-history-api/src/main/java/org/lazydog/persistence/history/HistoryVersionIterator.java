@@ -0,0 +1,44 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * History version iterator.
+ *
+ * The history versions are read from the database as the iterator advances,
+ * so the iterator holds a database connection until it is exhausted or
+ * closed.  Always close the iterator in a finally block.
+ *
+ * @author  Ron Rickard
+ */
+public interface HistoryVersionIterator extends Iterator<HistoryVersion>, Closeable {
+
+    /**
+     * Close the iterator and release its database connection.
+     *
+     * Closing a closed iterator has no effect.
+     *
+     * @throws  HistoryTableException  if unable to close the iterator.
+     */
+    @Override
+    public void close() throws HistoryTableException;
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * Benchmark initial context factory.
+ *
+ * The factory creates a read only naming context that resolves the benchmark
+ * data source names to the embedded Derby data sources, so the history
+ * table factory finds its data sources the same way it does in a container.
+ *
+ * @author  Ron Rickard
+ */
+public class BenchmarkContextFactory implements InitialContextFactory {
+
+    /**
+     * Get the initial context.
+     *
+     * @param  environment  the environment.
+     *
+     * @return  the initial context.
+     */
+    @Override
+    public Context getInitialContext(final Hashtable<?,?> environment) {
+        return (Context)Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] {Context.class}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Exception {
+
+                Object result = null;
+
+                if (method.getName().equals("lookup") && arguments.length == 1) {
+
+                    // Get the data source.
+                    String name = arguments[0].toString();
+                    result = BenchmarkDatabase.getDataSource(name);
+
+                    // Check if the data source does not exist.
+                    if (result == null) {
+                        throw new NameNotFoundException(name);
+                    }
+                } else if (!method.getName().equals("close")) {
+                    throw new OperationNotSupportedException(method.getName());
+                }
+
+                return result;
+            }
+        });
+    }
+}
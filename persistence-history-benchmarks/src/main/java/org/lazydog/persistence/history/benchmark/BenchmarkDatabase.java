@@ -0,0 +1,218 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.benchmark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+
+/**
+ * Benchmark database.
+ *
+ * The benchmark database is a pair of embedded in-memory Derby databases,
+ * the same setup the unit tests use.  The source tables have an integer
+ * identifier followed by character columns, and the history tables are
+ * created up front because history table creation is not benchmarked.
+ *
+ * @author  Ron Rickard
+ */
+public final class BenchmarkDatabase {
+
+    public static final String SOURCE_DATA_SOURCE = "jdbc/BenchmarkPool";
+    public static final String TARGET_DATA_SOURCE = "jdbc/BenchmarkHistoryPool";
+    private static final Map<String,DataSource> dataSources = new HashMap<String,DataSource>();
+
+    static {
+        dataSources.put(SOURCE_DATA_SOURCE, newDataSource("memory:benchmark"));
+        dataSources.put(TARGET_DATA_SOURCE, newDataSource("memory:benchmark_history"));
+    }
+
+    /**
+     * Hide the constructor.
+     */
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Clear the history table.
+     *
+     * @param  table  the benchmark table.
+     *
+     * @throws  SQLException  if unable to clear the history table.
+     */
+    public static void clearHistoryTable(final BenchmarkTable table) throws SQLException {
+        execute(getDataSource(TARGET_DATA_SOURCE), "delete from " + table.getHistoryTableName());
+    }
+
+    /**
+     * Create the source table with the rows and the empty history table.
+     *
+     * Existing tables are dropped first.
+     *
+     * @param  table     the benchmark table.
+     * @param  rowCount  the number of source rows.
+     *
+     * @throws  SQLException  if unable to create the tables.
+     */
+    public static void createTables(final BenchmarkTable table, final int rowCount) throws SQLException {
+
+        StringBuilder columnsStringBuilder = new StringBuilder();
+        StringBuilder parametersStringBuilder = new StringBuilder();
+
+        // Loop through the character columns.
+        for (int column = 1; column < table.getColumnCount(); column++) {
+            columnsStringBuilder.append(", C").append(column).append(" varchar(64)");
+            parametersStringBuilder.append(", ?");
+        }
+
+        // Create the tables.
+        drop(getDataSource(SOURCE_DATA_SOURCE), table.getTableName());
+        drop(getDataSource(TARGET_DATA_SOURCE), table.getHistoryTableName());
+        execute(getDataSource(SOURCE_DATA_SOURCE), "create table " + table.getTableName() + " (ID int not null" + columnsStringBuilder + ", primary key (ID))");
+        execute(getDataSource(TARGET_DATA_SOURCE), "create table " + table.getHistoryTableName() + " (" + table.getHistoryTableName() + "_ID int generated always as identity, ID int" + columnsStringBuilder + ", action varchar(255) not null, action_by varchar(255) not null, action_time timestamp not null, primary key (" + table.getHistoryTableName() + "_ID))");
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+
+        try {
+
+            // Insert the source rows.
+            connection = getDataSource(SOURCE_DATA_SOURCE).getConnection();
+            connection.setAutoCommit(false);
+            preparedStatement = connection.prepareStatement("insert into " + table.getTableName() + " values (?" + parametersStringBuilder + ")");
+            for (int id = 1; id <= rowCount; id++) {
+
+                preparedStatement.setInt(1, id);
+                for (int column = 1; column < table.getColumnCount(); column++) {
+                    preparedStatement.setString(column + 1, "value " + id + "." + column);
+                }
+                preparedStatement.addBatch();
+
+                // Check if the batch is full.
+                if (id % 1000 == 0) {
+                    preparedStatement.executeBatch();
+                }
+            }
+            preparedStatement.executeBatch();
+            connection.commit();
+        } finally {
+
+            // Close the prepared statement and connection.
+            if (preparedStatement != null) {
+                preparedStatement.close();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Drop the table if it exists.
+     *
+     * @param  dataSource  the data source.
+     * @param  tableName   the table name.
+     *
+     * @throws  SQLException  if unable to drop the table.
+     */
+    private static void drop(final DataSource dataSource, final String tableName) throws SQLException {
+
+        Connection connection = null;
+
+        try {
+
+            // Check if the table exists.
+            connection = dataSource.getConnection();
+            if (connection.getMetaData().getTables(null, null, tableName, null).next()) {
+                execute(dataSource, "drop table " + tableName);
+            }
+        } finally {
+
+            // Close the connection.
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Execute the SQL statement.
+     *
+     * @param  dataSource  the data source.
+     * @param  sql         the SQL statement.
+     *
+     * @throws  SQLException  if unable to execute the SQL statement.
+     */
+    private static void execute(final DataSource dataSource, final String sql) throws SQLException {
+
+        Connection connection = null;
+        Statement statement = null;
+
+        try {
+
+            // Execute the SQL statement.
+            connection = dataSource.getConnection();
+            statement = connection.createStatement();
+            statement.execute(sql);
+        } finally {
+
+            // Close the statement and connection.
+            if (statement != null) {
+                statement.close();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Get the data source.
+     *
+     * @param  name  the JNDI name.
+     *
+     * @return  the data source, or null if there is no data source with the name.
+     */
+    public static DataSource getDataSource(final String name) {
+        return dataSources.get(name);
+    }
+
+    /**
+     * Create a new embedded in-memory data source.
+     *
+     * @param  databaseName  the database name.
+     *
+     * @return  a new embedded in-memory data source.
+     */
+    private static DataSource newDataSource(final String databaseName) {
+
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setCreateDatabase("create");
+        dataSource.setDatabaseName(databaseName);
+        dataSource.setUser("benchmark");
+        dataSource.setPassword("benchmark");
+
+        return dataSource;
+    }
+}
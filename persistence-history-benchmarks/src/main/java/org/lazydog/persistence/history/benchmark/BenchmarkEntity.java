@@ -0,0 +1,50 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.benchmark;
+
+/**
+ * Benchmark entity.
+ *
+ * The entities are captured from the source table, so only the identifier
+ * is mapped.
+ *
+ * @author  Ron Rickard
+ */
+public abstract class BenchmarkEntity {
+
+    private Integer id;
+
+    /**
+     * Get the ID.
+     *
+     * @return  the ID.
+     */
+    public Integer getId() {
+        return this.id;
+    }
+
+    /**
+     * Set the ID.
+     *
+     * @param  id  the ID.
+     */
+    public void setId(final Integer id) {
+        this.id = id;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.benchmark;
+
+/**
+ * Benchmark table.
+ *
+ * Each benchmark table has its own entity class, since the history table
+ * configuration is per entity class.
+ *
+ * @author  Ron Rickard
+ */
+public enum BenchmarkTable {
+
+    NARROW(NarrowEntity.class, 2),
+    WIDE(WideEntity.class, 32);
+
+    private final Class<? extends BenchmarkEntity> entityClass;
+    private final int columnCount;
+
+    /**
+     * Create the benchmark table.
+     *
+     * @param  entityClass  the entity class.
+     * @param  columnCount  the number of columns, including the identifier.
+     */
+    private BenchmarkTable(final Class<? extends BenchmarkEntity> entityClass, final int columnCount) {
+        this.entityClass = entityClass;
+        this.columnCount = columnCount;
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return  the number of columns, including the identifier.
+     */
+    public int getColumnCount() {
+        return this.columnCount;
+    }
+
+    /**
+     * Get the history table name.
+     *
+     * @return  the history table name.
+     */
+    public String getHistoryTableName() {
+        return this.getTableName() + "_HISTORY";
+    }
+
+    /**
+     * Get the table name.
+     *
+     * @return  the table name.
+     */
+    public String getTableName() {
+        return this.name();
+    }
+
+    /**
+     * Create a new entity.
+     *
+     * @param  id  the identifier.
+     *
+     * @return  a new entity.
+     */
+    public BenchmarkEntity newEntity(final int id) {
+
+        BenchmarkEntity entity;
+
+        try {
+            entity = this.entityClass.newInstance();
+            entity.setId(id);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to create the entity " + this.entityClass.getSimpleName() + ".", e);
+        }
+
+        return entity;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.benchmark;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.lazydog.persistence.history.HistoryTable;
+import org.lazydog.persistence.history.HistoryTableFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * History table factory benchmark.
+ *
+ * Measures getting the history table for an entity through the factory.
+ *
+ * @author  Ron Rickard
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class HistoryTableFactoryBenchmark {
+
+    @Param({"NARROW", "WIDE"})
+    public BenchmarkTable table;
+
+    private Object entity;
+
+    /**
+     * Set up the tables and the entity.
+     *
+     * @throws  SQLException  if unable to create the tables.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        BenchmarkDatabase.createTables(this.table, 1);
+        this.entity = this.table.newEntity(1);
+    }
+
+    /**
+     * Get the history table for the entity.
+     *
+     * @return  the history table.
+     */
+    @Benchmark
+    public HistoryTable getHistoryTable() {
+        return HistoryTableFactory.newInstance().getHistoryTable(this.entity);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.benchmark;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.lazydog.persistence.history.listener.HistoryTableListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * History table listener benchmark.
+ *
+ * Measures the callbacks a JPA provider makes for an update, the pre update
+ * history table check followed by the post update history row insert.
+ *
+ * @author  Ron Rickard
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class HistoryTableListenerBenchmark {
+
+    private static final int ROW_COUNT = 1000;
+
+    @Param({"NARROW", "WIDE"})
+    public BenchmarkTable table;
+
+    private Object[] entities;
+    private int index;
+    private HistoryTableListener listener;
+
+    /**
+     * Clear the history table before each iteration.
+     *
+     * @throws  SQLException  if unable to clear the history table.
+     */
+    @Setup(Level.Iteration)
+    public void clear() throws SQLException {
+        BenchmarkDatabase.clearHistoryTable(this.table);
+    }
+
+    /**
+     * Set up the tables, the entities, and the listener.
+     *
+     * @throws  SQLException  if unable to create the tables.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+
+        BenchmarkDatabase.createTables(this.table, ROW_COUNT);
+        this.entities = new Object[ROW_COUNT];
+        for (int id = 1; id <= ROW_COUNT; id++) {
+            this.entities[id - 1] = this.table.newEntity(id);
+        }
+        this.listener = new HistoryTableListener();
+    }
+
+    /**
+     * Make the update callbacks for an entity.
+     */
+    @Benchmark
+    public void update() {
+        Object entity = this.entities[this.index++ % ROW_COUNT];
+        this.listener.createHistoryTable(entity);
+        this.listener.insertUpdateRow(entity);
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.dialect;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dialect.
+ *
+ * A dialect describes how to write history tables for a database product:
+ * the data definition language, identifier casing, identity columns, and
+ * the fastest form of bulk insert the product supports.  Dialects are
+ * discovered with the service loader and selected from the database meta
+ * data, so a dialect for another product is added by listing it in
+ * META-INF/services/org.lazydog.persistence.history.dialect.Dialect.
+ *
+ * Dialects are shared by all threads, so implementations must be thread
+ * safe.
+ *
+ * @author  Ron Rickard
+ */
+public abstract class Dialect {
+
+    private static final ConcurrentMap<ClassLoader,List<Dialect>> dialects = new ConcurrentHashMap<ClassLoader,List<Dialect>>();
+    private static final Dialect STANDARD_DIALECT = new StandardDialect();
+
+    /**
+     * Protected constructor.
+     */
+    protected Dialect() {
+        // Do nothing.
+    }
+
+    /**
+     * Get the batch rewrite property.
+     *
+     * The batch rewrite property is the connection property that makes the
+     * driver rewrite a batch of single row inserts as multiple row inserts.
+     *
+     * @return  the batch rewrite property, or null if the driver does not have one.
+     */
+    public String getBatchRewriteProperty() {
+        return null;
+    }
+
+    /**
+     * Get the class loader used to discover the dialects.
+     *
+     * @return  the context class loader, or the class loader of this class if there is no context class loader.
+     */
+    private static ClassLoader getClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return (classLoader != null) ? classLoader : Dialect.class.getClassLoader();
+    }
+
+    /**
+     * Get the column type.
+     *
+     * The column size is appended for character, binary, and decimal types.
+     *
+     * @param  typeName       the type name.
+     * @param  dataType       the SQL type from java.sql.Types.
+     * @param  columnSize     the column size.
+     * @param  decimalDigits  the decimal digits.
+     * @param  unsigned       true if the column is unsigned, otherwise false.
+     *
+     * @return  the column type.
+     */
+    public String getColumnType(final String typeName, final int dataType, final int columnSize, final int decimalDigits, final boolean unsigned) {
+
+        StringBuilder columnType = new StringBuilder(typeName);
+
+        // Check if the column data type has a size.
+        if (dataType == Types.BINARY ||
+            dataType == Types.CHAR ||
+            dataType == Types.NCHAR ||
+            dataType == Types.NVARCHAR ||
+            dataType == Types.VARBINARY ||
+            dataType == Types.VARCHAR) {
+            columnType.append("(").append(columnSize).append(")");
+        } else if (dataType == Types.DECIMAL ||
+                   dataType == Types.NUMERIC) {
+            columnType.append("(").append(columnSize).append(",").append(decimalDigits).append(")");
+        }
+
+        return columnType.toString();
+    }
+
+    /**
+     * Get the identity column definition.
+     *
+     * @param  columnName  the column name.
+     *
+     * @return  the identity column definition.
+     */
+    public String getIdentityColumn(final String columnName) {
+        return columnName + " int generated by default as identity not null";
+    }
+
+    /**
+     * Get the dialect for the database.
+     *
+     * The dialects are discovered the first time they are requested for the
+     * context class loader.  The first dialect that supports the database is
+     * returned.
+     *
+     * @param  metaData  the database meta data.
+     *
+     * @return  the dialect for the database, or the standard SQL dialect if no dialect supports the database.
+     *
+     * @throws  SQLException                if unable to read the database meta data.
+     * @throws  ServiceConfigurationError  if unable to create a dialect due to a provider configuration error.
+     */
+    public static Dialect getInstance(final DatabaseMetaData metaData) throws SQLException {
+
+        Dialect dialect = STANDARD_DIALECT;
+
+        // Loop through the dialects.
+        for (Dialect loadedDialect : getDialects()) {
+
+            // Check if the dialect supports the database.
+            if (loadedDialect.supports(metaData)) {
+                dialect = loadedDialect;
+                break;
+            }
+        }
+
+        return dialect;
+    }
+
+    /**
+     * Get the dialects.
+     *
+     * @return  the dialects discovered for the context class loader.
+     */
+    private static List<Dialect> getDialects() {
+
+        ClassLoader classLoader = getClassLoader();
+
+        // Get the cached dialects.
+        List<Dialect> loadedDialects = dialects.get(classLoader);
+
+        // Check if the dialects are not cached.
+        if (loadedDialects == null) {
+
+            // Discover the dialects and cache them unless another thread beat us to it.
+            loadedDialects = load(classLoader);
+            List<Dialect> cachedDialects = dialects.putIfAbsent(classLoader, loadedDialects);
+            if (cachedDialects != null) {
+                loadedDialects = cachedDialects;
+            }
+        }
+
+        return loadedDialects;
+    }
+
+    /**
+     * Get the maximum number of rows inserted by one insert statement.
+     *
+     * A value greater than one means the database accepts a multiple row
+     * values clause and inserts it faster than a batch of single row
+     * inserts.
+     *
+     * @return  the maximum number of rows inserted by one insert statement.
+     */
+    public int getMaxInsertRows() {
+        return 1;
+    }
+
+    /**
+     * Get the maximum number of parameters of one statement.
+     *
+     * @return  the maximum number of parameters of one statement.
+     */
+    public int getMaxParameters() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Get the identifier as it is stored in the database catalog.
+     *
+     * The identifier is cased as the database meta data says unquoted
+     * identifiers are stored.
+     *
+     * @param  metaData    the database meta data.
+     * @param  identifier  the identifier.
+     *
+     * @return  the stored identifier.
+     *
+     * @throws  SQLException  if unable to read the database meta data.
+     */
+    public String getStoredIdentifier(final DatabaseMetaData metaData, final String identifier) throws SQLException {
+
+        String storedIdentifier = identifier;
+
+        // Check if unquoted identifiers are stored in lower case.
+        if (metaData.storesLowerCaseIdentifiers()) {
+            storedIdentifier = identifier.toLowerCase();
+        }
+
+        // Check if unquoted identifiers are stored in upper case.
+        else if (metaData.storesUpperCaseIdentifiers()) {
+            storedIdentifier = identifier.toUpperCase();
+        }
+
+        return storedIdentifier;
+    }
+
+    /**
+     * Get the timestamp type.
+     *
+     * @return  the timestamp type.
+     */
+    public String getTimestampType() {
+        return "timestamp";
+    }
+
+    /**
+     * Get the typed parameter.
+     *
+     * A parameter in the select list of an insert select statement is cast
+     * to its column type, since some databases cannot infer its type there.
+     *
+     * @param  type  the column type.
+     *
+     * @return  the typed parameter.
+     */
+    public String getTypedParameter(final String type) {
+        return "cast(? as " + type + ")";
+    }
+
+    /**
+     * Load the dialects.
+     *
+     * @param  classLoader  the class loader.
+     *
+     * @return  the dialects.
+     *
+     * @throws  ServiceConfigurationError  if unable to create a dialect due to a provider configuration error.
+     */
+    private static List<Dialect> load(final ClassLoader classLoader) {
+
+        List<Dialect> loadedDialects = new ArrayList<Dialect>();
+
+        // Loop through the services.
+        for (Dialect dialect : ServiceLoader.load(Dialect.class, classLoader)) {
+            loadedDialects.add(dialect);
+        }
+
+        return Collections.unmodifiableList(loadedDialects);
+    }
+
+    /**
+     * Check if the dialect supports the database.
+     *
+     * @param  metaData  the database meta data.
+     *
+     * @return  true if the dialect supports the database, otherwise false.
+     *
+     * @throws  SQLException  if unable to read the database meta data.
+     */
+    public abstract boolean supports(DatabaseMetaData metaData) throws SQLException;
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.dialect;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * H2 dialect.
+ *
+ * H2 stores unquoted identifiers in upper case, and inserts a multiple row
+ * values clause as one statement.
+ *
+ * @author  Ron Rickard
+ */
+public class H2Dialect extends Dialect {
+
+    private static final int MAX_INSERT_ROWS = 100;
+
+    /**
+     * Get the maximum number of rows inserted by one insert statement.
+     *
+     * @return  the maximum number of rows inserted by one insert statement.
+     */
+    @Override
+    public int getMaxInsertRows() {
+        return MAX_INSERT_ROWS;
+    }
+
+    /**
+     * Get the identifier as it is stored in the database catalog.
+     *
+     * @param  metaData    the database meta data.
+     * @param  identifier  the identifier.
+     *
+     * @return  the identifier in upper case.
+     */
+    @Override
+    public String getStoredIdentifier(final DatabaseMetaData metaData, final String identifier) {
+        return identifier.toUpperCase();
+    }
+
+    /**
+     * Check if the dialect supports the database.
+     *
+     * @param  metaData  the database meta data.
+     *
+     * @return  true if the database is H2, otherwise false.
+     *
+     * @throws  SQLException  if unable to read the database meta data.
+     */
+    @Override
+    public boolean supports(final DatabaseMetaData metaData) throws SQLException {
+        return "H2".equals(metaData.getDatabaseProductName());
+    }
+}
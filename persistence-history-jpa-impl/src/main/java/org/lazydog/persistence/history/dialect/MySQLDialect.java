@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.dialect;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * MySQL dialect.
+ *
+ * MySQL stores identifiers as the lower_case_table_names server setting
+ * says, which the database meta data reports, and inserts a multiple row
+ * values clause as one statement.  A statement has at most 65535
+ * parameters.  The driver also rewrites batches of single row inserts if
+ * the rewriteBatchedStatements connection property is true.  MariaDB is
+ * supported as well.
+ *
+ * @author  Ron Rickard
+ */
+public class MySQLDialect extends Dialect {
+
+    private static final int MAX_INSERT_ROWS = 100;
+    private static final int MAX_PARAMETERS = 65535;
+
+    /**
+     * Get the batch rewrite property.
+     *
+     * @return  the batch rewrite property.
+     */
+    @Override
+    public String getBatchRewriteProperty() {
+        return "rewriteBatchedStatements";
+    }
+
+    /**
+     * Get the column type.
+     *
+     * The column size is appended for all but date and time types, and the
+     * unsigned attribute is kept.
+     *
+     * @param  typeName       the type name.
+     * @param  dataType       the SQL type from java.sql.Types.
+     * @param  columnSize     the column size.
+     * @param  decimalDigits  the decimal digits.
+     * @param  unsigned       true if the column is unsigned, otherwise false.
+     *
+     * @return  the column type.
+     */
+    @Override
+    public String getColumnType(final String typeName, final int dataType, final int columnSize, final int decimalDigits, final boolean unsigned) {
+
+        StringBuilder columnType = new StringBuilder(typeName);
+
+        // Check if the column data type is not a time or date.
+        if (dataType != Types.DATE &&
+            dataType != Types.TIME &&
+            dataType != Types.TIMESTAMP) {
+
+            columnType.append("(").append(columnSize);
+
+            // Check if the column decimal digits is not zero.
+            if (decimalDigits != 0) {
+                columnType.append(",").append(decimalDigits);
+            }
+
+            columnType.append(")").append((unsigned) ? " unsigned" : "");
+        }
+
+        return columnType.toString();
+    }
+
+    /**
+     * Get the identity column definition.
+     *
+     * @param  columnName  the column name.
+     *
+     * @return  the identity column definition.
+     */
+    @Override
+    public String getIdentityColumn(final String columnName) {
+        return columnName + " int(10) unsigned not null auto_increment";
+    }
+
+    /**
+     * Get the maximum number of rows inserted by one insert statement.
+     *
+     * @return  the maximum number of rows inserted by one insert statement.
+     */
+    @Override
+    public int getMaxInsertRows() {
+        return MAX_INSERT_ROWS;
+    }
+
+    /**
+     * Get the maximum number of parameters of one statement.
+     *
+     * @return  the maximum number of parameters of one statement.
+     */
+    @Override
+    public int getMaxParameters() {
+        return MAX_PARAMETERS;
+    }
+
+    /**
+     * Get the timestamp type.
+     *
+     * @return  the timestamp type.
+     */
+    @Override
+    public String getTimestampType() {
+        return "datetime";
+    }
+
+    /**
+     * Get the typed parameter.
+     *
+     * MySQL infers the type of the parameter from the column it is inserted
+     * into, and cannot cast to a varchar type.
+     *
+     * @param  type  the column type.
+     *
+     * @return  the parameter.
+     */
+    @Override
+    public String getTypedParameter(final String type) {
+        return "?";
+    }
+
+    /**
+     * Check if the dialect supports the database.
+     *
+     * @param  metaData  the database meta data.
+     *
+     * @return  true if the database is MySQL or MariaDB, otherwise false.
+     *
+     * @throws  SQLException  if unable to read the database meta data.
+     */
+    @Override
+    public boolean supports(final DatabaseMetaData metaData) throws SQLException {
+        return "MySQL".equals(metaData.getDatabaseProductName()) || "MariaDB".equals(metaData.getDatabaseProductName());
+    }
+}
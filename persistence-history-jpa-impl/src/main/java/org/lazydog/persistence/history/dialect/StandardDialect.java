@@ -0,0 +1,48 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.dialect;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Standard SQL dialect.
+ *
+ * The standard SQL dialect is used for databases that no other dialect
+ * supports.  It stores identifiers as the database meta data says, and
+ * inserts one row per statement.
+ *
+ * @author  Ron Rickard
+ */
+final class StandardDialect extends Dialect {
+
+    /**
+     * Check if the dialect supports the database.
+     *
+     * @param  metaData  the database meta data.
+     *
+     * @return  true.
+     *
+     * @throws  SQLException  if unable to read the database meta data.
+     */
+    @Override
+    public boolean supports(final DatabaseMetaData metaData) throws SQLException {
+        return true;
+    }
+}
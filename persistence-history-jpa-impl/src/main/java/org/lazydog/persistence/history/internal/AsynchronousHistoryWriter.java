@@ -0,0 +1,569 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous history writer.
+ *
+ * History rows are put on bounded queues, one per background thread, and
+ * written by the threads.  The history rows of one entity always go to the
+ * same queue, so they are written in the order they were captured, which
+ * delta storage relies on.  History rows without a kept entity identifier
+ * are spread over the queues in turn.
+ * Queued history rows are encoded by the history row codec of their history
+ * table, so a pending history row takes a compact byte array rather than its
+ * boxed column values.
+ * Each thread collects history rows until the batch size is reached or the
+ * flush interval has passed since the first history row of the batch, then
+ * writes them with one JDBC batch per history table.
+ *
+ * History rows captured in a JTA transaction are kept on the transaction
+ * and queued only after it commits, so the history of a transaction that
+ * rolls back is never written.  A batch that cannot be written, and cannot
+ * be spooled, is retried before its history rows are dropped and counted
+ * in the metrics of their history tables.  A batch that failed after part
+ * of it was written may have those history rows written again.
+ *
+ * @author  Ron Rickard
+ */
+final class AsynchronousHistoryWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsynchronousHistoryWriter.class);
+    private static final int RETRY_ATTEMPTS = 3;
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+
+    private final int batchSize;
+    private final long flushInterval;
+    private final AtomicInteger nextQueue;
+    private final List<BlockingQueue<QueuedRow>> queues;
+    private final TransactionSynchronizationRegistry registry;
+    private volatile boolean running;
+    private final Thread shutdownHook;
+    private final List<Thread> threads;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  queueCapacity  the maximum number of history rows waiting to be written.
+     * @param  threadCount    the number of writer threads.
+     * @param  batchSize      the maximum number of history rows written in one batch.
+     * @param  flushInterval  the maximum number of milliseconds a history row waits for its batch to fill.
+     * @param  registry       the transaction synchronization registry, or null if there are no JTA transactions.
+     */
+    private AsynchronousHistoryWriter(final int queueCapacity, final int threadCount, final int batchSize, final long flushInterval, final TransactionSynchronizationRegistry registry) {
+
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.nextQueue = new AtomicInteger();
+        this.queues = new ArrayList<BlockingQueue<QueuedRow>>(threadCount);
+        this.registry = registry;
+        this.running = true;
+        this.threads = new ArrayList<Thread>();
+
+        // Start the writer threads.
+        for (int count = 0; count < threadCount; count++) {
+            final BlockingQueue<QueuedRow> queue = new ArrayBlockingQueue<QueuedRow>(Math.max(1, (queueCapacity + threadCount - 1) / threadCount));
+            this.queues.add(queue);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    AsynchronousHistoryWriter.this.drain(queue);
+                }
+            }, "persistence-history-writer-" + count);
+            thread.setDaemon(true);
+            thread.start();
+            this.threads.add(thread);
+        }
+
+        // Flush the pending history rows when the virtual machine shuts down.
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AsynchronousHistoryWriter.this.stop();
+            }
+        }, "persistence-history-writer-shutdown");
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+
+        logger.info("Started {} asynchronous history writer threads with a queue capacity of {}, a batch size of {}, and a flush interval of {} ms.", new Object[] {threadCount, queueCapacity, batchSize, flushInterval});
+    }
+
+    /**
+     * Drain the queue until the writer is shut down and the queue is empty.
+     *
+     * @param  queue  the queue of the writer thread.
+     */
+    private void drain(final BlockingQueue<QueuedRow> queue) {
+
+        List<QueuedRow> rows = new ArrayList<QueuedRow>(this.batchSize);
+        long flushTime = 0;
+
+        try {
+
+            while (this.running || !queue.isEmpty()) {
+
+                // Wait for a history row, but no longer than the time left before the batch is due.
+                long timeout = (rows.isEmpty()) ? this.flushInterval : Math.max(0, flushTime - System.currentTimeMillis());
+                QueuedRow row = queue.poll(timeout, TimeUnit.MILLISECONDS);
+
+                // Check if there is a history row.
+                if (row != null) {
+
+                    // Start the flush interval with the first history row of the batch.
+                    if (rows.isEmpty()) {
+                        flushTime = System.currentTimeMillis() + this.flushInterval;
+                    }
+
+                    // Add the history row and any others that are waiting.
+                    rows.add(row);
+                    queue.drainTo(rows, this.batchSize - rows.size());
+                }
+
+                // Check if the batch is full or due.
+                if (rows.size() >= this.batchSize || (!rows.isEmpty() && System.currentTimeMillis() >= flushTime)) {
+                    this.flush(rows);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+
+            // Write the remaining history rows.
+            queue.drainTo(rows);
+            this.flush(rows);
+        }
+    }
+
+    /**
+     * Flush the history rows.
+     *
+     * @param  rows  the history rows.
+     */
+    private void flush(final List<QueuedRow> rows) {
+
+        // Check if there are history rows.
+        if (!rows.isEmpty()) {
+
+            List<HistoryRow> historyRows = new ArrayList<HistoryRow>(rows.size());
+
+            // Decode the history rows.
+            for (QueuedRow row : rows) {
+
+                try {
+                    historyRows.add(row.decode());
+                } catch (IOException e) {
+                    logger.error("Unable to decode a queued history row, dropped it.", e);
+                    row.descriptor.getMetrics().recordDropped(1);
+                }
+            }
+
+            rows.clear();
+            this.insert(historyRows);
+        }
+    }
+
+    /**
+     * Get the number of history rows waiting to be written.
+     *
+     * @return  the number of history rows waiting to be written.
+     */
+    public int getQueueSize() {
+
+        int queueSize = 0;
+
+        // Loop through the queues.
+        for (BlockingQueue<QueuedRow> queue : this.queues) {
+            queueSize += queue.size();
+        }
+
+        return queueSize;
+    }
+
+    /**
+     * Get the queue for the history row.
+     *
+     * The history rows of one entity always get the same queue.
+     *
+     * @param  row  the history row.
+     *
+     * @return  the queue.
+     */
+    private BlockingQueue<QueuedRow> getQueue(final HistoryRow row) {
+
+        int index;
+
+        // Check if the entity identifier is kept.
+        if (row.getId() != null) {
+            long idKey = row.getIdKey();
+            index = 31 * row.getDescriptor().hashCode() + (int)(idKey ^ (idKey >>> 32));
+        } else {
+            index = this.nextQueue.getAndIncrement();
+        }
+
+        return this.queues.get((index & Integer.MAX_VALUE) % this.queues.size());
+    }
+
+    /**
+     * Insert the history rows, retrying a batch that cannot be written or
+     * spooled.
+     *
+     * If the history rows still cannot be written, they are dropped and
+     * counted in the metrics of their history tables.
+     *
+     * @param  rows  the history rows.
+     */
+    private void insert(final List<HistoryRow> rows) {
+
+        boolean written = rows.isEmpty();
+
+        // Loop through the attempts.
+        for (int attempt = 1; !written && attempt <= RETRY_ATTEMPTS; attempt++) {
+
+            Exception failure = null;
+
+            try {
+                logger.trace("Write {} history rows.", rows.size());
+                HistoryTableImpl.insert(rows);
+                written = true;
+            } catch (SQLException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            // Check if the history rows are retried.
+            if (!written && attempt < RETRY_ATTEMPTS) {
+                logger.warn("Unable to write {} history rows, retrying.", rows.size(), failure);
+
+                try {
+
+                    // Back off before the next attempt.
+                    Thread.sleep(this.flushInterval * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } else if (!written) {
+                logger.error("Unable to write {} history rows, dropped them.", rows.size(), failure);
+            }
+        }
+
+        // Check if the history rows were not written.
+        if (!written) {
+
+            HistoryTableImpl.invalidate(rows);
+
+            // Count the dropped history rows.
+            for (HistoryRow row : rows) {
+                row.getDescriptor().getMetrics().recordDropped(1);
+            }
+        }
+    }
+
+    /**
+     * Create a new instance of the asynchronous history writer class.
+     *
+     * @param  configuration  the persistence history configuration.
+     *
+     * @return  a new instance of the asynchronous history writer class.
+     */
+    public static AsynchronousHistoryWriter newInstance(final PersistenceHistoryConfiguration configuration) {
+
+        TransactionSynchronizationRegistry registry = null;
+
+        try {
+            registry = TransactionHistoryBuffer.lookupRegistry(configuration);
+        } catch (NamingException e) {
+            logger.debug("Unable to find the transaction synchronization registry {}, so history rows are queued when they are captured.", configuration.getTransactionBufferRegistry());
+        }
+
+        return newInstance(
+                configuration.getAsynchronousWriterQueueCapacity(),
+                configuration.getAsynchronousWriterThreads(),
+                configuration.getAsynchronousWriterBatchSize(),
+                configuration.getAsynchronousWriterFlushInterval(),
+                registry);
+    }
+
+    /**
+     * Create a new instance of the asynchronous history writer class.
+     *
+     * @param  queueCapacity  the maximum number of history rows waiting to be written.
+     * @param  threadCount    the number of writer threads.
+     * @param  batchSize      the maximum number of history rows written in one batch.
+     * @param  flushInterval  the maximum number of milliseconds a history row waits for its batch to fill.
+     *
+     * @return  a new instance of the asynchronous history writer class.
+     */
+    public static AsynchronousHistoryWriter newInstance(final int queueCapacity, final int threadCount, final int batchSize, final long flushInterval) {
+        return newInstance(queueCapacity, threadCount, batchSize, flushInterval, null);
+    }
+
+    /**
+     * Create a new instance of the asynchronous history writer class.
+     *
+     * @param  queueCapacity  the maximum number of history rows waiting to be written.
+     * @param  threadCount    the number of writer threads.
+     * @param  batchSize      the maximum number of history rows written in one batch.
+     * @param  flushInterval  the maximum number of milliseconds a history row waits for its batch to fill.
+     * @param  registry       the transaction synchronization registry, or null if there are no JTA transactions.
+     *
+     * @return  a new instance of the asynchronous history writer class.
+     */
+    public static AsynchronousHistoryWriter newInstance(final int queueCapacity, final int threadCount, final int batchSize, final long flushInterval, final TransactionSynchronizationRegistry registry) {
+        return new AsynchronousHistoryWriter(queueCapacity, threadCount, batchSize, flushInterval, registry);
+    }
+
+    /**
+     * Queue the history row.
+     *
+     * A history row of a history table with delta storage waits for room
+     * on a full queue rather than being refused, since writing it before the
+     * queued history rows of its entity would corrupt their deltas.
+     *
+     * @param  row  the history row.
+     *
+     * @return  true if the history row was queued, or false if the writer is full or shut down, or the history row cannot be encoded.
+     */
+    private boolean queue(final HistoryRow row) {
+
+        boolean queued = false;
+
+        try {
+
+            BlockingQueue<QueuedRow> queue = this.getQueue(row);
+            QueuedRow queuedRow = new QueuedRow(row.getDescriptor(), row.getDescriptor().getRowCodec().encode(row));
+
+            // Check if the history table has delta storage.
+            if (row.getDescriptor().isDelta()) {
+
+                // Wait for room on the queue while the writer is running.
+                while (!queued && this.running) {
+                    queued = queue.offer(queuedRow, this.flushInterval, TimeUnit.MILLISECONDS);
+                }
+            } else {
+                queued = this.running && queue.offer(queuedRow);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to encode the history row, writing it synchronously.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return queued;
+    }
+
+    /**
+     * Shut down the writer.
+     *
+     * New history rows are refused, and the pending history rows are written
+     * before this method returns.
+     */
+    public void shutdown() {
+
+        this.stop();
+
+        try {
+
+            // The virtual machine no longer needs to stop the writer.
+            Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+        } catch (IllegalStateException e) {
+            // The virtual machine is already shutting down.
+        }
+    }
+
+    /**
+     * Stop the writer threads and wait for them to write the pending history rows.
+     */
+    private void stop() {
+
+        this.running = false;
+
+        // Loop through the writer threads.
+        for (Thread thread : this.threads) {
+
+            try {
+
+                // Wait for the writer thread to finish.
+                thread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Write the history rows queued after the writer threads finished.
+        List<QueuedRow> rows = new ArrayList<QueuedRow>();
+        for (BlockingQueue<QueuedRow> queue : this.queues) {
+            queue.drainTo(rows);
+        }
+        this.flush(rows);
+    }
+
+    /**
+     * Write the history row.
+     *
+     * A history row captured outside a JTA transaction is queued now.  A
+     * history row captured in an active JTA transaction is kept on the
+     * transaction and queued after the transaction commits.  A history row
+     * captured in a transaction that is completing is refused, so the caller
+     * writes it in the transaction.
+     *
+     * @param  row  the history row.
+     *
+     * @return  true if the history row was accepted, or false if the writer is full or shut down, the history row cannot be encoded, or the transaction is completing.
+     */
+    public boolean write(final HistoryRow row) {
+
+        boolean accepted = false;
+
+        // Check if the writer is running.
+        if (this.running) {
+
+            int status = (this.registry != null) ? this.registry.getTransactionStatus() : Status.STATUS_NO_TRANSACTION;
+
+            // Check if there is no transaction.
+            if (status == Status.STATUS_NO_TRANSACTION) {
+                accepted = this.queue(row);
+            }
+
+            // Check if there is an active transaction.
+            else if (status == Status.STATUS_ACTIVE) {
+
+                // Get the committer of the transaction.
+                Committer committer = (Committer)this.registry.getResource(this);
+
+                // Check if this is the first history row of the transaction.
+                if (committer == null) {
+                    committer = new Committer();
+                    this.registry.putResource(this, committer);
+                    this.registry.registerInterposedSynchronization(committer);
+                }
+
+                committer.add(row);
+                accepted = true;
+            }
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Committer.
+     *
+     * Keeps the history rows of a transaction, and queues them after the
+     * transaction commits.  The history rows that cannot be queued are
+     * written on the committing thread.
+     */
+    private class Committer implements Synchronization {
+
+        private final List<HistoryRow> rows = new ArrayList<HistoryRow>();
+
+        /**
+         * Add the history row.
+         *
+         * @param  row  the history row.
+         */
+        public void add(final HistoryRow row) {
+            this.rows.add(row);
+        }
+
+        /**
+         * Queue the history rows if the transaction committed, otherwise
+         * invalidate the cached state of their entities.
+         *
+         * @param  status  the transaction status.
+         */
+        @Override
+        public void afterCompletion(final int status) {
+
+            // Check if the transaction committed.
+            if (status == Status.STATUS_COMMITTED) {
+
+                List<HistoryRow> unqueuedRows = new ArrayList<HistoryRow>();
+
+                // Queue the history rows.
+                for (HistoryRow row : this.rows) {
+                    if (!AsynchronousHistoryWriter.this.queue(row)) {
+                        unqueuedRows.add(row);
+                    }
+                }
+
+                // Write the history rows that were not queued.
+                AsynchronousHistoryWriter.this.insert(unqueuedRows);
+            } else {
+                logger.trace("Discard {} history rows of a rolled back transaction.", this.rows.size());
+                HistoryTableImpl.invalidate(this.rows);
+            }
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Queued history row.
+     *
+     * A history row encoded by the history row codec of its history table.
+     */
+    private static final class QueuedRow {
+
+        private final HistoryTableDescriptor descriptor;
+        private final byte[] encodedRow;
+
+        /**
+         * Create the queued history row.
+         *
+         * @param  descriptor  the history table descriptor.
+         * @param  encodedRow  the encoded history row.
+         */
+        QueuedRow(final HistoryTableDescriptor descriptor, final byte[] encodedRow) {
+            this.descriptor = descriptor;
+            this.encodedRow = encodedRow;
+        }
+
+        /**
+         * Decode the history row.
+         *
+         * @return  the history row.
+         *
+         * @throws  IOException  if unable to decode the history row.
+         */
+        HistoryRow decode() throws IOException {
+            return this.descriptor.getRowCodec().decode(this.descriptor, ByteBuffer.wrap(this.encodedRow));
+        }
+    }
+}
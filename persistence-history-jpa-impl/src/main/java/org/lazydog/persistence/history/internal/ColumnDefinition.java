@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+/**
+ * Column definition.
+ *
+ * A column definition holds the meta data of one source table column.
+ *
+ * @author  Ron Rickard
+ */
+final class ColumnDefinition {
+
+    private final String columnName;
+    private final int columnSize;
+    private final int dataType;
+    private final int decimalDigits;
+    private final String typeName;
+    private final boolean unsigned;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  columnName     the column name.
+     * @param  columnSize     the column size.
+     * @param  dataType       the SQL data type from java.sql.Types.
+     * @param  decimalDigits  the decimal digits.
+     * @param  typeName       the database type name.
+     * @param  unsigned       true if the column is unsigned, otherwise false.
+     */
+    private ColumnDefinition(final String columnName, final int columnSize, final int dataType, final int decimalDigits, final String typeName, final boolean unsigned) {
+        this.columnName = columnName;
+        this.columnSize = columnSize;
+        this.dataType = dataType;
+        this.decimalDigits = decimalDigits;
+        this.typeName = typeName;
+        this.unsigned = unsigned;
+    }
+
+    /**
+     * Get the column name.
+     *
+     * @return  the column name.
+     */
+    public String getColumnName() {
+        return this.columnName;
+    }
+
+    /**
+     * Get the column size.
+     *
+     * @return  the column size.
+     */
+    public int getColumnSize() {
+        return this.columnSize;
+    }
+
+    /**
+     * Get the SQL data type.
+     *
+     * @return  the SQL data type from java.sql.Types.
+     */
+    public int getDataType() {
+        return this.dataType;
+    }
+
+    /**
+     * Get the decimal digits.
+     *
+     * @return  the decimal digits.
+     */
+    public int getDecimalDigits() {
+        return this.decimalDigits;
+    }
+
+    /**
+     * Get the database type name.
+     *
+     * @return  the database type name.
+     */
+    public String getTypeName() {
+        return this.typeName;
+    }
+
+    /**
+     * Check if the column is unsigned.
+     *
+     * @return  true if the column is unsigned, otherwise false.
+     */
+    public boolean isUnsigned() {
+        return this.unsigned;
+    }
+
+    /**
+     * Create a new instance of the column definition class.
+     *
+     * @param  columnName     the column name.
+     * @param  columnSize     the column size.
+     * @param  dataType       the SQL data type from java.sql.Types.
+     * @param  decimalDigits  the decimal digits.
+     * @param  typeName       the database type name.
+     * @param  unsigned       true if the column is unsigned, otherwise false.
+     *
+     * @return  a new instance of the column definition class.
+     */
+    public static ColumnDefinition newInstance(final String columnName, final int columnSize, final int dataType, final int decimalDigits, final String typeName, final boolean unsigned) {
+        return new ColumnDefinition(columnName, columnSize, dataType, decimalDigits, typeName, unsigned);
+    }
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Column;
+import javax.persistence.Embedded;
+import javax.persistence.EmbeddedId;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Entity accessor.
+ *
+ * The entity accessor reads the column values of a row directly from the
+ * entity.  Each column is mapped once to a field or getter of the entity
+ * class, using the JPA column annotation if there is one, otherwise the
+ * column name converted to camel case.  Columns that are not mapped by the
+ * entity class itself are looked up in its embedded and embedded identifier
+ * properties, so composite keys may be read too.
+ *
+ * @author  Ron Rickard
+ */
+final class EntityAccessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(EntityAccessor.class);
+
+    private final Accessor[] accessors;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  entityClass  the entity class.
+     * @param  columnNames  the column names.
+     *
+     * @throws  IllegalArgumentException  if a column cannot be mapped to the entity class.
+     */
+    private EntityAccessor(final Class<?> entityClass, final List<String> columnNames) {
+
+        Map<String,Accessor> propertyAccessors = getAccessors(entityClass);
+
+        this.accessors = new Accessor[columnNames.size()];
+
+        // Loop through the column names.
+        for (int index = 0; index < this.accessors.length; index++) {
+
+            String columnName = columnNames.get(index);
+            Accessor accessor = propertyAccessors.get(columnName.toLowerCase());
+
+            // Check if the column is not mapped by annotation or by name.
+            if (accessor == null) {
+                accessor = propertyAccessors.get(toPropertyName(columnName).toLowerCase());
+            }
+
+            // Check if the column cannot be mapped.
+            if (accessor == null) {
+                throw new IllegalArgumentException("Unable to map the column " + columnName + " to the entity " + entityClass.getSimpleName() + ".");
+            }
+
+            logger.debug("The column {} is read from {} for the entity {}.", new Object[] {columnName, accessor, entityClass.getSimpleName()});
+            this.accessors[index] = accessor;
+        }
+    }
+
+    /**
+     * Get the accessors for the entity class keyed by lower case column name
+     * and by lower case property name.
+     *
+     * Getters take precedence over fields, and subclasses take precedence
+     * over superclasses.  Properties of embedded objects are added last and
+     * do not replace the properties of the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the accessors.
+     */
+    private static Map<String,Accessor> getAccessors(final Class<?> entityClass) {
+
+        Map<String,Accessor> accessors = new HashMap<String,Accessor>();
+        Map<Accessor,Class<?>> embeddedAccessors = new LinkedHashMap<Accessor,Class<?>>();
+
+        // Loop through the class hierarchy, superclasses first.
+        for (Class<?> currentClass : getClassHierarchy(entityClass)) {
+
+            // Loop through the fields.
+            for (Field field : currentClass.getDeclaredFields()) {
+
+                // Check if the field is not static.
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    Accessor accessor = new FieldAccessor(field);
+                    putAccessor(accessors, field.getName(), field, accessor);
+                    putEmbeddedAccessor(embeddedAccessors, field, field.getType(), accessor);
+                }
+            }
+        }
+
+        // Loop through the class hierarchy, superclasses first.
+        for (Class<?> currentClass : getClassHierarchy(entityClass)) {
+
+            // Loop through the methods.
+            for (Method method : currentClass.getDeclaredMethods()) {
+
+                String propertyName = getPropertyName(method);
+
+                // Check if the method is a getter.
+                if (propertyName != null) {
+                    Accessor accessor = new MethodAccessor(method);
+                    putAccessor(accessors, propertyName, method, accessor);
+                    putEmbeddedAccessor(embeddedAccessors, method, method.getReturnType(), accessor);
+                }
+            }
+        }
+
+        // Loop through the embedded accessors.
+        for (Map.Entry<Accessor,Class<?>> embeddedAccessor : embeddedAccessors.entrySet()) {
+
+            // Loop through the accessors of the embedded class.
+            for (Map.Entry<String,Accessor> accessor : getAccessors(embeddedAccessor.getValue()).entrySet()) {
+
+                // Check if the entity class does not map the name itself.
+                if (!accessors.containsKey(accessor.getKey())) {
+                    accessors.put(accessor.getKey(), new EmbeddedAccessor(embeddedAccessor.getKey(), accessor.getValue()));
+                }
+            }
+        }
+
+        return accessors;
+    }
+
+    /**
+     * Get the class hierarchy, superclasses first.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the class hierarchy.
+     */
+    private static List<Class<?>> getClassHierarchy(final Class<?> entityClass) {
+
+        List<Class<?>> classHierarchy = new ArrayList<Class<?>>();
+
+        for (Class<?> currentClass = entityClass; currentClass != null && currentClass != Object.class; currentClass = currentClass.getSuperclass()) {
+            classHierarchy.add(0, currentClass);
+        }
+
+        return classHierarchy;
+    }
+
+    /**
+     * Get the property name of the getter.
+     *
+     * @param  method  the method.
+     *
+     * @return  the property name, or null if the method is not a getter.
+     */
+    private static String getPropertyName(final Method method) {
+
+        String propertyName = null;
+        String methodName = method.getName();
+
+        // Check if the method is a non-static method without parameters.
+        if (!Modifier.isStatic(method.getModifiers()) && method.getParameterTypes().length == 0 && method.getReturnType() != Void.TYPE) {
+
+            if (methodName.startsWith("get") && methodName.length() > 3) {
+                propertyName = methodName.substring(3, 4).toLowerCase() + methodName.substring(4);
+            } else if (methodName.startsWith("is") && methodName.length() > 2 && (method.getReturnType() == Boolean.TYPE || method.getReturnType() == Boolean.class)) {
+                propertyName = methodName.substring(2, 3).toLowerCase() + methodName.substring(3);
+            }
+        }
+
+        return propertyName;
+    }
+
+    /**
+     * Get the column values from the entity.
+     *
+     * @param  entity  the entity.
+     *
+     * @return  the column values in column order.
+     *
+     * @throws  IllegalAccessException     if unable to read a column value.
+     * @throws  InvocationTargetException  if a getter throws an exception.
+     */
+    public Object[] getValues(final Object entity) throws IllegalAccessException, InvocationTargetException {
+
+        Object[] values = new Object[this.accessors.length];
+
+        // Loop through the accessors.
+        for (int index = 0; index < this.accessors.length; index++) {
+            values[index] = this.accessors[index].get(entity);
+        }
+
+        return values;
+    }
+
+    /**
+     * Create a new instance of the entity accessor class.
+     *
+     * @param  entityClass  the entity class.
+     * @param  columnNames  the column names.
+     *
+     * @return  a new instance of the entity accessor class.
+     *
+     * @throws  IllegalArgumentException  if a column cannot be mapped to the entity class.
+     */
+    public static EntityAccessor newInstance(final Class<?> entityClass, final List<String> columnNames) {
+        return new EntityAccessor(entityClass, columnNames);
+    }
+
+    /**
+     * Put the accessor on the map under its property name and, if it is
+     * annotated, its column name.
+     *
+     * @param  accessors         the accessors.
+     * @param  propertyName      the property name.
+     * @param  annotatedElement  the field or method.
+     * @param  accessor          the accessor.
+     */
+    private static void putAccessor(final Map<String,Accessor> accessors, final String propertyName, final AccessibleObject annotatedElement, final Accessor accessor) {
+
+        accessors.put(propertyName.toLowerCase(), accessor);
+
+        // Check if the column name is specified.
+        Column column = annotatedElement.getAnnotation(Column.class);
+        if (column != null && !column.name().isEmpty()) {
+            accessors.put(column.name().toLowerCase(), accessor);
+        }
+    }
+
+    /**
+     * Put the accessor on the map of embedded accessors if the field or method
+     * is an embedded or embedded identifier property.
+     *
+     * @param  embeddedAccessors  the embedded accessors.
+     * @param  annotatedElement   the field or method.
+     * @param  embeddedClass      the type of the field or method.
+     * @param  accessor           the accessor.
+     */
+    private static void putEmbeddedAccessor(final Map<Accessor,Class<?>> embeddedAccessors, final AccessibleObject annotatedElement, final Class<?> embeddedClass, final Accessor accessor) {
+
+        // Check if the field or method is embedded.
+        if (annotatedElement.isAnnotationPresent(EmbeddedId.class) || annotatedElement.isAnnotationPresent(Embedded.class)) {
+            embeddedAccessors.put(accessor, embeddedClass);
+        }
+    }
+
+    /**
+     * Convert an underscore column name into a camel case property name.
+     *
+     * @param  columnName  the column name.
+     *
+     * @return  the property name.
+     */
+    private static String toPropertyName(final String columnName) {
+
+        StringBuilder propertyName = new StringBuilder();
+        boolean upperCase = false;
+
+        // Loop through the characters.
+        for (char character : columnName.toLowerCase().toCharArray()) {
+
+            if (character == '_') {
+                upperCase = (propertyName.length() > 0);
+            } else {
+                propertyName.append((upperCase) ? Character.toUpperCase(character) : character);
+                upperCase = false;
+            }
+        }
+
+        return propertyName.toString();
+    }
+
+    /**
+     * Convert the property value into a column value.
+     *
+     * @param  value             the property value.
+     * @param  annotatedElement  the field or method.
+     *
+     * @return  the column value.
+     */
+    private static Object toColumnValue(final Object value, final AccessibleObject annotatedElement) {
+
+        Object columnValue = value;
+
+        if (value instanceof Timestamp) {
+            columnValue = value;
+        } else if (value instanceof Date) {
+            columnValue = new Timestamp(((Date)value).getTime());
+        } else if (value instanceof Calendar) {
+            columnValue = new Timestamp(((Calendar)value).getTimeInMillis());
+        } else if (value instanceof Enum) {
+            Enumerated enumerated = annotatedElement.getAnnotation(Enumerated.class);
+            columnValue = (enumerated != null && enumerated.value() == EnumType.STRING) ? ((Enum<?>)value).name() : Integer.valueOf(((Enum<?>)value).ordinal());
+        }
+
+        return columnValue;
+    }
+
+    /**
+     * Accessor.
+     */
+    private static abstract class Accessor {
+
+        /**
+         * Get the column value from the entity.
+         *
+         * @param  entity  the entity.
+         *
+         * @return  the column value.
+         *
+         * @throws  IllegalAccessException     if unable to read the column value.
+         * @throws  InvocationTargetException  if a getter throws an exception.
+         */
+        public abstract Object get(Object entity) throws IllegalAccessException, InvocationTargetException;
+    }
+
+    /**
+     * Embedded accessor.
+     */
+    private static class EmbeddedAccessor extends Accessor {
+
+        private final Accessor embeddedAccessor;
+        private final Accessor propertyAccessor;
+
+        /**
+         * Create the embedded accessor.
+         *
+         * @param  embeddedAccessor  the accessor for the embedded object.
+         * @param  propertyAccessor  the accessor for the property of the embedded object.
+         */
+        public EmbeddedAccessor(final Accessor embeddedAccessor, final Accessor propertyAccessor) {
+            this.embeddedAccessor = embeddedAccessor;
+            this.propertyAccessor = propertyAccessor;
+        }
+
+        @Override
+        public Object get(final Object entity) throws IllegalAccessException, InvocationTargetException {
+            Object embedded = this.embeddedAccessor.get(entity);
+            return (embedded == null) ? null : this.propertyAccessor.get(embedded);
+        }
+
+        @Override
+        public String toString() {
+            return this.embeddedAccessor + " " + this.propertyAccessor;
+        }
+    }
+
+    /**
+     * Field accessor.
+     */
+    private static class FieldAccessor extends Accessor {
+
+        private final Field field;
+
+        /**
+         * Create the field accessor.
+         *
+         * @param  field  the field.
+         */
+        public FieldAccessor(final Field field) {
+            this.field = field;
+            this.field.setAccessible(true);
+        }
+
+        @Override
+        public Object get(final Object entity) throws IllegalAccessException {
+            return toColumnValue(this.field.get(entity), this.field);
+        }
+
+        @Override
+        public String toString() {
+            return "field " + this.field.getName();
+        }
+    }
+
+    /**
+     * Method accessor.
+     */
+    private static class MethodAccessor extends Accessor {
+
+        private final Method method;
+
+        /**
+         * Create the method accessor.
+         *
+         * @param  method  the method.
+         */
+        public MethodAccessor(final Method method) {
+            this.method = method;
+            this.method.setAccessible(true);
+        }
+
+        @Override
+        public Object get(final Object entity) throws IllegalAccessException, InvocationTargetException {
+            return toColumnValue(this.method.invoke(entity), this.method);
+        }
+
+        @Override
+        public String toString() {
+            return "method " + this.method.getName();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram.
+ *
+ * The histogram counts non-negative values in power of two buckets, so a
+ * percentile is reported as the upper bound of its bucket, within a factor
+ * of two of the exact value.  The buckets are striped by thread like the
+ * striped counter, so recording a value never locks.
+ *
+ * @author  Ron Rickard
+ */
+final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Hide the constructor.
+     */
+    private Histogram() {
+    }
+
+    /**
+     * Get the bucket of the value.
+     *
+     * Bucket zero holds zero, and bucket n holds the values from 2^(n-1) to
+     * 2^n - 1.
+     *
+     * @param  value  the value.
+     *
+     * @return  the bucket of the value.
+     */
+    private static int getBucket(final long value) {
+        return (value <= 0) ? 0 : Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return  the number of values recorded.
+     */
+    public long getCount() {
+
+        long count = 0;
+
+        // Loop through the buckets of all stripes.
+        for (int index = 0; index < this.buckets.length(); index++) {
+            count += this.buckets.get(index);
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the maximum value recorded.
+     *
+     * @return  the maximum value recorded, or zero if no values are recorded.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Get the percentile.
+     *
+     * @param  percentile  the percentile, from 0 to 100.
+     *
+     * @return  the upper bound of the bucket holding the percentile, at most the maximum value recorded.
+     */
+    public long getPercentile(final double percentile) {
+
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        // Sum the buckets over the stripes.
+        for (int index = 0; index < this.buckets.length(); index++) {
+            counts[index % BUCKETS] += this.buckets.get(index);
+            total += this.buckets.get(index);
+        }
+
+        long rank = (long)Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        long value = 0;
+
+        // Loop through the buckets until the rank is reached.
+        for (int bucket = 0; bucket < BUCKETS && total > 0; bucket++) {
+
+            seen += counts[bucket];
+
+            // Check if the percentile is in this bucket.
+            if (seen >= rank && counts[bucket] > 0) {
+                value = (bucket == 0) ? 0 : (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+                break;
+            }
+        }
+
+        return Math.min(value, this.getMax());
+    }
+
+    /**
+     * Record the value.
+     *
+     * @param  value  the value.
+     */
+    public void record(final long value) {
+
+        this.buckets.getAndIncrement(StripedCounter.getStripe() * BUCKETS + getBucket(value));
+
+        // Raise the maximum value if necessary.
+        long currentMax = this.max.get();
+        while (value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    /**
+     * Reset the histogram.
+     *
+     * Values recorded while the histogram is reset may be lost.
+     */
+    public void reset() {
+
+        // Loop through the buckets of all stripes.
+        for (int index = 0; index < this.buckets.length(); index++) {
+            this.buckets.set(index, 0);
+        }
+
+        this.max.set(0);
+    }
+
+    /**
+     * Create a new instance of the histogram class.
+     *
+     * @return  a new instance of the histogram class.
+     */
+    public static Histogram newInstance() {
+        return new Histogram();
+    }
+}
@@ -0,0 +1,593 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.lazydog.persistence.history.HistoryTable;
+
+/**
+ * History delta encoder.
+ *
+ * Encodes the update history rows of a history table with delta storage.
+ * A delta history row holds the identifier columns and the columns that
+ * changed since the last history row of the entity, and its changed
+ * columns bitmap lists the changed columns.  The other columns are null.
+ * A full history row has no bitmap.
+ *
+ * The last recorded column values of the most recently written entities
+ * are kept in a bounded cache.  On a cache miss, the last version is read
+ * from the history table before the cache is locked.  The cached state of
+ * an entity is invalidated when its history rows are not written or their
+ * transaction rolls back, so deltas are never encoded against column
+ * values that were not committed.  Every snapshot interval history rows, a full
+ * history row is written, so a version is never merged from more than the
+ * snapshot interval history rows.  If the history table is partitioned, the
+ * first history row of an entity in each partition is also a full history
+ * row, so dropping an older partition never leaves a delta history row
+ * without the full history row it is merged into.
+ *
+ * The bitmap is a hexadecimal string.  Each character holds four columns,
+ * with the first of them in the lowest bit.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryDeltaEncoder {
+
+    private static final int NO_BASE = Integer.MAX_VALUE;
+
+    private final Map<List<Object>,State> cache;
+    private final int columnCount;
+    private final HistoryTableDescriptor descriptor;
+    private final boolean[] idColumns;
+    private final int snapshotInterval;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  descriptor        the history table descriptor.
+     * @param  snapshotInterval  the maximum number of history rows from one full history row to the next.
+     * @param  cacheSize         the number of entities whose last column values are cached.
+     */
+    private HistoryDeltaEncoder(final HistoryTableDescriptor descriptor, final int snapshotInterval, final int cacheSize) {
+
+        List<String> columnNames = descriptor.getColumnNames();
+        List<String> idColumnNames = descriptor.getIdentifierAccessor().getColumnNames();
+
+        this.columnCount = columnNames.size();
+        this.descriptor = descriptor;
+        this.snapshotInterval = snapshotInterval;
+
+        // Mark the identifier columns, which every history row holds.
+        this.idColumns = new boolean[this.columnCount];
+        for (int index = 0; index < this.columnCount; index++) {
+            this.idColumns[index] = idColumnNames.contains(columnNames.get(index));
+        }
+
+        // Evict the least recently used entity when the cache is full.
+        this.cache = new LinkedHashMap<List<Object>,State>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<List<Object>,State> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Encode the history rows of the history table in the order they are
+     * written.
+     *
+     * Update history rows are encoded as delta history rows against the
+     * last recorded column values of their entities.  History rows without
+     * an entity identifier are written in full.
+     *
+     * The last versions of the updated entities that are not cached are
+     * read first, without holding the cache lock.  An entity whose state
+     * is neither cached nor read, because it was evicted or deleted in the
+     * meantime, is written in full.
+     *
+     * @param  connection  the target connection.
+     * @param  rows        the history rows.
+     *
+     * @return  the encoded history rows.
+     *
+     * @throws  SQLException  if unable to read the last version of an entity.
+     */
+    public List<HistoryRow> encode(final Connection connection, final List<HistoryRow> rows) throws SQLException {
+
+        Map<List<Object>,State> readStates = new HashMap<List<Object>,State>();
+
+        // Read the last version of the updated entities that are not cached.
+        for (HistoryRow row : rows) {
+
+            // Check if the history row is an update with a kept entity identifier.
+            if (row.getId() != null && row.getAction().equals(HistoryTable.Action.UPDATE.toString())) {
+
+                List<Object> key = Arrays.asList(row.getId());
+                if (!readStates.containsKey(key) && !this.isCached(key)) {
+                    readStates.put(key, this.readState(connection, row.getId()));
+                }
+            }
+        }
+
+        return this.encode(rows, readStates);
+    }
+
+    /**
+     * Encode the history rows of the history table against the cached
+     * states and the states read from the history table.
+     *
+     * @param  rows        the history rows.
+     * @param  readStates  the states read from the history table by cache key.
+     *
+     * @return  the encoded history rows.
+     */
+    private synchronized List<HistoryRow> encode(final List<HistoryRow> rows, final Map<List<Object>,State> readStates) {
+
+        List<HistoryRow> encodedRows = new ArrayList<HistoryRow>(rows.size());
+
+        // Loop through the history rows.
+        for (HistoryRow row : rows) {
+
+            HistoryRow encodedRow = row;
+
+            // Check if the entity identifier is kept.
+            if (row.getId() != null) {
+
+                List<Object> key = Arrays.asList(row.getId());
+                Object[] values = row.getValues();
+                String action = row.getAction();
+
+                // Check if the entity was deleted.
+                if (action.equals(HistoryTable.Action.DELETE.toString())) {
+                    this.cache.remove(key);
+                    readStates.remove(key);
+                } else {
+
+                    // Get the cached state, or the state read from the history table the first time.
+                    State previous = null;
+                    if (action.equals(HistoryTable.Action.UPDATE.toString())) {
+                        previous = this.cache.get(key);
+                        if (previous == null) {
+                            previous = readStates.remove(key);
+                        }
+                    }
+
+                    // Check if a full history row is due.
+                    if (previous == null || previous.getDeltaCount() >= this.snapshotInterval - 1 || !this.isSamePartition(previous, row)) {
+                        this.cache.put(key, new State(values, 0, row.getActionTime()));
+                    } else {
+                        encodedRow = this.encode(row, values, previous.getValues());
+                        this.cache.put(key, new State(values, previous.getDeltaCount() + 1, row.getActionTime()));
+                    }
+                }
+            }
+
+            encodedRows.add(encodedRow);
+        }
+
+        return encodedRows;
+    }
+
+    /**
+     * Encode the history row as a delta history row.
+     *
+     * @param  row             the history row.
+     * @param  values          the column values of the history row.
+     * @param  previousValues  the last recorded column values.
+     *
+     * @return  the delta history row.
+     */
+    private HistoryRow encode(final HistoryRow row, final Object[] values, final Object[] previousValues) {
+
+        Object[] deltaValues = new Object[this.columnCount];
+        char[] bitmap = new char[getBitmapLength(this.columnCount)];
+        Arrays.fill(bitmap, '0');
+
+        // Loop through the columns.
+        for (int index = 0; index < this.columnCount; index++) {
+
+            // Check if the column is an identifier column.
+            if (this.idColumns[index]) {
+                deltaValues[index] = values[index];
+            }
+
+            // Check if the column changed.
+            else if (!equals(values[index], previousValues[index])) {
+                deltaValues[index] = values[index];
+                int digit = Character.digit(bitmap[index / 4], 16) | (1 << (index % 4));
+                bitmap[index / 4] = Character.forDigit(digit, 16);
+            }
+        }
+
+        return HistoryRow.newInstance(row, deltaValues, new String(bitmap));
+    }
+
+    /**
+     * Check if the column values are equal or both null.
+     *
+     * @param  value1  the first column value.
+     * @param  value2  the second column value.
+     *
+     * @return  true if the column values are equal or both null, otherwise false.
+     */
+    static boolean equals(final Object value1, final Object value2) {
+
+        boolean equals;
+
+        // Check if the column values are binary.
+        if (value1 instanceof byte[] && value2 instanceof byte[]) {
+            equals = Arrays.equals((byte[])value1, (byte[])value2);
+        } else {
+            equals = (value1 == null) ? value2 == null : value1.equals(value2);
+        }
+
+        return equals;
+    }
+
+    /**
+     * Get the length of the changed columns bitmap.
+     *
+     * @param  columnCount  the number of columns.
+     *
+     * @return  the number of characters in the bitmap.
+     */
+    static int getBitmapLength(final int columnCount) {
+        return Math.max(1, (columnCount + 3) / 4);
+    }
+
+    /**
+     * Get the identifier columns.
+     *
+     * @return  true for each identifier column, in column order.
+     */
+    public boolean[] getIdColumns() {
+        return this.idColumns;
+    }
+
+    /**
+     * Invalidate the cached state of the entities of the history rows.
+     *
+     * Called when the history rows could not be written.
+     *
+     * @param  rows  the history rows.
+     */
+    public synchronized void invalidate(final List<HistoryRow> rows) {
+
+        // Loop through the history rows.
+        for (HistoryRow row : rows) {
+
+            // Check if the entity identifier is kept.
+            if (row.getId() != null) {
+                this.cache.remove(Arrays.asList(row.getId()));
+            }
+        }
+    }
+
+    /**
+     * Check if the state of the entity is cached.
+     *
+     * @param  key  the cache key.
+     *
+     * @return  true if the state is cached, otherwise false.
+     */
+    private synchronized boolean isCached(final List<Object> key) {
+        return this.cache.containsKey(key);
+    }
+
+    /**
+     * Check if the column is marked as changed in the bitmap.
+     *
+     * @param  bitmap  the changed columns bitmap.
+     * @param  index   the column index.
+     *
+     * @return  true if the column changed, otherwise false.
+     */
+    private static boolean isChanged(final String bitmap, final int index) {
+        return (Character.digit(bitmap.charAt(index / 4), 16) & (1 << (index % 4))) != 0;
+    }
+
+    /**
+     * Check if the history row is in the same partition as the last
+     * recorded state.
+     *
+     * @param  previous  the last recorded state.
+     * @param  row       the history row.
+     *
+     * @return  true if the history table is not partitioned or both are in the same partition, otherwise false.
+     */
+    private boolean isSamePartition(final State previous, final HistoryRow row) {
+
+        boolean isSamePartition = true;
+        HistoryTablePartitioner partitioner = this.descriptor.getPartitioner();
+
+        // Check if the history table is partitioned.
+        if (partitioner != null) {
+            isSamePartition = previous.getActionTime() != null && partitioner.getPartitionName(previous.getActionTime()).equals(partitioner.getPartitionName(row.getActionTime()));
+        }
+
+        return isSamePartition;
+    }
+
+    /**
+     * Merge the history row values into the state.
+     *
+     * The values of a full history row replace the state.  The changed
+     * columns of a delta history row replace the matching state values.
+     *
+     * @param  state   the column values of the state.
+     * @param  values  the column values of the history row.
+     * @param  bitmap  the changed columns bitmap, or null for a full history row.
+     * @param  idColumns  true for each identifier column, in column order.
+     */
+    static void merge(final Object[] state, final Object[] values, final String bitmap, final boolean[] idColumns) {
+
+        // Loop through the columns.
+        for (int index = 0; index < state.length; index++) {
+
+            // Check if the column value is in the history row.
+            if (bitmap == null || idColumns[index] || isChanged(bitmap, index)) {
+                state[index] = values[index];
+            }
+        }
+    }
+
+    /**
+     * Create a new instance of the history delta encoder class.
+     *
+     * @param  descriptor        the history table descriptor.
+     * @param  snapshotInterval  the maximum number of history rows from one full history row to the next.
+     * @param  cacheSize         the number of entities whose last column values are cached.
+     *
+     * @return  a new instance of the history delta encoder class.
+     */
+    public static HistoryDeltaEncoder newInstance(final HistoryTableDescriptor descriptor, final int snapshotInterval, final int cacheSize) {
+        return new HistoryDeltaEncoder(descriptor, snapshotInterval, cacheSize);
+    }
+
+    /**
+     * Read the last version from history rows in descending version order.
+     *
+     * The history rows are read back to the last full history row, and the
+     * delta history rows after it are merged in version order.  If the full
+     * history row was purged, the state has no base and the next history
+     * row of the entity is written in full.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  resultSet   the history rows in descending version order.
+     *
+     * @return  the last version, or null if there are no history rows.
+     *
+     * @throws  SQLException  if unable to read the history rows.
+     */
+    static State readLast(final HistoryTableDescriptor descriptor, final ResultSet resultSet) throws SQLException {
+
+        State state = null;
+        RowCopier rowCopier = descriptor.getRowCopier();
+        int columnCount = rowCopier.getColumnCount();
+        List<Object[]> deltaValues = new ArrayList<Object[]>();
+        List<String> bitmaps = new ArrayList<String>();
+        Object[] values = null;
+
+        // Loop back through the history rows to the last full history row.
+        while (resultSet.next()) {
+
+            Object[] rowValues = rowCopier.read(resultSet);
+            String bitmap = resultSet.getString(columnCount + 5);
+
+            // Keep the version of the last history row.
+            if (state == null) {
+                state = new State(
+                        new Object[columnCount],
+                        0,
+                        resultSet.getLong(columnCount + 4),
+                        resultSet.getString(columnCount + 1),
+                        resultSet.getString(columnCount + 2),
+                        resultSet.getTimestamp(columnCount + 3));
+            }
+
+            // Check if this is a full history row.
+            if (bitmap == null) {
+                values = rowValues;
+                break;
+            }
+
+            deltaValues.add(rowValues);
+            bitmaps.add(bitmap);
+        }
+
+        // Check if there is a history row.
+        if (state != null) {
+
+            // Start from the full history row, if it was not purged.
+            if (values != null) {
+                System.arraycopy(values, 0, state.getValues(), 0, columnCount);
+            }
+
+            // Merge the delta history rows in version order.
+            boolean[] idColumns = descriptor.getDeltaEncoder().getIdColumns();
+            for (int index = deltaValues.size() - 1; index >= 0; index--) {
+                merge(state.getValues(), deltaValues.get(index), bitmaps.get(index), idColumns);
+            }
+
+            // Force a full history row next if the full history row was purged.
+            state = new State(state, (values != null) ? deltaValues.size() : NO_BASE);
+        }
+
+        return state;
+    }
+
+    /**
+     * Read the last recorded state of the entity from the history table.
+     *
+     * @param  connection  the target connection.
+     * @param  id          the identifier values in identifier column order.
+     *
+     * @return  the last recorded state, or null if the entity has no history row.
+     *
+     * @throws  SQLException  if unable to read the last version of the entity.
+     */
+    private State readState(final Connection connection, final Object[] id) throws SQLException {
+
+        State state = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+
+        try {
+
+            // Read the last version from the history table.
+            preparedStatement = connection.prepareStatement(this.descriptor.getSelectLatestVersionSQL());
+            this.descriptor.getIdentifierAccessor().bind(preparedStatement, id);
+            resultSet = preparedStatement.executeQuery();
+            state = readLast(this.descriptor, resultSet);
+        } finally {
+
+            // Close the result set and prepared statement.
+            HistoryTableImpl.disconnect(null, preparedStatement, resultSet);
+        }
+
+        return state;
+    }
+
+    /**
+     * Last recorded state of an entity.
+     */
+    static final class State {
+
+        private final String action;
+        private final String actionBy;
+        private final Timestamp actionTime;
+        private final int deltaCount;
+        private final long historyId;
+        private final Object[] values;
+
+        /**
+         * Create the state of a written history row.
+         *
+         * @param  values      the column values.
+         * @param  deltaCount  the number of delta history rows since the last full history row.
+         * @param  actionTime  the action time.
+         */
+        State(final Object[] values, final int deltaCount, final Timestamp actionTime) {
+            this(values, deltaCount, 0, null, null, actionTime);
+        }
+
+        /**
+         * Create the state of a history row read from the history table.
+         *
+         * @param  values      the column values.
+         * @param  deltaCount  the number of delta history rows since the last full history row.
+         * @param  historyId   the history identifier.
+         * @param  action      the action.
+         * @param  actionBy    the action by.
+         * @param  actionTime  the action time.
+         */
+        State(final Object[] values, final int deltaCount, final long historyId, final String action, final String actionBy, final Timestamp actionTime) {
+            this.action = action;
+            this.actionBy = actionBy;
+            this.actionTime = actionTime;
+            this.deltaCount = deltaCount;
+            this.historyId = historyId;
+            this.values = values;
+        }
+
+        /**
+         * Create the state with the delta count replaced.
+         *
+         * @param  state       the state.
+         * @param  deltaCount  the number of delta history rows since the last full history row.
+         */
+        State(final State state, final int deltaCount) {
+            this(state.values, deltaCount, state.historyId, state.action, state.actionBy, state.actionTime);
+        }
+
+        /**
+         * Get the action.
+         *
+         * @return  the action.
+         */
+        public String getAction() {
+            return this.action;
+        }
+
+        /**
+         * Get the action by.
+         *
+         * @return  the action by.
+         */
+        public String getActionBy() {
+            return this.actionBy;
+        }
+
+        /**
+         * Get the action time.
+         *
+         * @return  the action time.
+         */
+        public Timestamp getActionTime() {
+            return this.actionTime;
+        }
+
+        /**
+         * Get the number of delta history rows since the last full history row.
+         *
+         * @return  the delta count.
+         */
+        public int getDeltaCount() {
+            return this.deltaCount;
+        }
+
+        /**
+         * Get the history identifier.
+         *
+         * @return  the history identifier.
+         */
+        public long getHistoryId() {
+            return this.historyId;
+        }
+
+        /**
+         * Get the column values.
+         *
+         * @return  the column values in column order.
+         */
+        public Object[] getValues() {
+            return this.values;
+        }
+
+        /**
+         * Check if the state was merged from a full history row.
+         *
+         * @return  true if the state was merged from a full history row, or false if it was purged.
+         */
+        public boolean hasBase() {
+            return this.deltaCount != NO_BASE;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * History row.
+ *
+ * A history row holds the parameters of one insert into a history table.
+ * The parameters are the source column values followed by the action, the
+ * action by, and the action time.  The identifier of the entity is kept
+ * with the history row if its changes are coalesced or its history table
+ * has delta storage.  A delta history row also holds the changed columns
+ * bitmap.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryRow {
+
+    private final String changedColumns;
+    private final HistoryTableDescriptor descriptor;
+    private final Object[] id;
+    private final Object[] parameters;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  descriptor      the history table descriptor.
+     * @param  parameters      the insert parameters.
+     * @param  id              the identifier of the entity, or null to not keep the identifier.
+     * @param  changedColumns  the changed columns bitmap, or null for a full history row.
+     */
+    private HistoryRow(final HistoryTableDescriptor descriptor, final Object[] parameters, final Object[] id, final String changedColumns) {
+        this.changedColumns = changedColumns;
+        this.descriptor = descriptor;
+        this.id = id;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Bind the history row to the insert statement.
+     *
+     * @param  preparedStatement  the insert statement.
+     *
+     * @throws  SQLException  if unable to bind the history row.
+     */
+    public void bind(final PreparedStatement preparedStatement) throws SQLException {
+        this.bind(preparedStatement, 0);
+    }
+
+    /**
+     * Bind the history row to the insert statement, starting after the
+     * parameter offset.
+     *
+     * @param  preparedStatement  the insert statement.
+     * @param  offset             the number of parameters before the history row.
+     *
+     * @throws  SQLException  if unable to bind the history row.
+     */
+    public void bind(final PreparedStatement preparedStatement, final int offset) throws SQLException {
+
+        // Set the column value parameters.
+        RowCopier rowCopier = this.descriptor.getRowCopier();
+        rowCopier.bind(preparedStatement, this.parameters, offset);
+
+        // Set the action, action by, and action time parameters.
+        int columnCount = rowCopier.getColumnCount();
+        preparedStatement.setString(offset + columnCount + 1, (String)this.parameters[columnCount]);
+        preparedStatement.setString(offset + columnCount + 2, (String)this.parameters[columnCount + 1]);
+        preparedStatement.setTimestamp(offset + columnCount + 3, (Timestamp)this.parameters[columnCount + 2]);
+
+        // Check if the history table has delta storage.
+        if (this.descriptor.isDelta()) {
+
+            // Set the changed columns parameter.
+            if (this.changedColumns != null) {
+                preparedStatement.setString(offset + columnCount + 4, this.changedColumns);
+            } else {
+                preparedStatement.setNull(offset + columnCount + 4, Types.VARCHAR);
+            }
+        }
+    }
+
+    /**
+     * Get the action.
+     *
+     * @return  the action.
+     */
+    public String getAction() {
+        return (String)this.parameters[this.descriptor.getRowCopier().getColumnCount()];
+    }
+
+    /**
+     * Get the action time.
+     *
+     * @return  the action time.
+     */
+    public Timestamp getActionTime() {
+        return (Timestamp)this.parameters[this.descriptor.getRowCopier().getColumnCount() + 2];
+    }
+
+    /**
+     * Get the history table descriptor.
+     *
+     * @return  the history table descriptor.
+     */
+    public HistoryTableDescriptor getDescriptor() {
+        return this.descriptor;
+    }
+
+    /**
+     * Get the identifier of the entity.
+     *
+     * @return  the identifier values in identifier column order, or null if the identifier is not kept.
+     */
+    public Object[] getId() {
+        return this.id;
+    }
+
+    /**
+     * Get the identifier key.
+     *
+     * The identifier key of a single integer identifier is its value, and
+     * the identifier key of any other identifier is combined from the hash
+     * codes of its values.  History rows with the same identifier have the
+     * same identifier key, but history rows with the same identifier key do
+     * not necessarily have the same identifier.
+     *
+     * @return  the identifier key.
+     */
+    public long getIdKey() {
+
+        long idKey = 0;
+
+        // Check if the identifier is a single integer.
+        if (this.id.length == 1 &&
+            (this.id[0] instanceof Integer || this.id[0] instanceof Long || this.id[0] instanceof Short)) {
+            idKey = ((Number)this.id[0]).longValue();
+        } else {
+
+            // Loop through the identifier values.
+            for (Object value : this.id) {
+                idKey = 31 * idKey + ((value != null) ? value.hashCode() : 0);
+            }
+        }
+
+        return idKey;
+    }
+
+    /**
+     * Get the insert parameters.
+     *
+     * @return  the column values, action, action by, and action time.
+     */
+    public Object[] getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * Get the column values.
+     *
+     * @return  a copy of the column values in column order.
+     */
+    public Object[] getValues() {
+
+        Object[] values = new Object[this.descriptor.getRowCopier().getColumnCount()];
+        System.arraycopy(this.parameters, 0, values, 0, values.length);
+
+        return values;
+    }
+
+    /**
+     * Check if the history row is for the same entity as the other history
+     * row.
+     *
+     * @param  row  the other history row.
+     *
+     * @return  true if both history rows have the same history table descriptor and identifier, otherwise false.
+     */
+    public boolean hasSameId(final HistoryRow row) {
+        return this.descriptor == row.descriptor && Arrays.equals(this.id, row.id);
+    }
+
+    /**
+     * Create a new instance of the history row class.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  parameters  the insert parameters.
+     *
+     * @return  a new instance of the history row class.
+     */
+    public static HistoryRow newInstance(final HistoryTableDescriptor descriptor, final Object[] parameters) {
+        return new HistoryRow(descriptor, parameters, null, null);
+    }
+
+    /**
+     * Create a new instance of the history row class for an entity whose
+     * identifier is kept.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  parameters  the insert parameters.
+     * @param  id          the identifier of the entity.
+     *
+     * @return  a new instance of the history row class.
+     */
+    public static HistoryRow newInstance(final HistoryTableDescriptor descriptor, final Object[] parameters, final Object[] id) {
+        return new HistoryRow(descriptor, parameters, id, null);
+    }
+
+    /**
+     * Create a new instance of the history row class with the action
+     * replaced.
+     *
+     * @param  row     the history row.
+     * @param  action  the action.
+     *
+     * @return  a new instance of the history row class.
+     */
+    public static HistoryRow newInstance(final HistoryRow row, final String action) {
+
+        // Copy the parameters and replace the action.
+        Object[] parameters = row.parameters.clone();
+        parameters[row.descriptor.getRowCopier().getColumnCount()] = action;
+
+        return new HistoryRow(row.descriptor, parameters, row.id, row.changedColumns);
+    }
+
+    /**
+     * Create a new instance of the history row class as a delta history row.
+     *
+     * @param  row             the history row.
+     * @param  values          the column values, with the unchanged non-identifier columns null.
+     * @param  changedColumns  the changed columns bitmap.
+     *
+     * @return  a new instance of the history row class.
+     */
+    public static HistoryRow newInstance(final HistoryRow row, final Object[] values, final String changedColumns) {
+
+        // Copy the parameters and replace the column values.
+        Object[] parameters = row.parameters.clone();
+        System.arraycopy(values, 0, parameters, 0, values.length);
+
+        return new HistoryRow(row.descriptor, parameters, row.id, changedColumns);
+    }
+}
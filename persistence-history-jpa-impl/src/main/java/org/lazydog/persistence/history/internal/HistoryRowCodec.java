@@ -0,0 +1,739 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import org.lazydog.persistence.history.HistoryTable;
+
+/**
+ * History row codec.
+ *
+ * The history row codec encodes history rows in a compact binary format
+ * for the asynchronous history writer queue and the history spool.  The
+ * format is keyed by the column definitions of the source table:
+ *
+ * <ol>
+ *   <li>the schema version tag, a checksum of the column definitions</li>
+ *   <li>the null bitmap, one bit per column</li>
+ *   <li>the column-type header, one value type per non-null column</li>
+ *   <li>the non-null column values</li>
+ *   <li>the action, action by, and action time</li>
+ *   <li>the identifier values, each with its value type</li>
+ * </ol>
+ *
+ * Integers and times are written as variable-length integers, floating
+ * point numbers and UUIDs at their fixed width, and strings and byte arrays
+ * with a variable-length length.  The column-type header records the Java
+ * type of each value rather than the JDBC type of its column, so values
+ * captured from entities decode to the same type they were encoded from.
+ * A history row with a value of any other type cannot be encoded, so it is
+ * written synchronously rather than queued or spooled; values are never
+ * written with Java serialization, so decoding a spool file never
+ * instantiates arbitrary classes.  A history row encoded for different
+ * column definitions is refused when it is decoded.  The changed columns of delta history rows are not encoded,
+ * since history rows are delta encoded just before they are written.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryRowCodec {
+
+    private static final int FORMAT_VERSION = 2;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final int MAX_SCRATCH_BUFFER_SIZE = 65536;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final HistoryTable.Action[] ACTIONS = HistoryTable.Action.values();
+    private static final ThreadLocal<ByteBuffer> scratchBuffer = new ThreadLocal<ByteBuffer>();
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte DECIMAL = 8;
+    private static final byte BIG_INTEGER = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte DATE = 12;
+    private static final byte TIME = 13;
+    private static final byte TIMESTAMP = 14;
+    private static final byte UTIL_DATE = 15;
+    private static final byte UUID_VALUE = 16;
+
+    private final int columnCount;
+    private final int schemaVersion;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  columnDefinitions  the column definitions.
+     */
+    private HistoryRowCodec(final List<ColumnDefinition> columnDefinitions) {
+        this.columnCount = columnDefinitions.size();
+        this.schemaVersion = getSchemaVersion(columnDefinitions);
+    }
+
+    /**
+     * Decode a history row from the buffer, starting at its position.
+     *
+     * The position of the buffer is moved after the history row.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  buffer      the buffer.
+     *
+     * @return  the history row.
+     *
+     * @throws  IOException  if the history row was encoded for different column definitions or is truncated.
+     */
+    public HistoryRow decode(final HistoryTableDescriptor descriptor, final ByteBuffer buffer) throws IOException {
+
+        HistoryRow row;
+
+        try {
+
+            // Check if the history row was encoded for these column definitions.
+            int tag = buffer.getInt();
+            if (tag != this.schemaVersion) {
+                throw new IOException("The history row was encoded with the schema version " + tag + " rather than " + this.schemaVersion + ".");
+            }
+
+            // Read the null bitmap and the column-type header.
+            byte[] nulls = new byte[(this.columnCount + 7) / 8];
+            buffer.get(nulls);
+            byte[] types = new byte[this.columnCount];
+            for (int index = 0; index < this.columnCount; index++) {
+                types[index] = ((nulls[index / 8] & (1 << (index % 8))) != 0) ? NULL : buffer.get();
+            }
+
+            // Read the column values.
+            Object[] parameters = new Object[this.columnCount + 3];
+            for (int index = 0; index < this.columnCount; index++) {
+                parameters[index] = readValue(buffer, types[index]);
+            }
+
+            // Read the action, action by, and action time.
+            parameters[this.columnCount] = ACTIONS[buffer.get()].toString();
+            parameters[this.columnCount + 1] = readValue(buffer, buffer.get());
+            Timestamp actionTime = new Timestamp(readVarLong(buffer));
+            actionTime.setNanos(readVarInt(buffer));
+            parameters[this.columnCount + 2] = actionTime;
+
+            // Read the identifier values.
+            int idLength = readVarInt(buffer) - 1;
+            Object[] id = (idLength >= 0) ? new Object[idLength] : null;
+            for (int index = 0; index < idLength; index++) {
+                id[index] = readValue(buffer, buffer.get());
+            }
+
+            row = HistoryRow.newInstance(descriptor, parameters, id);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The history row is truncated.", e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("The history row is corrupt.", e);
+        }
+
+        return row;
+    }
+
+    /**
+     * Encode the history row.
+     *
+     * The history row is encoded in a buffer reused by the thread and
+     * copied to an array of the encoded length.
+     *
+     * @param  row  the history row.
+     *
+     * @return  the encoded history row.
+     *
+     * @throws  IOException  if unable to encode the history row.
+     */
+    public byte[] encode(final HistoryRow row) throws IOException {
+
+        ByteBuffer buffer = scratchBuffer.get();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+
+        boolean encoded = false;
+
+        while (!encoded) {
+
+            try {
+
+                // Encode the history row in the buffer.
+                buffer.clear();
+                this.encode(row, buffer);
+                encoded = true;
+            } catch (BufferOverflowException e) {
+
+                // Grow the buffer and try again.
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+
+        // Keep the buffer for the next history row unless it is large.
+        if (buffer.capacity() <= MAX_SCRATCH_BUFFER_SIZE) {
+            scratchBuffer.set(buffer);
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Encode the history row in the buffer, starting at its position.
+     *
+     * The position of the buffer is moved after the history row.
+     *
+     * @param  row     the history row.
+     * @param  buffer  the buffer.
+     *
+     * @throws  BufferOverflowException  if the history row does not fit in the buffer.
+     * @throws  IOException              if unable to encode the history row.
+     */
+    public void encode(final HistoryRow row, final ByteBuffer buffer) throws IOException {
+
+        Object[] parameters = row.getParameters();
+
+        // Write the schema version tag.
+        buffer.putInt(this.schemaVersion);
+
+        // Write the null bitmap.
+        for (int byteIndex = 0; byteIndex < (this.columnCount + 7) / 8; byteIndex++) {
+
+            int nulls = 0;
+            for (int index = byteIndex * 8; index < Math.min(this.columnCount, byteIndex * 8 + 8); index++) {
+                if (parameters[index] == null) {
+                    nulls |= 1 << (index % 8);
+                }
+            }
+
+            buffer.put((byte)nulls);
+        }
+
+        // Write the column-type header.
+        for (int index = 0; index < this.columnCount; index++) {
+            if (parameters[index] != null) {
+                buffer.put(getType(parameters[index]));
+            }
+        }
+
+        // Write the non-null column values.
+        for (int index = 0; index < this.columnCount; index++) {
+            if (parameters[index] != null) {
+                writeValue(buffer, getType(parameters[index]), parameters[index]);
+            }
+        }
+
+        // Write the action, action by, and action time.
+        Timestamp actionTime = (Timestamp)parameters[this.columnCount + 2];
+        buffer.put((byte)HistoryTable.Action.valueOf((String)parameters[this.columnCount]).ordinal());
+        writeTypedValue(buffer, parameters[this.columnCount + 1]);
+        writeVarLong(buffer, actionTime.getTime());
+        writeVarInt(buffer, actionTime.getNanos());
+
+        // Write the identifier values.
+        Object[] id = row.getId();
+        writeVarInt(buffer, (id != null) ? id.length + 1 : 0);
+        if (id != null) {
+            for (Object value : id) {
+                writeTypedValue(buffer, value);
+            }
+        }
+    }
+
+    /**
+     * Get the schema version tag.
+     *
+     * @return  the schema version tag.
+     */
+    public int getSchemaVersion() {
+        return this.schemaVersion;
+    }
+
+    /**
+     * Get the schema version tag of the column definitions.
+     *
+     * @param  columnDefinitions  the column definitions.
+     *
+     * @return  the schema version tag.
+     */
+    private static int getSchemaVersion(final List<ColumnDefinition> columnDefinitions) {
+
+        CRC32 crc = new CRC32();
+        update(crc, FORMAT_VERSION);
+
+        // Loop through the column definitions.
+        for (ColumnDefinition columnDefinition : columnDefinitions) {
+            crc.update(columnDefinition.getColumnName().getBytes(UTF8));
+            update(crc, columnDefinition.getDataType());
+            update(crc, columnDefinition.getColumnSize());
+            update(crc, columnDefinition.getDecimalDigits());
+        }
+
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Get the value type of the non-null value.
+     *
+     * @param  value  the value.
+     *
+     * @return  the value type.
+     *
+     * @throws  IOException  if the value type cannot be encoded.
+     */
+    private static byte getType(final Object value) throws IOException {
+
+        byte type;
+
+        if (value instanceof String) {
+            type = STRING;
+        } else if (value instanceof Integer) {
+            type = INT;
+        } else if (value instanceof Long) {
+            type = LONG;
+        } else if (value instanceof Timestamp) {
+            type = TIMESTAMP;
+        } else if (value instanceof BigDecimal) {
+            type = DECIMAL;
+        } else if (value instanceof Boolean) {
+            type = BOOLEAN;
+        } else if (value instanceof Short) {
+            type = SHORT;
+        } else if (value instanceof Byte) {
+            type = BYTE;
+        } else if (value instanceof Double) {
+            type = DOUBLE;
+        } else if (value instanceof Float) {
+            type = FLOAT;
+        } else if (value instanceof byte[]) {
+            type = BYTES;
+        } else if (value instanceof Date) {
+            type = DATE;
+        } else if (value instanceof Time) {
+            type = TIME;
+        } else if (value.getClass() == java.util.Date.class) {
+            type = UTIL_DATE;
+        } else if (value instanceof BigInteger) {
+            type = BIG_INTEGER;
+        } else if (value instanceof UUID) {
+            type = UUID_VALUE;
+        } else {
+            throw new IOException("A value of type " + value.getClass().getName() + " cannot be encoded.");
+        }
+
+        return type;
+    }
+
+    /**
+     * Create a new instance of the history row codec class.
+     *
+     * @param  columnDefinitions  the column definitions.
+     *
+     * @return  a new instance of the history row codec class.
+     */
+    public static HistoryRowCodec newInstance(final List<ColumnDefinition> columnDefinitions) {
+        return new HistoryRowCodec(columnDefinitions);
+    }
+
+    /**
+     * Read a byte array with its length.
+     *
+     * @param  buffer  the buffer.
+     *
+     * @return  the byte array.
+     */
+    private static byte[] readBytes(final ByteBuffer buffer) {
+
+        byte[] bytes = new byte[readVarInt(buffer)];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Read a UTF-8 string with its length.
+     *
+     * @param  buffer  the buffer.
+     *
+     * @return  the string.
+     */
+    private static String readString(final ByteBuffer buffer) {
+
+        String value;
+        int length = readVarInt(buffer);
+
+        // Decode the string in place if the buffer has an array.
+        if (buffer.hasArray()) {
+            if (length > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, UTF8);
+        }
+
+        return value;
+    }
+
+    /**
+     * Read a value of the value type.
+     *
+     * @param  buffer  the buffer.
+     * @param  type    the value type.
+     *
+     * @return  the value.
+     *
+     * @throws  IOException  if unable to read the value.
+     */
+    private static Object readValue(final ByteBuffer buffer, final byte type) throws IOException {
+
+        Object value;
+
+        switch (type) {
+
+            case NULL:
+                value = null;
+                break;
+
+            case BOOLEAN:
+                value = (buffer.get() != 0);
+                break;
+
+            case BYTE:
+                value = buffer.get();
+                break;
+
+            case SHORT:
+                value = (short)readVarInt(buffer);
+                break;
+
+            case INT:
+                value = readVarInt(buffer);
+                break;
+
+            case LONG:
+                value = readVarLong(buffer);
+                break;
+
+            case FLOAT:
+                value = buffer.getFloat();
+                break;
+
+            case DOUBLE:
+                value = buffer.getDouble();
+                break;
+
+            case DECIMAL:
+                int scale = readVarInt(buffer);
+                value = new BigDecimal(new BigInteger(readBytes(buffer)), scale);
+                break;
+
+            case BIG_INTEGER:
+                value = new BigInteger(readBytes(buffer));
+                break;
+
+            case STRING:
+                value = readString(buffer);
+                break;
+
+            case BYTES:
+                value = readBytes(buffer);
+                break;
+
+            case DATE:
+                value = new Date(readVarLong(buffer));
+                break;
+
+            case TIME:
+                value = new Time(readVarLong(buffer));
+                break;
+
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(readVarLong(buffer));
+                timestamp.setNanos(readVarInt(buffer));
+                value = timestamp;
+                break;
+
+            case UTIL_DATE:
+                value = new java.util.Date(readVarLong(buffer));
+                break;
+
+            case UUID_VALUE:
+                value = new UUID(buffer.getLong(), buffer.getLong());
+                break;
+
+            default:
+                throw new IOException("The value type " + type + " is unknown.");
+        }
+
+        return value;
+    }
+
+    /**
+     * Read a zigzag variable-length int.
+     *
+     * @param  buffer  the buffer.
+     *
+     * @return  the int.
+     */
+    private static int readVarInt(final ByteBuffer buffer) {
+        return (int)readVarLong(buffer);
+    }
+
+    /**
+     * Read a zigzag variable-length long.
+     *
+     * @param  buffer  the buffer.
+     *
+     * @return  the long.
+     */
+    private static long readVarLong(final ByteBuffer buffer) {
+
+        long zigzag = 0;
+        int shift = 0;
+        byte next;
+
+        do {
+            next = buffer.get();
+            zigzag |= (long)(next & 0x7F) << shift;
+            shift += 7;
+        } while ((next & 0x80) != 0);
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Update the checksum with the four bytes of the int.
+     *
+     * @param  crc    the checksum.
+     * @param  value  the int.
+     */
+    private static void update(final CRC32 crc, final int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    /**
+     * Write a byte array with its length.
+     *
+     * @param  buffer  the buffer.
+     * @param  bytes   the byte array.
+     */
+    private static void writeBytes(final ByteBuffer buffer, final byte[] bytes) {
+        writeVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Write a UTF-8 string with its length, without encoding it to an
+     * intermediate array.  An unpaired surrogate is written as a question
+     * mark.
+     *
+     * @param  buffer  the buffer.
+     * @param  value   the string.
+     */
+    private static void writeString(final ByteBuffer buffer, final String value) {
+
+        // Get the UTF-8 length.
+        int length = 0;
+        for (int index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+                length += 4;
+                index++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        writeVarInt(buffer, length);
+
+        // Write the UTF-8 bytes.
+        for (int index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                buffer.put((byte)c);
+            } else if (c < 0x800) {
+                buffer.put((byte)(0xC0 | (c >> 6)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++index));
+                buffer.put((byte)(0xF0 | (codePoint >> 18)));
+                buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buffer.put((byte)'?');
+            } else {
+                buffer.put((byte)(0xE0 | (c >> 12)));
+                buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Write a value with its value type.
+     *
+     * @param  buffer  the buffer.
+     * @param  value   the value, or null.
+     *
+     * @throws  IOException  if unable to write the value.
+     */
+    private static void writeTypedValue(final ByteBuffer buffer, final Object value) throws IOException {
+
+        byte type = (value != null) ? getType(value) : NULL;
+        buffer.put(type);
+        writeValue(buffer, type, value);
+    }
+
+    /**
+     * Write a value of the value type.
+     *
+     * @param  buffer  the buffer.
+     * @param  type    the value type.
+     * @param  value   the value.
+     *
+     * @throws  IOException  if unable to write the value.
+     */
+    private static void writeValue(final ByteBuffer buffer, final byte type, final Object value) throws IOException {
+
+        switch (type) {
+
+            case NULL:
+                break;
+
+            case BOOLEAN:
+                buffer.put((byte)(((Boolean)value) ? 1 : 0));
+                break;
+
+            case BYTE:
+                buffer.put((Byte)value);
+                break;
+
+            case SHORT:
+            case INT:
+                writeVarInt(buffer, ((Number)value).intValue());
+                break;
+
+            case LONG:
+                writeVarLong(buffer, (Long)value);
+                break;
+
+            case FLOAT:
+                buffer.putFloat((Float)value);
+                break;
+
+            case DOUBLE:
+                buffer.putDouble((Double)value);
+                break;
+
+            case DECIMAL:
+                writeVarInt(buffer, ((BigDecimal)value).scale());
+                writeBytes(buffer, ((BigDecimal)value).unscaledValue().toByteArray());
+                break;
+
+            case BIG_INTEGER:
+                writeBytes(buffer, ((BigInteger)value).toByteArray());
+                break;
+
+            case STRING:
+                writeString(buffer, (String)value);
+                break;
+
+            case BYTES:
+                writeBytes(buffer, (byte[])value);
+                break;
+
+            case DATE:
+            case TIME:
+            case UTIL_DATE:
+                writeVarLong(buffer, ((java.util.Date)value).getTime());
+                break;
+
+            case TIMESTAMP:
+                writeVarLong(buffer, ((Timestamp)value).getTime());
+                writeVarInt(buffer, ((Timestamp)value).getNanos());
+                break;
+
+            case UUID_VALUE:
+                buffer.putLong(((UUID)value).getMostSignificantBits());
+                buffer.putLong(((UUID)value).getLeastSignificantBits());
+                break;
+
+            default:
+                throw new IOException("The value type " + type + " is unknown.");
+        }
+    }
+
+    /**
+     * Write a zigzag variable-length int.
+     *
+     * @param  buffer  the buffer.
+     * @param  value   the int.
+     */
+    private static void writeVarInt(final ByteBuffer buffer, final int value) {
+        writeVarLong(buffer, value);
+    }
+
+    /**
+     * Write a zigzag variable-length long.
+     *
+     * @param  buffer  the buffer.
+     * @param  value   the long.
+     */
+    private static void writeVarLong(final ByteBuffer buffer, final long value) {
+
+        long zigzag = (value << 1) ^ (value >> 63);
+
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte)((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+
+        buffer.put((byte)zigzag);
+    }
+}
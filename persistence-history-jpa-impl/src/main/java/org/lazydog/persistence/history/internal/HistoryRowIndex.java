@@ -0,0 +1,167 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.util.Arrays;
+
+/**
+ * History row index.
+ *
+ * The history row index maps entities, identified by the history table
+ * descriptor and identifier of a history row, to positions in a list of
+ * history rows.  The index is an open addressing hash table keyed by the
+ * primitive identifier key, so looking up an entity neither boxes the key
+ * nor allocates an entry.  The index is not thread safe.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryRowIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private HistoryRow[] rows;
+    private int[] positions;
+    private int size;
+
+    /**
+     * Hide the constructor.
+     */
+    private HistoryRowIndex() {
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Allocate the slots.
+     *
+     * @param  capacity  the capacity, a power of two.
+     */
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.rows = new HistoryRow[capacity];
+        this.positions = new int[capacity];
+        Arrays.fill(this.positions, -1);
+    }
+
+    /**
+     * Find the slot for the history row.
+     *
+     * @param  row  the history row.
+     * @param  key  the key of the history row.
+     *
+     * @return  the slot holding the entity of the history row, or the empty slot where it belongs.
+     */
+    private int find(final HistoryRow row, final long key) {
+
+        int mask = this.keys.length - 1;
+        int slot = (int)(key ^ (key >>> 32)) & mask;
+
+        // Probe until the entity or an empty slot is found.
+        while (this.rows[slot] != null && (this.keys[slot] != key || !this.rows[slot].hasSameId(row))) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Get the position of the entity of the history row.
+     *
+     * @param  row  the history row.
+     *
+     * @return  the position, or -1 if the entity is not in the index.
+     */
+    public int get(final HistoryRow row) {
+        return this.positions[this.find(row, key(row))];
+    }
+
+    /**
+     * Get the key of the history row.
+     *
+     * @param  row  the history row.
+     *
+     * @return  the identifier key mixed with the history table descriptor.
+     */
+    private static long key(final HistoryRow row) {
+        long key = (row.getIdKey() ^ System.identityHashCode(row.getDescriptor())) * MIX;
+        return key ^ (key >>> 29);
+    }
+
+    /**
+     * Create a new instance of the history row index class.
+     *
+     * @return  a new instance of the history row index class.
+     */
+    public static HistoryRowIndex newInstance() {
+        return new HistoryRowIndex();
+    }
+
+    /**
+     * Put the position of the entity of the history row.
+     *
+     * @param  row       the history row.
+     * @param  position  the position.
+     */
+    public void put(final HistoryRow row, final int position) {
+
+        long key = key(row);
+        int slot = this.find(row, key);
+
+        // Check if the entity is not in the index.
+        if (this.rows[slot] == null) {
+
+            // Check if the index is more than half full.
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.resize();
+                slot = this.find(row, key);
+            }
+
+            this.keys[slot] = key;
+            this.rows[slot] = row;
+            this.size++;
+        }
+
+        this.positions[slot] = position;
+    }
+
+    /**
+     * Double the capacity of the index.
+     */
+    private void resize() {
+
+        long[] oldKeys = this.keys;
+        HistoryRow[] oldRows = this.rows;
+        int[] oldPositions = this.positions;
+
+        this.allocate(oldKeys.length * 2);
+
+        // Loop through the old slots.
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+
+            // Check if the old slot is used.
+            if (oldRows[oldSlot] != null) {
+                int slot = this.find(oldRows[oldSlot], oldKeys[oldSlot]);
+                this.keys[slot] = oldKeys[oldSlot];
+                this.rows[slot] = oldRows[oldSlot];
+                this.positions[slot] = oldPositions[oldSlot];
+            }
+        }
+    }
+}
@@ -0,0 +1,690 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History spool.
+ *
+ * History rows that cannot be written to their history tables are appended
+ * to a memory-mapped spool file and replayed into the history tables, in the
+ * order they were appended, by a background thread.  The spool file starts
+ * with a header holding the read position checkpoint, followed by records of
+ * a length, a CRC-32 checksum, the entity class name, and the history row
+ * encoded by the history row codec.  The read position
+ * is checkpointed after each replayed batch, so after a crash the spool
+ * replays the history rows from the last checkpoint, and a record torn by
+ * the crash ends the spool.  Once every spooled history row is replayed the
+ * spool starts over at the beginning of the file.
+ *
+ * A record that does not match its checksum, the records after it, and a
+ * record that cannot be decoded are moved to a quarantine file next to the
+ * spool file, in the same record format, rather than dropped, so they can
+ * be inspected and recovered by hand.
+ *
+ * @author  Ron Rickard
+ */
+final class HistorySpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistorySpool.class);
+    private static final String FILE_NAME = "persistence-history.spool";
+    private static final String QUARANTINE_FILE_NAME = "persistence-history.spool.quarantine";
+    private static final int CHECKPOINT_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAGIC = 0x48535031;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int VERSION = 2;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final FileChannel channel;
+    private final File file;
+    private final FileLock lock;
+    private final PersistenceHistoryConfiguration.SpoolMode mode;
+    private final File quarantineFile;
+    private int readPosition;
+    private final int replayBatchSize;
+    private final long replayInterval;
+    private final Object replayLock = new Object();
+    private final DescriptorResolver resolver;
+    private volatile boolean running;
+    private final Thread thread;
+    private int writePosition;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  directory        the spool directory.
+     * @param  capacity         the maximum number of bytes in the spool file.
+     * @param  mode             the spool mode.
+     * @param  replayBatchSize  the maximum number of history rows replayed at a time.
+     * @param  replayInterval   the number of milliseconds the replayer waits before it retries or checks for new history rows.
+     * @param  resolver         the history table descriptor resolver.
+     *
+     * @throws  IOException  if unable to open the spool file.
+     */
+    private HistorySpool(final File directory, final int capacity, final PersistenceHistoryConfiguration.SpoolMode mode, final int replayBatchSize, final long replayInterval, final DescriptorResolver resolver) throws IOException {
+
+        this.file = new File(directory, FILE_NAME);
+        this.mode = mode;
+        this.quarantineFile = new File(directory, QUARANTINE_FILE_NAME);
+        this.replayBatchSize = replayBatchSize;
+        this.replayInterval = replayInterval;
+        this.resolver = resolver;
+
+        // Create the spool directory if it does not exist.
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the spool directory " + directory + ".");
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+        boolean created = (randomAccessFile.length() == 0);
+        this.capacity = (int)Math.max(capacity, randomAccessFile.length());
+        this.channel = randomAccessFile.getChannel();
+
+        try {
+
+            // Lock the spool file so only one spool uses it.
+            this.lock = lockFile(this.channel, this.file);
+
+            // Map the spool file.
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+
+        // Check if the spool file is new.
+        if (created) {
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, VERSION);
+            this.buffer.putLong(CHECKPOINT_OFFSET, HEADER_SIZE);
+            this.buffer.putInt(HEADER_SIZE, 0);
+            this.buffer.force();
+        } else if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+            this.close();
+            throw new IOException("The file " + this.file + " is not a version " + VERSION + " spool file.");
+        }
+
+        // Recover the spooled history rows after the read position checkpoint.
+        long checkpoint = this.buffer.getLong(CHECKPOINT_OFFSET);
+        this.readPosition = (checkpoint >= HEADER_SIZE && checkpoint <= this.capacity) ? (int)checkpoint : HEADER_SIZE;
+        this.writePosition = this.scan(this.readPosition);
+        this.running = true;
+
+        // Create the replayer thread.
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HistorySpool.this.replay();
+            }
+        }, "persistence-history-spool-replayer");
+        this.thread.setDaemon(true);
+
+        logger.info("Opened the spool file {} with a capacity of {} bytes and {} bytes to replay.", new Object[] {this.file, this.capacity, this.writePosition - this.readPosition});
+    }
+
+    /**
+     * Append the history rows to the spool.
+     *
+     * Either all the history rows are appended, or none of them are.
+     *
+     * @param  rows  the history rows.
+     *
+     * @return  true if the history rows are appended, or false if the spool is full or shut down, or a history row cannot be encoded.
+     */
+    public boolean append(final List<HistoryRow> rows) {
+
+        boolean appended = false;
+
+        try {
+
+            // Encode the history rows.
+            List<byte[]> records = new ArrayList<byte[]>(rows.size());
+            int size = 0;
+            for (HistoryRow row : rows) {
+                byte[] record = encode(row);
+                records.add(record);
+                size += RECORD_HEADER_SIZE + record.length;
+            }
+
+            synchronized (this) {
+
+                // Check if the spool is open and has room for the history rows and the end marker.
+                if (this.running && this.writePosition + size + 4 <= this.capacity) {
+
+                    boolean empty = (this.readPosition == this.writePosition);
+
+                    // Loop through the records.
+                    for (byte[] record : records) {
+
+                        // Write the record, then the end marker after it, then its length to make it visible.
+                        int nextPosition = this.writePosition + RECORD_HEADER_SIZE + record.length;
+                        this.buffer.position(this.writePosition + RECORD_HEADER_SIZE);
+                        this.buffer.put(record);
+                        this.buffer.putInt(this.writePosition + 4, checksum(record));
+                        this.buffer.putInt(nextPosition, 0);
+                        this.buffer.putInt(this.writePosition, record.length);
+                        this.writePosition = nextPosition;
+                    }
+
+                    this.buffer.force();
+                    appended = true;
+
+                    // Wake up the replayer if it is waiting on an empty spool.
+                    if (empty) {
+                        this.notifyAll();
+                    }
+                } else {
+                    logger.warn("Unable to spool {} history rows, the spool file {} is full.", rows.size(), this.file);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to spool {} history rows.", rows.size(), e);
+        }
+
+        return appended;
+    }
+
+    /**
+     * Wait for the replay interval, or until history rows are appended to
+     * an empty spool.
+     */
+    private synchronized void await() {
+
+        try {
+
+            // Check if the spool is still open.
+            if (this.running) {
+                this.wait(this.replayInterval);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.running = false;
+        }
+    }
+
+    /**
+     * Get the CRC-32 checksum of the record.
+     *
+     * @param  record  the record.
+     *
+     * @return  the checksum.
+     */
+    private static int checksum(final byte[] record) {
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Checkpoint the read position.
+     *
+     * The spool starts over at the beginning of the file if every spooled
+     * history row is replayed.
+     *
+     * @param  position  the read position.
+     */
+    private synchronized void checkpoint(final int position) {
+
+        this.readPosition = position;
+
+        // Check if every spooled history row is replayed.
+        if (this.readPosition == this.writePosition) {
+            this.readPosition = HEADER_SIZE;
+            this.writePosition = HEADER_SIZE;
+            this.buffer.putInt(HEADER_SIZE, 0);
+        }
+
+        this.buffer.putLong(CHECKPOINT_OFFSET, this.readPosition);
+        this.buffer.force();
+    }
+
+    /**
+     * Close the spool file.
+     */
+    private void close() {
+
+        try {
+
+            // Release the lock and close the channel.
+            if (this.lock != null) {
+                this.lock.release();
+            }
+            this.channel.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close the spool file {}.", this.file, e);
+        }
+    }
+
+    /**
+     * Decode the history row from the record.
+     *
+     * @param  record  the record.
+     *
+     * @return  the history row.
+     *
+     * @throws  Exception  if unable to decode the history row.
+     */
+    private HistoryRow decode(final byte[] record) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        byte[] entityClassName = new byte[buffer.getShort()];
+        buffer.get(entityClassName);
+        HistoryTableDescriptor descriptor = this.resolver.getDescriptor(new String(entityClassName, UTF8));
+
+        return descriptor.getRowCodec().decode(descriptor, buffer);
+    }
+
+    /**
+     * Replay the spooled history rows on the calling thread until the spool
+     * is empty.
+     *
+     * @return  the number of records replayed.
+     *
+     * @throws  SQLException  if unable to write the history rows.
+     */
+    int drain() throws SQLException {
+
+        int recordCount = 0;
+        int batchRecordCount;
+
+        // Replay the batches until there are no more records.
+        while ((batchRecordCount = this.replayBatch()) > 0) {
+            recordCount += batchRecordCount;
+        }
+
+        return recordCount;
+    }
+
+    /**
+     * Encode the history row as a record.
+     *
+     * @param  row  the history row.
+     *
+     * @return  the record.
+     *
+     * @throws  IOException  if unable to encode the history row.
+     */
+    private static byte[] encode(final HistoryRow row) throws IOException {
+
+        byte[] entityClassName = row.getDescriptor().getEntityClass().getName().getBytes(UTF8);
+        byte[] encodedRow = row.getDescriptor().getRowCodec().encode(row);
+        ByteBuffer record = ByteBuffer.allocate(2 + entityClassName.length + encodedRow.length);
+        record.putShort((short)entityClassName.length);
+        record.put(entityClassName);
+        record.put(encodedRow);
+
+        return record.array();
+    }
+
+    /**
+     * Get the spool mode.
+     *
+     * @return  the spool mode.
+     */
+    public PersistenceHistoryConfiguration.SpoolMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Check if there are no spooled history rows waiting to be replayed.
+     *
+     * History rows being replayed are waiting until their batch is
+     * checkpointed.
+     *
+     * @return  true if there are no spooled history rows waiting to be replayed, otherwise false.
+     */
+    public synchronized boolean isEmpty() {
+        return this.readPosition == this.writePosition;
+    }
+
+    /**
+     * Lock the spool file.
+     *
+     * @param  channel  the spool file channel.
+     * @param  file     the spool file.
+     *
+     * @return  the lock.
+     *
+     * @throws  IOException  if the spool file is in use.
+     */
+    private static FileLock lockFile(final FileChannel channel, final File file) throws IOException {
+
+        FileLock lock = null;
+
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // The spool file is locked by this virtual machine.
+        }
+
+        // Check if the spool file is in use.
+        if (lock == null) {
+            throw new IOException("The spool file " + file + " is in use.");
+        }
+
+        return lock;
+    }
+
+    /**
+     * Create a new instance of the history spool class.
+     *
+     * @param  configuration  the persistence history configuration.
+     * @param  resolver       the history table descriptor resolver.
+     *
+     * @return  a new instance of the history spool class.
+     *
+     * @throws  IOException  if unable to open the spool file.
+     */
+    public static HistorySpool newInstance(final PersistenceHistoryConfiguration configuration, final DescriptorResolver resolver) throws IOException {
+        return newInstance(
+                new File(configuration.getSpoolDirectory()),
+                configuration.getSpoolCapacity(),
+                configuration.getSpoolMode(),
+                configuration.getSpoolReplayBatchSize(),
+                configuration.getSpoolReplayInterval(),
+                resolver);
+    }
+
+    /**
+     * Create a new instance of the history spool class.
+     *
+     * @param  directory        the spool directory.
+     * @param  capacity         the maximum number of bytes in the spool file.
+     * @param  mode             the spool mode.
+     * @param  replayBatchSize  the maximum number of history rows replayed at a time.
+     * @param  replayInterval   the number of milliseconds the replayer waits before it retries or checks for new history rows.
+     * @param  resolver         the history table descriptor resolver.
+     *
+     * @return  a new instance of the history spool class.
+     *
+     * @throws  IOException  if unable to open the spool file.
+     */
+    public static HistorySpool newInstance(final File directory, final int capacity, final PersistenceHistoryConfiguration.SpoolMode mode, final int replayBatchSize, final long replayInterval, final DescriptorResolver resolver) throws IOException {
+        return new HistorySpool(directory, capacity, mode, replayBatchSize, replayInterval, resolver);
+    }
+
+    /**
+     * Move the records to the quarantine file.
+     *
+     * @param  records    the records.
+     * @param  checksums  the checksums of the records, as they were spooled.
+     */
+    private void quarantine(final List<byte[]> records, final List<Integer> checksums) {
+
+        DataOutputStream output = null;
+
+        try {
+
+            // Append the records to the quarantine file.
+            FileOutputStream fileOutput = new FileOutputStream(this.quarantineFile, true);
+            output = new DataOutputStream(fileOutput);
+            for (int index = 0; index < records.size(); index++) {
+                output.writeInt(records.get(index).length);
+                output.writeInt(checksums.get(index));
+                output.write(records.get(index));
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+
+            logger.error("Moved {} spooled history rows to the quarantine file {}.", records.size(), this.quarantineFile);
+        } catch (IOException e) {
+            logger.error("Unable to move {} spooled history rows to the quarantine file {}, dropping them.", new Object[] {records.size(), this.quarantineFile, e});
+        } finally {
+
+            // Close the quarantine file.
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close the quarantine file {}.", this.quarantineFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay the spooled history rows until the spool is shut down.
+     */
+    private void replay() {
+
+        while (this.running) {
+
+            boolean idle = true;
+
+            try {
+                idle = (this.replayBatch() == 0);
+            } catch (SQLException e) {
+                logger.warn("Unable to replay the spooled history rows, retrying in {} ms.", this.replayInterval, e);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to replay the spooled history rows, retrying in {} ms.", this.replayInterval, e);
+            }
+
+            // Wait before retrying a failed batch or checking an empty spool.
+            if (idle) {
+                this.await();
+            }
+        }
+    }
+
+    /**
+     * Replay one batch of spooled history rows and checkpoint the read
+     * position after them.
+     *
+     * A record that cannot be decoded is moved to the quarantine file.
+     * Batches are replayed one at a time, so the replayer thread and a
+     * caller draining the spool never replay the same records.
+     *
+     * @return  the number of records replayed.
+     *
+     * @throws  SQLException  if unable to write the history rows.
+     */
+    private int replayBatch() throws SQLException {
+
+        List<byte[]> records = new ArrayList<byte[]>();
+
+        synchronized (this.replayLock) {
+
+            int position;
+
+            synchronized (this) {
+
+                position = this.readPosition;
+
+                // Read the records of the batch.
+                while (records.size() < this.replayBatchSize && position < this.writePosition) {
+                    byte[] record = new byte[this.buffer.getInt(position)];
+                    this.buffer.position(position + RECORD_HEADER_SIZE);
+                    this.buffer.get(record);
+                    records.add(record);
+                    position += RECORD_HEADER_SIZE + record.length;
+                }
+            }
+
+            // Check if there are records.
+            if (!records.isEmpty()) {
+
+                List<HistoryRow> rows = new ArrayList<HistoryRow>(records.size());
+                List<byte[]> undecodedRecords = new ArrayList<byte[]>();
+                List<Integer> undecodedChecksums = new ArrayList<Integer>();
+
+                // Decode the history rows.
+                for (byte[] record : records) {
+
+                    try {
+                        rows.add(this.decode(record));
+                    } catch (Exception e) {
+                        logger.error("Unable to decode a spooled history row.", e);
+                        undecodedRecords.add(record);
+                        undecodedChecksums.add(checksum(record));
+                    }
+                }
+
+                // Write the history rows and checkpoint the read position after them.
+                logger.trace("Replay {} spooled history rows.", rows.size());
+                HistoryTableImpl.write(rows);
+                if (!undecodedRecords.isEmpty()) {
+                    this.quarantine(undecodedRecords, undecodedChecksums);
+                }
+                this.checkpoint(position);
+            }
+        }
+
+        return records.size();
+    }
+
+    /**
+     * Scan the records from the position to the end of the spool.
+     *
+     * The spool ends at the end marker, or at a record that does not fit
+     * in the spool file or does not match its checksum.  A record that does
+     * not match its checksum, and the complete records after it, are moved
+     * to the quarantine file, since their framing can no longer be trusted
+     * for replay.
+     *
+     * @param  position  the position of the first record.
+     *
+     * @return  the position after the last record.
+     */
+    private int scan(final int position) {
+
+        int endPosition = position;
+        int nextPosition = position;
+        List<byte[]> corruptRecords = new ArrayList<byte[]>();
+        List<Integer> corruptChecksums = new ArrayList<Integer>();
+        boolean ended = false;
+
+        while (!ended) {
+
+            int length = (nextPosition + RECORD_HEADER_SIZE <= this.capacity) ? this.buffer.getInt(nextPosition) : 0;
+
+            // Check if the record is complete.
+            if (length > 0 && nextPosition + RECORD_HEADER_SIZE + length + 4 <= this.capacity) {
+
+                byte[] record = new byte[length];
+                int checksum = this.buffer.getInt(nextPosition + 4);
+                this.buffer.position(nextPosition + RECORD_HEADER_SIZE);
+                this.buffer.get(record);
+                nextPosition += RECORD_HEADER_SIZE + length;
+
+                // Check if the record matches its checksum and no record before it failed.
+                if (corruptRecords.isEmpty() && checksum(record) == checksum) {
+                    endPosition = nextPosition;
+                } else {
+                    corruptRecords.add(record);
+                    corruptChecksums.add(checksum);
+                }
+            } else {
+                ended = true;
+            }
+        }
+
+        // Check if there are corrupt records.
+        if (!corruptRecords.isEmpty()) {
+            logger.error("The spool file {} has a record at position {} that does not match its checksum.", this.file, endPosition);
+            this.quarantine(corruptRecords, corruptChecksums);
+
+            // End the spool before the corrupt record, so it is not quarantined again.
+            this.buffer.putInt(endPosition, 0);
+            this.buffer.force();
+        }
+
+        return endPosition;
+    }
+
+    /**
+     * Shut down the spool.
+     *
+     * New history rows are refused and the replayer is stopped.  The
+     * spooled history rows that are not replayed are replayed the next time
+     * the spool file is opened.
+     */
+    public void shutdown() {
+
+        synchronized (this) {
+            this.running = false;
+            this.notifyAll();
+        }
+
+        try {
+
+            // Wait for the replayer thread to finish its batch.
+            this.thread.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            this.buffer.force();
+            this.close();
+        }
+    }
+
+    /**
+     * Start replaying the spooled history rows.
+     *
+     * The replayer is started separately from the spool so the spool can be
+     * registered with the history table descriptors it resolves first.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * History table descriptor resolver.
+     *
+     * Resolves the history table descriptor of a spooled history row from
+     * its entity class name.
+     */
+    static interface DescriptorResolver {
+
+        /**
+         * Get the history table descriptor.
+         *
+         * @param  entityClassName  the entity class name.
+         *
+         * @return  the history table descriptor.
+         *
+         * @throws  Exception  if unable to resolve the history table descriptor.
+         */
+        HistoryTableDescriptor getDescriptor(String entityClassName) throws Exception;
+    }
+}
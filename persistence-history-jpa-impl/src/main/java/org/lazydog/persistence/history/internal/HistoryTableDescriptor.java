@@ -0,0 +1,1270 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import org.lazydog.persistence.history.HistoryTable.Action;
+import org.lazydog.persistence.history.dialect.Dialect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History table descriptor.
+ *
+ * The descriptor holds everything about the history table of an entity class
+ * that does not depend on the entity instance.  It is resolved once per
+ * entity class and is immutable, so it may be shared by threads.  The
+ * target connection pool, history spool, and asynchronous history writer
+ * of the history table factory are given to the descriptor when it is
+ * created, before it is shared.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryTableDescriptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTableDescriptor.class);
+
+    private static enum COLUMN_META_DATA {
+        COLUMN_NAME,
+        COLUMN_SIZE,
+        DATA_TYPE,
+        DECIMAL_DIGITS,
+        TYPE_NAME,
+        UNSIGNED
+    };
+
+    private final PersistenceHistoryConfiguration.CaptureMode captureMode;
+    private final boolean coalesce;
+    private final List<ColumnDefinition> columnDefinitions;
+    private final TargetConnectionPool connectionPool;
+    private final String createTableSQL;
+    private final HistoryDeltaEncoder deltaEncoder;
+    private final Dialect dialect;
+    private final EntityAccessor entityAccessor;
+    private final Class<?> entityClass;
+    private final String historyTableIdColumnName;
+    private final String historyTableName;
+    private final IdentifierAccessor identifierAccessor;
+    private final String insertRowSQL;
+    private final String insertRowsSQL;
+    private final int insertRowsPerStatement;
+    private final String insertSelectRowsSQL;
+    private final HistoryTableMetrics metrics;
+    private final HistoryTablePartitioner partitioner;
+    private final int populateCommitSize;
+    private final PersistenceHistoryConfiguration.InsertSelectMode populateInsertSelectMode;
+    private final int populateFetchSize;
+    private final int populateParallelism;
+    private final int retentionDays;
+    private final HistoryRowCodec rowCodec;
+    private final RowCopier rowCopier;
+    private final String selectRowSQL;
+    private final String selectHistoryIdRangeSQL;
+    private final String selectIdRangeSQL;
+    private final String selectRowsInRangeSQL;
+    private final String selectRowsSQL;
+    private final String selectSnapshotInRangeSQL;
+    private final String selectSnapshotSQL;
+    private final String selectLatestVersionSQL;
+    private final String selectVersionAsOfSQL;
+    private final String selectVersionBeforeSQL;
+    private final String selectVersionsSQL;
+    private final DataSource sourceDataSource;
+    private final HistorySpool spool;
+    private final String tableIdColumnName;
+    private final String tableName;
+    private final DataSource targetDataSource;
+    private final UnchangedUpdateFilter unchangedFilter;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  entityClass       the entity class.
+     * @param  sourceDataSource  the source data source.
+     * @param  targetDataSource  the target data source.
+     * @param  connectionPool    the target connection pool, or null to write on connections from the target data source.
+     * @param  spool             the history spool, or null to not spool history rows.
+     * @param  writer            the asynchronous history writer, or null if there is none.
+     *
+     * @throws  IllegalArgumentException  if the entity class is invalid.
+     */
+    private HistoryTableDescriptor(final Class<?> entityClass, final DataSource sourceDataSource, final DataSource targetDataSource, final TargetConnectionPool connectionPool, final HistorySpool spool, final AsynchronousHistoryWriter writer) throws IllegalArgumentException {
+
+        this.connectionPool = connectionPool;
+        this.spool = spool;
+
+        try {
+
+            // Get the persistence history configuration.
+            PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.getInstance();
+
+            Context context = new InitialContext();
+
+            // Lookup the source data source in JNDI if necessary.
+            if (sourceDataSource == null) {
+                this.sourceDataSource = (DataSource)context.lookup(configuration.getSourceDataSource());
+            } else {
+                this.sourceDataSource = sourceDataSource;
+            }
+
+            // Lookup the target data source in JNDI if necessary.
+            if (targetDataSource == null) {
+                this.targetDataSource = (DataSource)context.lookup(configuration.getTargetDataSource());
+            } else {
+                this.targetDataSource = targetDataSource;
+            }
+
+            // Set the table name, table ID column name, history table name, and history table ID column name.
+            this.tableName = configuration.getTableName(entityClass);
+            this.tableIdColumnName = configuration.getTableIdColumnName(entityClass);
+            this.historyTableName = configuration.getHistoryTableName(entityClass);
+            this.historyTableIdColumnName = configuration.getHistoryTableIdColumnName(entityClass);
+
+            // Check if the table name, table ID column name, history table name, or history table ID column name do not exist.
+            if (this.tableName == null ||
+                this.tableName.isEmpty() ||
+                this.tableIdColumnName == null ||
+                this.tableIdColumnName.isEmpty() ||
+                this.historyTableName == null ||
+                this.historyTableName.isEmpty() ||
+                this.historyTableIdColumnName == null ||
+                this.historyTableIdColumnName.isEmpty()) {
+                throw new IllegalArgumentException("The entity " + entityClass.getSimpleName() + " is invalid.");
+            }
+
+            // Get the dialect of the target database.
+            this.dialect = getDialect(this.targetDataSource);
+
+            // Set the entity class and column definitions.
+            this.entityClass = entityClass;
+            this.columnDefinitions = getColumnDefinitions(this.sourceDataSource, this.tableName);
+            this.rowCodec = HistoryRowCodec.newInstance(this.columnDefinitions);
+            this.rowCopier = RowCopier.newInstance(this.columnDefinitions);
+            this.identifierAccessor = IdentifierAccessor.newInstance(entityClass, this.getIdColumnDefinitions());
+
+            // Map the columns to the entity if the row is captured from the entity.
+            this.captureMode = configuration.getCaptureMode(entityClass);
+            this.entityAccessor = (this.captureMode == PersistenceHistoryConfiguration.CaptureMode.ENTITY) ?
+                    EntityAccessor.newInstance(entityClass, this.getColumnNames()) :
+                    null;
+
+            // Check if repeated changes within a transaction are coalesced.
+            this.coalesce = configuration.isCoalesce(entityClass);
+
+            // Create the delta encoder if update history rows only store the changed columns.
+            this.deltaEncoder = (configuration.getStorageMode(entityClass) == PersistenceHistoryConfiguration.StorageMode.DELTA) ?
+                    HistoryDeltaEncoder.newInstance(this, configuration.getSnapshotInterval(entityClass), configuration.getDeltaCacheSize(entityClass)) :
+                    null;
+
+            // Create the partitioner if the history table is partitioned.
+            this.partitioner = (configuration.getPartitionPeriod(entityClass) != PersistenceHistoryConfiguration.PartitionPeriod.NONE) ?
+                    HistoryTablePartitioner.newInstance(this, configuration.getPartitionPeriod(entityClass), configuration.getPartitionsAhead(entityClass)) :
+                    null;
+
+            // Set the number of days history rows are kept.
+            this.retentionDays = configuration.getRetentionDays(entityClass);
+
+            // Create the metrics.
+            this.metrics = HistoryTableMetrics.newInstance(entityClass, configuration.isMetricsEnabled(), writer);
+
+            // Create the unchanged update filter if unchanged updates are skipped.
+            this.unchangedFilter = (configuration.isSkipUnchanged(entityClass)) ?
+                    UnchangedUpdateFilter.newInstance(configuration.getUnchangedCacheSize(entityClass), this.metrics) :
+                    null;
+
+            // Set the populate settings.
+            this.populateCommitSize = configuration.getPopulateCommitSize();
+            this.populateInsertSelectMode = configuration.getPopulateInsertSelectMode();
+            this.populateFetchSize = configuration.getPopulateFetchSize();
+            this.populateParallelism = configuration.getPopulateParallelism();
+
+            // Build the SQL once.
+            this.createTableSQL = this.createCreateTableSQL(this.historyTableName);
+            this.insertRowsPerStatement = Math.max(1, Math.min(this.dialect.getMaxInsertRows(), this.dialect.getMaxParameters() / this.getParametersPerRow()));
+            this.insertRowSQL = this.createInsertRowsSQL(this.historyTableName, 1);
+            this.insertRowsSQL = this.createInsertRowsSQL(this.historyTableName, this.insertRowsPerStatement);
+            this.insertSelectRowsSQL = this.createInsertSelectRowsSQL(this.historyTableName);
+            this.selectRowSQL = this.createSelectRowSQL();
+            this.selectHistoryIdRangeSQL = this.createSelectIdRangeSQL(this.historyTableName);
+            this.selectIdRangeSQL = this.createSelectIdRangeSQL(this.tableName);
+            this.selectRowsInRangeSQL = this.createSelectRowsInRangeSQL();
+            this.selectRowsSQL = this.createSelectRowsSQL();
+            this.selectSnapshotInRangeSQL = this.createSelectSnapshotSQL(true);
+            this.selectSnapshotSQL = this.createSelectSnapshotSQL(false);
+            this.selectLatestVersionSQL = this.createSelectLatestVersionSQL();
+            this.selectVersionAsOfSQL = this.createSelectVersionAsOfSQL();
+            this.selectVersionBeforeSQL = this.createSelectVersionBeforeSQL();
+            this.selectVersionsSQL = this.createSelectVersionsSQL();
+
+            logger.info("The target data source is {}.", this.targetDataSource);
+            logger.info("The source data source is {}.", this.sourceDataSource);
+            logger.info("The table ID column name is {}.", this.tableIdColumnName);
+            logger.info("The table name is {}.", this.tableName);
+            logger.info("The history table ID column name is {}.", this.historyTableIdColumnName);
+            logger.info("The history table name is {}.", this.historyTableName);
+            logger.info("The capture mode is {}.", this.captureMode);
+            logger.info("The storage mode is {}.", (this.deltaEncoder != null) ? PersistenceHistoryConfiguration.StorageMode.DELTA : PersistenceHistoryConfiguration.StorageMode.FULL);
+            logger.info("The dialect is {}.", this.dialect.getClass().getSimpleName());
+        } catch (NamingException e) {
+            throw new IllegalArgumentException("Unable to initialize the history table for the entity " + entityClass.getSimpleName() + " due to a data source issue.", e);
+        } catch (SQLException e) {
+            throw new IllegalArgumentException("Unable to initialize the history table for the entity " + entityClass.getSimpleName() + " due to a SQL issue.", e);
+        }
+    }
+
+    /**
+     * Create the comma separated column names.
+     *
+     * @return  the comma separated column names in column order.
+     */
+    private String createColumnNames() {
+
+        StringBuilder columnNamesStringBuilder = new StringBuilder();
+
+        // Loop through the column definitions.
+        for (ColumnDefinition columnDefinition : this.columnDefinitions) {
+
+            // Check if this is not the first column.
+            if (columnNamesStringBuilder.length() > 0) {
+                columnNamesStringBuilder.append(", ");
+            }
+
+            columnNamesStringBuilder.append(columnDefinition.getColumnName());
+        }
+
+        return columnNamesStringBuilder.toString();
+    }
+
+    /**
+     * Create the create index SQL string.
+     *
+     * The index on the identifier columns, the action time, and the history
+     * table identifier column lets the point in time queries seek to the
+     * versions of one entity.
+     *
+     * @param  historyTableName  the name of the history table or partition.
+     *
+     * @return  the create index SQL string.
+     */
+    public String createCreateIndexSQL(final String historyTableName) {
+        return new StringBuilder()
+                .append("create index ")
+                .append(historyTableName)
+                .append("_ix on ")
+                .append(historyTableName)
+                .append(" (")
+                .append(this.createIdColumnNames())
+                .append(", action_time, ")
+                .append(this.historyTableIdColumnName)
+                .append(")")
+                .toString();
+    }
+
+    /**
+     * Create the create table SQL string.
+     *
+     * @param  historyTableName  the name of the history table or partition.
+     *
+     * @return  the create table SQL string.
+     */
+    public String createCreateTableSQL(final String historyTableName) {
+
+        StringBuilder sqlStringBuilder = new StringBuilder();
+
+        // Loop through the column definitions.
+        for (ColumnDefinition columnDefinition : this.columnDefinitions) {
+
+            // Check if this is the first column.
+            if (sqlStringBuilder.length() <= 0) {
+                sqlStringBuilder
+                        .append("create table ")
+                        .append(historyTableName)
+                        .append(" (")
+                        .append(this.dialect.getIdentityColumn(this.historyTableIdColumnName))
+                        .append(", ");
+            } else {
+                sqlStringBuilder.append(", ");
+            }
+
+            sqlStringBuilder
+                    .append(columnDefinition.getColumnName())
+                    .append(" ")
+                    .append(this.dialect.getColumnType(
+                            columnDefinition.getTypeName(),
+                            columnDefinition.getDataType(),
+                            columnDefinition.getColumnSize(),
+                            columnDefinition.getDecimalDigits(),
+                            columnDefinition.isUnsigned()));
+        }
+
+        // Check if the SQL string builder has data.
+        if (sqlStringBuilder.length() > 0) {
+            sqlStringBuilder
+                    .append(", action varchar(255) not null, action_by varchar(255) not null, action_time ")
+                    .append(this.dialect.getTimestampType())
+                    .append(" not null")
+                    .append((this.deltaEncoder != null) ? ", changed_columns varchar(" + HistoryDeltaEncoder.getBitmapLength(this.columnDefinitions.size()) + ")" : "")
+                    .append(", primary key (")
+                    .append(this.historyTableIdColumnName)
+                    .append("))");
+        }
+
+        return sqlStringBuilder.toString();
+    }
+
+    /**
+     * Create the insert rows SQL string.
+     *
+     * @param  historyTableName  the name of the history table or partition.
+     * @param  rowCount          the number of rows in the values clause.
+     *
+     * @return  the insert rows SQL string.
+     */
+    public String createInsertRowsSQL(final String historyTableName, final int rowCount) {
+
+        StringBuilder columnValuesStringBuilder = new StringBuilder();
+        StringBuilder sqlStringBuilder = new StringBuilder();
+
+        // Loop through the column definitions.
+        for (ColumnDefinition columnDefinition : this.columnDefinitions) {
+
+            // Check if this is the first column.
+            if (sqlStringBuilder.length() <= 0) {
+                sqlStringBuilder
+                        .append("insert into ")
+                        .append(historyTableName)
+                        .append(" (");
+                columnValuesStringBuilder
+                        .append(" values (?");
+            } else {
+                sqlStringBuilder
+                        .append(", ");
+                columnValuesStringBuilder
+                        .append(", ?");
+            }
+
+            sqlStringBuilder.append(columnDefinition.getColumnName());
+        }
+
+        // Check if the SQL string builder has data.
+        if (sqlStringBuilder.length() > 0) {
+            columnValuesStringBuilder.append((this.deltaEncoder != null) ? ", ?, ?, ?, ?)" : ", ?, ?, ?)");
+            sqlStringBuilder
+                    .append((this.deltaEncoder != null) ? ", action, action_by, action_time, changed_columns)" : ", action, action_by, action_time)")
+                    .append(columnValuesStringBuilder);
+
+            // Loop through the additional rows.
+            for (int rowIndex = 1; rowIndex < rowCount; rowIndex++) {
+                sqlStringBuilder
+                        .append(",")
+                        .append(columnValuesStringBuilder, " values".length(), columnValuesStringBuilder.length());
+            }
+        }
+
+        return sqlStringBuilder.toString();
+    }
+
+    /**
+     * Create the insert select rows SQL string.
+     *
+     * The action by and action time are the parameters.
+     *
+     * @param  historyTableName  the name of the history table or partition.
+     *
+     * @return  the insert select rows SQL string.
+     */
+    private String createInsertSelectRowsSQL(final String historyTableName) {
+
+        StringBuilder columnNamesStringBuilder = new StringBuilder();
+
+        // Loop through the column definitions.
+        for (ColumnDefinition columnDefinition : this.columnDefinitions) {
+            columnNamesStringBuilder
+                    .append(columnDefinition.getColumnName())
+                    .append(", ");
+        }
+
+        return new StringBuilder()
+                .append("insert into ")
+                .append(historyTableName)
+                .append(" (")
+                .append(columnNamesStringBuilder)
+                .append("action, action_by, action_time) select ")
+                .append(columnNamesStringBuilder)
+                .append("'")
+                .append(Action.INITIAL.toString())
+                .append("', ")
+                .append(this.dialect.getTypedParameter("varchar(255)"))
+                .append(", ")
+                .append(this.dialect.getTypedParameter(this.dialect.getTimestampType()))
+                .append(" from ")
+                .append(this.tableName)
+                .toString();
+    }
+
+    /**
+     * Create the comma separated identifier column names.
+     *
+     * @return  the comma separated identifier column names in identifier column order.
+     */
+    private String createIdColumnNames() {
+
+        StringBuilder columnNamesStringBuilder = new StringBuilder();
+
+        // Loop through the identifier column names.
+        for (String idColumnName : this.identifierAccessor.getColumnNames()) {
+
+            // Check if this is not the first identifier column.
+            if (columnNamesStringBuilder.length() > 0) {
+                columnNamesStringBuilder.append(", ");
+            }
+
+            columnNamesStringBuilder.append(idColumnName);
+        }
+
+        return columnNamesStringBuilder.toString();
+    }
+
+    /**
+     * Create the identifier column conditions of a where clause.
+     *
+     * @return  the identifier column conditions, one parameter per identifier column.
+     */
+    private String createIdColumnConditions() {
+
+        StringBuilder conditionsStringBuilder = new StringBuilder();
+
+        // Loop through the identifier column names.
+        for (String idColumnName : this.identifierAccessor.getColumnNames()) {
+
+            // Check if this is not the first identifier column.
+            if (conditionsStringBuilder.length() > 0) {
+                conditionsStringBuilder.append(" and ");
+            }
+
+            conditionsStringBuilder
+                    .append(idColumnName)
+                    .append(" = ?");
+        }
+
+        return conditionsStringBuilder.toString();
+    }
+
+    /**
+     * Create the select identifier range SQL string.
+     *
+     * @param  tableName  the name of the table or history table.
+     *
+     * @return  the select identifier range SQL string.
+     */
+    private String createSelectIdRangeSQL(final String tableName) {
+        return new StringBuilder()
+                .append("select min(")
+                .append(this.tableIdColumnName)
+                .append("), max(")
+                .append(this.tableIdColumnName)
+                .append(") from ")
+                .append(tableName)
+                .toString();
+    }
+
+    /**
+     * Create the select row SQL string.
+     *
+     * @return  the select row SQL string.
+     */
+    private String createSelectRowSQL() {
+        return new StringBuilder()
+                .append("select ")
+                .append(this.createColumnNames())
+                .append(" from ")
+                .append(this.tableName)
+                .append(" where ")
+                .append(this.createIdColumnConditions())
+                .toString();
+    }
+
+    /**
+     * Create the select rows in an identifier range SQL string.
+     *
+     * @return  the select rows in an identifier range SQL string.
+     */
+    private String createSelectRowsInRangeSQL() {
+        return new StringBuilder()
+                .append("select ")
+                .append(this.createColumnNames())
+                .append(" from ")
+                .append(this.tableName)
+                .append(" where ")
+                .append(this.tableIdColumnName)
+                .append(" >= ? and ")
+                .append(this.tableIdColumnName)
+                .append(" <= ?")
+                .toString();
+    }
+
+    /**
+     * Create the select all rows SQL string.
+     *
+     * @return  the select all rows SQL string.
+     */
+    private String createSelectRowsSQL() {
+        return new StringBuilder()
+                .append("select ")
+                .append(this.createColumnNames())
+                .append(" from ")
+                .append(this.tableName)
+                .toString();
+    }
+
+    /**
+     * Create the select snapshot SQL string.
+     *
+     * The versions at or before a time are ordered by identifier and action
+     * time, so the last version of each entity ends its group.
+     *
+     * @param  inRange  true to select an identifier range, otherwise false.
+     *
+     * @return  the select snapshot SQL string.
+     */
+    private String createSelectSnapshotSQL(final boolean inRange) {
+
+        StringBuilder sqlStringBuilder = new StringBuilder()
+                .append("select ")
+                .append(this.createColumnNames())
+                .append(", action, action_by, action_time, ")
+                .append(this.historyTableIdColumnName)
+                .append((this.deltaEncoder != null) ? ", changed_columns" : "")
+                .append(" from ")
+                .append(this.historyTableName)
+                .append(" where action_time <= ?");
+
+        // Check if an identifier range is selected.
+        if (inRange) {
+            sqlStringBuilder
+                    .append(" and ")
+                    .append(this.tableIdColumnName)
+                    .append(" >= ? and ")
+                    .append(this.tableIdColumnName)
+                    .append(" <= ?");
+        }
+
+        return sqlStringBuilder
+                .append(" order by ")
+                .append(this.createIdColumnNames())
+                .append(", action_time, ")
+                .append(this.historyTableIdColumnName)
+                .toString();
+    }
+
+    /**
+     * Create the select latest version SQL string.
+     *
+     * @return  the select latest version SQL string.
+     */
+    private String createSelectLatestVersionSQL() {
+        return new StringBuilder()
+                .append(this.createSelectVersionsPrefix())
+                .append(" order by action_time desc, ")
+                .append(this.historyTableIdColumnName)
+                .append(" desc")
+                .toString();
+    }
+
+    /**
+     * Create the select version as of a time SQL string.
+     *
+     * @return  the select version as of a time SQL string.
+     */
+    private String createSelectVersionAsOfSQL() {
+        return new StringBuilder()
+                .append(this.createSelectVersionsPrefix())
+                .append(" and action_time <= ? order by action_time desc, ")
+                .append(this.historyTableIdColumnName)
+                .append(" desc")
+                .toString();
+    }
+
+    /**
+     * Create the select version before a time SQL string.
+     *
+     * @return  the select version before a time SQL string.
+     */
+    private String createSelectVersionBeforeSQL() {
+        return new StringBuilder()
+                .append(this.createSelectVersionsPrefix())
+                .append(" and action_time < ? order by action_time desc, ")
+                .append(this.historyTableIdColumnName)
+                .append(" desc")
+                .toString();
+    }
+
+    /**
+     * Create the start of the select versions SQL strings, up to the
+     * identifier column conditions.
+     *
+     * @return  the start of the select versions SQL strings.
+     */
+    private String createSelectVersionsPrefix() {
+        return new StringBuilder()
+                .append("select ")
+                .append(this.createColumnNames())
+                .append(", action, action_by, action_time, ")
+                .append(this.historyTableIdColumnName)
+                .append((this.deltaEncoder != null) ? ", changed_columns" : "")
+                .append(" from ")
+                .append(this.historyTableName)
+                .append(" where ")
+                .append(this.createIdColumnConditions())
+                .toString();
+    }
+
+    /**
+     * Create the select versions in a time range SQL string.
+     *
+     * @return  the select versions in a time range SQL string.
+     */
+    private String createSelectVersionsSQL() {
+        return new StringBuilder()
+                .append(this.createSelectVersionsPrefix())
+                .append(" and action_time >= ? and action_time < ? order by action_time, ")
+                .append(this.historyTableIdColumnName)
+                .toString();
+    }
+
+    /**
+     * Get the capture mode.
+     *
+     * @return  the capture mode.
+     */
+    public PersistenceHistoryConfiguration.CaptureMode getCaptureMode() {
+        return this.captureMode;
+    }
+
+    /**
+     * Get the column definitions.
+     *
+     * @return  the column definitions.
+     */
+    public List<ColumnDefinition> getColumnDefinitions() {
+        return this.columnDefinitions;
+    }
+
+    /**
+     * Get the column definitions.
+     *
+     * @param  dataSource  the data source.
+     * @param  tableName   the table name.
+     *
+     * @return  the column definitions.
+     *
+     * @throws  SQLException  if unable to get the column definitions.
+     */
+    private static List<ColumnDefinition> getColumnDefinitions(final DataSource dataSource, final String tableName) throws SQLException {
+
+        List<ColumnDefinition> columnDefinitions = new ArrayList<ColumnDefinition>();
+        Connection connection = null;
+        ResultSet resultSet = null;
+
+        try {
+
+            // Connect to the database.
+            connection = HistoryTableImpl.connect(dataSource);
+
+            // Get the column meta data for the table.
+            DatabaseMetaData metaData = connection.getMetaData();
+            resultSet = metaData.getColumns(null, null, Dialect.getInstance(metaData).getStoredIdentifier(metaData, tableName), null);
+
+            // Check if there is column meta data.
+            while (resultSet.next()) {
+
+                // Get the column meta data.
+                String columnName = resultSet.getString(COLUMN_META_DATA.COLUMN_NAME.toString());
+                int columnSize = resultSet.getInt(COLUMN_META_DATA.COLUMN_SIZE.toString());
+                int dataType = resultSet.getInt(COLUMN_META_DATA.DATA_TYPE.toString());
+                int decimalDigits = resultSet.getInt(COLUMN_META_DATA.DECIMAL_DIGITS.toString());
+                String typeName = resultSet.getString(COLUMN_META_DATA.TYPE_NAME.toString());
+                boolean unsigned = (typeName.indexOf(" " + COLUMN_META_DATA.UNSIGNED.toString()) != -1);
+                typeName = typeName.replace(" " + COLUMN_META_DATA.UNSIGNED.toString(), "");
+
+                logger.debug("columnName is {}", columnName);
+                logger.debug("columnSize is {}", columnSize);
+                logger.debug("dataType is {}", dataType);
+                logger.debug("decimalDigits is {}", decimalDigits);
+                logger.debug("typeName is {}", typeName);
+                logger.debug("unsigned is {}", unsigned);
+
+                // Add the column definition to the list.
+                columnDefinitions.add(ColumnDefinition.newInstance(columnName, columnSize, dataType, decimalDigits, typeName, unsigned));
+            }
+        } finally {
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(connection, null, resultSet);
+        }
+
+        return Collections.unmodifiableList(columnDefinitions);
+    }
+
+    /**
+     * Get the column names.
+     *
+     * @return  the column names in column order.
+     */
+    public List<String> getColumnNames() {
+
+        List<String> columnNames = new ArrayList<String>();
+
+        // Loop through the column definitions.
+        for (ColumnDefinition columnDefinition : this.columnDefinitions) {
+            columnNames.add(columnDefinition.getColumnName());
+        }
+
+        return columnNames;
+    }
+
+    /**
+     * Get the target connection pool.
+     *
+     * @return  the target connection pool, or null if history rows are written on connections from the target data source.
+     */
+    public TargetConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
+    /**
+     * Get the create table SQL string.
+     *
+     * @return  the create table SQL string.
+     */
+    public String getCreateTableSQL() {
+        return this.createTableSQL;
+    }
+
+    /**
+     * Get the delta encoder.
+     *
+     * @return  the delta encoder, or null if the history table has full storage.
+     */
+    public HistoryDeltaEncoder getDeltaEncoder() {
+        return this.deltaEncoder;
+    }
+
+    /**
+     * Get the dialect.
+     *
+     * @return  the dialect of the target database.
+     */
+    public Dialect getDialect() {
+        return this.dialect;
+    }
+
+    /**
+     * Get the dialect of the database.
+     *
+     * @param  dataSource  the data source.
+     *
+     * @return  the dialect of the database.
+     *
+     * @throws  SQLException  if unable to get the dialect.
+     */
+    private static Dialect getDialect(final DataSource dataSource) throws SQLException {
+
+        Connection connection = null;
+        Dialect dialect;
+
+        try {
+
+            // Connect to the database.
+            connection = HistoryTableImpl.connect(dataSource);
+
+            // Select the dialect from the database meta data.
+            DatabaseMetaData metaData = connection.getMetaData();
+            dialect = Dialect.getInstance(metaData);
+
+            // Check if the driver can rewrite batches but the connection does not ask it to.
+            String batchRewriteProperty = dialect.getBatchRewriteProperty();
+            if (batchRewriteProperty != null && metaData.getURL() != null && metaData.getURL().indexOf(batchRewriteProperty) == -1) {
+                logger.info("Set the connection property {}=true on {} to let the driver rewrite batched inserts.", batchRewriteProperty, metaData.getURL());
+            }
+        } finally {
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(connection, null, null);
+        }
+
+        return dialect;
+    }
+
+    /**
+     * Get the entity accessor.
+     *
+     * @return  the entity accessor, or null if the row is captured from the source table.
+     */
+    public EntityAccessor getEntityAccessor() {
+        return this.entityAccessor;
+    }
+
+    /**
+     * Get the entity class.
+     *
+     * @return  the entity class.
+     */
+    public Class<?> getEntityClass() {
+        return this.entityClass;
+    }
+
+    /**
+     * Get the history table identifier column name.
+     *
+     * @return  the history table identifier column name.
+     */
+    public String getHistoryTableIdColumnName() {
+        return this.historyTableIdColumnName;
+    }
+
+    /**
+     * Get the history table name.
+     *
+     * @return  the history table name.
+     */
+    public String getHistoryTableName() {
+        return this.historyTableName;
+    }
+
+    /**
+     * Get the identifier column definitions.
+     *
+     * The table identifier column name may list several comma separated
+     * column names for a composite identifier.
+     *
+     * @return  the identifier column definitions in identifier column order.
+     *
+     * @throws  IllegalArgumentException  if an identifier column is not a column of the table.
+     */
+    private List<ColumnDefinition> getIdColumnDefinitions() {
+
+        List<ColumnDefinition> idColumnDefinitions = new ArrayList<ColumnDefinition>();
+
+        // Loop through the identifier column names.
+        for (String idColumnName : this.tableIdColumnName.split(",")) {
+
+            ColumnDefinition idColumnDefinition = null;
+
+            // Loop through the column definitions.
+            for (ColumnDefinition columnDefinition : this.columnDefinitions) {
+
+                // Check if the column is the identifier column.
+                if (columnDefinition.getColumnName().equalsIgnoreCase(idColumnName.trim())) {
+                    idColumnDefinition = columnDefinition;
+                    break;
+                }
+            }
+
+            // Check if the identifier column is not a column of the table.
+            if (idColumnDefinition == null) {
+                throw new IllegalArgumentException("The identifier column " + idColumnName.trim() + " is not a column of the table " + this.tableName + ".");
+            }
+
+            idColumnDefinitions.add(idColumnDefinition);
+        }
+
+        return idColumnDefinitions;
+    }
+
+    /**
+     * Get the identifier accessor.
+     *
+     * @return  the identifier accessor.
+     */
+    public IdentifierAccessor getIdentifierAccessor() {
+        return this.identifierAccessor;
+    }
+
+    /**
+     * Check if repeated changes to the same entity within a transaction are
+     * coalesced.
+     *
+     * @return  true if the changes are coalesced, otherwise false.
+     */
+    public boolean isCoalesce() {
+        return this.coalesce;
+    }
+
+    /**
+     * Check if the identifier of the entity is kept with its history rows.
+     *
+     * The identifier is kept if changes are coalesced, the history table
+     * has delta storage, or unchanged updates are skipped.
+     *
+     * @return  true if the identifier is kept, otherwise false.
+     */
+    public boolean isIdKept() {
+        return this.coalesce || this.deltaEncoder != null || this.unchangedFilter != null;
+    }
+
+    /**
+     * Check if update history rows only store the changed columns.
+     *
+     * @return  true if the history table has delta storage, otherwise false.
+     */
+    public boolean isDelta() {
+        return this.deltaEncoder != null;
+    }
+
+    /**
+     * Get the number of days history rows are kept.
+     *
+     * @return  the retention days, or zero if history rows are kept forever.
+     */
+    public int getRetentionDays() {
+        return this.retentionDays;
+    }
+
+    /**
+     * Get the number of rows in the values clause of the insert rows SQL.
+     *
+     * @return  the number of rows inserted by one insert rows statement.
+     */
+    public int getInsertRowsPerStatement() {
+        return this.insertRowsPerStatement;
+    }
+
+    /**
+     * Get the insert rows SQL string.
+     *
+     * The insert rows SQL inserts the number of rows per statement allowed
+     * by the dialect with one multiple row values clause.
+     *
+     * @return  the insert rows SQL string.
+     */
+    public String getInsertRowsSQL() {
+        return this.insertRowsSQL;
+    }
+
+    /**
+     * Get the insert select rows SQL string.
+     *
+     * The action by and action time are bound as parameters.  If the
+     * history table is partitioned, the rows are inserted in the partition
+     * for the action time, which must exist.
+     *
+     * @param  actionTime  the action time.
+     *
+     * @return  the insert select rows SQL string.
+     */
+    public String getInsertSelectRowsSQL(final Date actionTime) {
+        return (this.partitioner != null) ?
+                this.createInsertSelectRowsSQL(this.partitioner.getPartitionName(actionTime)) :
+                this.insertSelectRowsSQL;
+    }
+
+    /**
+     * Get the insert row SQL string.
+     *
+     * @return  the insert row SQL string.
+     */
+    public String getInsertRowSQL() {
+        return this.insertRowSQL;
+    }
+
+    /**
+     * Get the history table metrics.
+     *
+     * @return  the history table metrics.
+     */
+    public HistoryTableMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Get the number of insert parameters per history row.
+     *
+     * The parameters are the column values, the action, the action by, the
+     * action time, and for delta storage the changed columns bitmap.
+     *
+     * @return  the number of insert parameters per history row.
+     */
+    public int getParametersPerRow() {
+        return this.columnDefinitions.size() + ((this.isDelta()) ? 4 : 3);
+    }
+
+    /**
+     * Get the partitioner.
+     *
+     * @return  the partitioner, or null if the history table is not partitioned.
+     */
+    public HistoryTablePartitioner getPartitioner() {
+        return this.partitioner;
+    }
+
+    /**
+     * Get the number of history rows inserted and committed at a time when
+     * populating the history table.
+     *
+     * @return  the populate commit size.
+     */
+    public int getPopulateCommitSize() {
+        return this.populateCommitSize;
+    }
+
+    /**
+     * Get the insert select mode used when populating the history table.
+     *
+     * @return  the populate insert select mode.
+     */
+    public PersistenceHistoryConfiguration.InsertSelectMode getPopulateInsertSelectMode() {
+        return this.populateInsertSelectMode;
+    }
+
+    /**
+     * Get the number of source rows fetched at a time when populating the
+     * history table.
+     *
+     * @return  the populate fetch size.
+     */
+    public int getPopulateFetchSize() {
+        return this.populateFetchSize;
+    }
+
+    /**
+     * Get the number of workers copying identifier ranges when populating the
+     * history table.
+     *
+     * @return  the populate parallelism.
+     */
+    public int getPopulateParallelism() {
+        return this.populateParallelism;
+    }
+
+    /**
+     * Get the select history table identifier range SQL string.
+     *
+     * @return  the select history table identifier range SQL string.
+     */
+    public String getSelectHistoryIdRangeSQL() {
+        return this.selectHistoryIdRangeSQL;
+    }
+
+    /**
+     * Get the select identifier range SQL string.
+     *
+     * @return  the select identifier range SQL string.
+     */
+    public String getSelectIdRangeSQL() {
+        return this.selectIdRangeSQL;
+    }
+
+    /**
+     * Get the history row codec.
+     *
+     * @return  the history row codec for the source table columns.
+     */
+    public HistoryRowCodec getRowCodec() {
+        return this.rowCodec;
+    }
+
+    /**
+     * Get the row copier.
+     *
+     * @return  the row copier for the source table columns.
+     */
+    public RowCopier getRowCopier() {
+        return this.rowCopier;
+    }
+
+    /**
+     * Get the select row SQL string.
+     *
+     * @return  the select row SQL string.
+     */
+    public String getSelectRowSQL() {
+        return this.selectRowSQL;
+    }
+
+    /**
+     * Get the select rows in an identifier range SQL string.
+     *
+     * @return  the select rows in an identifier range SQL string.
+     */
+    public String getSelectRowsInRangeSQL() {
+        return this.selectRowsInRangeSQL;
+    }
+
+    /**
+     * Get the select all rows SQL string.
+     *
+     * @return  the select all rows SQL string.
+     */
+    public String getSelectRowsSQL() {
+        return this.selectRowsSQL;
+    }
+
+    /**
+     * Get the select snapshot in an identifier range SQL string.
+     *
+     * @return  the select snapshot in an identifier range SQL string.
+     */
+    public String getSelectSnapshotInRangeSQL() {
+        return this.selectSnapshotInRangeSQL;
+    }
+
+    /**
+     * Get the select snapshot SQL string.
+     *
+     * @return  the select snapshot SQL string.
+     */
+    public String getSelectSnapshotSQL() {
+        return this.selectSnapshotSQL;
+    }
+
+    /**
+     * Get the select latest version SQL string.
+     *
+     * @return  the select latest version SQL string.
+     */
+    public String getSelectLatestVersionSQL() {
+        return this.selectLatestVersionSQL;
+    }
+
+    /**
+     * Get the select version as of a time SQL string.
+     *
+     * @return  the select version as of a time SQL string.
+     */
+    public String getSelectVersionAsOfSQL() {
+        return this.selectVersionAsOfSQL;
+    }
+
+    /**
+     * Get the select version before a time SQL string.
+     *
+     * @return  the select version before a time SQL string.
+     */
+    public String getSelectVersionBeforeSQL() {
+        return this.selectVersionBeforeSQL;
+    }
+
+    /**
+     * Get the select versions in a time range SQL string.
+     *
+     * @return  the select versions in a time range SQL string.
+     */
+    public String getSelectVersionsSQL() {
+        return this.selectVersionsSQL;
+    }
+
+    /**
+     * Get the source data source.
+     *
+     * @return  the source data source.
+     */
+    public DataSource getSourceDataSource() {
+        return this.sourceDataSource;
+    }
+
+    /**
+     * Get the history spool.
+     *
+     * @return  the history spool, or null if history rows are not spooled.
+     */
+    public HistorySpool getSpool() {
+        return this.spool;
+    }
+
+    /**
+     * Get the table identifier column name.
+     *
+     * @return  the table identifier column name.
+     */
+    public String getTableIdColumnName() {
+        return this.tableIdColumnName;
+    }
+
+    /**
+     * Get the table name.
+     *
+     * @return  the table name.
+     */
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    /**
+     * Get the target data source.
+     *
+     * @return  the target data source.
+     */
+    public DataSource getTargetDataSource() {
+        return this.targetDataSource;
+    }
+
+    /**
+     * Get the unchanged update filter.
+     *
+     * @return  the unchanged update filter, or null if unchanged updates are not skipped.
+     */
+    public UnchangedUpdateFilter getUnchangedFilter() {
+        return this.unchangedFilter;
+    }
+
+    /**
+     * Create a new instance of the history table descriptor class.
+     *
+     * @param  entityClass       the entity class.
+     * @param  sourceDataSource  the source data source, or null to look it up in JNDI.
+     * @param  targetDataSource  the target data source, or null to look it up in JNDI.
+     *
+     * @return  a new instance of the history table descriptor class.
+     *
+     * @throws  IllegalArgumentException  if the entity class is invalid.
+     */
+    public static HistoryTableDescriptor newInstance(final Class<?> entityClass, final DataSource sourceDataSource, final DataSource targetDataSource) throws IllegalArgumentException {
+        return newInstance(entityClass, sourceDataSource, targetDataSource, null, null, null);
+    }
+
+    /**
+     * Create a new instance of the history table descriptor class.
+     *
+     * @param  entityClass       the entity class.
+     * @param  sourceDataSource  the source data source, or null to look it up in JNDI.
+     * @param  targetDataSource  the target data source, or null to look it up in JNDI.
+     * @param  connectionPool    the target connection pool for the target data source, or null to write on connections from the target data source.
+     * @param  spool             the history spool, or null to not spool history rows.
+     * @param  writer            the asynchronous history writer, or null if there is none.
+     *
+     * @return  a new instance of the history table descriptor class.
+     *
+     * @throws  IllegalArgumentException  if the entity class is invalid.
+     */
+    public static HistoryTableDescriptor newInstance(final Class<?> entityClass, final DataSource sourceDataSource, final DataSource targetDataSource, final TargetConnectionPool connectionPool, final HistorySpool spool, final AsynchronousHistoryWriter writer) throws IllegalArgumentException {
+        return new HistoryTableDescriptor(entityClass, sourceDataSource, targetDataSource, connectionPool, spool, writer);
+    }
+}
@@ -18,8 +18,16 @@
  */
 package org.lazydog.persistence.history.internal;
 
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
 import org.lazydog.persistence.history.HistoryTable;
 import org.lazydog.persistence.history.HistoryTableFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * History table factory implementation.
@@ -28,6 +36,153 @@ import org.lazydog.persistence.history.HistoryTableFactory;
  */
 public class HistoryTableFactoryImpl extends HistoryTableFactory {
 
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTableFactoryImpl.class);
+
+    private final ConcurrentMap<Class<?>,HistoryTableDescriptor> descriptors = new ConcurrentHashMap<Class<?>,HistoryTableDescriptor>();
+    private final TransactionHistoryBuffer buffer;
+    private final ConcurrentMap<DataSource,TargetConnectionPool> connectionPools;
+    private final HistoryTablePurger purger;
+    private final HistorySpool spool;
+    private final AsynchronousHistoryWriter writer;
+
+    /**
+     * Create the history table factory.
+     *
+     * The transaction history buffer and target connection pools are created
+     * and the asynchronous history writer, history spool, and history table
+     * purger are started if they are configured.
+     * The purger purges the history tables of the entities this factory
+     * has resolved.  The spool is created before any descriptor is
+     * resolved and is given to each descriptor when it is created, including
+     * the descriptors the spool resolves to replay its history rows.  If the
+     * spool file cannot be opened, history rows are not spooled.
+     */
+    public HistoryTableFactoryImpl() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.getInstance();
+        this.buffer = (configuration.isTransactionBufferEnabled()) ? TransactionHistoryBuffer.newInstance(configuration) : null;
+        this.connectionPools = (configuration.isTargetConnectionPoolEnabled()) ? new ConcurrentHashMap<DataSource,TargetConnectionPool>() : null;
+        this.writer = (configuration.isAsynchronousWriterEnabled()) ? AsynchronousHistoryWriter.newInstance(configuration) : null;
+        this.spool = (configuration.isSpoolEnabled()) ? this.newSpool(configuration) : null;
+        if (this.spool != null) {
+            this.spool.start();
+        }
+        this.purger = (configuration.isPurgerEnabled()) ? HistoryTablePurger.newInstance(configuration, this.descriptors.values()) : null;
+    }
+
+    /**
+     * Close the history table factory.
+     *
+     * The asynchronous history writer is shut down after it writes the
+     * pending history rows, the history spool and the history table purger
+     * are stopped, and the target connection pools are closed.  The spooled
+     * history rows that are not replayed are replayed the next time the spool
+     * file is opened.
+     */
+    @Override
+    public void close() {
+
+        // Shut down the asynchronous history writer.
+        if (this.writer != null) {
+            this.writer.shutdown();
+        }
+
+        // Shut down the history spool, releasing the spool file.
+        if (this.spool != null) {
+            this.spool.shutdown();
+        }
+
+        // Shut down the history table purger.
+        if (this.purger != null) {
+            this.purger.shutdown();
+        }
+
+        // Close the target connection pools.
+        if (this.connectionPools != null) {
+            for (TargetConnectionPool connectionPool : this.connectionPools.values()) {
+                connectionPool.close();
+            }
+        }
+    }
+
+    /**
+     * Get the history table descriptor for the entity class.
+     *
+     * The descriptor is resolved the first time it is requested, with the
+     * target connection pool, history spool, and asynchronous history writer
+     * of this factory, and its metrics are registered before it is cached
+     * for later requests.  Descriptors are resolved one at a time, so no
+     * thread sees a descriptor before it is complete.  A descriptor that
+     * cannot be resolved is not cached.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the history table descriptor.
+     *
+     * @throws  IllegalArgumentException  if the entity class is invalid.
+     */
+    private HistoryTableDescriptor getDescriptor(Class<?> entityClass) {
+
+        // Get the cached descriptor.
+        HistoryTableDescriptor descriptor = this.descriptors.get(entityClass);
+
+        // Check if the descriptor is not cached.
+        if (descriptor == null) {
+
+            synchronized (this.descriptors) {
+
+                // Check if another thread resolved the descriptor first.
+                descriptor = this.descriptors.get(entityClass);
+                if (descriptor == null) {
+
+                    // Resolve the descriptor with the target connection pool for its target data source.
+                    DataSource targetDataSource = (this.connectionPools != null) ? lookupTargetDataSource(entityClass) : null;
+                    descriptor = HistoryTableDescriptor.newInstance(entityClass, null, targetDataSource, this.getConnectionPool(targetDataSource), this.spool, this.writer);
+                    descriptor.getMetrics().register();
+
+                    // Cache the descriptor.
+                    this.descriptors.put(entityClass, descriptor);
+                }
+            }
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Get the target connection pool for the target data source.
+     *
+     * The pool is created the first time it is requested and shared by the
+     * descriptors with the same target data source.
+     *
+     * @param  dataSource  the target data source.
+     *
+     * @return  the target connection pool, or null if the target connection pool is not configured.
+     */
+    private TargetConnectionPool getConnectionPool(final DataSource dataSource) {
+
+        TargetConnectionPool connectionPool = null;
+
+        // Check if the target connection pool is configured.
+        if (this.connectionPools != null) {
+
+            // Get the cached pool.
+            connectionPool = this.connectionPools.get(dataSource);
+
+            // Check if the pool is not cached.
+            if (connectionPool == null) {
+
+                // Create the pool and cache it unless another thread beat us to it.
+                connectionPool = TargetConnectionPool.newInstance(dataSource, PersistenceHistoryConfiguration.getInstance());
+                TargetConnectionPool cachedConnectionPool = this.connectionPools.putIfAbsent(dataSource, connectionPool);
+                if (cachedConnectionPool != null) {
+                    connectionPool = cachedConnectionPool;
+                }
+            }
+        }
+
+        return connectionPool;
+    }
+
     /**
      * Get the history table.
      *
@@ -39,6 +194,60 @@ public class HistoryTableFactoryImpl extends HistoryTableFactory {
      */
     @Override
     public HistoryTable getHistoryTable(Object entity) {
-        return HistoryTableImpl.newInstance(entity);
+        return HistoryTableImpl.newInstance(entity, this.getDescriptor(entity.getClass()), this.buffer, this.writer);
+    }
+
+    /**
+     * Lookup the target data source in JNDI.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the target data source.
+     *
+     * @throws  IllegalArgumentException  if the target data source cannot be found.
+     */
+    private static DataSource lookupTargetDataSource(final Class<?> entityClass) {
+
+        DataSource targetDataSource;
+
+        try {
+            targetDataSource = (DataSource)new InitialContext().lookup(PersistenceHistoryConfiguration.getInstance().getTargetDataSource());
+        } catch (NamingException e) {
+            throw new IllegalArgumentException("Unable to initialize the history table for the entity " + entityClass.getSimpleName() + " due to a data source issue.", e);
+        }
+
+        return targetDataSource;
+    }
+
+    /**
+     * Create the history spool.
+     *
+     * The spool resolves the history table descriptors of the spooled
+     * history rows through this factory, loading the entity classes with
+     * the context class loader of the thread that created the factory.
+     *
+     * @param  configuration  the persistence history configuration.
+     *
+     * @return  the history spool, or null if unable to open the spool file.
+     */
+    private HistorySpool newSpool(final PersistenceHistoryConfiguration configuration) {
+
+        HistorySpool newSpool = null;
+        final ClassLoader classLoader = (Thread.currentThread().getContextClassLoader() != null) ?
+                Thread.currentThread().getContextClassLoader() :
+                HistoryTableFactoryImpl.class.getClassLoader();
+
+        try {
+            newSpool = HistorySpool.newInstance(configuration, new HistorySpool.DescriptorResolver() {
+                @Override
+                public HistoryTableDescriptor getDescriptor(final String entityClassName) throws Exception {
+                    return HistoryTableFactoryImpl.this.getDescriptor(Class.forName(entityClassName, true, classLoader));
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Unable to open the spool, history rows will not be spooled.", e);
+        }
+
+        return newSpool;
     }
 }
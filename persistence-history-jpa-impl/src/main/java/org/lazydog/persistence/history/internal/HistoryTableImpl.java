@@ -18,25 +18,23 @@
  */
 package org.lazydog.persistence.history.internal;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.EnumMap;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 import javax.sql.DataSource;
 import org.lazydog.persistence.history.HistoryTable;
 import org.lazydog.persistence.history.HistoryTableException;
+import org.lazydog.persistence.history.HistoryVersion;
+import org.lazydog.persistence.history.HistoryVersionHandler;
+import org.lazydog.persistence.history.HistoryVersionIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,96 +46,29 @@ import org.slf4j.LoggerFactory;
 public class HistoryTableImpl implements HistoryTable {
 
     private static final Logger logger = LoggerFactory.getLogger(HistoryTableImpl.class);
-    
-    private static enum COLUMN_META_DATA {
-        COLUMN_NAME,
-        COLUMN_SIZE,
-        DATA_TYPE,
-        DECIMAL_DIGITS,
-        TYPE_NAME,
-        UNSIGNED
-    };
 
     private static enum TABLE_META_DATA {
         TABLE_NAME
     };
 
-    private List<Map<COLUMN_META_DATA,Object>> columnDefinitions;
+    private TransactionHistoryBuffer buffer;
+    private HistoryTableDescriptor descriptor;
     private Object entity;
-    private String historyTableIdColumnName;
-    private String historyTableName;
-    private DataSource sourceDataSource;
-    private String tableIdColumnName;
-    private String tableName;
-    private DataSource targetDataSource;
+    private AsynchronousHistoryWriter writer;
 
     /**
      * Hide the constructor.
      * 
-     * @param  entity            the entity.
-     * @param  sourceDataSource  the source data source.
-     * @param  targetDataSource  the target data source.
-     * 
-     * @throws  IllegalArgumentException  if the entity is invalid.
+     * @param  entity      the entity.
+     * @param  descriptor  the history table descriptor.
+     * @param  buffer      the transaction history buffer, or null to not buffer on transactions.
+     * @param  writer      the asynchronous history writer, or null to write synchronously.
      */
-    private HistoryTableImpl(final Object entity, final DataSource sourceDataSource, final DataSource targetDataSource) throws IllegalArgumentException {
-        
-        try {
-
-            // Get the persistence history configuration.
-            PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
-
-            Context context = new InitialContext();
-            
-            // Lookup the source data source in JNDI if necessary.
-            if (sourceDataSource == null) {
-                this.sourceDataSource = (DataSource)context.lookup(configuration.getSourceDataSource());
-            } else {
-                this.sourceDataSource = sourceDataSource;
-            }
-            
-            // Lookup the target data source in JNDI if necessary.
-            if (targetDataSource == null) {
-                this.targetDataSource = (DataSource)context.lookup(configuration.getTargetDataSource());
-            } else {
-                this.targetDataSource = targetDataSource;
-            }
-            
-            // Set the table name, table ID column name, history table name, and history table ID column name.
-            this.tableName = configuration.getTableName(entity.getClass());
-            this.tableIdColumnName = configuration.getTableIdColumnName(entity.getClass());
-            this.historyTableName = configuration.getHistoryTableName(entity.getClass());
-            this.historyTableIdColumnName = configuration.getHistoryTableIdColumnName(entity.getClass());
-
-            // Check if the table name, table ID column name, history table name, or history table ID column name do not exist.
-            if (this.tableName == null ||
-                this.tableName.isEmpty() ||
-                this.tableIdColumnName == null ||
-                this.tableIdColumnName.isEmpty() ||
-                this.historyTableName == null ||
-                this.historyTableName.isEmpty() ||
-                this.historyTableIdColumnName == null ||
-                this.historyTableIdColumnName.isEmpty()) {
-                throw new IllegalArgumentException("The entity " + entity.getClass().getSimpleName() + " is invalid.");
-            }
-
-            // Set the column definitions.
-            this.columnDefinitions = getColumnDefinitions(this.sourceDataSource, this.tableName);
-
-            // Set the entity class.
-            this.entity = entity;
-
-            logger.info("The target data source is {}.", this.targetDataSource);
-            logger.info("The source data source is {}.", this.sourceDataSource);
-            logger.info("The table ID column name is {}.", this.tableIdColumnName);
-            logger.info("The table name is {}.", this.tableName);
-            logger.info("The history table ID column name is {}.", this.historyTableIdColumnName);
-            logger.info("The history table name is {}.", this.historyTableName);
-        } catch (NamingException e) {
-            throw new IllegalArgumentException("Unable to initialize the history table for the entity " + entity.getClass().getSimpleName() + " due to a data source issue.", e);
-        } catch (SQLException e) {
-            throw new IllegalArgumentException("Unable to initialize the history table for the entity " + entity.getClass().getSimpleName() + " due to a SQL issue.", e);
-        }
+    private HistoryTableImpl(final Object entity, final HistoryTableDescriptor descriptor, final TransactionHistoryBuffer buffer, final AsynchronousHistoryWriter writer) {
+        this.buffer = buffer;
+        this.descriptor = descriptor;
+        this.entity = entity;
+        this.writer = writer;
     }
     
     /**
@@ -149,13 +80,18 @@ public class HistoryTableImpl implements HistoryTable {
      *
      * @throws  SQLException  if unable to connect to the database.
      */
-    private static Connection connect(final DataSource dataSource) throws SQLException {
+    static Connection connect(final DataSource dataSource) throws SQLException {
         return dataSource.getConnection();
     }
 
     /**
      * Create the history table.
      *
+     * If the history table is partitioned, the partitions for the current
+     * period and the periods ahead are created, and the history table is
+     * created as a view of the partitions.  The history table, or each
+     * partition, is indexed for the point in time queries.
+     *
      * @throws  HistoryTableException  if unable to create the history table.
      */
     @Override
@@ -163,159 +99,76 @@ public class HistoryTableImpl implements HistoryTable {
 
         Connection connection = null;
         PreparedStatement preparedStatement = null;
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
 
         try {
 
-            // Connect to the target database.
-            connection = connect(this.targetDataSource);
-
-            // Create the history table.
-            String createTableSQL = this.createCreateTableSQL();
-            logger.trace("Create the history table {} with SQL: {}", this.historyTableName, createTableSQL);
-            preparedStatement = connection.prepareStatement(createTableSQL);
-            preparedStatement.executeUpdate();
-        }  catch(SQLException e) {
-            throw new HistoryTableException(this.entity, "Unable to create the history table " + this.historyTableName + ".", e);
-        }
-        finally {
-
-            // Disconnect from the database.
-            disconnect(connection, preparedStatement, null);
-        }
-    }
-
-    /**
-     * Create the create table SQL string.
-     *
-     * @return  the create table SQL string.
-     */
-    private String createCreateTableSQL() {
-
-        StringBuilder sqlStringBuilder = new StringBuilder();
-
-        // Loop through the column definitions.
-        for (Map<COLUMN_META_DATA,Object> columnDefinition : this.columnDefinitions) {
-
-            StringBuilder columnSqlStringBuilder = new StringBuilder();
-
-            columnSqlStringBuilder
-                    .append((String)columnDefinition.get(COLUMN_META_DATA.COLUMN_NAME))
-                    .append(" ")
-                    .append((String)columnDefinition.get(COLUMN_META_DATA.TYPE_NAME));
+            // Check if the history table is partitioned.
+            if (this.descriptor.getPartitioner() != null) {
 
-            // Check if the column data type is not a time or date.
-            if ((Integer)columnDefinition.get(COLUMN_META_DATA.DATA_TYPE) != Types.DATE &&
-                (Integer)columnDefinition.get(COLUMN_META_DATA.DATA_TYPE) != Types.TIME &&
-                (Integer)columnDefinition.get(COLUMN_META_DATA.DATA_TYPE) != Types.TIMESTAMP) {
-                columnSqlStringBuilder
-                        .append("(")
-                        .append((Integer)columnDefinition.get(COLUMN_META_DATA.COLUMN_SIZE));
+                // Create the partitions and the view.
+                this.descriptor.getPartitioner().createPartitions(new Date());
+            } else {
 
-                // Check if the column decimal digits is not zero.
-                if ((Integer)columnDefinition.get(COLUMN_META_DATA.DECIMAL_DIGITS) != 0) {
-                    columnSqlStringBuilder
-                            .append(",")
-                            .append((Integer)columnDefinition.get(COLUMN_META_DATA.DECIMAL_DIGITS));
-                }
+                // Connect to the target database.
+                connection = connect(this.descriptor.getTargetDataSource());
 
-                columnSqlStringBuilder
-                        .append(")")
-                        .append(((Boolean)columnDefinition.get(COLUMN_META_DATA.UNSIGNED)) ? " unsigned" : "");
-            }
+                // Create the history table.
+                String createTableSQL = this.descriptor.getCreateTableSQL();
+                logger.trace("Create the history table {} with SQL: {}", this.descriptor.getHistoryTableName(), createTableSQL);
+                preparedStatement = connection.prepareStatement(createTableSQL);
+                preparedStatement.executeUpdate();
+                preparedStatement.close();
 
-            // Check if this is the first column.
-            if (sqlStringBuilder.length() <= 0) {
-                sqlStringBuilder
-                        .append("create table ")
-                        .append(this.historyTableName)
-                        .append(" (")
-                        .append(this.historyTableIdColumnName)
-                        .append(" int(10) unsigned not null auto_increment, ");
-            } else {
-                sqlStringBuilder.append(", ");
+                // Create the index for the point in time queries.
+                String createIndexSQL = this.descriptor.createCreateIndexSQL(this.descriptor.getHistoryTableName());
+                logger.trace("Create the history table index with SQL: {}", createIndexSQL);
+                preparedStatement = connection.prepareStatement(createIndexSQL);
+                preparedStatement.executeUpdate();
             }
 
-            sqlStringBuilder.append(columnSqlStringBuilder);
+            succeeded = true;
+        }  catch(SQLException e) {
+            throw new HistoryTableException(this.entity, "Unable to create the history table " + this.descriptor.getHistoryTableName() + ".", e);
         }
+        finally {
 
-        // Check if the SQL string builder has data.
-        if (sqlStringBuilder.length() > 0) {
-            sqlStringBuilder
-                    .append(", action varchar(255) not null, action_by varchar(255) not null, action_time datetime not null, primary key (")
-                    .append(this.historyTableIdColumnName)
-                    .append("))");
+            // Disconnect from the database.
+            disconnect(connection, preparedStatement, null);
+            this.descriptor.getMetrics().recordCreate(startTime, succeeded);
         }
-
-        return sqlStringBuilder.toString();
     }
 
     /**
-     * Create the insert row SQL string.
+     * Create the history row.
      *
-     * @return  the insert row SQL string.
+     * @param  values      the column values in column order.
+     * @param  action      the action.
+     * @param  actionBy    the action by.
+     * @param  actionTime  the action time.
+     *
+     * @return  the history row.
+     *
+     * @throws  Exception  if unable to read the identifier of the entity.
      */
-    private String createInsertRowSQL() {
-
-        StringBuilder columnValuesStringBuilder = new StringBuilder();
-        StringBuilder sqlStringBuilder = new StringBuilder();
-
-        // Loop through the column definitions.
-        for (Map<COLUMN_META_DATA,Object> columnDefinition : this.columnDefinitions) {
-
-            // Check if this is the first column.
-            if (sqlStringBuilder.length() <= 0) {
-                sqlStringBuilder
-                        .append("insert into ")
-                        .append(this.historyTableName)
-                        .append(" (");
-                columnValuesStringBuilder
-                        .append(" values (?");
-            } else {
-                sqlStringBuilder
-                        .append(", ");
-                columnValuesStringBuilder
-                        .append(", ?");
-            }
+    private HistoryRow createHistoryRow(final Object[] values, final Action action, final String actionBy, final Date actionTime) throws Exception {
 
-            sqlStringBuilder.append((String)columnDefinition.get(COLUMN_META_DATA.COLUMN_NAME));
-        }
+        Object[] parameters = new Object[values.length + 3];
+        int parameterIndex = 0;
 
-        // Check if the SQL string builder has data.
-        if (sqlStringBuilder.length() > 0) {
-            sqlStringBuilder
-                    .append(", action, action_by, action_time)")
-                    .append(columnValuesStringBuilder)
-                    .append(", ?, ?, ?)");
-        }
+        // Set the parameters to the column values.
+        System.arraycopy(values, 0, parameters, 0, values.length);
+        parameterIndex += values.length;
 
-        return sqlStringBuilder.toString();
-    }
+        // Set the action, action by, and action time parameters.
+        parameters[parameterIndex++] = action.toString();
+        parameters[parameterIndex++] = actionBy;
+        parameters[parameterIndex++] = new Timestamp(actionTime.getTime());
 
-    /**
-     * Create the select row SQL string.
-     *
-     * @return  the select row SQL string.
-     */
-    private String createSelectRowSQL() {
-        return new StringBuilder()
-                .append("select * from ")
-                .append(this.tableName)
-                .append(" where ")
-                .append(this.tableIdColumnName)
-                .append(" = ?")
-                .toString();
-    }
-
-    /**
-     * Create the select all rows SQL string.
-     *
-     * @return  the select all rows SQL string.
-     */
-    private String createSelectRowsSQL() {
-        return new StringBuilder()
-                .append("select * from ")
-                .append(this.tableName)
-                .toString();
+        return (this.descriptor.isIdKept()) ?
+                HistoryRow.newInstance(this.descriptor, parameters, this.descriptor.getIdentifierAccessor().getId(this.entity)) :
+                HistoryRow.newInstance(this.descriptor, parameters);
     }
 
     /**
@@ -325,7 +178,7 @@ public class HistoryTableImpl implements HistoryTable {
      * @param  preparedStatement  the prepared statement.
      * @param  resultSet          the result set.
      */
-    private static void disconnect(final Connection connection, final PreparedStatement preparedStatement, final ResultSet resultSet) {
+    static void disconnect(final Connection connection, final PreparedStatement preparedStatement, final ResultSet resultSet) {
 
         try {
 
@@ -354,6 +207,47 @@ public class HistoryTableImpl implements HistoryTable {
         }
     }
 
+    /**
+     * Drop the history table.
+     *
+     * If the history table is partitioned, its partitions and view are
+     * dropped.
+     *
+     * @throws  HistoryTableException  if unable to drop the history table.
+     */
+    @Override
+    public void drop() throws HistoryTableException {
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+
+        try {
+
+            // Check if the history table is partitioned.
+            if (this.descriptor.getPartitioner() != null) {
+
+                // Drop the partitions and the view.
+                this.descriptor.getPartitioner().dropPartitions();
+            } else {
+
+                // Connect to the target database.
+                connection = connect(this.descriptor.getTargetDataSource());
+
+                // Drop the history table.
+                String dropTableSQL = "drop table " + this.descriptor.getHistoryTableName();
+                logger.trace("Drop the history table {} with SQL: {}", this.descriptor.getHistoryTableName(), dropTableSQL);
+                preparedStatement = connection.prepareStatement(dropTableSQL);
+                preparedStatement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new HistoryTableException(this.entity, "Unable to drop the history table " + this.descriptor.getHistoryTableName() + ".", e);
+        } finally {
+
+            // Disconnect from the database.
+            disconnect(connection, preparedStatement, null);
+        }
+    }
+
     /**
      * Check if the history table exists.
      *
@@ -371,21 +265,22 @@ public class HistoryTableImpl implements HistoryTable {
         try {
 
             // Connect to the target database.
-            connection = connect(this.targetDataSource);
+            connection = connect(this.descriptor.getTargetDataSource());
 
             // Get the table meta data for the history table.
-            resultSet = connection.getMetaData().getTables(null, null, this.historyTableName, null);
+            String historyTableName = this.descriptor.getDialect().getStoredIdentifier(connection.getMetaData(), this.descriptor.getHistoryTableName());
+            resultSet = connection.getMetaData().getTables(null, null, historyTableName, null);
 
             // Check if there is a result set.
             if (resultSet.next()) {
 
                 // Check if the result set is for the history table.
-                if (resultSet.getString(TABLE_META_DATA.TABLE_NAME.toString()).equals(this.historyTableName)) {
+                if (resultSet.getString(TABLE_META_DATA.TABLE_NAME.toString()).equals(historyTableName)) {
                     exists = true;
                 }
             }
         } catch (SQLException e) {
-            throw new HistoryTableException(this.entity, "Unable to check if the history table " + this.historyTableName + " exists.", e);
+            throw new HistoryTableException(this.entity, "Unable to check if the history table " + this.descriptor.getHistoryTableName() + " exists.", e);
         } finally {
 
             // Disconnect from the database.
@@ -396,162 +291,215 @@ public class HistoryTableImpl implements HistoryTable {
     }
 
     /**
-     * Get the column definitions.
+     * Find the version of the entity as of the time.
      *
-     * @param  dataSource  the data source.
-     * @param  tableName   the table name.
-     * 
-     * @return  the column definitions.
+     * A deleted entity has no version after its deletion.
      *
-     * @throws  SQLException  if unable to get the column definitions.
+     * @param  time  the time.
+     *
+     * @return  the last version with an action time at or before the time, or null if the entity did not exist at the time.
+     *
+     * @throws  HistoryTableException  if unable to find the version.
      */
-    private static List<Map<COLUMN_META_DATA,Object>> getColumnDefinitions(final DataSource dataSource, final String tableName) throws SQLException {
+    @Override
+    public HistoryVersion findAsOf(final Date time) throws HistoryTableException {
 
-        List<Map<COLUMN_META_DATA,Object>> columnDefinitions = new ArrayList<Map<COLUMN_META_DATA,Object>>();
-        Connection connection = null;
-        ResultSet resultSet = null;
+        HistoryVersion version = null;
 
-        try {
+        // Check if the history table has delta storage.
+        if (this.descriptor.isDelta()) {
 
-            // Connect to the database.
-            connection = connect(dataSource);
+            HistoryDeltaEncoder.State state = this.findLast(this.descriptor.getSelectVersionAsOfSQL(), time);
 
-            // Get the column meta data for the table.
-            // TODO: store this information in a dialect class.
-            String actualTableName = tableName;
-            if (connection.getMetaData().storesLowerCaseIdentifiers()) {
-                actualTableName = tableName.toLowerCase();
-            }
-            if (connection.getMetaData().storesUpperCaseIdentifiers()) {
-                actualTableName = tableName.toUpperCase();
+            // Check if there is a version and the entity was not deleted.
+            if (state != null && !Action.DELETE.toString().equals(state.getAction())) {
+                version = HistoryVersionIteratorImpl.newVersion(this.descriptor.getColumnNames(), state.getValues(), state.getHistoryId(), state.getAction(), state.getActionBy(), state.getActionTime());
             }
-            resultSet = connection.getMetaData().getColumns(null, null, actualTableName, null);
-
-            // Check if there is column meta data.
-            while (resultSet.next()) {
-
-                // Get the column meta data.
-                String columnName = resultSet.getString(COLUMN_META_DATA.COLUMN_NAME.toString());
-                Integer columnSize = resultSet.getInt(COLUMN_META_DATA.COLUMN_SIZE.toString());
-                Integer dataType = resultSet.getInt(COLUMN_META_DATA.DATA_TYPE.toString());
-                Integer decimalDigits = resultSet.getInt(COLUMN_META_DATA.DECIMAL_DIGITS.toString());
-                String typeName = resultSet.getString(COLUMN_META_DATA.TYPE_NAME.toString());
-                Boolean unsigned = (typeName.indexOf(" " + COLUMN_META_DATA.UNSIGNED.toString()) != -1);
-                typeName = typeName.replace(" " + COLUMN_META_DATA.UNSIGNED.toString(), "");
-
-                logger.debug("columnName is {}", columnName);
-                logger.debug("columnSize is {}", columnSize);
-                logger.debug("dataType is {}", dataType);
-                logger.debug("decimalDigits is {}", decimalDigits);
-                logger.debug("typeName is {}", typeName);
-                logger.debug("unsigned is {}", unsigned);
-                
-                // Put the column meta data in the definition.
-                Map<COLUMN_META_DATA,Object> columnDefinition = new EnumMap<COLUMN_META_DATA,Object>(COLUMN_META_DATA.class);
-                columnDefinition.put(COLUMN_META_DATA.COLUMN_NAME, columnName);
-                columnDefinition.put(COLUMN_META_DATA.COLUMN_SIZE, columnSize);
-                columnDefinition.put(COLUMN_META_DATA.DATA_TYPE, dataType);
-                columnDefinition.put(COLUMN_META_DATA.DECIMAL_DIGITS, decimalDigits);
-                columnDefinition.put(COLUMN_META_DATA.TYPE_NAME, typeName);
-                columnDefinition.put(COLUMN_META_DATA.UNSIGNED, unsigned);
-
-                // Add the column definition to the list.
-                columnDefinitions.add(columnDefinition);
+        } else {
+
+            HistoryVersionIterator iterator = this.findVersions(this.descriptor.getSelectVersionAsOfSQL(), 1, null, time);
+
+            try {
+
+                // Check if there is a version and the entity was not deleted.
+                if (iterator.hasNext()) {
+                    version = iterator.next();
+                    version = (version.getAction() == Action.DELETE) ? null : version;
+                }
+            } finally {
+                iterator.close();
             }
+        }
+
+        return version;
+    }
+
+    /**
+     * Find the last version of the entity with the select version SQL string.
+     *
+     * The history rows are read back to the last full history row, so the
+     * last version holds all column values.  The version cannot be found if
+     * the last full history row was purged.
+     *
+     * @param  selectVersionSQL  the select version SQL string, in descending version order.
+     * @param  time              the time.
+     *
+     * @return  the last version, or null if there is no version.
+     *
+     * @throws  HistoryTableException  if unable to find the version.
+     */
+    private HistoryDeltaEncoder.State findLast(final String selectVersionSQL, final Date time) throws HistoryTableException {
+
+        HistoryDeltaEncoder.State state;
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+
+        try {
+
+            // Connect to the target database.
+            connection = connect(this.descriptor.getTargetDataSource());
+
+            // Select the history rows back to the last full history row.
+            logger.trace("Find the last version with SQL: {}", selectVersionSQL);
+            preparedStatement = connection.prepareStatement(selectVersionSQL);
+            Object[] id = this.descriptor.getIdentifierAccessor().getId(this.entity);
+            this.descriptor.getIdentifierAccessor().bind(preparedStatement, id);
+            preparedStatement.setTimestamp(id.length + 1, new Timestamp(time.getTime()));
+            resultSet = preparedStatement.executeQuery();
+            state = HistoryDeltaEncoder.readLast(this.descriptor, resultSet);
+        } catch (Exception e) {
+            throw new HistoryTableException(this.entity, "Unable to find the versions in the history table " + this.descriptor.getHistoryTableName() + ".", e);
         } finally {
 
             // Disconnect from the database.
-            disconnect(connection, null, resultSet);
+            disconnect(connection, preparedStatement, resultSet);
         }
 
-        return columnDefinitions;
+        // Check if the full history row of the version was purged.
+        if (state != null && !state.hasBase()) {
+            throw new HistoryTableException(this.entity, "Unable to find the full history row of the version in the history table " + this.descriptor.getHistoryTableName() + ".");
+        }
+
+        return state;
     }
 
     /**
-     * Get the identifier for the entity.
+     * Find the versions of the entity in the time range, in action time order.
      *
-     * @return  the identifier for the entity.
+     * @param  from  the start of the time range, inclusive.
+     * @param  to    the end of the time range, exclusive.
      *
-     * @throws  IllegalArgumentException  if the entity is invalid.
+     * @return  the versions, read as the iterator advances.
+     *
+     * @throws  HistoryTableException  if unable to find the versions.
      */
-    private Integer getId() throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+    @Override
+    public HistoryVersionIterator findVersions(final Date from, final Date to) throws HistoryTableException {
 
-        // Get the method name.
-        String methodName = new StringBuilder()
-                .append("get")
-                .append(this.tableIdColumnName.substring(0,1).toUpperCase())
-                .append(this.tableIdColumnName.substring(1))
-                .toString();
-        logger.trace("The getId method name is {} for the entity {}.", methodName, this.entity.getClass().getSimpleName());
+        Object[] state = null;
 
-        // Get the method to get the identifier.
-        Method method = this.entity.getClass().getMethod(methodName.toString(), new Class[0]);
+        // Check if the history table has delta storage.
+        if (this.descriptor.isDelta()) {
 
-        // Invoke the method to get the identifier.
-        return (Integer)method.invoke(this.entity, new Object[0]);
+            // Start from the last version before the time range.
+            HistoryDeltaEncoder.State previous = this.findLast(this.descriptor.getSelectVersionBeforeSQL(), from);
+            state = (previous != null) ? previous.getValues() : null;
+        }
+
+        return this.findVersions(this.descriptor.getSelectVersionsSQL(), 0, state, from, to);
     }
 
     /**
-     * Get the row from the source table.
+     * Find the versions of the entity with the select versions SQL string.
      *
-     * @param  id  the row identifier.
+     * The entity identifier is bound first, followed by the times.
      *
-     * @return  the row.
+     * @param  selectVersionsSQL  the select versions SQL string.
+     * @param  maxRows            the maximum number of versions, or zero for no limit.
+     * @param  state              the column values before the first version, or null if there are none.
+     * @param  times              the times.
      *
-     * @throws  SQLException  if unable to get the row.
+     * @return  the versions, read as the iterator advances.
+     *
+     * @throws  HistoryTableException  if unable to find the versions.
      */
-    private Map<String,Object> getRow(final Integer id) throws SQLException {
+    private HistoryVersionIterator findVersions(final String selectVersionsSQL, final int maxRows, final Object[] state, final Date... times) throws HistoryTableException {
 
-        Map<String,Object> row = new HashMap<String,Object>();
         Connection connection = null;
         PreparedStatement preparedStatement = null;
         ResultSet resultSet = null;
+        HistoryVersionIterator iterator = null;
 
         try {
 
-            // Connect to the source database.
-            connection = connect(this.sourceDataSource);
-
-            // Get the row.
-            String selectRowSQL = this.createSelectRowSQL();
-            logger.trace("Get the row with SQL: {}", selectRowSQL);
-            preparedStatement = connection.prepareStatement(selectRowSQL);
-            preparedStatement.setInt(1, id);
+            // Connect to the target database.
+            connection = connect(this.descriptor.getTargetDataSource());
+
+            // Select the versions.
+            logger.trace("Find the versions with SQL: {}", selectVersionsSQL);
+            preparedStatement = connection.prepareStatement(selectVersionsSQL);
+            preparedStatement.setMaxRows(maxRows);
+            Object[] id = this.descriptor.getIdentifierAccessor().getId(this.entity);
+            this.descriptor.getIdentifierAccessor().bind(preparedStatement, id);
+            for (int index = 0; index < times.length; index++) {
+                preparedStatement.setTimestamp(id.length + index + 1, new Timestamp(times[index].getTime()));
+            }
             resultSet = preparedStatement.executeQuery();
 
-            // Check if there is a result set.
-            if (resultSet.next()) {
+            // Hand the open result set to the iterator.
+            iterator = HistoryVersionIteratorImpl.newInstance(this.entity, this.descriptor, connection, preparedStatement, resultSet, state);
+        } catch (Exception e) {
+            throw new HistoryTableException(this.entity, "Unable to find the versions in the history table " + this.descriptor.getHistoryTableName() + ".", e);
+        } finally {
 
-                // Loop through the column definitions.
-                for (Map<COLUMN_META_DATA,Object> columnDefinition : this.columnDefinitions) {
+            // Disconnect from the database if the iterator was not created.
+            if (iterator == null) {
+                disconnect(connection, preparedStatement, resultSet);
+            }
+        }
 
-                    // Get the column name and data.
-                    String columnName = (String)columnDefinition.get(COLUMN_META_DATA.COLUMN_NAME);
-                    Object data = resultSet.getObject(columnName);
+        return iterator;
+    }
 
-                    // Add the column name and data to the row.
-                    row.put(columnName, data);
-                }
-            }
-        } finally {
+    /**
+     * Get the column values for the entity.
+     *
+     * The column values are read from the entity if the capture mode is
+     * entity, otherwise they are selected from the source table.
+     *
+     * @return  the column values in column order.
+     *
+     * @throws  Exception  if unable to get the column values.
+     */
+    private Object[] getValues() throws Exception {
 
-            // Disconnect from the database.
-            disconnect(connection, preparedStatement, resultSet);
+        Object[] values;
+
+        // Check if the column values are captured from the entity.
+        if (this.descriptor.getEntityAccessor() != null) {
+            values = this.descriptor.getEntityAccessor().getValues(this.entity);
+        } else {
+            long startTime = System.nanoTime();
+            values = this.getRow(this.descriptor.getIdentifierAccessor().getId(this.entity));
+            this.descriptor.getMetrics().recordSourceRead(startTime);
         }
 
-        return row;
+        return values;
     }
 
     /**
-     * Get the rows from the source table.
+     * Get the row from the source table.
      *
-     * @return  the rows.
+     * @param  id  the row identifier values in identifier column order.
      *
-     * @throws  SQLException  if unable to get the rows.
+     * @return  the column values of the row in column order, or null values if there is no row.
+     *
+     * @throws  SQLException  if unable to get the row.
      */
-    private List<Map<String,Object>> getRows() throws SQLException {
+    private Object[] getRow(final Object[] id) throws SQLException {
 
-        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        Object[] row;
         Connection connection = null;
         PreparedStatement preparedStatement = null;
         ResultSet resultSet = null;
@@ -559,33 +507,20 @@ public class HistoryTableImpl implements HistoryTable {
         try {
 
             // Connect to the source database.
-            connection = connect(this.sourceDataSource);
+            connection = connect(this.descriptor.getSourceDataSource());
 
-            // Get the rows.
-            String selectRowsSQL = this.createSelectRowsSQL();
-            logger.trace("Get the rows with SQL: {}", selectRowsSQL);
-            preparedStatement = connection.prepareStatement(selectRowsSQL);
+            // Get the row.
+            String selectRowSQL = this.descriptor.getSelectRowSQL();
+            logger.trace("Get the row with SQL: {}", selectRowSQL);
+            preparedStatement = connection.prepareStatement(selectRowSQL);
+            this.descriptor.getIdentifierAccessor().bind(preparedStatement, id);
             resultSet = preparedStatement.executeQuery();
 
-            // Loop through the result sets.
-            while (resultSet.next()) {
-
-                // Initialize.
-                Map<String,Object> row = new HashMap<String,Object>();
-
-                // Loop through the column definitions.
-                for (Map<COLUMN_META_DATA,Object> columnDefinition : this.columnDefinitions) {
-
-                    // Get the column name and data.
-                    String columnName = (String)columnDefinition.get(COLUMN_META_DATA.COLUMN_NAME);
-                    Object data = resultSet.getObject(columnName);
-
-                    // Add the column name and data to the row.
-                    row.put(columnName, data);
-                }
-
-                // Add the row to the list.
-                rows.add(row);
+            // Check if there is a result set.
+            if (resultSet.next()) {
+                row = this.descriptor.getRowCopier().read(resultSet);
+            } else {
+                row = new Object[this.descriptor.getRowCopier().getColumnCount()];
             }
         } finally {
 
@@ -593,12 +528,19 @@ public class HistoryTableImpl implements HistoryTable {
             disconnect(connection, preparedStatement, resultSet);
         }
 
-        return rows;
+        return row;
     }
 
     /**
      * Insert a row in the history table.
      * 
+     * The row is buffered on the active transaction if there is a transaction
+     * buffer, or handed to the asynchronous writer if there is one and it
+     * accepts the row, otherwise the row is inserted before this method
+     * returns.  The asynchronous writer queues the row of a JTA transaction
+     * only after the transaction commits.  If unchanged updates are skipped, an update with the same
+     * column values as the last captured row of the entity is not written.
+     * 
      * @param  action      the action.
      * @param  actionBy    the action by.
      * @param  actionTime  the action time.
@@ -608,43 +550,180 @@ public class HistoryTableImpl implements HistoryTable {
     @Override
     public void insert(final Action action, final String actionBy, final Date actionTime) throws HistoryTableException {
 
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
+        UnchangedUpdateFilter unchangedFilter = this.descriptor.getUnchangedFilter();
+        HistoryRow row = null;
 
         try {
 
-            // Get the row from the source table.
-            Map<String,Object> row = this.getRow(this.getId());
-
-            // Connect to the target database.
-            connection = connect(this.targetDataSource);
+            // Create the history row from the entity or from the row in the source table.
+            row = this.createHistoryRow(this.getValues(), action, actionBy, actionTime);
 
-            // Initialize the insert statement.
-            int parameterIndex = 1;
-            String insertRowSQL = this.createInsertRowSQL();
-            logger.trace("Insert with SQL: {}", insertRowSQL);
-            preparedStatement = connection.prepareStatement(insertRowSQL);
+            // Check if the history row is not an unchanged update.
+            if (unchangedFilter == null || unchangedFilter.accept(row)) {
 
-            // Loop through the column definitions.
-            for (Map<COLUMN_META_DATA,Object> columnDefinition: this.columnDefinitions) {
+                // Check if neither the transaction buffer nor the asynchronous writer accept the history row.
+                if ((this.buffer == null || !this.buffer.write(row)) &&
+                    (this.writer == null || !this.writer.write(row))) {
 
-                // Set the parameters to the data from the source table.
-                preparedStatement.setObject(parameterIndex++, row.get((String)columnDefinition.get(COLUMN_META_DATA.COLUMN_NAME)));
+                    // Insert the row in the history table.
+                    insert(Collections.singletonList(row));
+                }
             }
 
-            // Set the action, action by, and action time parameters.
-            preparedStatement.setObject(parameterIndex++, action.toString());
-            preparedStatement.setObject(parameterIndex++, actionBy);
-            preparedStatement.setObject(parameterIndex++, actionTime);
-
-            // Insert the row in the history table.
-            preparedStatement.executeUpdate();
+            succeeded = true;
         } catch (Exception e) {
-            throw new HistoryTableException(this.entity, "Unable to insert a row in the history table " + this.historyTableName + ".", e);
+
+            // Forget the captured column values if the history row was not written.
+            if (unchangedFilter != null && row != null) {
+                unchangedFilter.invalidate(row);
+            }
+
+            throw new HistoryTableException(this.entity, "Unable to insert a row in the history table " + this.descriptor.getHistoryTableName() + ".", e);
         } finally {
+            this.descriptor.getMetrics().recordInsert(startTime, succeeded);
+        }
+    }
 
-            // Disconnect from the database.
-            disconnect(connection, preparedStatement, null);
+    /**
+     * Insert the history rows in their history tables.
+     *
+     * If there is no history spool, the history rows are written before
+     * this method returns.  Otherwise the history rows are appended to the
+     * spool if every history row is spooled, or if earlier history rows are
+     * waiting in the spool, so they are replayed in order.  The remaining
+     * history rows are written, and appended to the spool if they cannot be
+     * written.
+     *
+     * @param  rows  the history rows.
+     *
+     * @throws  SQLException  if unable to write the history rows and unable to spool them.
+     */
+    static void insert(final List<HistoryRow> rows) throws SQLException {
+
+        HistorySpool spool = (rows.isEmpty()) ? null : rows.get(0).getDescriptor().getSpool();
+        boolean spooled = false;
+
+        // Check if the history rows are spooled ahead of the history tables.
+        if (spool != null && (spool.getMode() == PersistenceHistoryConfiguration.SpoolMode.ALWAYS || !spool.isEmpty())) {
+            spooled = spool.append(rows);
+        }
+
+        // Check if the history rows are not spooled.
+        if (!spooled) {
+
+            try {
+                write(rows);
+            } catch (SQLException e) {
+
+                // Spool the history rows if they cannot be written.
+                if (spool == null || !spool.append(rows)) {
+                    throw e;
+                }
+
+                logger.warn("Unable to write {} history rows, spooled them for replay.", rows.size(), e);
+            }
+        }
+    }
+
+    /**
+     * Insert the history rows of one history table, the rows that fill
+     * multiple row statements first, then the remaining rows one at a time.
+     *
+     * @param  connection        the target connection.
+     * @param  pooledConnection  the pooled connection, or null if the connection is not pooled.
+     * @param  insertRowsSQL     the insert rows SQL string.
+     * @param  insertRowSQL      the insert row SQL string.
+     * @param  rowsPerStatement  the number of rows in the values clause of the insert rows SQL.
+     * @param  rows              the history rows.
+     *
+     * @throws  SQLException  if unable to insert the history rows.
+     */
+    private static void insert(final Connection connection, final TargetConnectionPool.PooledConnection pooledConnection, final String insertRowsSQL, final String insertRowSQL, final int rowsPerStatement, final List<HistoryRow> rows) throws SQLException {
+        int multipleRowCount = (rowsPerStatement > 1) ? rows.size() - rows.size() % rowsPerStatement : 0;
+        insert(connection, pooledConnection, insertRowsSQL, rowsPerStatement, rows.subList(0, multipleRowCount));
+        insert(connection, pooledConnection, insertRowSQL, 1, rows.subList(multipleRowCount, rows.size()));
+    }
+
+    /**
+     * Insert the history rows of one history table with one batch.
+     *
+     * The insert statement is taken from the cache of the pooled connection
+     * if there is one, otherwise it is prepared and closed.
+     *
+     * @param  connection        the target connection.
+     * @param  pooledConnection  the pooled connection, or null if the connection is not pooled.
+     * @param  insertRowsSQL     the insert rows SQL string.
+     * @param  rowsPerStatement  the number of rows in the values clause of the insert rows SQL.
+     * @param  rows              the history rows, a multiple of the rows per statement.
+     *
+     * @throws  SQLException  if unable to insert the history rows.
+     */
+    private static void insert(final Connection connection, final TargetConnectionPool.PooledConnection pooledConnection, final String insertRowsSQL, final int rowsPerStatement, final List<HistoryRow> rows) throws SQLException {
+
+        // Check if there are history rows.
+        if (!rows.isEmpty()) {
+
+            PreparedStatement preparedStatement = null;
+
+            try {
+
+                // Initialize the insert statement batch.
+                logger.trace("Insert {} rows with SQL: {}", rows.size(), insertRowsSQL);
+                preparedStatement = (pooledConnection != null) ?
+                        pooledConnection.prepareStatement(insertRowsSQL) :
+                        connection.prepareStatement(insertRowsSQL);
+                int parametersPerRow = rows.get(0).getDescriptor().getParametersPerRow();
+                int rowIndex = 0;
+
+                // Loop through the history rows.
+                for (HistoryRow row : rows) {
+                    row.bind(preparedStatement, rowIndex * parametersPerRow);
+                    rowIndex++;
+
+                    // Check if the statement is complete.
+                    if (rowIndex == rowsPerStatement) {
+                        preparedStatement.addBatch();
+                        rowIndex = 0;
+                    }
+                }
+
+                // Insert the rows in the history table.
+                preparedStatement.executeBatch();
+            } finally {
+
+                // Close the prepared statement unless it is cached.
+                if (pooledConnection == null) {
+                    disconnect(null, preparedStatement, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate the cached state of the entities of the history rows.
+     *
+     * Called when the history rows were not written, so the last column
+     * values of the entities are read from the history tables again and
+     * their next updates are not skipped as unchanged.
+     *
+     * @param  rows  the history rows.
+     */
+    static void invalidate(final List<HistoryRow> rows) {
+
+        // Loop through the history rows.
+        for (HistoryRow row : rows) {
+
+            // Forget the encoded column values.
+            if (row.getDescriptor().isDelta()) {
+                row.getDescriptor().getDeltaEncoder().invalidate(Collections.singletonList(row));
+            }
+
+            // Forget the captured column values.
+            if (row.getDescriptor().getUnchangedFilter() != null) {
+                row.getDescriptor().getUnchangedFilter().invalidate(row);
+            }
         }
     }
 
@@ -658,7 +737,7 @@ public class HistoryTableImpl implements HistoryTable {
      * @throws  IllegalArgumentException  if the entity is invalid.
      */
     protected static HistoryTable newInstance(final Object entity) throws IllegalArgumentException {
-        return new HistoryTableImpl(entity, null, null);
+        return newInstance(entity, (DataSource)null, (DataSource)null);
     }
     
     /**
@@ -673,7 +752,33 @@ public class HistoryTableImpl implements HistoryTable {
      * @throws  IllegalArgumentException  if the entity is invalid.
      */
     protected static HistoryTable newInstance(final Object entity, final DataSource sourceDataSource, final DataSource targetDataSource) throws IllegalArgumentException {
-        return new HistoryTableImpl(entity, sourceDataSource, targetDataSource);
+        return newInstance(entity, HistoryTableDescriptor.newInstance(entity.getClass(), sourceDataSource, targetDataSource));
+    }
+    
+    /**
+     * Create a new instance of the history table class.
+     *
+     * @param  entity      the entity.
+     * @param  descriptor  the history table descriptor for the entity class.
+     *
+     * @return  a new instance of the history table class.
+     */
+    protected static HistoryTable newInstance(final Object entity, final HistoryTableDescriptor descriptor) {
+        return newInstance(entity, descriptor, null, null);
+    }
+    
+    /**
+     * Create a new instance of the history table class.
+     *
+     * @param  entity      the entity.
+     * @param  descriptor  the history table descriptor for the entity class.
+     * @param  buffer      the transaction history buffer, or null to not buffer on transactions.
+     * @param  writer      the asynchronous history writer, or null to write synchronously.
+     *
+     * @return  a new instance of the history table class.
+     */
+    protected static HistoryTable newInstance(final Object entity, final HistoryTableDescriptor descriptor, final TransactionHistoryBuffer buffer, final AsynchronousHistoryWriter writer) {
+        return new HistoryTableImpl(entity, descriptor, buffer, writer);
     }
     
     /**
@@ -687,48 +792,152 @@ public class HistoryTableImpl implements HistoryTable {
     @Override
     public void populate(final String actionBy, final Date actionTime) throws HistoryTableException {
 
-        Connection connection = null;
-        PreparedStatement preparedStatement = null;
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
 
         try {
+            HistoryTablePopulator.newInstance(this.descriptor, this.buffer != null && this.buffer.isTransactionActive()).populate(actionBy, actionTime);
+            succeeded = true;
+        } catch (SQLException e) {
+            throw new HistoryTableException(this.entity, "Unable to populate the history table " + this.descriptor.getHistoryTableName() + ".", e);
+        } finally {
+            this.descriptor.getMetrics().recordPopulate(startTime, succeeded);
+        }
+    }
 
-            // Connect to the target database.
-            connection = connect(this.targetDataSource);
+    /**
+     * Stream a snapshot of the history table as of the time.
+     *
+     * @param  time     the time.
+     * @param  handler  the history version handler.
+     *
+     * @return  the number of versions handled.
+     *
+     * @throws  HistoryTableException  if unable to read the snapshot.
+     */
+    @Override
+    public long snapshot(final Date time, final HistoryVersionHandler handler) throws HistoryTableException {
 
-            // Initialize the insert statement batch.
-            String insertRowSQL = this.createInsertRowSQL();
-            logger.trace("Insert with SQL: {}", insertRowSQL);
-            preparedStatement = connection.prepareStatement(insertRowSQL);
+        long count;
 
-            // Loop through the rows from the source table.
-            for (Map<String,Object> row : this.getRows()) {
+        try {
+            count = HistoryTableSnapshot.newInstance(this.entity, this.descriptor).snapshot(time, handler);
+        } catch (SQLException e) {
+            throw new HistoryTableException(this.entity, "Unable to read a snapshot of the history table " + this.descriptor.getHistoryTableName() + ".", e);
+        }
 
-                // Initialize the parameter index.
-                int parameterIndex = 1;
+        return count;
+    }
 
-                // Loop through the column definitions.
-                for (Map<COLUMN_META_DATA,Object> columnDefinition: this.columnDefinitions) {
+    /**
+     * Write the history rows to their history tables.
+     *
+     * The history rows are grouped by target data source and history table.
+     * Each target data source is written on one connection, and each history
+     * table is written with one batch of multiple row inserts, as many rows
+     * per statement as the dialect allows, followed by one batch of single
+     * row inserts for the remaining rows.  The update history rows of a
+     * history table with delta storage are encoded as delta history rows
+     * just before they are written.
+     *
+     * If the history tables have a target connection pool and there is no
+     * JTA transaction, the history rows are written on a pooled connection
+     * with its cached prepared statements, and a connection that fails is
+     * closed rather than reused.
+     *
+     * @param  rows  the history rows.
+     *
+     * @throws  SQLException  if unable to write the history rows.
+     */
+    static void write(final List<HistoryRow> rows) throws SQLException {
 
-                    // Set the parameters to the data from the source table.
-                    preparedStatement.setObject(parameterIndex++, row.get((String)columnDefinition.get(COLUMN_META_DATA.COLUMN_NAME)));
-                }
+        // Group the history rows by target data source and history table.
+        Map<DataSource,Map<HistoryTableDescriptor,List<HistoryRow>>> dataSourceRows = new LinkedHashMap<DataSource,Map<HistoryTableDescriptor,List<HistoryRow>>>();
+        for (HistoryRow row : rows) {
 
-                // Set the action, action by, and action time parameters.
-                preparedStatement.setObject(parameterIndex++, Action.INITIAL.toString());
-                preparedStatement.setObject(parameterIndex++, actionBy);
-                preparedStatement.setObject(parameterIndex++, actionTime);
-                
-                preparedStatement.addBatch();
+            Map<HistoryTableDescriptor,List<HistoryRow>> tableRows = dataSourceRows.get(row.getDescriptor().getTargetDataSource());
+            if (tableRows == null) {
+                tableRows = new LinkedHashMap<HistoryTableDescriptor,List<HistoryRow>>();
+                dataSourceRows.put(row.getDescriptor().getTargetDataSource(), tableRows);
             }
 
-            // Insert the rows in the history table.
-            preparedStatement.executeBatch();
-        } catch (SQLException e) {
-            throw new HistoryTableException(this.entity, "Unable to populate the history table " + this.historyTableName + ".", e);
-        } finally {
+            List<HistoryRow> groupRows = tableRows.get(row.getDescriptor());
+            if (groupRows == null) {
+                groupRows = new ArrayList<HistoryRow>();
+                tableRows.put(row.getDescriptor(), groupRows);
+            }
 
-            // Disconnect from the database.
-            disconnect(connection, preparedStatement, null);
+            groupRows.add(row);
+        }
+
+        // Loop through the target data sources.
+        for (Map.Entry<DataSource,Map<HistoryTableDescriptor,List<HistoryRow>>> dataSourceEntry : dataSourceRows.entrySet()) {
+
+            TargetConnectionPool connectionPool = dataSourceEntry.getValue().keySet().iterator().next().getConnectionPool();
+            TargetConnectionPool.PooledConnection pooledConnection = null;
+            Connection connection = null;
+            boolean healthy = false;
+
+            try {
+
+                // Connect to the target database, or borrow a pooled connection outside JTA transactions.
+                if (connectionPool != null && !connectionPool.isTransactionActive()) {
+                    pooledConnection = connectionPool.borrow();
+                    connection = pooledConnection.getConnection();
+                } else {
+                    connection = connect(dataSourceEntry.getKey());
+                }
+
+                // Loop through the history tables.
+                for (Map.Entry<HistoryTableDescriptor,List<HistoryRow>> tableEntry : dataSourceEntry.getValue().entrySet()) {
+
+                    HistoryTableDescriptor descriptor = tableEntry.getKey();
+                    List<HistoryRow> tableRows = tableEntry.getValue();
+                    long startTime = System.nanoTime();
+                    boolean succeeded = false;
+
+                    try {
+
+                        // Encode the update history rows as delta history rows if the history table has delta storage.
+                        if (descriptor.isDelta()) {
+                            tableRows = descriptor.getDeltaEncoder().encode(connection, tableRows);
+                        }
+
+                        HistoryTablePartitioner partitioner = descriptor.getPartitioner();
+
+                        // Check if the history table is partitioned.
+                        if (partitioner != null) {
+
+                            // Loop through the partitions.
+                            for (Map.Entry<String,List<HistoryRow>> partitionEntry : partitioner.partition(tableRows).entrySet()) {
+                                insert(connection, pooledConnection, partitioner.getInsertRowsSQL(partitionEntry.getKey()), partitioner.getInsertRowSQL(partitionEntry.getKey()), descriptor.getInsertRowsPerStatement(), partitionEntry.getValue());
+                            }
+                        } else {
+                            insert(connection, pooledConnection, descriptor.getInsertRowsSQL(), descriptor.getInsertRowSQL(), descriptor.getInsertRowsPerStatement(), tableRows);
+                        }
+
+                        succeeded = true;
+                    } finally {
+
+                        // Forget the encoded column values if the history rows were not written.
+                        if (!succeeded && descriptor.isDelta()) {
+                            descriptor.getDeltaEncoder().invalidate(tableRows);
+                        }
+
+                        descriptor.getMetrics().recordTargetWrite(startTime, tableRows.size(), succeeded);
+                    }
+                }
+
+                healthy = true;
+            } finally {
+
+                // Give back the pooled connection, or disconnect from the database.
+                if (pooledConnection != null) {
+                    connectionPool.giveBack(pooledConnection, healthy);
+                } else {
+                    disconnect(connection, null, null);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,428 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History table metrics.
+ *
+ * The metrics of one history table, exposed as a platform MBean named
+ * org.lazydog.persistence.history:type=HistoryTable,entity=<entity class name>.
+ * The counters and histograms are striped by thread, so recording a metric
+ * never locks.  If the metrics are disabled, recording a metric does nothing.
+ *
+ * @author  Ron Rickard
+ */
+public final class HistoryTableMetrics implements HistoryTableMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTableMetrics.class);
+    private static final String DOMAIN = "org.lazydog.persistence.history";
+
+    private final StripedCounter createCount = StripedCounter.newInstance();
+    private final StripedCounter createFailureCount = StripedCounter.newInstance();
+    private final Histogram createLatency = Histogram.newInstance();
+    private final StripedCounter droppedCount = StripedCounter.newInstance();
+    private final boolean enabled;
+    private final Class<?> entityClass;
+    private final StripedCounter insertFailureCount = StripedCounter.newInstance();
+    private final Histogram insertLatency = Histogram.newInstance();
+    private final StripedCounter populateCount = StripedCounter.newInstance();
+    private final StripedCounter populateFailureCount = StripedCounter.newInstance();
+    private final Histogram populateLatency = Histogram.newInstance();
+    private final StripedCounter purgeCount = StripedCounter.newInstance();
+    private final StripedCounter purgeFailureCount = StripedCounter.newInstance();
+    private final Histogram purgeLatency = Histogram.newInstance();
+    private final Histogram rowsPerBatch = Histogram.newInstance();
+    private final StripedCounter sourceReadTime = StripedCounter.newInstance();
+    private final StripedCounter targetWriteTime = StripedCounter.newInstance();
+    private final StripedCounter unchangedCacheHitCount = StripedCounter.newInstance();
+    private final StripedCounter unchangedSkipCount = StripedCounter.newInstance();
+    private final StripedCounter writeFailureCount = StripedCounter.newInstance();
+    private final AsynchronousHistoryWriter writer;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  entityClass  the entity class.
+     * @param  enabled      true if the metrics are recorded, otherwise false.
+     * @param  writer       the asynchronous history writer, or null if there is none.
+     */
+    private HistoryTableMetrics(final Class<?> entityClass, final boolean enabled, final AsynchronousHistoryWriter writer) {
+        this.enabled = enabled;
+        this.entityClass = entityClass;
+        this.writer = writer;
+    }
+
+    @Override
+    public long getCreateCount() {
+        return this.createCount.sum();
+    }
+
+    @Override
+    public long getCreateFailureCount() {
+        return this.createFailureCount.sum();
+    }
+
+    @Override
+    public long getCreateLatencyMax() {
+        return toMicroseconds(this.createLatency.getMax());
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return this.droppedCount.sum();
+    }
+
+    @Override
+    public String getEntityClassName() {
+        return this.entityClass.getName();
+    }
+
+    @Override
+    public long getInsertCount() {
+        return this.insertLatency.getCount();
+    }
+
+    @Override
+    public long getInsertFailureCount() {
+        return this.insertFailureCount.sum();
+    }
+
+    @Override
+    public long getInsertLatencyMax() {
+        return toMicroseconds(this.insertLatency.getMax());
+    }
+
+    @Override
+    public long getInsertLatencyP50() {
+        return toMicroseconds(this.insertLatency.getPercentile(50));
+    }
+
+    @Override
+    public long getInsertLatencyP99() {
+        return toMicroseconds(this.insertLatency.getPercentile(99));
+    }
+
+    /**
+     * Get the object name of the MBean.
+     *
+     * @return  the object name of the MBean.
+     *
+     * @throws  JMException  if the object name is invalid.
+     */
+    private ObjectName getObjectName() throws JMException {
+        return new ObjectName(DOMAIN + ":type=HistoryTable,entity=" + ObjectName.quote(this.entityClass.getName()));
+    }
+
+    @Override
+    public long getPopulateCount() {
+        return this.populateCount.sum();
+    }
+
+    @Override
+    public long getPopulateFailureCount() {
+        return this.populateFailureCount.sum();
+    }
+
+    @Override
+    public long getPopulateLatencyMax() {
+        return toMicroseconds(this.populateLatency.getMax());
+    }
+
+    @Override
+    public long getPurgeCount() {
+        return this.purgeCount.sum();
+    }
+
+    @Override
+    public long getPurgeFailureCount() {
+        return this.purgeFailureCount.sum();
+    }
+
+    @Override
+    public long getPurgeLatencyMax() {
+        return toMicroseconds(this.purgeLatency.getMax());
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return (this.writer == null) ? 0 : this.writer.getQueueSize();
+    }
+
+    @Override
+    public long getRowsPerBatchMax() {
+        return this.rowsPerBatch.getMax();
+    }
+
+    @Override
+    public long getRowsPerBatchP50() {
+        return this.rowsPerBatch.getPercentile(50);
+    }
+
+    @Override
+    public long getRowsPerBatchP99() {
+        return this.rowsPerBatch.getPercentile(99);
+    }
+
+    @Override
+    public long getSourceReadTime() {
+        return toMicroseconds(this.sourceReadTime.sum());
+    }
+
+    @Override
+    public long getTargetWriteTime() {
+        return toMicroseconds(this.targetWriteTime.sum());
+    }
+
+    @Override
+    public long getUnchangedCacheHitCount() {
+        return this.unchangedCacheHitCount.sum();
+    }
+
+    @Override
+    public long getUnchangedSkipCount() {
+        return this.unchangedSkipCount.sum();
+    }
+
+    @Override
+    public long getWriteFailureCount() {
+        return this.writeFailureCount.sum();
+    }
+
+    /**
+     * Check if the metrics are recorded.
+     *
+     * @return  true if the metrics are recorded, otherwise false.
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Record a history table creation.
+     *
+     * @param  startTime  the start time from System.nanoTime.
+     * @param  succeeded  true if the history table was created, otherwise false.
+     */
+    public void recordCreate(final long startTime, final boolean succeeded) {
+        if (this.enabled) {
+            this.createLatency.record(System.nanoTime() - startTime);
+            if (succeeded) {
+                this.createCount.increment();
+            } else {
+                this.createFailureCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Record history rows dropped by the asynchronous history writer.
+     *
+     * @param  rowCount  the number of history rows dropped.
+     */
+    public void recordDropped(final int rowCount) {
+        if (this.enabled) {
+            this.droppedCount.add(rowCount);
+        }
+    }
+
+    /**
+     * Record a history row insert.
+     *
+     * The latency of an insert handed to the asynchronous writer does not
+     * include writing the history row.
+     *
+     * @param  startTime  the start time from System.nanoTime.
+     * @param  succeeded  true if the history row was inserted, otherwise false.
+     */
+    public void recordInsert(final long startTime, final boolean succeeded) {
+        if (this.enabled) {
+            if (succeeded) {
+                this.insertLatency.record(System.nanoTime() - startTime);
+            } else {
+                this.insertFailureCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Record a history table population.
+     *
+     * @param  startTime  the start time from System.nanoTime.
+     * @param  succeeded  true if the history table was populated, otherwise false.
+     */
+    public void recordPopulate(final long startTime, final boolean succeeded) {
+        if (this.enabled) {
+            this.populateLatency.record(System.nanoTime() - startTime);
+            if (succeeded) {
+                this.populateCount.increment();
+            } else {
+                this.populateFailureCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Record a chunk of expired history rows purged.
+     *
+     * @param  startTime  the start time from System.nanoTime.
+     * @param  rowCount   the number of history rows purged.
+     */
+    public void recordPurge(final long startTime, final int rowCount) {
+        if (this.enabled) {
+            this.purgeLatency.record(System.nanoTime() - startTime);
+            this.purgeCount.add(rowCount);
+        }
+    }
+
+    /**
+     * Record a purge that could not complete.
+     */
+    public void recordPurgeFailure() {
+        if (this.enabled) {
+            this.purgeFailureCount.increment();
+        }
+    }
+
+    /**
+     * Record a source row read.
+     *
+     * @param  startTime  the start time from System.nanoTime.
+     */
+    public void recordSourceRead(final long startTime) {
+        if (this.enabled) {
+            this.sourceReadTime.add(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Record a batch of history rows written to the history table.
+     *
+     * @param  startTime  the start time from System.nanoTime.
+     * @param  rowCount   the number of history rows in the batch.
+     * @param  succeeded  true if the batch was written, otherwise false.
+     */
+    public void recordTargetWrite(final long startTime, final int rowCount, final boolean succeeded) {
+        if (this.enabled) {
+            this.targetWriteTime.add(System.nanoTime() - startTime);
+            if (succeeded) {
+                this.rowsPerBatch.record(rowCount);
+            } else {
+                this.writeFailureCount.add(rowCount);
+            }
+        }
+    }
+
+    /**
+     * Record an update whose entity was found in the unchanged cache.
+     *
+     * @param  skipped  true if the update was skipped because no column value changed, otherwise false.
+     */
+    public void recordUnchangedCacheHit(final boolean skipped) {
+        if (this.enabled) {
+            this.unchangedCacheHitCount.increment();
+            if (skipped) {
+                this.unchangedSkipCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Register the MBean with the platform MBean server.
+     *
+     * Registration is skipped if the metrics are disabled.  An MBean already
+     * registered for the entity class, by an earlier history table factory,
+     * is replaced.
+     */
+    public void register() {
+
+        // Check if the metrics are enabled.
+        if (this.enabled) {
+
+            try {
+
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = this.getObjectName();
+
+                // Check if an MBean is registered for the entity class.
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+
+                mBeanServer.registerMBean(this, objectName);
+                logger.debug("Registered the history table metrics {}.", objectName);
+            } catch (JMException e) {
+                logger.warn("Unable to register the history table metrics for the entity {}.", this.entityClass.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        this.createCount.reset();
+        this.createFailureCount.reset();
+        this.createLatency.reset();
+        this.droppedCount.reset();
+        this.insertFailureCount.reset();
+        this.insertLatency.reset();
+        this.populateCount.reset();
+        this.populateFailureCount.reset();
+        this.populateLatency.reset();
+        this.purgeCount.reset();
+        this.purgeFailureCount.reset();
+        this.purgeLatency.reset();
+        this.rowsPerBatch.reset();
+        this.sourceReadTime.reset();
+        this.targetWriteTime.reset();
+        this.unchangedCacheHitCount.reset();
+        this.unchangedSkipCount.reset();
+        this.writeFailureCount.reset();
+    }
+
+    /**
+     * Convert nanoseconds to microseconds.
+     *
+     * @param  nanoseconds  the nanoseconds.
+     *
+     * @return  the microseconds.
+     */
+    private static long toMicroseconds(final long nanoseconds) {
+        return TimeUnit.NANOSECONDS.toMicros(nanoseconds);
+    }
+
+    /**
+     * Create a new instance of the history table metrics class.
+     *
+     * @param  entityClass  the entity class.
+     * @param  enabled      true if the metrics are recorded, otherwise false.
+     * @param  writer       the asynchronous history writer whose queue depth is reported, or null if there is none.
+     *
+     * @return  a new instance of the history table metrics class.
+     */
+    static HistoryTableMetrics newInstance(final Class<?> entityClass, final boolean enabled, final AsynchronousHistoryWriter writer) {
+        return new HistoryTableMetrics(entityClass, enabled, writer);
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+/**
+ * History table metrics MBean.
+ *
+ * Latencies and times are in microseconds.
+ *
+ * @author  Ron Rickard
+ */
+public interface HistoryTableMetricsMBean {
+
+    /**
+     * Get the number of history tables created.
+     *
+     * @return  the number of history tables created.
+     */
+    long getCreateCount();
+
+    /**
+     * Get the number of history tables that could not be created.
+     *
+     * @return  the number of history tables that could not be created.
+     */
+    long getCreateFailureCount();
+
+    /**
+     * Get the maximum create latency.
+     *
+     * @return  the maximum create latency.
+     */
+    long getCreateLatencyMax();
+
+    /**
+     * Get the number of history rows the asynchronous history writer could
+     * neither write nor spool, and dropped.
+     *
+     * @return  the number of history rows dropped.
+     */
+    long getDroppedCount();
+
+    /**
+     * Get the entity class name.
+     *
+     * @return  the entity class name.
+     */
+    String getEntityClassName();
+
+    /**
+     * Get the number of history rows inserted.
+     *
+     * @return  the number of history rows inserted.
+     */
+    long getInsertCount();
+
+    /**
+     * Get the number of history row inserts that failed before returning.
+     *
+     * @return  the number of history row inserts that failed.
+     */
+    long getInsertFailureCount();
+
+    /**
+     * Get the median insert latency.
+     *
+     * @return  the median insert latency.
+     */
+    long getInsertLatencyP50();
+
+    /**
+     * Get the 99th percentile insert latency.
+     *
+     * @return  the 99th percentile insert latency.
+     */
+    long getInsertLatencyP99();
+
+    /**
+     * Get the maximum insert latency.
+     *
+     * @return  the maximum insert latency.
+     */
+    long getInsertLatencyMax();
+
+    /**
+     * Get the number of history tables populated.
+     *
+     * @return  the number of history tables populated.
+     */
+    long getPopulateCount();
+
+    /**
+     * Get the number of history tables that could not be populated.
+     *
+     * @return  the number of history tables that could not be populated.
+     */
+    long getPopulateFailureCount();
+
+    /**
+     * Get the maximum populate latency.
+     *
+     * @return  the maximum populate latency.
+     */
+    long getPopulateLatencyMax();
+
+    /**
+     * Get the number of expired history rows purged.
+     *
+     * History rows removed by dropping a partition are not counted.
+     *
+     * @return  the number of history rows purged.
+     */
+    long getPurgeCount();
+
+    /**
+     * Get the number of purges that could not complete.
+     *
+     * @return  the number of purges that could not complete.
+     */
+    long getPurgeFailureCount();
+
+    /**
+     * Get the maximum latency of one purge chunk.
+     *
+     * @return  the maximum purge chunk latency.
+     */
+    long getPurgeLatencyMax();
+
+    /**
+     * Get the number of history rows waiting in the asynchronous writer queue.
+     *
+     * The queue is shared by all history tables.
+     *
+     * @return  the number of history rows waiting, or zero if there is no asynchronous writer.
+     */
+    int getQueueDepth();
+
+    /**
+     * Get the median number of history rows per batch written.
+     *
+     * @return  the median number of history rows per batch.
+     */
+    long getRowsPerBatchP50();
+
+    /**
+     * Get the 99th percentile number of history rows per batch written.
+     *
+     * @return  the 99th percentile number of history rows per batch.
+     */
+    long getRowsPerBatchP99();
+
+    /**
+     * Get the maximum number of history rows per batch written.
+     *
+     * @return  the maximum number of history rows per batch.
+     */
+    long getRowsPerBatchMax();
+
+    /**
+     * Get the total time spent reading source rows.
+     *
+     * @return  the total source read time.
+     */
+    long getSourceReadTime();
+
+    /**
+     * Get the total time spent writing history rows.
+     *
+     * @return  the total target write time.
+     */
+    long getTargetWriteTime();
+
+    /**
+     * Get the number of updates whose entity was found in the unchanged
+     * cache.
+     *
+     * @return  the number of unchanged cache hits.
+     */
+    long getUnchangedCacheHitCount();
+
+    /**
+     * Get the number of updates skipped because no column value changed.
+     *
+     * @return  the number of unchanged updates skipped.
+     */
+    long getUnchangedSkipCount();
+
+    /**
+     * Get the number of history rows in batches that could not be written.
+     *
+     * This includes history rows written by the asynchronous writer.
+     *
+     * @return  the number of history rows that could not be written.
+     */
+    long getWriteFailureCount();
+
+    /**
+     * Reset the metrics.
+     */
+    void reset();
+}
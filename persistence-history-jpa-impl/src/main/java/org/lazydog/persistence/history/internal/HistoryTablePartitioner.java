@@ -0,0 +1,590 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.lazydog.persistence.history.internal.PersistenceHistoryConfiguration.PartitionPeriod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History table partitioner.
+ *
+ * The partitioner routes history rows to one table per period, named after
+ * the history table with the period appended, such as
+ * "company_history_201301" for monthly partitions.  The partition of the
+ * current period and the configured number of partitions ahead of it are
+ * created by the purger thread, so the rollover to a new period finds its
+ * partition already created and writers never wait for partitions to be
+ * created.  Only a history row for a period without a partition, such as a
+ * history row dated in the past, creates its partition when it is written.
+ * The history table itself is a union all view of the partitions, which is
+ * recreated whenever a partition is created or dropped, so the history
+ * remains queryable by its logical name.  Old partitions are removed by
+ * dropping their tables instead of deleting rows.
+ *
+ * Each partition has its own identity column, so history identifiers are
+ * unique within a partition only.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryTablePartitioner {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTablePartitioner.class);
+
+    private final HistoryTableDescriptor descriptor;
+    private final ConcurrentMap<String,String> insertRowSQLs = new ConcurrentHashMap<String,String>();
+    private final ConcurrentMap<String,String> insertRowsSQLs = new ConcurrentHashMap<String,String>();
+    private final Set<String> knownPartitionNames = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+    private SortedSet<String> partitionNames;
+    private final PartitionPeriod period;
+    private final int partitionsAhead;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  descriptor       the history table descriptor.
+     * @param  period           the partition period.
+     * @param  partitionsAhead  the number of partitions created ahead of the current period.
+     */
+    private HistoryTablePartitioner(final HistoryTableDescriptor descriptor, final PartitionPeriod period, final int partitionsAhead) {
+        this.descriptor = descriptor;
+        this.period = period;
+        this.partitionsAhead = partitionsAhead;
+    }
+
+    /**
+     * Create the partition for the time and the partitions ahead of it if
+     * they do not exist.
+     *
+     * @param  time  the time.
+     *
+     * @return  the partition name for the time.
+     *
+     * @throws  SQLException  if unable to create the partitions.
+     */
+    public String createPartitions(final Date time) throws SQLException {
+
+        String partitionName = this.getPartitionName(time);
+
+        // Check if the partition is not known to exist.
+        if (!this.knownPartitionNames.contains(partitionName)) {
+            this.createPartitions(time, partitionName);
+        }
+
+        return partitionName;
+    }
+
+    /**
+     * Create the partition for the time and the partitions ahead of it if
+     * they do not exist.
+     *
+     * @param  time           the time.
+     * @param  partitionName  the partition name for the time.
+     *
+     * @throws  SQLException  if unable to create the partitions.
+     */
+    private synchronized void createPartitions(final Date time, final String partitionName) throws SQLException {
+
+        Connection connection = null;
+        Statement statement = null;
+
+        try {
+
+            // Connect to the target database.
+            connection = HistoryTableImpl.connect(this.descriptor.getTargetDataSource());
+            statement = connection.createStatement();
+            boolean created = false;
+
+            // Loop through the partitions from the time to the partitions ahead.
+            Calendar calendar = this.getPeriodStart(time);
+            for (int index = 0; index <= this.partitionsAhead; index++) {
+
+                String name = this.getPartitionName(calendar.getTime());
+
+                // Check if the partition does not exist.
+                if (!this.getPartitionNames(connection).contains(name)) {
+
+                    // Create the partition.
+                    String createTableSQL = this.descriptor.createCreateTableSQL(name);
+                    logger.debug("Create the history table partition {} with SQL: {}", name, createTableSQL);
+                    statement.executeUpdate(createTableSQL);
+                    statement.executeUpdate(this.descriptor.createCreateIndexSQL(name));
+                    this.partitionNames.add(name);
+                    created = true;
+                }
+
+                this.addPeriod(calendar, 1);
+            }
+
+            // Check if a partition was created or the view does not exist.
+            if (created || !exists(connection, this.descriptor.getHistoryTableName(), "VIEW")) {
+                this.createView(connection);
+            }
+
+            this.knownPartitionNames.addAll(this.partitionNames);
+        } finally {
+
+            // Disconnect from the database.
+            closeStatement(statement);
+            HistoryTableImpl.disconnect(connection, null, null);
+        }
+
+        logger.trace("The history table partition for {} is {}.", time, partitionName);
+    }
+
+    /**
+     * Add periods to the calendar.
+     *
+     * @param  calendar  the calendar.
+     * @param  amount    the number of periods.
+     */
+    private void addPeriod(final Calendar calendar, final int amount) {
+
+        switch (this.period) {
+
+            case DAY:
+                calendar.add(Calendar.DAY_OF_MONTH, amount);
+                break;
+
+            case MONTH:
+                calendar.add(Calendar.MONTH, amount);
+                break;
+
+            default:
+                calendar.add(Calendar.YEAR, amount);
+                break;
+        }
+    }
+
+    /**
+     * Close the statement.
+     *
+     * @param  statement  the statement.
+     */
+    private static void closeStatement(final Statement statement) {
+
+        try {
+
+            // Check if the statement exists.
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger.error("Unable to close the statement.", e);
+        }
+    }
+
+    /**
+     * Create the view of the partitions, replacing the existing view.  The
+     * view is only dropped if there are no partitions.
+     *
+     * @param  connection  the target connection.
+     *
+     * @throws  SQLException  if unable to create the view.
+     */
+    private void createView(final Connection connection) throws SQLException {
+
+        Statement statement = null;
+        String historyTableName = this.descriptor.getHistoryTableName();
+        StringBuilder createViewSQL = new StringBuilder()
+                .append("create view ")
+                .append(historyTableName)
+                .append(" as ");
+
+        // Loop through the partitions.
+        String separator = "";
+        for (String name : this.partitionNames) {
+            createViewSQL
+                    .append(separator)
+                    .append("select * from ")
+                    .append(name);
+            separator = " union all ";
+        }
+
+        try {
+
+            statement = connection.createStatement();
+
+            // Check if the view exists.
+            if (exists(connection, historyTableName, "VIEW")) {
+
+                // Drop the view.
+                statement.executeUpdate("drop view " + historyTableName);
+            }
+
+            // Check if there are partitions.
+            if (!this.partitionNames.isEmpty()) {
+
+                // Create the view.
+                logger.debug("Create the history table view {} with SQL: {}", historyTableName, createViewSQL);
+                statement.executeUpdate(createViewSQL.toString());
+            }
+        } finally {
+            closeStatement(statement);
+        }
+    }
+
+    /**
+     * Drop all the partitions and the view.
+     *
+     * @return  the number of partitions dropped.
+     *
+     * @throws  SQLException  if unable to drop the partitions.
+     */
+    public synchronized int dropPartitions() throws SQLException {
+        return this.dropPartitions(null);
+    }
+
+    /**
+     * Drop the partitions that end before the time, or all the partitions
+     * and the view if there is no time.
+     *
+     * @param  time  the time, or null to drop all the partitions.
+     *
+     * @return  the number of partitions dropped.
+     *
+     * @throws  SQLException  if unable to drop the partitions.
+     */
+    private int dropPartitions(final Date time) throws SQLException {
+
+        Connection connection = null;
+        Statement statement = null;
+        int dropCount = 0;
+
+        try {
+
+            // Connect to the target database.
+            connection = HistoryTableImpl.connect(this.descriptor.getTargetDataSource());
+            statement = connection.createStatement();
+
+            // Get the partitions that end before the partition for the time.
+            SortedSet<String> partitionNames = this.getPartitionNames(connection);
+            List<String> names = new ArrayList<String>((time != null) ? partitionNames.headSet(this.getPartitionName(time)) : partitionNames);
+
+            // Check if there are partitions to drop.
+            if (!names.isEmpty()) {
+
+                // Remove the partitions from the view first.
+                this.partitionNames.removeAll(names);
+                this.knownPartitionNames.removeAll(names);
+                this.createView(connection);
+
+                // Loop through the partitions.
+                for (String name : names) {
+                    logger.info("Drop the history table partition {}.", name);
+                    statement.executeUpdate("drop table " + name);
+                    this.insertRowSQLs.remove(name);
+                    this.insertRowsSQLs.remove(name);
+                    dropCount++;
+                }
+            }
+        } finally {
+
+            // Disconnect from the database.
+            closeStatement(statement);
+            HistoryTableImpl.disconnect(connection, null, null);
+        }
+
+        return dropCount;
+    }
+
+    /**
+     * Drop the partitions that end before the time.
+     *
+     * @param  time  the time.
+     *
+     * @return  the number of partitions dropped.
+     *
+     * @throws  SQLException  if unable to drop the partitions.
+     */
+    public synchronized int dropPartitionsBefore(final Date time) throws SQLException {
+        return this.dropPartitions(time);
+    }
+
+    /**
+     * Create the partition for the time and the partitions ahead of it if
+     * they do not exist, and the view if it does not exist.
+     *
+     * Called periodically by the purger thread with the current time, so
+     * the partitions are created before history rows are written to them.
+     *
+     * @param  time  the time.
+     *
+     * @throws  SQLException  if unable to create the partitions.
+     */
+    public void maintain(final Date time) throws SQLException {
+        this.createPartitions(time, this.getPartitionName(time));
+    }
+
+    /**
+     * Check if the table or view exists.
+     *
+     * @param  connection  the connection.
+     * @param  name        the table or view name.
+     * @param  type        the table type.
+     *
+     * @return  true if the table or view exists, otherwise false.
+     *
+     * @throws  SQLException  if unable to check if the table or view exists.
+     */
+    private boolean exists(final Connection connection, final String name, final String type) throws SQLException {
+
+        ResultSet resultSet = null;
+        boolean exists;
+
+        try {
+            DatabaseMetaData metaData = connection.getMetaData();
+            resultSet = metaData.getTables(null, null, this.descriptor.getDialect().getStoredIdentifier(metaData, name), new String[] {type});
+            exists = resultSet.next();
+        } finally {
+            HistoryTableImpl.disconnect(null, null, resultSet);
+        }
+
+        return exists;
+    }
+
+    /**
+     * Get the insert row SQL string for the partition.
+     *
+     * @param  partitionName  the partition name.
+     *
+     * @return  the insert row SQL string.
+     */
+    public String getInsertRowSQL(final String partitionName) {
+
+        String insertRowSQL = this.insertRowSQLs.get(partitionName);
+
+        // Check if the SQL is not cached.
+        if (insertRowSQL == null) {
+            insertRowSQL = this.descriptor.createInsertRowsSQL(partitionName, 1);
+            this.insertRowSQLs.put(partitionName, insertRowSQL);
+        }
+
+        return insertRowSQL;
+    }
+
+    /**
+     * Get the insert rows SQL string for the partition.
+     *
+     * @param  partitionName  the partition name.
+     *
+     * @return  the insert rows SQL string, with the number of rows per statement of the history table descriptor.
+     */
+    public String getInsertRowsSQL(final String partitionName) {
+
+        String insertRowsSQL = this.insertRowsSQLs.get(partitionName);
+
+        // Check if the SQL is not cached.
+        if (insertRowsSQL == null) {
+            insertRowsSQL = this.descriptor.createInsertRowsSQL(partitionName, this.descriptor.getInsertRowsPerStatement());
+            this.insertRowsSQLs.put(partitionName, insertRowsSQL);
+        }
+
+        return insertRowsSQL;
+    }
+
+    /**
+     * Get the partition name for the time.
+     *
+     * @param  time  the time.
+     *
+     * @return  the partition name.
+     */
+    public String getPartitionName(final Date time) {
+
+        Calendar calendar = this.getPeriodStart(time);
+        StringBuilder partitionName = new StringBuilder(this.descriptor.getHistoryTableName())
+                .append("_")
+                .append(calendar.get(Calendar.YEAR));
+
+        // Check if the period is shorter than a year.
+        if (this.period != PartitionPeriod.YEAR) {
+            appendTwoDigits(partitionName, calendar.get(Calendar.MONTH) + 1);
+        }
+
+        // Check if the period is a day.
+        if (this.period == PartitionPeriod.DAY) {
+            appendTwoDigits(partitionName, calendar.get(Calendar.DAY_OF_MONTH));
+        }
+
+        return partitionName.toString();
+    }
+
+    /**
+     * Get the partition names, reading the existing partitions from the
+     * database the first time.
+     *
+     * @param  connection  the target connection.
+     *
+     * @return  the partition names in period order.
+     *
+     * @throws  SQLException  if unable to read the existing partitions.
+     */
+    private SortedSet<String> getPartitionNames(final Connection connection) throws SQLException {
+
+        // Check if the existing partitions have not been read.
+        if (this.partitionNames == null) {
+
+            SortedSet<String> names = new TreeSet<String>();
+            String prefix = this.descriptor.getHistoryTableName() + "_";
+            int suffixLength = (this.period == PartitionPeriod.DAY) ? 8 : (this.period == PartitionPeriod.MONTH) ? 6 : 4;
+            ResultSet resultSet = null;
+
+            try {
+
+                // Get the tables named after the history table.
+                DatabaseMetaData metaData = connection.getMetaData();
+                resultSet = metaData.getTables(null, null, this.descriptor.getDialect().getStoredIdentifier(metaData, prefix) + "%", new String[] {"TABLE"});
+
+                // Loop through the tables.
+                while (resultSet.next()) {
+
+                    String tableName = resultSet.getString("TABLE_NAME");
+                    String suffix = tableName.substring(Math.min(prefix.length(), tableName.length()));
+
+                    // Check if the table is a partition.
+                    if (tableName.regionMatches(true, 0, prefix, 0, prefix.length()) && suffix.length() == suffixLength && suffix.matches("[0-9]+")) {
+                        names.add(prefix + suffix);
+                    }
+                }
+            } finally {
+                HistoryTableImpl.disconnect(null, null, resultSet);
+            }
+
+            logger.debug("The existing history table partitions are {}.", names);
+            this.partitionNames = names;
+        }
+
+        return this.partitionNames;
+    }
+
+    /**
+     * Get the start of the period of the time.
+     *
+     * @param  time  the time.
+     *
+     * @return  the calendar set to the start of the period.
+     */
+    private Calendar getPeriodStart(final Date time) {
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        // Check if the period is longer than a day.
+        if (this.period != PartitionPeriod.DAY) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        // Check if the period is a year.
+        if (this.period == PartitionPeriod.YEAR) {
+            calendar.set(Calendar.MONTH, Calendar.JANUARY);
+        }
+
+        return calendar;
+    }
+
+    /**
+     * Append the value with two digits.
+     *
+     * @param  stringBuilder  the string builder.
+     * @param  value          the value, less than one hundred.
+     */
+    private static void appendTwoDigits(final StringBuilder stringBuilder, final int value) {
+
+        // Check if the value needs a leading zero.
+        if (value < 10) {
+            stringBuilder.append('0');
+        }
+
+        stringBuilder.append(value);
+    }
+
+    /**
+     * Create a new instance of the history table partitioner class.
+     *
+     * @param  descriptor       the history table descriptor.
+     * @param  period           the partition period.
+     * @param  partitionsAhead  the number of partitions created ahead of the current period.
+     *
+     * @return  a new instance of the history table partitioner class.
+     */
+    public static HistoryTablePartitioner newInstance(final HistoryTableDescriptor descriptor, final PartitionPeriod period, final int partitionsAhead) {
+        return new HistoryTablePartitioner(descriptor, period, partitionsAhead);
+    }
+
+    /**
+     * Group the history rows by partition, creating the partitions that do
+     * not exist.
+     *
+     * The partitions of the current period and the periods ahead of it are
+     * created by the purger thread, so only a history row for another period
+     * creates its partition here.
+     *
+     * @param  rows  the history rows.
+     *
+     * @return  the history rows by partition name.
+     *
+     * @throws  SQLException  if unable to create a partition.
+     */
+    public Map<String,List<HistoryRow>> partition(final List<HistoryRow> rows) throws SQLException {
+
+        Map<String,List<HistoryRow>> partitionRows = new LinkedHashMap<String,List<HistoryRow>>();
+
+        // Loop through the history rows.
+        for (HistoryRow row : rows) {
+
+            Timestamp actionTime = row.getActionTime();
+            String partitionName = this.getPartitionName(actionTime);
+            List<HistoryRow> groupRows = partitionRows.get(partitionName);
+
+            // Check if this is the first history row of the partition.
+            if (groupRows == null) {
+                this.createPartitions(actionTime);
+                groupRows = new ArrayList<HistoryRow>();
+                partitionRows.put(partitionName, groupRows);
+            }
+
+            groupRows.add(row);
+        }
+
+        return partitionRows;
+    }
+}
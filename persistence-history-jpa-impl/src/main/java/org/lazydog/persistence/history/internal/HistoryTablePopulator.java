@@ -0,0 +1,822 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.lazydog.persistence.history.HistoryTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History table populator.
+ *
+ * The populator streams the rows of the source table into the history
+ * table.  Rows are read with the configured fetch size and written straight
+ * into the insert batch, which is executed and committed every commit size
+ * rows, so memory use does not depend on the size of the source table.  If
+ * the dialect of the target database inserts multiple rows per statement
+ * faster, the rows are gathered into multiple row inserts instead.
+ * Identifier ranges of the source table may be copied in parallel.  If the
+ * source and target tables are in the same database, the rows are copied by
+ * the database with one insert select statement.
+ *
+ * If the history table is populated inside a managed transaction, the rows
+ * are copied in one pass on the connection enlisted in the transaction and
+ * committed with it, rather than by chunk.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryTablePopulator {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTablePopulator.class);
+    private static final int RANGES_PER_WORKER = 4;
+
+    private final HistoryTableDescriptor descriptor;
+    private final boolean managed;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  managed     true if the history table is populated inside a managed transaction.
+     */
+    private HistoryTablePopulator(final HistoryTableDescriptor descriptor, final boolean managed) {
+        this.descriptor = descriptor;
+        this.managed = managed;
+    }
+
+    /**
+     * Bind the action, action by, and action time parameters of an initial
+     * history row, and the changed columns parameter if the history table
+     * has delta storage.
+     *
+     * @param  preparedStatement  the insert statement.
+     * @param  offset             the number of parameters before the history row.
+     * @param  actionBy           the action by.
+     * @param  actionTimestamp    the action time.
+     *
+     * @throws  SQLException  if unable to bind the parameters.
+     */
+    private void bindAction(final PreparedStatement preparedStatement, final int offset, final String actionBy, final Timestamp actionTimestamp) throws SQLException {
+
+        int parameterIndex = offset + this.descriptor.getRowCopier().getColumnCount();
+
+        preparedStatement.setString(parameterIndex + 1, HistoryTable.Action.INITIAL.toString());
+        preparedStatement.setString(parameterIndex + 2, actionBy);
+        preparedStatement.setTimestamp(parameterIndex + 3, actionTimestamp);
+
+        // Check if the history table has delta storage.
+        if (this.descriptor.isDelta()) {
+
+            // An initial history row is a full history row.
+            preparedStatement.setNull(parameterIndex + 4, Types.VARCHAR);
+        }
+    }
+
+    /**
+     * Commit the chunk unless the target connection is in a managed
+     * transaction.
+     *
+     * @param  connection  the target connection.
+     * @param  managed     true if the target connection is in a managed transaction.
+     *
+     * @throws  SQLException  if unable to commit the chunk.
+     */
+    private static void commit(final Connection connection, final boolean managed) throws SQLException {
+
+        // Check if the target connection is not in a managed transaction.
+        if (!managed) {
+            connection.commit();
+        }
+    }
+
+    /**
+     * Copy the rows of the result set into the history table.
+     *
+     * @param  resultSet         the source rows.
+     * @param  targetConnection  the target connection.
+     * @param  managed           true if the target connection is in a managed transaction.
+     * @param  actionBy          the action by.
+     * @param  actionTime        the action time.
+     *
+     * @return  the number of rows copied.
+     *
+     * @throws  SQLException  if unable to copy the rows.
+     */
+    private long copy(final ResultSet resultSet, final Connection targetConnection, final boolean managed, final String actionBy, final Date actionTime) throws SQLException {
+
+        long rowCount;
+
+        // Check if the dialect inserts multiple rows per statement.
+        if (this.getRowsPerStatement() > 1) {
+            rowCount = this.copyMultipleRows(resultSet, targetConnection, managed, actionBy, actionTime);
+        } else {
+            rowCount = this.copySingleRows(resultSet, targetConnection, managed, actionBy, actionTime);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Copy the rows of the result set into the history table with multiple
+     * row inserts.
+     *
+     * The rows of one insert are read into a reused buffer.  The rows left
+     * over at the end of the result set are inserted one at a time.
+     *
+     * @param  resultSet         the source rows.
+     * @param  targetConnection  the target connection.
+     * @param  managed           true if the target connection is in a managed transaction.
+     * @param  actionBy          the action by.
+     * @param  actionTime        the action time.
+     *
+     * @return  the number of rows copied.
+     *
+     * @throws  SQLException  if unable to copy the rows.
+     */
+    private long copyMultipleRows(final ResultSet resultSet, final Connection targetConnection, final boolean managed, final String actionBy, final Date actionTime) throws SQLException {
+
+        int commitSize = this.descriptor.getPopulateCommitSize();
+        long rowCount = 0;
+        PreparedStatement preparedStatement = null;
+        RowCopier rowCopier = this.descriptor.getRowCopier();
+        int columnCount = rowCopier.getColumnCount();
+        int rowsPerStatement = this.getRowsPerStatement();
+        Object[][] buffer = new Object[rowsPerStatement][columnCount];
+        int bufferedRowCount = 0;
+        Timestamp actionTimestamp = new Timestamp(actionTime.getTime());
+
+        try {
+
+            // Initialize the insert statement batch.
+            String insertRowsSQL = this.getInsertRowsSQL(actionTime, rowsPerStatement);
+            logger.trace("Insert with SQL: {}", insertRowsSQL);
+            preparedStatement = targetConnection.prepareStatement(insertRowsSQL);
+
+            // Loop through the rows from the source table.
+            while (resultSet.next()) {
+
+                // Buffer the data from the source table.
+                rowCopier.read(resultSet, buffer[bufferedRowCount++]);
+                rowCount++;
+
+                // Check if the statement is complete.
+                if (bufferedRowCount == rowsPerStatement) {
+
+                    // Loop through the buffered rows.
+                    for (int rowIndex = 0; rowIndex < bufferedRowCount; rowIndex++) {
+
+                        // Set the parameters to the data from the source table and the action, action by, and action time parameters.
+                        int offset = rowIndex * this.descriptor.getParametersPerRow();
+                        rowCopier.bind(preparedStatement, buffer[rowIndex], offset);
+                        this.bindAction(preparedStatement, offset, actionBy, actionTimestamp);
+                    }
+
+                    preparedStatement.addBatch();
+                    bufferedRowCount = 0;
+                }
+
+                // Check if the chunk is complete.
+                if (rowCount % commitSize == 0) {
+
+                    // Insert and commit the chunk.
+                    preparedStatement.executeBatch();
+                    commit(targetConnection, managed);
+                    logger.info("Populated {} rows in the history table {}.", rowCount, this.descriptor.getHistoryTableName());
+                }
+            }
+
+            // Check if there is a partial chunk.
+            if (rowCount % commitSize != 0) {
+
+                // Insert the complete statements of the partial chunk.
+                preparedStatement.executeBatch();
+                HistoryTableImpl.disconnect(null, preparedStatement, null);
+                preparedStatement = null;
+
+                // Check if there are rows left over.
+                if (bufferedRowCount > 0) {
+
+                    // Initialize the single row insert statement batch.
+                    String insertRowSQL = this.getInsertRowsSQL(actionTime, 1);
+                    logger.trace("Insert with SQL: {}", insertRowSQL);
+                    preparedStatement = targetConnection.prepareStatement(insertRowSQL);
+
+                    // Loop through the buffered rows.
+                    for (int rowIndex = 0; rowIndex < bufferedRowCount; rowIndex++) {
+                        rowCopier.bind(preparedStatement, buffer[rowIndex]);
+                        this.bindAction(preparedStatement, 0, actionBy, actionTimestamp);
+                        preparedStatement.addBatch();
+                    }
+
+                    // Insert the rows left over.
+                    preparedStatement.executeBatch();
+                }
+
+                // Commit the partial chunk.
+                commit(targetConnection, managed);
+            }
+        } finally {
+
+            // Close the prepared statement.
+            HistoryTableImpl.disconnect(null, preparedStatement, null);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Copy the rows of the result set into the history table with single
+     * row inserts.
+     *
+     * @param  resultSet         the source rows.
+     * @param  targetConnection  the target connection.
+     * @param  managed           true if the target connection is in a managed transaction.
+     * @param  actionBy          the action by.
+     * @param  actionTime        the action time.
+     *
+     * @return  the number of rows copied.
+     *
+     * @throws  SQLException  if unable to copy the rows.
+     */
+    private long copySingleRows(final ResultSet resultSet, final Connection targetConnection, final boolean managed, final String actionBy, final Date actionTime) throws SQLException {
+
+        int commitSize = this.descriptor.getPopulateCommitSize();
+        long rowCount = 0;
+        PreparedStatement preparedStatement = null;
+        RowCopier rowCopier = this.descriptor.getRowCopier();
+        Timestamp actionTimestamp = new Timestamp(actionTime.getTime());
+
+        try {
+
+            // Initialize the insert statement batch.
+            String insertRowSQL = this.getInsertRowsSQL(actionTime, 1);
+            logger.trace("Insert with SQL: {}", insertRowSQL);
+            preparedStatement = targetConnection.prepareStatement(insertRowSQL);
+
+            // Loop through the rows from the source table.
+            while (resultSet.next()) {
+
+                // Set the parameters to the data from the source table.
+                rowCopier.copy(resultSet, preparedStatement);
+
+                // Set the action, action by, and action time parameters.
+                this.bindAction(preparedStatement, 0, actionBy, actionTimestamp);
+                preparedStatement.addBatch();
+                rowCount++;
+
+                // Check if the chunk is complete.
+                if (rowCount % commitSize == 0) {
+
+                    // Insert and commit the chunk.
+                    preparedStatement.executeBatch();
+                    commit(targetConnection, managed);
+                    logger.info("Populated {} rows in the history table {}.", rowCount, this.descriptor.getHistoryTableName());
+                }
+            }
+
+            // Check if there is a partial chunk.
+            if (rowCount % commitSize != 0) {
+
+                // Insert and commit the partial chunk.
+                preparedStatement.executeBatch();
+                commit(targetConnection, managed);
+            }
+        } finally {
+
+            // Close the prepared statement.
+            HistoryTableImpl.disconnect(null, preparedStatement, null);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Get the insert rows SQL string.
+     *
+     * If the history table is partitioned, the rows are inserted in the
+     * partition for the action time, which is created if it does not exist.
+     *
+     * @param  actionTime  the action time.
+     * @param  rowCount    the number of rows in the values clause.
+     *
+     * @return  the insert rows SQL string.
+     *
+     * @throws  SQLException  if unable to create the partition.
+     */
+    private String getInsertRowsSQL(final Date actionTime, final int rowCount) throws SQLException {
+
+        String insertRowsSQL;
+
+        // Check if the history table is partitioned.
+        if (this.descriptor.getPartitioner() != null) {
+            insertRowsSQL = this.descriptor.createInsertRowsSQL(this.descriptor.getPartitioner().createPartitions(actionTime), rowCount);
+        } else if (rowCount == 1) {
+            insertRowsSQL = this.descriptor.getInsertRowSQL();
+        } else if (rowCount == this.descriptor.getInsertRowsPerStatement()) {
+            insertRowsSQL = this.descriptor.getInsertRowsSQL();
+        } else {
+            insertRowsSQL = this.descriptor.createInsertRowsSQL(this.descriptor.getHistoryTableName(), rowCount);
+        }
+
+        return insertRowsSQL;
+    }
+
+    /**
+     * Get the number of rows per multiple row insert.
+     *
+     * The number of rows per insert is reduced until it divides the commit
+     * size, so every committed chunk is made of complete statements.
+     *
+     * @return  the number of rows per multiple row insert.
+     */
+    private int getRowsPerStatement() {
+
+        int commitSize = this.descriptor.getPopulateCommitSize();
+        int rowsPerStatement = this.descriptor.getInsertRowsPerStatement();
+
+        // Reduce the rows per statement until it divides the commit size.
+        while (commitSize % rowsPerStatement != 0) {
+            rowsPerStatement--;
+        }
+
+        return rowsPerStatement;
+    }
+
+    /**
+     * Create a new instance of the history table populator class.
+     *
+     * @param  descriptor  the history table descriptor.
+     *
+     * @return  a new instance of the history table populator class.
+     */
+    public static HistoryTablePopulator newInstance(final HistoryTableDescriptor descriptor) {
+        return newInstance(descriptor, false);
+    }
+
+    /**
+     * Create a new instance of the history table populator class.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  managed     true if the history table is populated inside a managed transaction.
+     *
+     * @return  a new instance of the history table populator class.
+     */
+    public static HistoryTablePopulator newInstance(final HistoryTableDescriptor descriptor, final boolean managed) {
+        return new HistoryTablePopulator(descriptor, managed);
+    }
+
+    /**
+     * Populate the history table.
+     *
+     * If the populate parallelism is greater than one and the source table
+     * has a numeric identifier, the source table is split into identifier
+     * ranges that are copied in parallel.  Otherwise the source table is
+     * copied in one pass.  Inside a managed transaction, the source table is
+     * always copied in one pass, since the workers cannot join the
+     * transaction.
+     *
+     * @param  actionBy    the action by.
+     * @param  actionTime  the action time.
+     *
+     * @return  the number of rows populated.
+     *
+     * @throws  SQLException  if unable to populate the history table.
+     */
+    public long populate(final String actionBy, final Date actionTime) throws SQLException {
+
+        long rowCount;
+
+        // Check if the source and target tables are in the same database.
+        if (this.isInsertSelect()) {
+            rowCount = this.populateWithInsertSelect(actionBy, actionTime);
+        } else {
+
+            long[] idRange = (!this.managed && this.descriptor.getPopulateParallelism() > 1 && !this.descriptor.getIdentifierAccessor().isComposite()) ? this.getIdRange() : null;
+
+            // Check if the source table can be split into identifier ranges.
+            if (idRange != null) {
+                rowCount = this.populateInParallel(idRange[0], idRange[1], actionBy, actionTime);
+            } else {
+                rowCount = this.populate(this.descriptor.getSelectRowsSQL(), new Object[0], actionBy, actionTime);
+            }
+        }
+
+        logger.info("Populated {} rows in the history table {}.", rowCount, this.descriptor.getHistoryTableName());
+
+        return rowCount;
+    }
+
+    /**
+     * Populate the history table with the rows selected from the source table.
+     *
+     * @param  selectRowsSQL  the select rows SQL string.
+     * @param  parameters     the select rows parameters.
+     * @param  actionBy       the action by.
+     * @param  actionTime     the action time.
+     *
+     * @return  the number of rows populated.
+     *
+     * @throws  SQLException  if unable to populate the history table.
+     */
+    private long populate(final String selectRowsSQL, final Object[] parameters, final String actionBy, final Date actionTime) throws SQLException {
+
+        Connection sourceConnection = null;
+        PreparedStatement sourcePreparedStatement = null;
+        ResultSet resultSet = null;
+        Connection targetConnection = null;
+        boolean autoCommit = true;
+        boolean managed = this.managed;
+        long rowCount;
+
+        try {
+
+            // Connect to the source database and stream the rows.
+            sourceConnection = HistoryTableImpl.connect(this.descriptor.getSourceDataSource());
+            logger.trace("Get the rows with SQL: {}", selectRowsSQL);
+            sourcePreparedStatement = sourceConnection.prepareStatement(selectRowsSQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            sourcePreparedStatement.setFetchSize(this.descriptor.getPopulateFetchSize());
+            for (int index = 0; index < parameters.length; index++) {
+                sourcePreparedStatement.setObject(index + 1, parameters[index]);
+            }
+            resultSet = sourcePreparedStatement.executeQuery();
+
+            // Connect to the target database.
+            targetConnection = HistoryTableImpl.connect(this.descriptor.getTargetDataSource());
+
+            // Check if the target connection is not in a managed transaction.
+            if (!managed) {
+
+                try {
+
+                    // Commit by chunk.
+                    autoCommit = targetConnection.getAutoCommit();
+                    targetConnection.setAutoCommit(false);
+                } catch (SQLException e) {
+                    logger.debug("Unable to turn off the auto commit mode, so the target connection is assumed to be in a managed transaction.", e);
+                    managed = true;
+                }
+            }
+
+            try {
+                rowCount = this.copy(resultSet, targetConnection, managed, actionBy, actionTime);
+            } catch (SQLException e) {
+                if (!managed) {
+                    rollback(targetConnection);
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                if (!managed) {
+                    rollback(targetConnection);
+                }
+                throw e;
+            }
+        } finally {
+
+            // Restore the auto commit mode of the target connection.
+            if (targetConnection != null && !managed) {
+                try {
+                    targetConnection.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    logger.error("Unable to restore the auto commit mode.", e);
+                }
+            }
+
+            // Disconnect from the databases.
+            HistoryTableImpl.disconnect(targetConnection, null, null);
+            HistoryTableImpl.disconnect(sourceConnection, sourcePreparedStatement, resultSet);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Populate the history table with one set based insert select statement
+     * executed by the database.
+     *
+     * @param  actionBy    the action by.
+     * @param  actionTime  the action time.
+     *
+     * @return  the number of rows populated.
+     *
+     * @throws  SQLException  if unable to populate the history table.
+     */
+    private long populateWithInsertSelect(final String actionBy, final Date actionTime) throws SQLException {
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        long rowCount;
+
+        try {
+
+            // Check if the history table is partitioned.
+            if (this.descriptor.getPartitioner() != null) {
+
+                // Create the partition for the action time.
+                this.descriptor.getPartitioner().createPartitions(actionTime);
+            }
+
+            // Connect to the target database.
+            connection = HistoryTableImpl.connect(this.descriptor.getTargetDataSource());
+
+            // Copy the rows in the database.
+            String insertSelectRowsSQL = this.descriptor.getInsertSelectRowsSQL(actionTime);
+            logger.trace("Populate with SQL: {}", insertSelectRowsSQL);
+            preparedStatement = connection.prepareStatement(insertSelectRowsSQL);
+            preparedStatement.setString(1, actionBy);
+            preparedStatement.setTimestamp(2, new Timestamp(actionTime.getTime()));
+            rowCount = preparedStatement.executeUpdate();
+        } finally {
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(connection, preparedStatement, null);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Populate the history table by copying identifier ranges of the source
+     * table in parallel.
+     *
+     * Each range is copied by its own worker on its own source and target
+     * connections.
+     *
+     * @param  minimumId   the minimum identifier.
+     * @param  maximumId   the maximum identifier.
+     * @param  actionBy    the action by.
+     * @param  actionTime  the action time.
+     *
+     * @return  the number of rows populated.
+     *
+     * @throws  SQLException  if unable to populate the history table.
+     */
+    private long populateInParallel(final long minimumId, final long maximumId, final String actionBy, final Date actionTime) throws SQLException {
+
+        int parallelism = this.descriptor.getPopulateParallelism();
+        List<long[]> idRanges = split(minimumId, maximumId, parallelism * RANGES_PER_WORKER);
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, idRanges.size()));
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        long rowCount = 0;
+
+        logger.info("Populate the history table {} with {} workers over {} identifier ranges.", new Object[] {this.descriptor.getHistoryTableName(), parallelism, idRanges.size()});
+
+        try {
+
+            // Loop through the identifier ranges.
+            for (final long[] idRange : idRanges) {
+
+                // Copy the identifier range on a worker.
+                futures.add(executorService.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws SQLException {
+                        return HistoryTablePopulator.this.populate(
+                                HistoryTablePopulator.this.descriptor.getSelectRowsInRangeSQL(),
+                                new Object[] {idRange[0], idRange[1]},
+                                actionBy,
+                                actionTime);
+                    }
+                }));
+            }
+
+            // Loop through the results.
+            for (Future<Long> future : futures) {
+                rowCount += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while populating the history table " + this.descriptor.getHistoryTableName() + ".", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException)e.getCause();
+            }
+            throw new SQLException("Unable to populate the history table " + this.descriptor.getHistoryTableName() + ".", e.getCause());
+        } finally {
+
+            // Stop the workers.
+            executorService.shutdownNow();
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Get the identifier range of the source table.
+     *
+     * @return  the minimum and maximum identifiers, or null if the source table is empty or its identifier is not an integer.
+     *
+     * @throws  SQLException  if unable to get the identifier range.
+     */
+    private long[] getIdRange() throws SQLException {
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        long[] idRange = null;
+
+        try {
+
+            // Get the minimum and maximum identifiers.
+            connection = HistoryTableImpl.connect(this.descriptor.getSourceDataSource());
+            String selectIdRangeSQL = this.descriptor.getSelectIdRangeSQL();
+            logger.trace("Get the identifier range with SQL: {}", selectIdRangeSQL);
+            preparedStatement = connection.prepareStatement(selectIdRangeSQL);
+            resultSet = preparedStatement.executeQuery();
+
+            // Check if the identifiers are integers.
+            if (resultSet.next() && isInteger(resultSet.getObject(1)) && isInteger(resultSet.getObject(2))) {
+                idRange = new long[] {resultSet.getLong(1), resultSet.getLong(2)};
+            } else {
+                logger.info("The history table {} is populated in one pass because the source table is empty or its identifier is not an integer.", this.descriptor.getHistoryTableName());
+            }
+        } finally {
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(connection, preparedStatement, resultSet);
+        }
+
+        return idRange;
+    }
+
+    /**
+     * Check if the history table is populated with an insert select statement.
+     *
+     * In auto mode, an insert select statement is used if the source and
+     * target data sources are the same, or if their connections have the same
+     * URL, user name, and catalog.
+     *
+     * @return  true if the history table is populated with an insert select statement, otherwise false.
+     *
+     * @throws  SQLException  if unable to compare the data sources.
+     */
+    private boolean isInsertSelect() throws SQLException {
+
+        boolean insertSelect;
+
+        switch (this.descriptor.getPopulateInsertSelectMode()) {
+
+            case ALWAYS:
+                insertSelect = true;
+                break;
+
+            case NEVER:
+                insertSelect = false;
+                break;
+
+            default:
+                insertSelect = isSameDatabase(this.descriptor.getSourceDataSource(), this.descriptor.getTargetDataSource());
+                logger.debug("The source and target databases are {}the same for the history table {}.", (insertSelect) ? "" : "not ", this.descriptor.getHistoryTableName());
+                break;
+        }
+
+        return insertSelect;
+    }
+
+    /**
+     * Check if the value is an integer.
+     *
+     * @param  value  the value.
+     *
+     * @return  true if the value is an integer, otherwise false.
+     */
+    static boolean isInteger(final Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte ||
+               (value instanceof BigDecimal && ((BigDecimal)value).scale() <= 0) ||
+               value instanceof BigInteger;
+    }
+
+    /**
+     * Check if the data sources connect to the same database.
+     *
+     * @param  sourceDataSource  the source data source.
+     * @param  targetDataSource  the target data source.
+     *
+     * @return  true if the data sources connect to the same database, otherwise false.
+     *
+     * @throws  SQLException  if unable to compare the data sources.
+     */
+    private static boolean isSameDatabase(final DataSource sourceDataSource, final DataSource targetDataSource) throws SQLException {
+
+        boolean sameDatabase = (sourceDataSource == targetDataSource);
+
+        // Check if the data sources are different objects.
+        if (!sameDatabase) {
+
+            Connection sourceConnection = null;
+            Connection targetConnection = null;
+
+            try {
+
+                // Compare the connection URLs, user names, and catalogs.
+                sourceConnection = HistoryTableImpl.connect(sourceDataSource);
+                targetConnection = HistoryTableImpl.connect(targetDataSource);
+                DatabaseMetaData sourceMetaData = sourceConnection.getMetaData();
+                DatabaseMetaData targetMetaData = targetConnection.getMetaData();
+                sameDatabase = equals(sourceMetaData.getURL(), targetMetaData.getURL()) &&
+                               equals(sourceMetaData.getUserName(), targetMetaData.getUserName()) &&
+                               equals(sourceConnection.getCatalog(), targetConnection.getCatalog()) &&
+                               sourceMetaData.getURL() != null;
+            } finally {
+
+                // Disconnect from the databases.
+                HistoryTableImpl.disconnect(targetConnection, null, null);
+                HistoryTableImpl.disconnect(sourceConnection, null, null);
+            }
+        }
+
+        return sameDatabase;
+    }
+
+    /**
+     * Check if the values are equal or both null.
+     *
+     * @param  value1  the first value.
+     * @param  value2  the second value.
+     *
+     * @return  true if the values are equal or both null, otherwise false.
+     */
+    private static boolean equals(final Object value1, final Object value2) {
+        return (value1 == null) ? value2 == null : value1.equals(value2);
+    }
+
+    /**
+     * Split the identifier range into contiguous, inclusive ranges.
+     *
+     * @param  minimumId   the minimum identifier.
+     * @param  maximumId   the maximum identifier.
+     * @param  rangeCount  the maximum number of ranges.
+     *
+     * @return  the identifier ranges.
+     */
+    static List<long[]> split(final long minimumId, final long maximumId, final int rangeCount) {
+
+        List<long[]> idRanges = new ArrayList<long[]>();
+
+        // Calculate the range size with a BigInteger so that wide ranges do not overflow.
+        BigInteger span = BigInteger.valueOf(maximumId).subtract(BigInteger.valueOf(minimumId)).add(BigInteger.ONE);
+        BigInteger rangeSize = span.add(BigInteger.valueOf(rangeCount - 1)).divide(BigInteger.valueOf(rangeCount));
+        long lowerId = minimumId;
+
+        // Loop until the maximum identifier is covered.
+        while (true) {
+
+            BigInteger upperId = BigInteger.valueOf(lowerId).add(rangeSize).subtract(BigInteger.ONE);
+            if (upperId.compareTo(BigInteger.valueOf(maximumId)) >= 0) {
+                idRanges.add(new long[] {lowerId, maximumId});
+                break;
+            }
+
+            idRanges.add(new long[] {lowerId, upperId.longValue()});
+            lowerId = upperId.longValue() + 1;
+        }
+
+        return idRanges;
+    }
+
+    /**
+     * Roll back the uncommitted chunk.
+     *
+     * @param  connection  the target connection.
+     */
+    private static void rollback(final Connection connection) {
+
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.error("Unable to roll back the history table population.", e);
+        }
+    }
+}
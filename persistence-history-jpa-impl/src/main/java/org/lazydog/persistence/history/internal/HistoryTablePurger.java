@@ -0,0 +1,462 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History table purger.
+ *
+ * A background thread periodically deletes the history rows older than the
+ * retention days of their history tables.  The rows are deleted in chunks,
+ * paged by the history table identifier column, and each chunk is committed
+ * before the purger pauses and moves on to the next one, so the purger never
+ * holds many locks or a large transaction.  A partitioned history table is
+ * purged by dropping the partitions that end before the retention window.
+ *
+ * A delta history row is merged into the full history row before it, so
+ * the purger keeps the last full history row of each entity before the
+ * retention window, and the delta history rows after it, for the versions
+ * inside the window.  The delta encoder starts every entity with a full
+ * history row in each partition, so dropping a partition never removes the
+ * full history row of a delta history row that is kept.
+ *
+ * Before purging, the thread also creates the partitions of the current
+ * period and the periods ahead of it for the partitioned history tables,
+ * so the partitions and their view are not created on the write path.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryTablePurger {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTablePurger.class);
+    private static final long MILLISECONDS_PER_DAY = 86400000L;
+
+    private final int chunkSize;
+    private final Collection<HistoryTableDescriptor> descriptors;
+    private final ScheduledExecutorService executor;
+    private final long pause;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  descriptors  the history table descriptors to purge.
+     * @param  interval     the number of milliseconds between purges.
+     * @param  chunkSize    the maximum number of history rows deleted and committed at a time.
+     * @param  pause        the number of milliseconds to pause between chunks.
+     */
+    private HistoryTablePurger(final Collection<HistoryTableDescriptor> descriptors, final long interval, final int chunkSize, final long pause) {
+
+        this.chunkSize = chunkSize;
+        this.descriptors = descriptors;
+        this.pause = pause;
+
+        // Start the purger thread.
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "persistence-history-purger");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                HistoryTablePurger.this.purge();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        logger.info("Started the history table purger with an interval of {} ms, a chunk size of {}, and a pause of {} ms.", new Object[] {interval, chunkSize, pause});
+    }
+
+    /**
+     * Create a new instance of the history table purger class.
+     *
+     * @param  configuration  the persistence history configuration.
+     * @param  descriptors    the history table descriptors to purge.
+     *
+     * @return  a new instance of the history table purger class.
+     */
+    public static HistoryTablePurger newInstance(final PersistenceHistoryConfiguration configuration, final Collection<HistoryTableDescriptor> descriptors) {
+        return newInstance(
+                descriptors,
+                configuration.getPurgerInterval(),
+                configuration.getPurgerChunkSize(),
+                configuration.getPurgerPause());
+    }
+
+    /**
+     * Create a new instance of the history table purger class.
+     *
+     * @param  descriptors  the history table descriptors to purge.
+     * @param  interval     the number of milliseconds between purges.
+     * @param  chunkSize    the maximum number of history rows deleted and committed at a time.
+     * @param  pause        the number of milliseconds to pause between chunks.
+     *
+     * @return  a new instance of the history table purger class.
+     */
+    public static HistoryTablePurger newInstance(final Collection<HistoryTableDescriptor> descriptors, final long interval, final int chunkSize, final long pause) {
+        return new HistoryTablePurger(descriptors, interval, chunkSize, pause);
+    }
+
+    /**
+     * Create the partitions of the partitioned history tables and purge the
+     * expired history rows of the history tables with retention days.
+     */
+    private void purge() {
+
+        long now = System.currentTimeMillis();
+
+        // Loop through the history table descriptors.
+        for (HistoryTableDescriptor descriptor : this.descriptors) {
+
+            // Check if the purger is shut down.
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            // Check if the history table is partitioned.
+            if (descriptor.getPartitioner() != null) {
+
+                try {
+
+                    // Create the partitions ahead of the writers.
+                    descriptor.getPartitioner().maintain(new Date(now));
+                } catch (SQLException e) {
+                    logger.error("Unable to create the partitions of the history table {}.", descriptor.getHistoryTableName(), e);
+                } catch (RuntimeException e) {
+                    logger.error("Unable to create the partitions of the history table {}.", descriptor.getHistoryTableName(), e);
+                }
+            }
+
+            // Check if the history rows expire.
+            if (descriptor.getRetentionDays() > 0) {
+
+                try {
+                    this.purge(descriptor, new Date(now - descriptor.getRetentionDays() * MILLISECONDS_PER_DAY));
+                } catch (SQLException e) {
+                    descriptor.getMetrics().recordPurgeFailure();
+                    logger.error("Unable to purge the history table {}.", descriptor.getHistoryTableName(), e);
+                } catch (RuntimeException e) {
+                    descriptor.getMetrics().recordPurgeFailure();
+                    logger.error("Unable to purge the history table {}.", descriptor.getHistoryTableName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Purge the history rows with an action time before the time.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  time        the time.
+     *
+     * @return  the number of history rows deleted.
+     *
+     * @throws  SQLException  if unable to purge the history table.
+     */
+    int purge(final HistoryTableDescriptor descriptor, final Date time) throws SQLException {
+
+        int rowCount = 0;
+
+        // Check if the history table is partitioned.
+        if (descriptor.getPartitioner() != null) {
+
+            // Drop the expired partitions.
+            descriptor.getPartitioner().dropPartitionsBefore(time);
+        } else {
+
+            // Delete the expired history rows.
+            rowCount = this.purgeRows(descriptor, new Timestamp(time.getTime()));
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Create the select expired history identifiers SQL string.
+     *
+     * For delta storage, a history row is expired only if the entity has a
+     * later full history row before the time, so the last full history row
+     * before the time and the delta history rows after it are kept.
+     *
+     * @param  descriptor  the history table descriptor.
+     *
+     * @return  the select expired history identifiers SQL string, with the time parameters first.
+     */
+    private static String createSelectExpiredSQL(final HistoryTableDescriptor descriptor) {
+
+        String historyTableName = descriptor.getHistoryTableName();
+        String historyTableIdColumnName = descriptor.getHistoryTableIdColumnName();
+        StringBuilder selectSQL = new StringBuilder()
+                .append("select h.").append(historyTableIdColumnName)
+                .append(" from ").append(historyTableName).append(" h")
+                .append(" where h.action_time < ?");
+
+        // Check if the history table has delta storage.
+        if (descriptor.isDelta()) {
+
+            // Keep the history rows from the last full history row of the entity.
+            selectSQL.append(" and exists (select 1 from ").append(historyTableName).append(" f where");
+            for (String idColumnName : descriptor.getIdentifierAccessor().getColumnNames()) {
+                selectSQL.append(" f.").append(idColumnName).append(" = h.").append(idColumnName).append(" and");
+            }
+            selectSQL.append(" f.changed_columns is null and f.action_time < ?")
+                    .append(" and (f.action_time > h.action_time or (f.action_time = h.action_time and f.")
+                    .append(historyTableIdColumnName).append(" > h.").append(historyTableIdColumnName).append(")))");
+        }
+
+        return selectSQL.toString();
+    }
+
+    /**
+     * Delete the history rows by identifier in one batch.
+     *
+     * @param  deleteStatement  the delete by identifier statement.
+     * @param  ids              the history identifiers.
+     *
+     * @return  the number of history rows deleted.
+     *
+     * @throws  SQLException  if unable to delete the history rows.
+     */
+    private static int deleteRows(final PreparedStatement deleteStatement, final List<Long> ids) throws SQLException {
+
+        int deleteCount = 0;
+
+        // Loop through the history identifiers.
+        for (Long id : ids) {
+            deleteStatement.setLong(1, id);
+            deleteStatement.addBatch();
+        }
+
+        // Loop through the update counts.
+        for (int updateCount : deleteStatement.executeBatch()) {
+            deleteCount += (updateCount == Statement.SUCCESS_NO_INFO) ? 1 : updateCount;
+        }
+
+        return deleteCount;
+    }
+
+    /**
+     * Delete the expired history rows in the history identifier range.
+     *
+     * @param  deleteStatement  the delete by identifier range statement.
+     * @param  firstId          the first history identifier.
+     * @param  lastId           the last history identifier.
+     * @param  time             the time.
+     *
+     * @return  the number of history rows deleted.
+     *
+     * @throws  SQLException  if unable to delete the history rows.
+     */
+    private static int deleteRows(final PreparedStatement deleteStatement, final long firstId, final long lastId, final Timestamp time) throws SQLException {
+        deleteStatement.setLong(1, firstId);
+        deleteStatement.setLong(2, lastId);
+        deleteStatement.setTimestamp(3, time);
+        return deleteStatement.executeUpdate();
+    }
+
+    /**
+     * Prepare a select statement that returns at most the chunk size rows.
+     *
+     * @param  connection  the target connection.
+     * @param  sql         the select SQL string.
+     * @param  chunkSize   the chunk size.
+     *
+     * @return  the prepared statement.
+     *
+     * @throws  SQLException  if unable to prepare the statement.
+     */
+    private static PreparedStatement prepareSelect(final Connection connection, final String sql, final int chunkSize) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        preparedStatement.setMaxRows(chunkSize);
+        preparedStatement.setFetchSize(chunkSize);
+        return preparedStatement;
+    }
+
+    /**
+     * Delete the history rows with an action time before the time, one
+     * chunk at a time.
+     *
+     * Each chunk is the next range of at most chunk size expired history
+     * identifiers, found with a keyset query on the history table identifier
+     * column, so no chunk rescans the rows deleted before it.  For delta
+     * storage, the history rows of a chunk are deleted by identifier in one
+     * batch, since the full history rows that are kept are interleaved
+     * with them.
+     *
+     * @param  descriptor  the history table descriptor.
+     * @param  time        the time.
+     *
+     * @return  the number of history rows deleted.
+     *
+     * @throws  SQLException  if unable to delete the history rows.
+     */
+    private int purgeRows(final HistoryTableDescriptor descriptor, final Timestamp time) throws SQLException {
+
+        Connection connection = null;
+        PreparedStatement selectFirstStatement = null;
+        PreparedStatement selectNextStatement = null;
+        PreparedStatement deleteStatement = null;
+        boolean autoCommit = true;
+        int rowCount = 0;
+
+        try {
+
+            String historyTableName = descriptor.getHistoryTableName();
+            String historyTableIdColumnName = descriptor.getHistoryTableIdColumnName();
+
+            // Connect to the target database.
+            connection = HistoryTableImpl.connect(descriptor.getTargetDataSource());
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            boolean delta = descriptor.isDelta();
+            int timeCount = (delta) ? 2 : 1;
+            String selectSQL = createSelectExpiredSQL(descriptor);
+            String orderBySQL = " order by h." + historyTableIdColumnName;
+            selectFirstStatement = prepareSelect(connection, selectSQL + orderBySQL, this.chunkSize);
+            selectNextStatement = prepareSelect(connection, selectSQL + " and h." + historyTableIdColumnName + " > ?" + orderBySQL, this.chunkSize);
+            deleteStatement = (delta) ?
+                    connection.prepareStatement("delete from " + historyTableName + " where " + historyTableIdColumnName + " = ?") :
+                    connection.prepareStatement("delete from " + historyTableName + " where " + historyTableIdColumnName + " between ? and ? and action_time < ?");
+
+            try {
+
+                PreparedStatement selectStatement = selectFirstStatement;
+                boolean more = true;
+
+                while (more && !Thread.currentThread().isInterrupted()) {
+
+                    long startTime = System.nanoTime();
+
+                    // Find the identifiers of the chunk.
+                    List<Long> ids = new ArrayList<Long>();
+                    for (int index = 1; index <= timeCount; index++) {
+                        selectStatement.setTimestamp(index, time);
+                    }
+                    ResultSet resultSet = selectStatement.executeQuery();
+                    try {
+                        while (resultSet.next()) {
+                            ids.add(resultSet.getLong(1));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    int chunkRowCount = ids.size();
+
+                    // Check if there are expired history rows.
+                    if (chunkRowCount > 0) {
+
+                        long lastId = ids.get(chunkRowCount - 1);
+
+                        // Delete and commit the chunk.
+                        int deleteCount = (delta) ? deleteRows(deleteStatement, ids) : deleteRows(deleteStatement, ids.get(0), lastId, time);
+                        connection.commit();
+                        descriptor.getMetrics().recordPurge(startTime, deleteCount);
+                        rowCount += deleteCount;
+
+                        // Continue after the chunk.
+                        selectStatement = selectNextStatement;
+                        selectStatement.setLong(timeCount + 1, lastId);
+                    }
+
+                    // Check if this was the last chunk.
+                    more = (chunkRowCount >= this.chunkSize);
+
+                    // Pause to leave the history table to the writers.
+                    if (more && this.pause > 0) {
+                        try {
+                            Thread.sleep(this.pause);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            } catch (RuntimeException e) {
+                rollback(connection);
+                throw e;
+            }
+
+            // Check if history rows were deleted.
+            if (rowCount > 0) {
+                logger.info("Purged {} history rows from the history table {}.", rowCount, historyTableName);
+            }
+        } finally {
+
+            // Restore the auto commit mode.
+            if (connection != null) {
+                try {
+                    connection.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    logger.error("Unable to restore the auto commit mode.", e);
+                }
+            }
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(null, selectFirstStatement, null);
+            HistoryTableImpl.disconnect(null, selectNextStatement, null);
+            HistoryTableImpl.disconnect(connection, deleteStatement, null);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Roll back the purge chunk.
+     *
+     * @param  connection  the target connection.
+     */
+    private static void rollback(final Connection connection) {
+
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.error("Unable to roll back the history table purge.", e);
+        }
+    }
+
+    /**
+     * Shut down the purger.
+     *
+     * A purge in progress stops after its current chunk.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+}
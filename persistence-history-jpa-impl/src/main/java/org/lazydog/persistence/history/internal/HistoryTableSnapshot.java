@@ -0,0 +1,326 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.lazydog.persistence.history.HistoryTable;
+import org.lazydog.persistence.history.HistoryVersion;
+import org.lazydog.persistence.history.HistoryVersionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * History table snapshot.
+ *
+ * Reconstructs a history table as of a time in one ordered scan of the
+ * versions at or before the time.  Only the last version of the current
+ * identifier is held while scanning, and it is handed to the handler when
+ * the identifier changes, unless it is a deletion.  The rows are fetched
+ * from the database populate fetch size rows at a time.
+ *
+ * If the populate parallelism is greater than one and the identifier is an
+ * integer, the history table is split into identifier ranges that are
+ * scanned in parallel.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryTableSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryTableSnapshot.class);
+    private static final int RANGES_PER_WORKER = 4;
+
+    private final HistoryTableDescriptor descriptor;
+    private final Object entity;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  entity      the entity.
+     * @param  descriptor  the history table descriptor.
+     */
+    private HistoryTableSnapshot(final Object entity, final HistoryTableDescriptor descriptor) {
+        this.descriptor = descriptor;
+        this.entity = entity;
+    }
+
+    /**
+     * Get the identifier range of the history table.
+     *
+     * @return  the minimum and maximum identifiers, or null if the history table is empty or its identifier is not an integer.
+     *
+     * @throws  SQLException  if unable to get the identifier range.
+     */
+    private long[] getIdRange() throws SQLException {
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        long[] idRange = null;
+
+        try {
+
+            // Get the minimum and maximum identifiers.
+            connection = HistoryTableImpl.connect(this.descriptor.getTargetDataSource());
+            String selectIdRangeSQL = this.descriptor.getSelectHistoryIdRangeSQL();
+            logger.trace("Get the identifier range with SQL: {}", selectIdRangeSQL);
+            preparedStatement = connection.prepareStatement(selectIdRangeSQL);
+            resultSet = preparedStatement.executeQuery();
+
+            // Check if the identifiers are integers.
+            if (resultSet.next() && HistoryTablePopulator.isInteger(resultSet.getObject(1)) && HistoryTablePopulator.isInteger(resultSet.getObject(2))) {
+                idRange = new long[] {resultSet.getLong(1), resultSet.getLong(2)};
+            }
+        } finally {
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(connection, preparedStatement, resultSet);
+        }
+
+        return idRange;
+    }
+
+    /**
+     * Get the identifier of the history version.
+     *
+     * @param  version  the history version.
+     *
+     * @return  the identifier values in identifier column order.
+     */
+    private Object[] getId(final HistoryVersion version) {
+
+        List<String> idColumnNames = this.descriptor.getIdentifierAccessor().getColumnNames();
+        Object[] id = new Object[idColumnNames.size()];
+
+        // Loop through the identifier column names.
+        for (int index = 0; index < id.length; index++) {
+            id[index] = version.getValues().get(idColumnNames.get(index));
+        }
+
+        return id;
+    }
+
+    /**
+     * Hand the history version to the handler unless it is a deletion.
+     *
+     * @param  version  the history version.
+     * @param  handler  the history version handler.
+     *
+     * @return  1 if the history version was handled, otherwise 0.
+     */
+    private static long handle(final HistoryVersion version, final HistoryVersionHandler handler) {
+
+        long count = 0;
+
+        // Check if the entity was not deleted.
+        if (version.getAction() != HistoryTable.Action.DELETE) {
+
+            // The handler is never called concurrently.
+            synchronized (handler) {
+                handler.handle(version);
+            }
+
+            count = 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Create a new instance of the history table snapshot class.
+     *
+     * @param  entity      the entity.
+     * @param  descriptor  the history table descriptor.
+     *
+     * @return  a new instance of the history table snapshot class.
+     */
+    public static HistoryTableSnapshot newInstance(final Object entity, final HistoryTableDescriptor descriptor) {
+        return new HistoryTableSnapshot(entity, descriptor);
+    }
+
+    /**
+     * Scan the versions selected by the SQL string and hand the last version
+     * of each identifier to the handler.
+     *
+     * @param  selectSnapshotSQL  the select snapshot SQL string.
+     * @param  parameters         the parameters after the time.
+     * @param  time               the time.
+     * @param  handler            the history version handler.
+     *
+     * @return  the number of versions handled.
+     *
+     * @throws  SQLException  if unable to scan the versions.
+     */
+    private long scan(final String selectSnapshotSQL, final Object[] parameters, final Timestamp time, final HistoryVersionHandler handler) throws SQLException {
+
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        HistoryVersionIteratorImpl iterator = null;
+        long count = 0;
+
+        try {
+
+            // Select the versions.
+            connection = HistoryTableImpl.connect(this.descriptor.getTargetDataSource());
+            logger.trace("Scan the snapshot with SQL: {}", selectSnapshotSQL);
+            preparedStatement = connection.prepareStatement(selectSnapshotSQL);
+            preparedStatement.setFetchSize(this.descriptor.getPopulateFetchSize());
+            preparedStatement.setTimestamp(1, time);
+            for (int index = 0; index < parameters.length; index++) {
+                preparedStatement.setObject(index + 2, parameters[index]);
+            }
+            iterator = HistoryVersionIteratorImpl.newInstance(this.entity, this.descriptor, connection, preparedStatement, preparedStatement.executeQuery());
+
+            HistoryVersion lastVersion = null;
+            Object[] lastId = null;
+
+            // Loop through the versions.
+            while (iterator.hasNext()) {
+
+                HistoryVersion version = iterator.next();
+                Object[] id = this.getId(version);
+
+                // Check if the version starts a new identifier.
+                if (lastVersion != null && !Arrays.equals(id, lastId)) {
+                    count += handle(lastVersion, handler);
+                }
+
+                lastVersion = version;
+                lastId = id;
+            }
+
+            // Check if there is a version for the last identifier.
+            if (lastVersion != null) {
+                count += handle(lastVersion, handler);
+            }
+        } finally {
+
+            // Disconnect from the database.
+            if (iterator != null) {
+                iterator.close();
+            } else {
+                HistoryTableImpl.disconnect(connection, preparedStatement, null);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Scan the identifier ranges in parallel.
+     *
+     * @param  minimumId  the minimum identifier.
+     * @param  maximumId  the maximum identifier.
+     * @param  time       the time.
+     * @param  handler    the history version handler.
+     *
+     * @return  the number of versions handled.
+     *
+     * @throws  SQLException  if unable to scan the versions.
+     */
+    private long scanInParallel(final long minimumId, final long maximumId, final Timestamp time, final HistoryVersionHandler handler) throws SQLException {
+
+        int parallelism = this.descriptor.getPopulateParallelism();
+        List<long[]> idRanges = HistoryTablePopulator.split(minimumId, maximumId, parallelism * RANGES_PER_WORKER);
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, idRanges.size()));
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        long count = 0;
+
+        try {
+
+            // Loop through the identifier ranges.
+            for (final long[] idRange : idRanges) {
+
+                // Scan the identifier range on a worker.
+                futures.add(executorService.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws SQLException {
+                        return HistoryTableSnapshot.this.scan(
+                                HistoryTableSnapshot.this.descriptor.getSelectSnapshotInRangeSQL(),
+                                new Object[] {idRange[0], idRange[1]},
+                                time,
+                                handler);
+                    }
+                }));
+            }
+
+            // Loop through the results.
+            for (Future<Long> future : futures) {
+                count += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reading a snapshot of the history table " + this.descriptor.getHistoryTableName() + ".", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException)e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new SQLException("Unable to read a snapshot of the history table " + this.descriptor.getHistoryTableName() + ".", e.getCause());
+        } finally {
+
+            // Stop the workers.
+            executorService.shutdownNow();
+        }
+
+        return count;
+    }
+
+    /**
+     * Stream the snapshot of the history table as of the time.
+     *
+     * @param  time     the time.
+     * @param  handler  the history version handler.
+     *
+     * @return  the number of versions handled.
+     *
+     * @throws  SQLException  if unable to read the snapshot.
+     */
+    public long snapshot(final Date time, final HistoryVersionHandler handler) throws SQLException {
+
+        long count;
+        Timestamp timestamp = new Timestamp(time.getTime());
+        long[] idRange = (this.descriptor.getPopulateParallelism() > 1 && !this.descriptor.getIdentifierAccessor().isComposite()) ? this.getIdRange() : null;
+
+        // Check if the history table can be split into identifier ranges.
+        if (idRange != null) {
+            count = this.scanInParallel(idRange[0], idRange[1], timestamp, handler);
+        } else {
+            count = this.scan(this.descriptor.getSelectSnapshotSQL(), new Object[0], timestamp, handler);
+        }
+
+        logger.debug("Read a snapshot of {} rows from the history table {}.", count, this.descriptor.getHistoryTableName());
+
+        return count;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.lazydog.persistence.history.HistoryTable;
+import org.lazydog.persistence.history.HistoryTableException;
+import org.lazydog.persistence.history.HistoryVersion;
+import org.lazydog.persistence.history.HistoryVersionIterator;
+
+/**
+ * History version iterator implementation.
+ *
+ * The iterator reads one history version ahead from an open result set and
+ * releases the database connection as soon as the result set is exhausted,
+ * so a fully read iterator does not need to be closed.
+ *
+ * If the history table has delta storage, the delta history rows are merged
+ * into the column values of the previous history row of the same entity,
+ * so every history version holds all column values.  A delta history row
+ * without a full history row before it cannot be read.
+ *
+ * @author  Ron Rickard
+ */
+final class HistoryVersionIteratorImpl implements HistoryVersionIterator {
+
+    private final List<String> columnNames;
+    private Connection connection;
+    private final HistoryTableDescriptor descriptor;
+    private final Object entity;
+    private HistoryVersion nextVersion;
+    private PreparedStatement preparedStatement;
+    private ResultSet resultSet;
+    private Object[] state;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  entity             the entity.
+     * @param  descriptor         the history table descriptor.
+     * @param  connection         the database connection.
+     * @param  preparedStatement  the executed prepared statement.
+     * @param  resultSet          the result set.
+     * @param  state              the column values before the first history row, or null if there are none.
+     */
+    private HistoryVersionIteratorImpl(final Object entity, final HistoryTableDescriptor descriptor, final Connection connection, final PreparedStatement preparedStatement, final ResultSet resultSet, final Object[] state) {
+        this.columnNames = descriptor.getColumnNames();
+        this.connection = connection;
+        this.descriptor = descriptor;
+        this.entity = entity;
+        this.preparedStatement = preparedStatement;
+        this.resultSet = resultSet;
+        this.state = state;
+    }
+
+    @Override
+    public void close() {
+
+        // Check if the iterator is open.
+        if (this.connection != null) {
+
+            // Disconnect from the database.
+            HistoryTableImpl.disconnect(this.connection, this.preparedStatement, this.resultSet);
+            this.connection = null;
+            this.preparedStatement = null;
+            this.resultSet = null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        // Check if the next version is not read and the iterator is open.
+        if (this.nextVersion == null && this.connection != null) {
+
+            try {
+
+                // Check if there is another row.
+                if (this.resultSet.next()) {
+                    this.nextVersion = this.read();
+                } else {
+                    this.close();
+                }
+            } catch (SQLException e) {
+                this.close();
+                throw new HistoryTableException(this.entity, "Unable to read a version from the history table " + this.descriptor.getHistoryTableName() + ".", e);
+            }
+        }
+
+        return this.nextVersion != null;
+    }
+
+    @Override
+    public HistoryVersion next() {
+
+        // Check if there is no next version.
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        HistoryVersion version = this.nextVersion;
+        this.nextVersion = null;
+
+        return version;
+    }
+
+    /**
+     * Check if the column values are for the same entity.
+     *
+     * @param  values1    the first column values.
+     * @param  values2    the second column values.
+     * @param  idColumns  true for each identifier column, in column order.
+     *
+     * @return  true if the identifier column values are equal, otherwise false.
+     */
+    private static boolean hasSameId(final Object[] values1, final Object[] values2, final boolean[] idColumns) {
+
+        boolean hasSameId = true;
+
+        // Loop through the identifier columns.
+        for (int index = 0; index < idColumns.length && hasSameId; index++) {
+            hasSameId = !idColumns[index] || (values1[index] == null ? values2[index] == null : values1[index].equals(values2[index]));
+        }
+
+        return hasSameId;
+    }
+
+    /**
+     * Read the history version from the current row.
+     *
+     * @return  the history version.
+     *
+     * @throws  SQLException  if unable to read the history version.
+     */
+    private HistoryVersion read() throws SQLException {
+
+        Object[] values = this.descriptor.getRowCopier().read(this.resultSet);
+        int columnCount = values.length;
+
+        // Check if the history table has delta storage.
+        if (this.descriptor.isDelta()) {
+
+            String changedColumns = this.resultSet.getString(columnCount + 5);
+            boolean[] idColumns = this.descriptor.getDeltaEncoder().getIdColumns();
+
+            // Start over on a full history row or another entity.
+            if (this.state == null || changedColumns == null || !hasSameId(this.state, values, idColumns)) {
+
+                // Check if the full history row was purged.
+                if (changedColumns != null) {
+                    throw new SQLException("The full history row of a delta history row is missing from the history table " + this.descriptor.getHistoryTableName() + ".");
+                }
+
+                this.state = new Object[columnCount];
+            }
+
+            // Merge the history row into the column values of the previous history row.
+            HistoryDeltaEncoder.merge(this.state, values, changedColumns, idColumns);
+            values = this.state.clone();
+        }
+
+        return newVersion(
+                this.columnNames,
+                values,
+                this.resultSet.getLong(columnCount + 4),
+                this.resultSet.getString(columnCount + 1),
+                this.resultSet.getString(columnCount + 2),
+                this.resultSet.getTimestamp(columnCount + 3));
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("History versions cannot be removed.");
+    }
+
+    /**
+     * Create a new instance of the history version iterator implementation
+     * class.
+     *
+     * The iterator takes ownership of the connection, prepared statement,
+     * and result set.
+     *
+     * @param  entity             the entity.
+     * @param  descriptor         the history table descriptor.
+     * @param  connection         the database connection.
+     * @param  preparedStatement  the executed prepared statement.
+     * @param  resultSet          the result set.
+     *
+     * @return  a new instance of the history version iterator implementation class.
+     */
+    static HistoryVersionIteratorImpl newInstance(final Object entity, final HistoryTableDescriptor descriptor, final Connection connection, final PreparedStatement preparedStatement, final ResultSet resultSet) {
+        return new HistoryVersionIteratorImpl(entity, descriptor, connection, preparedStatement, resultSet, null);
+    }
+
+    /**
+     * Create a new instance of the history version iterator implementation
+     * class, starting from the column values of an earlier history version.
+     *
+     * The iterator takes ownership of the connection, prepared statement,
+     * and result set.
+     *
+     * @param  entity             the entity.
+     * @param  descriptor         the history table descriptor.
+     * @param  connection         the database connection.
+     * @param  preparedStatement  the executed prepared statement.
+     * @param  resultSet          the result set.
+     * @param  state              the column values before the first history row, or null if there are none.
+     *
+     * @return  a new instance of the history version iterator implementation class.
+     */
+    static HistoryVersionIteratorImpl newInstance(final Object entity, final HistoryTableDescriptor descriptor, final Connection connection, final PreparedStatement preparedStatement, final ResultSet resultSet, final Object[] state) {
+        return new HistoryVersionIteratorImpl(entity, descriptor, connection, preparedStatement, resultSet, state);
+    }
+
+    /**
+     * Create a new history version.
+     *
+     * @param  columnNames  the column names in column order.
+     * @param  values       the column values in column order.
+     * @param  historyId    the history identifier.
+     * @param  action       the action.
+     * @param  actionBy     the action by.
+     * @param  actionTime   the action time.
+     *
+     * @return  a new history version.
+     */
+    static HistoryVersion newVersion(final List<String> columnNames, final Object[] values, final long historyId, final String action, final String actionBy, final Timestamp actionTime) {
+
+        Map<String,Object> valueMap = new LinkedHashMap<String,Object>();
+
+        // Loop through the column values.
+        for (int index = 0; index < values.length; index++) {
+            valueMap.put(columnNames.get(index), values[index]);
+        }
+
+        return HistoryVersion.newInstance(historyId, valueMap, HistoryTable.Action.valueOf(action), actionBy, actionTime);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Identifier accessor.
+ *
+ * The identifier accessor reads the identifier of an entity and binds it to
+ * the where clause of a statement.  The identifier columns are mapped once
+ * to the fields or getters of the entity class, and are bound with the typed
+ * set method for their SQL type, so integer, long, string, UUID, and
+ * composite identifiers are supported.
+ *
+ * @author  Ron Rickard
+ */
+final class IdentifierAccessor {
+
+    private final List<String> columnNames;
+    private final EntityAccessor entityAccessor;
+    private final RowCopier rowCopier;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  entityClass          the entity class.
+     * @param  idColumnDefinitions  the identifier column definitions.
+     *
+     * @throws  IllegalArgumentException  if an identifier column cannot be mapped to the entity class.
+     */
+    private IdentifierAccessor(final Class<?> entityClass, final List<ColumnDefinition> idColumnDefinitions) {
+
+        List<String> idColumnNames = new ArrayList<String>();
+
+        // Loop through the identifier column definitions.
+        for (ColumnDefinition idColumnDefinition : idColumnDefinitions) {
+            idColumnNames.add(idColumnDefinition.getColumnName());
+        }
+
+        this.columnNames = idColumnNames;
+        this.entityAccessor = EntityAccessor.newInstance(entityClass, idColumnNames);
+        this.rowCopier = RowCopier.newInstance(idColumnDefinitions);
+    }
+
+    /**
+     * Bind the identifier to the prepared statement, starting at the first
+     * parameter.
+     *
+     * @param  preparedStatement  the prepared statement.
+     * @param  id                 the identifier values in identifier column order.
+     *
+     * @throws  SQLException  if unable to bind the identifier.
+     */
+    public void bind(final PreparedStatement preparedStatement, final Object[] id) throws SQLException {
+        this.rowCopier.bind(preparedStatement, id);
+    }
+
+    /**
+     * Get the identifier column names.
+     *
+     * @return  the identifier column names.
+     */
+    public List<String> getColumnNames() {
+        return this.columnNames;
+    }
+
+    /**
+     * Get the identifier of the entity.
+     *
+     * @param  entity  the entity.
+     *
+     * @return  the identifier values in identifier column order.
+     *
+     * @throws  IllegalAccessException     if unable to read the identifier.
+     * @throws  InvocationTargetException  if a getter throws an exception.
+     */
+    public Object[] getId(final Object entity) throws IllegalAccessException, InvocationTargetException {
+        return this.entityAccessor.getValues(entity);
+    }
+
+    /**
+     * Check if the identifier is composite.
+     *
+     * @return  true if the identifier has more than one column, otherwise false.
+     */
+    public boolean isComposite() {
+        return this.columnNames.size() > 1;
+    }
+
+    /**
+     * Create a new instance of the identifier accessor class.
+     *
+     * @param  entityClass          the entity class.
+     * @param  idColumnDefinitions  the identifier column definitions.
+     *
+     * @return  a new instance of the identifier accessor class.
+     *
+     * @throws  IllegalArgumentException  if an identifier column cannot be mapped to the entity class.
+     */
+    public static IdentifierAccessor newInstance(final Class<?> entityClass, final List<ColumnDefinition> idColumnDefinitions) {
+        return new IdentifierAccessor(entityClass, idColumnDefinitions);
+    }
+}
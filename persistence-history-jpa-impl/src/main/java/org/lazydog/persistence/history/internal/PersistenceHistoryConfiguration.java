@@ -20,8 +20,11 @@ package org.lazydog.persistence.history.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.XMLConstants;
@@ -49,40 +52,179 @@ import org.xml.sax.SAXException;
 public class PersistenceHistoryConfiguration {
 
     private static final Logger logger = LoggerFactory.getLogger(PersistenceHistoryConfiguration.class);
+    private static final int DEFAULT_ASYNCHRONOUS_WRITER_BATCH_SIZE = 100;
+    private static final int DEFAULT_ASYNCHRONOUS_WRITER_FLUSH_INTERVAL = 1000;
+    private static final int DEFAULT_ASYNCHRONOUS_WRITER_QUEUE_CAPACITY = 10000;
+    private static final int DEFAULT_ASYNCHRONOUS_WRITER_THREADS = 1;
+    private static final int DEFAULT_DELTA_CACHE_SIZE = 1000;
     private static final String DEFAULT_HISTORY_TABLE_SUFFIX = "_history";
+    private static final int DEFAULT_PARTITIONS_AHEAD = 1;
+    private static final int DEFAULT_POPULATE_COMMIT_SIZE = 1000;
+    private static final int DEFAULT_POPULATE_FETCH_SIZE = 1000;
+    private static final int DEFAULT_POPULATE_PARALLELISM = 1;
+    private static final int DEFAULT_PURGER_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_PURGER_INTERVAL = 3600000;
+    private static final int DEFAULT_PURGER_PAUSE = 100;
+    private static final int DEFAULT_RETENTION_DAYS = 0;
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 10;
+    private static final int DEFAULT_SPOOL_CAPACITY = 67108864;
+    private static final int DEFAULT_SPOOL_REPLAY_BATCH_SIZE = 1000;
+    private static final int DEFAULT_SPOOL_REPLAY_INTERVAL = 1000;
+    private static final int DEFAULT_TARGET_CONNECTION_POOL_CONNECTIONS = 2;
+    private static final int DEFAULT_TARGET_CONNECTION_POOL_STATEMENT_CACHE_SIZE = 32;
+    private static final int DEFAULT_TARGET_CONNECTION_POOL_VALIDATION_INTERVAL = 30000;
     private static final String DEFAULT_TABLE_ID_COLUMN_SUFFIX = "_id";
+    private static final int DEFAULT_UNCHANGED_CACHE_SIZE = 1000;
+    private static final String DEFAULT_TRANSACTION_BUFFER_REGISTRY = "java:comp/TransactionSynchronizationRegistry";
     private static final String CONFIGURATION_FILE = "META-INF/persistence-history.xml";
     private static final String SCHEMA_FILE = "META-INF/xsd/persistence-history.xsd";
+
+    /**
+     * Capture mode.
+     */
+    public static enum CaptureMode {
+        ENTITY,
+        SOURCE;
+    };
+
+    /**
+     * Partition period.
+     */
+    public static enum PartitionPeriod {
+        NONE,
+        DAY,
+        MONTH,
+        YEAR;
+    };
+
+    /**
+     * Spool mode.
+     */
+    public static enum SpoolMode {
+        ALWAYS,
+        FAILOVER;
+    };
+
+    /**
+     * Storage mode.
+     */
+    public static enum StorageMode {
+        FULL,
+        DELTA;
+    };
+
+    /**
+     * Insert select mode.
+     */
+    public static enum InsertSelectMode {
+        ALWAYS,
+        AUTO,
+        NEVER;
+    };
+
     private static enum ELEMENT_NAME {
+        ASYNCHRONOUS_WRITER,
         ENTITY,
         HISTORY_TABLE,
         HISTORY_TABLE_SUFFIX,
+        METRICS,
         PERSISTENCE_HISTORY,
+        POPULATE,
+        PURGER,
         SOURCE_DATA_SOURCE,
+        SPOOL,
         TABLE,
-        TARGET_DATA_SOURCE;
+        TARGET_CONNECTION_POOL,
+        TARGET_DATA_SOURCE,
+        TRANSACTION_BUFFER;
     };
     private static enum ATTRIBUTE_NAME {
+        BATCH_SIZE,
+        CAPACITY,
+        CAPTURE,
+        CHUNK_SIZE,
         CLASS,
+        COALESCE,
+        COMMIT_SIZE,
+        CONNECTIONS,
+        DELTA_CACHE_SIZE,
+        DIRECTORY,
+        FETCH_SIZE,
+        FLUSH_INTERVAL,
         ID,
-        NAME;
+        INSERT_SELECT,
+        INTERVAL,
+        MODE,
+        NAME,
+        PARALLELISM,
+        PARTITION,
+        PARTITIONS_AHEAD,
+        PAUSE,
+        QUEUE_CAPACITY,
+        REGISTRY,
+        REPLAY_BATCH_SIZE,
+        REPLAY_INTERVAL,
+        RETENTION_DAYS,
+        SKIP_UNCHANGED,
+        SNAPSHOT_INTERVAL,
+        STATEMENT_CACHE_SIZE,
+        STORAGE,
+        THREADS,
+        UNCHANGED_CACHE_SIZE,
+        VALIDATION_INTERVAL;
     }
 
-    private Map<String,EntityData> entityDataMap;
+    private static final ConcurrentMap<ClassLoader,PersistenceHistoryConfiguration> configurations = new ConcurrentHashMap<ClassLoader,PersistenceHistoryConfiguration>();
+    private static final ConcurrentMap<ClassLoader,Schema> schemas = new ConcurrentHashMap<ClassLoader,Schema>();
+
+    private boolean asynchronousWriterEnabled;
+    private int asynchronousWriterBatchSize = DEFAULT_ASYNCHRONOUS_WRITER_BATCH_SIZE;
+    private int asynchronousWriterFlushInterval = DEFAULT_ASYNCHRONOUS_WRITER_FLUSH_INTERVAL;
+    private int asynchronousWriterQueueCapacity = DEFAULT_ASYNCHRONOUS_WRITER_QUEUE_CAPACITY;
+    private int asynchronousWriterThreads = DEFAULT_ASYNCHRONOUS_WRITER_THREADS;
+    private final ClassLoader classLoader;
+    private Map<String,EntityData> entityDataMap = Collections.emptyMap();
     private String historyTableSuffix;
+    private boolean loaded;
+    private boolean metricsEnabled;
+    private int populateCommitSize = DEFAULT_POPULATE_COMMIT_SIZE;
+    private InsertSelectMode populateInsertSelectMode = InsertSelectMode.AUTO;
+    private int populateFetchSize = DEFAULT_POPULATE_FETCH_SIZE;
+    private int populateParallelism = DEFAULT_POPULATE_PARALLELISM;
+    private int purgerChunkSize = DEFAULT_PURGER_CHUNK_SIZE;
+    private boolean purgerEnabled;
+    private int purgerInterval = DEFAULT_PURGER_INTERVAL;
+    private int purgerPause = DEFAULT_PURGER_PAUSE;
     private String sourceDataSource;
+    private int spoolCapacity = DEFAULT_SPOOL_CAPACITY;
+    private String spoolDirectory;
+    private boolean spoolEnabled;
+    private SpoolMode spoolMode = SpoolMode.FAILOVER;
+    private int spoolReplayBatchSize = DEFAULT_SPOOL_REPLAY_BATCH_SIZE;
+    private int spoolReplayInterval = DEFAULT_SPOOL_REPLAY_INTERVAL;
+    private int targetConnectionPoolConnections = DEFAULT_TARGET_CONNECTION_POOL_CONNECTIONS;
+    private boolean targetConnectionPoolEnabled;
+    private int targetConnectionPoolStatementCacheSize = DEFAULT_TARGET_CONNECTION_POOL_STATEMENT_CACHE_SIZE;
+    private int targetConnectionPoolValidationInterval = DEFAULT_TARGET_CONNECTION_POOL_VALIDATION_INTERVAL;
     private String targetDataSource;
+    private boolean transactionBufferEnabled;
+    private String transactionBufferRegistry = DEFAULT_TRANSACTION_BUFFER_REGISTRY;
 
     /**
      * Private constructor.
+     *
+     * @param  classLoader  the class loader used to load the configuration file.
      */
-    private PersistenceHistoryConfiguration() {
+    private PersistenceHistoryConfiguration(ClassLoader classLoader) {
+
+        this.classLoader = classLoader;
 
         try {
 
             // Validate and parse the persistence history configuration file.
-            validate();
-            parse();
+            this.validate();
+            this.parse();
+            this.loaded = true;
         } catch (Exception e) {
             logger.error("Unable to parse the {} file.", CONFIGURATION_FILE, e);
         }
@@ -127,13 +269,105 @@ public class PersistenceHistoryConfiguration {
         return toUnderscore(getSimpleName(entityClassName));
     }
 
+    /**
+     * Get the asynchronous writer batch size.
+     *
+     * @return  the maximum number of history rows written in one batch.
+     */
+    public int getAsynchronousWriterBatchSize() {
+        return this.asynchronousWriterBatchSize;
+    }
+
+    /**
+     * Get the asynchronous writer flush interval.
+     *
+     * @return  the maximum number of milliseconds a history row waits for its batch to fill.
+     */
+    public int getAsynchronousWriterFlushInterval() {
+        return this.asynchronousWriterFlushInterval;
+    }
+
+    /**
+     * Get the asynchronous writer queue capacity.
+     *
+     * @return  the maximum number of history rows waiting to be written.
+     */
+    public int getAsynchronousWriterQueueCapacity() {
+        return this.asynchronousWriterQueueCapacity;
+    }
+
+    /**
+     * Get the number of asynchronous writer threads.
+     *
+     * @return  the number of asynchronous writer threads.
+     */
+    public int getAsynchronousWriterThreads() {
+        return this.asynchronousWriterThreads;
+    }
+
+    /**
+     * Get the capture mode.
+     *
+     * @param  captureMode  the capture mode attribute data.
+     *
+     * @return  the capture mode.
+     */
+    private static CaptureMode getCaptureMode(String captureMode) {
+        return (captureMode.isEmpty()) ? CaptureMode.SOURCE : CaptureMode.valueOf(captureMode.toUpperCase());
+    }
+
+    /**
+     * Get the capture mode for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the capture mode.
+     */
+    public CaptureMode getCaptureMode(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getCaptureMode();
+    }
+
+    /**
+     * Check if repeated changes to the same entity within a transaction are
+     * coalesced for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  true if the changes are coalesced, otherwise false.
+     */
+    public boolean isCoalesce(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).isCoalesce();
+    }
+
+    /**
+     * Check if updates that do not change any column value are skipped for
+     * the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  true if unchanged updates are skipped, otherwise false.
+     */
+    public boolean isSkipUnchanged(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).isSkipUnchanged();
+    }
+
+    /**
+     * Get the class loader used to load the configuration.
+     *
+     * @return  the context class loader, or the class loader of this class if there is no context class loader.
+     */
+    private static ClassLoader getClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return (classLoader != null) ? classLoader : PersistenceHistoryConfiguration.class.getClassLoader();
+    }
+
     /**
      * Get the configuration input stream.
      * 
      * @return  the configuration input stream.
      */
-    private static InputStream getConfigurationInputStream() {
-        return Thread.currentThread().getContextClassLoader().getResourceAsStream(CONFIGURATION_FILE);
+    private InputStream getConfigurationInputStream() {
+        return this.classLoader.getResourceAsStream(CONFIGURATION_FILE);
     }
 
     /**
@@ -141,8 +375,8 @@ public class PersistenceHistoryConfiguration {
      *
      * @return  the configuration source.
      */
-    private static Source getConfigurationSource() {
-        return new StreamSource(getConfigurationInputStream());
+    private Source getConfigurationSource() {
+        return new StreamSource(this.getConfigurationInputStream());
     }
 
     /**
@@ -154,11 +388,26 @@ public class PersistenceHistoryConfiguration {
      * @return  the attribute data.
      */
     private static String getAttributeData(XMLEvent event, ATTRIBUTE_NAME attributeName) {
-        return (event.asStartElement().getAttributeByName(new QName(attributeName.toString().toLowerCase())) != null) ?
-            event.asStartElement().getAttributeByName(new QName(attributeName.toString().toLowerCase())).getValue() :
+        QName attributeQName = new QName(attributeName.toString().toLowerCase().replaceAll("_", "-"));
+        return (event.asStartElement().getAttributeByName(attributeQName) != null) ?
+            event.asStartElement().getAttributeByName(attributeQName).getValue() :
             new String();
     }
 
+    /**
+     * Get the attribute data as an integer.
+     *
+     * @param  event          the XML event.
+     * @param  attributeName  the attribute name.
+     * @param  defaultValue   the value to use if the attribute is not specified.
+     *
+     * @return  the attribute data as an integer.
+     */
+    private static int getIntegerAttributeData(XMLEvent event, ATTRIBUTE_NAME attributeName, int defaultValue) {
+        String attributeData = getAttributeData(event, attributeName);
+        return (attributeData.isEmpty()) ? defaultValue : Integer.parseInt(attributeData.trim());
+    }
+
     /**
      * Get the element data.
      *
@@ -219,7 +468,7 @@ public class PersistenceHistoryConfiguration {
      * 
      * @return  the history table identifier column name.
      */
-    public String getHistoryTableIdColumnName(Class entityClass) {
+    public String getHistoryTableIdColumnName(Class<?> entityClass) {
         return this.entityDataMap.get(entityClass.getName()).getHistoryTableIdColumnName();
     }
 
@@ -230,17 +479,317 @@ public class PersistenceHistoryConfiguration {
      *
      * @return  the history table name.
      */
-    public String getHistoryTableName(Class entityClass) {
+    public String getHistoryTableName(Class<?> entityClass) {
         return this.entityDataMap.get(entityClass.getName()).getHistoryTableName();
     }
 
+    /**
+     * Get the compiled schema for the class loader.
+     *
+     * The schema is compiled the first time it is requested for the class
+     * loader and reused afterwards.
+     *
+     * @param  classLoader  the class loader.
+     *
+     * @return  the compiled schema.
+     *
+     * @throws  SAXException  if unable to compile the schema.
+     */
+    private static Schema getSchema(ClassLoader classLoader) throws SAXException {
+
+        // Get the cached schema.
+        Schema schema = schemas.get(classLoader);
+
+        // Check if the schema is not cached.
+        if (schema == null) {
+
+            // Compile the schema.  The schema is immutable and thread safe, so a duplicate compile is harmless.
+            schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(getSchemaSource(classLoader));
+            Schema cachedSchema = schemas.putIfAbsent(classLoader, schema);
+            if (cachedSchema != null) {
+                schema = cachedSchema;
+            }
+        }
+
+        return schema;
+    }
+
+    /**
+     * Get the partition period.
+     *
+     * @param  partitionPeriod  the partition period attribute data.
+     *
+     * @return  the partition period.
+     */
+    private static PartitionPeriod getPartitionPeriod(String partitionPeriod) {
+        return (partitionPeriod.isEmpty()) ? PartitionPeriod.NONE : PartitionPeriod.valueOf(partitionPeriod.toUpperCase());
+    }
+
+    /**
+     * Get the partition period of the history table for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the partition period.
+     */
+    public PartitionPeriod getPartitionPeriod(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getPartitionPeriod();
+    }
+
+    /**
+     * Get the number of history table partitions created ahead of the
+     * current period for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the number of partitions created ahead.
+     */
+    public int getPartitionsAhead(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getPartitionsAhead();
+    }
+
+    /**
+     * Get the number of history rows deleted and committed at a time when
+     * purging a history table.
+     *
+     * @return  the purger chunk size.
+     */
+    public int getPurgerChunkSize() {
+        return this.purgerChunkSize;
+    }
+
+    /**
+     * Get the number of milliseconds between purges.
+     *
+     * @return  the purger interval.
+     */
+    public int getPurgerInterval() {
+        return this.purgerInterval;
+    }
+
+    /**
+     * Get the number of milliseconds the purger pauses between chunks.
+     *
+     * @return  the purger pause.
+     */
+    public int getPurgerPause() {
+        return this.purgerPause;
+    }
+
+    /**
+     * Get the maximum number of connections of each target connection pool.
+     *
+     * @return  the target connection pool connections.
+     */
+    public int getTargetConnectionPoolConnections() {
+        return this.targetConnectionPoolConnections;
+    }
+
+    /**
+     * Get the maximum number of prepared statements cached on each target
+     * connection.
+     *
+     * @return  the target connection pool statement cache size.
+     */
+    public int getTargetConnectionPoolStatementCacheSize() {
+        return this.targetConnectionPoolStatementCacheSize;
+    }
+
+    /**
+     * Get the number of milliseconds a target connection may be idle before
+     * it is validated.
+     *
+     * @return  the target connection pool validation interval.
+     */
+    public int getTargetConnectionPoolValidationInterval() {
+        return this.targetConnectionPoolValidationInterval;
+    }
+
+    /**
+     * Get the number of days history rows are kept for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the retention days, or zero if history rows are kept forever.
+     */
+    public int getRetentionDays(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getRetentionDays();
+    }
+
+    /**
+     * Get the number of history rows inserted and committed at a time when
+     * populating a history table.
+     *
+     * @return  the populate commit size.
+     */
+    public int getPopulateCommitSize() {
+        return this.populateCommitSize;
+    }
+
+    /**
+     * Get the insert select mode used when populating a history table.
+     *
+     * @return  the populate insert select mode.
+     */
+    public InsertSelectMode getPopulateInsertSelectMode() {
+        return this.populateInsertSelectMode;
+    }
+
+    /**
+     * Get the number of source rows fetched at a time when populating a
+     * history table.
+     *
+     * @return  the populate fetch size.
+     */
+    public int getPopulateFetchSize() {
+        return this.populateFetchSize;
+    }
+
+    /**
+     * Get the number of workers copying identifier ranges when populating a
+     * history table.
+     *
+     * @return  the populate parallelism.
+     */
+    public int getPopulateParallelism() {
+        return this.populateParallelism;
+    }
+
+    /**
+     * Get the number of entities whose last recorded column values are
+     * cached for delta storage for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the delta cache size.
+     */
+    public int getDeltaCacheSize(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getDeltaCacheSize();
+    }
+
+    /**
+     * Get the number of entities whose last captured column values are
+     * cached to skip unchanged updates for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the unchanged cache size.
+     */
+    public int getUnchangedCacheSize(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getUnchangedCacheSize();
+    }
+
+    /**
+     * Get the number of history rows per entity between full snapshots
+     * for delta storage for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the snapshot interval.
+     */
+    public int getSnapshotInterval(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getSnapshotInterval();
+    }
+
+    /**
+     * Get the maximum number of bytes in the spool file.
+     *
+     * @return  the spool capacity.
+     */
+    public int getSpoolCapacity() {
+        return this.spoolCapacity;
+    }
+
+    /**
+     * Get the directory of the spool file.
+     *
+     * @return  the spool directory.
+     */
+    public String getSpoolDirectory() {
+        return this.spoolDirectory;
+    }
+
+    /**
+     * Get the spool mode.
+     *
+     * @param  spoolMode  the spool mode attribute data.
+     *
+     * @return  the spool mode.
+     */
+    private static SpoolMode getSpoolMode(String spoolMode) {
+        return (spoolMode.isEmpty()) ? SpoolMode.FAILOVER : SpoolMode.valueOf(spoolMode.toUpperCase());
+    }
+
+    /**
+     * Get the spool mode.
+     *
+     * @return  the spool mode.
+     */
+    public SpoolMode getSpoolMode() {
+        return this.spoolMode;
+    }
+
+    /**
+     * Get the maximum number of spooled history rows replayed at a time.
+     *
+     * @return  the spool replay batch size.
+     */
+    public int getSpoolReplayBatchSize() {
+        return this.spoolReplayBatchSize;
+    }
+
+    /**
+     * Get the number of milliseconds the spool replayer waits before it
+     * retries, or checks for new spooled history rows.
+     *
+     * @return  the spool replay interval.
+     */
+    public int getSpoolReplayInterval() {
+        return this.spoolReplayInterval;
+    }
+
+    /**
+     * Get the storage mode.
+     *
+     * @param  storageMode  the storage mode attribute data.
+     *
+     * @return  the storage mode.
+     */
+    private static StorageMode getStorageMode(String storageMode) {
+        return (storageMode.isEmpty()) ? StorageMode.FULL : StorageMode.valueOf(storageMode.toUpperCase());
+    }
+
+    /**
+     * Get the storage mode of the history table for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the storage mode.
+     */
+    public StorageMode getStorageMode(Class<?> entityClass) {
+        return this.entityDataMap.get(entityClass.getName()).getStorageMode();
+    }
+
+    /**
+     * Get the insert select mode.
+     *
+     * @param  insertSelectMode  the insert select mode attribute data.
+     *
+     * @return  the insert select mode.
+     */
+    private static InsertSelectMode getInsertSelectMode(String insertSelectMode) {
+        return (insertSelectMode.isEmpty()) ? InsertSelectMode.AUTO : InsertSelectMode.valueOf(insertSelectMode.toUpperCase());
+    }
+
     /**
      * Get the schema source.
      *
+     * @param  classLoader  the class loader.
+     *
      * @return  the schema source.
      */
-    private static Source getSchemaSource() {
-        return new StreamSource(Thread.currentThread().getContextClassLoader().getResourceAsStream(SCHEMA_FILE));
+    private static Source getSchemaSource(ClassLoader classLoader) {
+        return new StreamSource(classLoader.getResourceAsStream(SCHEMA_FILE));
     }
 
     /**
@@ -270,7 +819,7 @@ public class PersistenceHistoryConfiguration {
      * 
      * @return  the table identifier column name.
      */
-    public String getTableIdColumnName(Class entityClass) {
+    public String getTableIdColumnName(Class<?> entityClass) {
         return this.entityDataMap.get(entityClass.getName()).getTableIdColumnName();
     }
 
@@ -281,17 +830,132 @@ public class PersistenceHistoryConfiguration {
      * 
      * @return  the table name.
      */
-    public String getTableName(Class entityClass) {
+    public String getTableName(Class<?> entityClass) {
         return this.entityDataMap.get(entityClass.getName()).getTableName();
     }
 
+    /**
+     * Get the shared instance of the persistence history configuration class
+     * for the context class loader.
+     *
+     * The configuration file is validated and parsed once per class loader.
+     * Later calls return the cached configuration without locking.  A
+     * configuration file that cannot be validated or parsed is not cached,
+     * so it is loaded again on the next call.
+     *
+     * @return  the shared instance of the persistence history configuration class.
+     */
+    public static PersistenceHistoryConfiguration getInstance() {
+
+        ClassLoader classLoader = getClassLoader();
+
+        // Get the cached configuration.
+        PersistenceHistoryConfiguration configuration = configurations.get(classLoader);
+
+        // Check if the configuration is not cached.
+        if (configuration == null) {
+
+            // Only one thread loads the configuration.
+            synchronized (configurations) {
+
+                configuration = configurations.get(classLoader);
+                if (configuration == null) {
+                    configuration = new PersistenceHistoryConfiguration(classLoader);
+                    if (configuration.isLoaded()) {
+                        configurations.put(classLoader, configuration);
+                    }
+                }
+            }
+        }
+
+        return configuration;
+    }
+
+    /**
+     * Check if history rows are written asynchronously.
+     *
+     * @return  true if history rows are written asynchronously, otherwise false.
+     */
+    public boolean isAsynchronousWriterEnabled() {
+        return this.asynchronousWriterEnabled;
+    }
+
+    /**
+     * Get the JNDI name of the transaction synchronization registry used to
+     * buffer history rows on transactions.
+     *
+     * @return  the JNDI name of the transaction synchronization registry.
+     */
+    public String getTransactionBufferRegistry() {
+        return this.transactionBufferRegistry;
+    }
+
+    /**
+     * Check if the configuration file was validated and parsed.
+     *
+     * @return  true if the configuration file was loaded, otherwise false.
+     */
+    public boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * Check if the history table metrics are recorded and exposed as MBeans.
+     *
+     * @return  true if the history table metrics are enabled, otherwise false.
+     */
+    public boolean isMetricsEnabled() {
+        return this.metricsEnabled;
+    }
+
+    /**
+     * Check if expired history rows are purged in the background.
+     *
+     * @return  true if the purger is enabled, otherwise false.
+     */
+    public boolean isPurgerEnabled() {
+        return this.purgerEnabled;
+    }
+
+    /**
+     * Check if history rows are spooled to a local file and replayed into
+     * the history tables in the background.
+     *
+     * @return  true if the spool is enabled, otherwise false.
+     */
+    public boolean isSpoolEnabled() {
+        return this.spoolEnabled;
+    }
+
+    /**
+     * Check if history rows are written on long-lived target connections
+     * with cached prepared statements.
+     *
+     * @return  true if the target connection pool is enabled, otherwise false.
+     */
+    public boolean isTargetConnectionPoolEnabled() {
+        return this.targetConnectionPoolEnabled;
+    }
+
+    /**
+     * Check if history rows are buffered on the active transaction and
+     * written before it completes.
+     *
+     * @return  true if history rows are buffered on transactions, otherwise false.
+     */
+    public boolean isTransactionBufferEnabled() {
+        return this.transactionBufferEnabled;
+    }
+
     /**
      * Create a new instance of the persistence history configuration class.
      *
+     * The configuration file is parsed again, but the compiled schema is reused.
+     *
      * @return  a new instance of the persistence history configuration class.
      */
     public static PersistenceHistoryConfiguration newInstance() {
-       return new PersistenceHistoryConfiguration();
+       return new PersistenceHistoryConfiguration(getClassLoader());
     }
 
     /**
@@ -303,20 +967,29 @@ public class PersistenceHistoryConfiguration {
 
         InputStream inputStream = null;
         XMLEventReader reader = null;
-
-        this.entityDataMap = new HashMap<String,EntityData>();
+        Map<String,EntityData> entityDataMap = new HashMap<String,EntityData>();
 
         try {
 
+            CaptureMode captureMode = null;
+            boolean coalesce = false;
             String entityClassName = null;
             String historyTableIdColumnName = null;
             String historyTableName = null;
+            PartitionPeriod partitionPeriod = null;
+            int partitionsAhead = DEFAULT_PARTITIONS_AHEAD;
+            int retentionDays = DEFAULT_RETENTION_DAYS;
+            int deltaCacheSize = DEFAULT_DELTA_CACHE_SIZE;
+            int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+            boolean skipUnchanged = false;
+            StorageMode storageMode = null;
             String tableIdColumnName = null;
             String tableName = null;
+            int unchangedCacheSize = DEFAULT_UNCHANGED_CACHE_SIZE;
 
             // Get the configuration file reader.
             XMLInputFactory factory = XMLInputFactory.newInstance();
-            inputStream = getConfigurationInputStream();
+            inputStream = this.getConfigurationInputStream();
             reader = factory.createXMLEventReader(inputStream);
 
             // Loop through the XML events.
@@ -332,20 +1005,58 @@ public class PersistenceHistoryConfiguration {
 
                     switch(getElementName(event.asStartElement())) {
 
+                        case ASYNCHRONOUS_WRITER:
+                            this.asynchronousWriterEnabled = true;
+                            this.asynchronousWriterBatchSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.BATCH_SIZE, DEFAULT_ASYNCHRONOUS_WRITER_BATCH_SIZE);
+                            this.asynchronousWriterFlushInterval = getIntegerAttributeData(event, ATTRIBUTE_NAME.FLUSH_INTERVAL, DEFAULT_ASYNCHRONOUS_WRITER_FLUSH_INTERVAL);
+                            this.asynchronousWriterQueueCapacity = getIntegerAttributeData(event, ATTRIBUTE_NAME.QUEUE_CAPACITY, DEFAULT_ASYNCHRONOUS_WRITER_QUEUE_CAPACITY);
+                            this.asynchronousWriterThreads = getIntegerAttributeData(event, ATTRIBUTE_NAME.THREADS, DEFAULT_ASYNCHRONOUS_WRITER_THREADS);
+                            logger.trace("asynchronousWriterBatchSize is {}", this.asynchronousWriterBatchSize);
+                            logger.trace("asynchronousWriterFlushInterval is {}", this.asynchronousWriterFlushInterval);
+                            logger.trace("asynchronousWriterQueueCapacity is {}", this.asynchronousWriterQueueCapacity);
+                            logger.trace("asynchronousWriterThreads is {}", this.asynchronousWriterThreads);
+                            break;
+
                         case ENTITY:
                             entityClassName = getAttributeData(event, ATTRIBUTE_NAME.CLASS);
+                            captureMode = getCaptureMode(getAttributeData(event, ATTRIBUTE_NAME.CAPTURE));
+                            coalesce = Boolean.parseBoolean(getAttributeData(event, ATTRIBUTE_NAME.COALESCE).trim());
+                            skipUnchanged = Boolean.parseBoolean(getAttributeData(event, ATTRIBUTE_NAME.SKIP_UNCHANGED).trim());
+                            unchangedCacheSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.UNCHANGED_CACHE_SIZE, DEFAULT_UNCHANGED_CACHE_SIZE);
                             historyTableIdColumnName = new String();
                             historyTableName = new String();
+                            partitionPeriod = PartitionPeriod.NONE;
+                            partitionsAhead = DEFAULT_PARTITIONS_AHEAD;
+                            retentionDays = DEFAULT_RETENTION_DAYS;
+                            deltaCacheSize = DEFAULT_DELTA_CACHE_SIZE;
+                            snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+                            storageMode = StorageMode.FULL;
                             tableIdColumnName = new String();
                             tableName = new String();
                             logger.trace("entityClassName is {}", entityClassName);
+                            logger.trace("captureMode is {}", captureMode);
+                            logger.trace("coalesce is {}", coalesce);
+                            logger.trace("skipUnchanged is {}", skipUnchanged);
+                            logger.trace("unchangedCacheSize is {}", unchangedCacheSize);
                             break;
 
                         case HISTORY_TABLE:
                             historyTableIdColumnName = getAttributeData(event, ATTRIBUTE_NAME.ID);
                             historyTableName = getAttributeData(event, ATTRIBUTE_NAME.NAME);
+                            partitionPeriod = getPartitionPeriod(getAttributeData(event, ATTRIBUTE_NAME.PARTITION));
+                            partitionsAhead = getIntegerAttributeData(event, ATTRIBUTE_NAME.PARTITIONS_AHEAD, DEFAULT_PARTITIONS_AHEAD);
+                            retentionDays = getIntegerAttributeData(event, ATTRIBUTE_NAME.RETENTION_DAYS, DEFAULT_RETENTION_DAYS);
+                            storageMode = getStorageMode(getAttributeData(event, ATTRIBUTE_NAME.STORAGE));
+                            snapshotInterval = getIntegerAttributeData(event, ATTRIBUTE_NAME.SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL);
+                            deltaCacheSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.DELTA_CACHE_SIZE, DEFAULT_DELTA_CACHE_SIZE);
                             logger.trace("historyTableIdColumnName is {}", historyTableIdColumnName);
                             logger.trace("historyTableName is {}", historyTableName);
+                            logger.trace("partitionPeriod is {}", partitionPeriod);
+                            logger.trace("partitionsAhead is {}", partitionsAhead);
+                            logger.trace("retentionDays is {}", retentionDays);
+                            logger.trace("storageMode is {}", storageMode);
+                            logger.trace("snapshotInterval is {}", snapshotInterval);
+                            logger.trace("deltaCacheSize is {}", deltaCacheSize);
                             break;
 
                         case HISTORY_TABLE_SUFFIX:
@@ -353,6 +1064,56 @@ public class PersistenceHistoryConfiguration {
                             logger.trace("historyTableSuffix is {}", this.historyTableSuffix);
                             break;
                             
+                        case METRICS:
+                            this.metricsEnabled = true;
+                            logger.trace("metricsEnabled is {}", this.metricsEnabled);
+                            break;
+
+                        case POPULATE:
+                            this.populateCommitSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.COMMIT_SIZE, DEFAULT_POPULATE_COMMIT_SIZE);
+                            this.populateFetchSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.FETCH_SIZE, DEFAULT_POPULATE_FETCH_SIZE);
+                            logger.trace("populateCommitSize is {}", this.populateCommitSize);
+                            this.populateParallelism = getIntegerAttributeData(event, ATTRIBUTE_NAME.PARALLELISM, DEFAULT_POPULATE_PARALLELISM);
+                            this.populateInsertSelectMode = getInsertSelectMode(getAttributeData(event, ATTRIBUTE_NAME.INSERT_SELECT));
+                            logger.trace("populateInsertSelectMode is {}", this.populateInsertSelectMode);
+                            logger.trace("populateFetchSize is {}", this.populateFetchSize);
+                            logger.trace("populateParallelism is {}", this.populateParallelism);
+                            break;
+
+                        case PURGER:
+                            this.purgerEnabled = true;
+                            this.purgerChunkSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.CHUNK_SIZE, DEFAULT_PURGER_CHUNK_SIZE);
+                            this.purgerInterval = getIntegerAttributeData(event, ATTRIBUTE_NAME.INTERVAL, DEFAULT_PURGER_INTERVAL);
+                            this.purgerPause = getIntegerAttributeData(event, ATTRIBUTE_NAME.PAUSE, DEFAULT_PURGER_PAUSE);
+                            logger.trace("purgerChunkSize is {}", this.purgerChunkSize);
+                            logger.trace("purgerInterval is {}", this.purgerInterval);
+                            logger.trace("purgerPause is {}", this.purgerPause);
+                            break;
+
+                        case SPOOL:
+                            this.spoolEnabled = true;
+                            this.spoolDirectory = getAttributeData(event, ATTRIBUTE_NAME.DIRECTORY);
+                            this.spoolCapacity = getIntegerAttributeData(event, ATTRIBUTE_NAME.CAPACITY, DEFAULT_SPOOL_CAPACITY);
+                            this.spoolMode = getSpoolMode(getAttributeData(event, ATTRIBUTE_NAME.MODE));
+                            this.spoolReplayBatchSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.REPLAY_BATCH_SIZE, DEFAULT_SPOOL_REPLAY_BATCH_SIZE);
+                            this.spoolReplayInterval = getIntegerAttributeData(event, ATTRIBUTE_NAME.REPLAY_INTERVAL, DEFAULT_SPOOL_REPLAY_INTERVAL);
+                            logger.trace("spoolDirectory is {}", this.spoolDirectory);
+                            logger.trace("spoolCapacity is {}", this.spoolCapacity);
+                            logger.trace("spoolMode is {}", this.spoolMode);
+                            logger.trace("spoolReplayBatchSize is {}", this.spoolReplayBatchSize);
+                            logger.trace("spoolReplayInterval is {}", this.spoolReplayInterval);
+                            break;
+
+                        case TARGET_CONNECTION_POOL:
+                            this.targetConnectionPoolEnabled = true;
+                            this.targetConnectionPoolConnections = getIntegerAttributeData(event, ATTRIBUTE_NAME.CONNECTIONS, DEFAULT_TARGET_CONNECTION_POOL_CONNECTIONS);
+                            this.targetConnectionPoolStatementCacheSize = getIntegerAttributeData(event, ATTRIBUTE_NAME.STATEMENT_CACHE_SIZE, DEFAULT_TARGET_CONNECTION_POOL_STATEMENT_CACHE_SIZE);
+                            this.targetConnectionPoolValidationInterval = getIntegerAttributeData(event, ATTRIBUTE_NAME.VALIDATION_INTERVAL, DEFAULT_TARGET_CONNECTION_POOL_VALIDATION_INTERVAL);
+                            logger.trace("targetConnectionPoolConnections is {}", this.targetConnectionPoolConnections);
+                            logger.trace("targetConnectionPoolStatementCacheSize is {}", this.targetConnectionPoolStatementCacheSize);
+                            logger.trace("targetConnectionPoolValidationInterval is {}", this.targetConnectionPoolValidationInterval);
+                            break;
+
                         case SOURCE_DATA_SOURCE:
                             this.sourceDataSource = getElementData(reader.nextEvent());
                             logger.trace("sourceDataSource is {}", this.sourceDataSource);
@@ -369,6 +1130,13 @@ public class PersistenceHistoryConfiguration {
                             this.targetDataSource = getElementData(reader.nextEvent());
                             logger.trace("targetDataSource is {}", this.targetDataSource);
                             break;
+
+                        case TRANSACTION_BUFFER:
+                            this.transactionBufferEnabled = true;
+                            String registry = getAttributeData(event, ATTRIBUTE_NAME.REGISTRY);
+                            this.transactionBufferRegistry = (registry.isEmpty()) ? DEFAULT_TRANSACTION_BUFFER_REGISTRY : registry;
+                            logger.trace("transactionBufferRegistry is {}", this.transactionBufferRegistry);
+                            break;
                     }
                 }
                 
@@ -394,17 +1162,30 @@ public class PersistenceHistoryConfiguration {
                             
                             // Create the entity data.
                             EntityData entityData = new EntityData();
+                            entityData.setCaptureMode(captureMode);
+                            entityData.setCoalesce(coalesce);
                             entityData.setHistoryTableIdColumnName(historyTableIdColumnName);
                             entityData.setHistoryTableName(historyTableName);
+                            entityData.setPartitionPeriod(partitionPeriod);
+                            entityData.setPartitionsAhead(partitionsAhead);
+                            entityData.setRetentionDays(retentionDays);
+                            entityData.setDeltaCacheSize(deltaCacheSize);
+                            entityData.setSnapshotInterval(snapshotInterval);
+                            entityData.setSkipUnchanged(skipUnchanged);
+                            entityData.setStorageMode(storageMode);
                             entityData.setTableIdColumnName(tableIdColumnName);
                             entityData.setTableName(tableName);
+                            entityData.setUnchangedCacheSize(unchangedCacheSize);
                             
                             // Put the entity data on the map.
-                            this.entityDataMap.put(entityClassName, entityData);
+                            entityDataMap.put(entityClassName, entityData);
                             break;
                     }
                 }
             }
+
+            // Freeze the entity data map.
+            this.entityDataMap = Collections.unmodifiableMap(entityDataMap);
         } finally {
 
             // Check if the reader exists.
@@ -468,18 +1249,30 @@ public class PersistenceHistoryConfiguration {
         return returnValue.toString();
     }
 
+    /**
+     * Release the shared configuration and compiled schema for the context
+     * class loader.
+     *
+     * Call this when the class loader is discarded, for example when an
+     * application is undeployed, or to force the configuration to be reloaded.
+     */
+    public static void release() {
+        ClassLoader classLoader = getClassLoader();
+        configurations.remove(classLoader);
+        schemas.remove(classLoader);
+    }
+
     /**
      * Validate the configuration file.
      *
      * @throws  IOException   if unable to validate the configuration file.
      * @throws  SAXException  if unable to validate the configuration file.
      */
-    private static void validate() throws IOException, SAXException {
+    private void validate() throws IOException, SAXException {
 
         // Validate the configuration file.
-        Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(getSchemaSource());
-        Validator validator = schema.newValidator();
-        validator.validate(getConfigurationSource());
+        Validator validator = getSchema(this.classLoader).newValidator();
+        validator.validate(this.getConfigurationSource());
     }
     
     /**
@@ -487,10 +1280,38 @@ public class PersistenceHistoryConfiguration {
      */
     private class EntityData {
         
+        private CaptureMode captureMode;
+        private boolean coalesce;
+        private int deltaCacheSize;
         private String historyTableIdColumnName;
         private String historyTableName;
+        private PartitionPeriod partitionPeriod;
+        private int partitionsAhead;
+        private int retentionDays;
+        private boolean skipUnchanged;
+        private int snapshotInterval;
+        private StorageMode storageMode;
         private String tableIdColumnName;
         private String tableName; 
+        private int unchangedCacheSize;
+        
+        /**
+         * Get the capture mode.
+         * 
+         * @return  the capture mode.
+         */
+        public CaptureMode getCaptureMode() {
+            return this.captureMode;
+        }
+        
+        /**
+         * Get the delta cache size.
+         * 
+         * @return  the delta cache size.
+         */
+        public int getDeltaCacheSize() {
+            return this.deltaCacheSize;
+        }
         
         /**
          * Get the history table identifier column name.
@@ -510,6 +1331,51 @@ public class PersistenceHistoryConfiguration {
             return this.historyTableName;
         }
         
+        /**
+         * Get the partition period.
+         * 
+         * @return  the partition period.
+         */
+        public PartitionPeriod getPartitionPeriod() {
+            return this.partitionPeriod;
+        }
+        
+        /**
+         * Get the number of partitions created ahead.
+         * 
+         * @return  the number of partitions created ahead.
+         */
+        public int getPartitionsAhead() {
+            return this.partitionsAhead;
+        }
+        
+        /**
+         * Get the retention days.
+         * 
+         * @return  the retention days.
+         */
+        public int getRetentionDays() {
+            return this.retentionDays;
+        }
+        
+        /**
+         * Get the snapshot interval.
+         * 
+         * @return  the snapshot interval.
+         */
+        public int getSnapshotInterval() {
+            return this.snapshotInterval;
+        }
+        
+        /**
+         * Get the storage mode.
+         * 
+         * @return  the storage mode.
+         */
+        public StorageMode getStorageMode() {
+            return this.storageMode;
+        }
+        
         /**
          * Get the table identifier column name.
          * 
@@ -528,6 +1394,60 @@ public class PersistenceHistoryConfiguration {
             return this.tableName;
         }
         
+        /**
+         * Get the unchanged cache size.
+         * 
+         * @return  the unchanged cache size.
+         */
+        public int getUnchangedCacheSize() {
+            return this.unchangedCacheSize;
+        }
+        
+        /**
+         * Check if the changes are coalesced.
+         * 
+         * @return  true if the changes are coalesced, otherwise false.
+         */
+        public boolean isCoalesce() {
+            return this.coalesce;
+        }
+        
+        /**
+         * Check if unchanged updates are skipped.
+         * 
+         * @return  true if unchanged updates are skipped, otherwise false.
+         */
+        public boolean isSkipUnchanged() {
+            return this.skipUnchanged;
+        }
+        
+        /**
+         * Set the capture mode.
+         * 
+         * @param  captureMode  the capture mode.
+         */
+        public void setCaptureMode(CaptureMode captureMode) {
+            this.captureMode = captureMode;
+        }
+        
+        /**
+         * Set the changes are coalesced.
+         * 
+         * @param  coalesce  true if the changes are coalesced, otherwise false.
+         */
+        public void setCoalesce(boolean coalesce) {
+            this.coalesce = coalesce;
+        }
+        
+        /**
+         * Set the delta cache size.
+         * 
+         * @param  deltaCacheSize  the delta cache size.
+         */
+        public void setDeltaCacheSize(int deltaCacheSize) {
+            this.deltaCacheSize = deltaCacheSize;
+        }
+        
         /**
          * Set the history table identifier column name.
          * 
@@ -546,6 +1466,60 @@ public class PersistenceHistoryConfiguration {
             this.historyTableName = historyTableName;
         }
         
+        /**
+         * Set the partition period.
+         * 
+         * @param  partitionPeriod  the partition period.
+         */
+        public void setPartitionPeriod(PartitionPeriod partitionPeriod) {
+            this.partitionPeriod = partitionPeriod;
+        }
+        
+        /**
+         * Set the number of partitions created ahead.
+         * 
+         * @param  partitionsAhead  the number of partitions created ahead.
+         */
+        public void setPartitionsAhead(int partitionsAhead) {
+            this.partitionsAhead = partitionsAhead;
+        }
+        
+        /**
+         * Set the retention days.
+         * 
+         * @param  retentionDays  the retention days.
+         */
+        public void setRetentionDays(int retentionDays) {
+            this.retentionDays = retentionDays;
+        }
+        
+        /**
+         * Set the snapshot interval.
+         * 
+         * @param  snapshotInterval  the snapshot interval.
+         */
+        public void setSnapshotInterval(int snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+        }
+        
+        /**
+         * Set unchanged updates are skipped.
+         * 
+         * @param  skipUnchanged  true if unchanged updates are skipped, otherwise false.
+         */
+        public void setSkipUnchanged(boolean skipUnchanged) {
+            this.skipUnchanged = skipUnchanged;
+        }
+        
+        /**
+         * Set the storage mode.
+         * 
+         * @param  storageMode  the storage mode.
+         */
+        public void setStorageMode(StorageMode storageMode) {
+            this.storageMode = storageMode;
+        }
+        
         /**
          * Set the table identifier column name.
          * 
@@ -563,5 +1537,14 @@ public class PersistenceHistoryConfiguration {
         public void setTableName(String tableName) {
             this.tableName = tableName;
         }
+        
+        /**
+         * Set the unchanged cache size.
+         * 
+         * @param  unchangedCacheSize  the unchanged cache size.
+         */
+        public void setUnchangedCacheSize(int unchangedCacheSize) {
+            this.unchangedCacheSize = unchangedCacheSize;
+        }
     }
 }
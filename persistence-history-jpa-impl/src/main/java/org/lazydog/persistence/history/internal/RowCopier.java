@@ -0,0 +1,469 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Row copier.
+ *
+ * The row copier moves the column values of a table between result sets and
+ * prepared statements by column position, using the typed get and set method
+ * for each column.  The accessor kind of every column is resolved once from
+ * the column definitions, so copying a row allocates nothing beyond the
+ * values returned by the driver.
+ *
+ * The columns must be selected and bound in column definition order.
+ *
+ * @author  Ron Rickard
+ */
+final class RowCopier {
+
+    private static final int BOOLEAN = 0;
+    private static final int BYTES = 1;
+    private static final int DATE = 2;
+    private static final int DECIMAL = 3;
+    private static final int DOUBLE = 4;
+    private static final int FLOAT = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int OBJECT = 8;
+    private static final int STRING = 9;
+    private static final int TIME = 10;
+    private static final int TIMESTAMP = 11;
+
+    private final int[] dataTypes;
+    private final int[] kinds;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  columnDefinitions  the column definitions.
+     */
+    private RowCopier(final List<ColumnDefinition> columnDefinitions) {
+
+        this.dataTypes = new int[columnDefinitions.size()];
+        this.kinds = new int[columnDefinitions.size()];
+
+        // Loop through the column definitions.
+        for (int index = 0; index < this.kinds.length; index++) {
+            this.dataTypes[index] = columnDefinitions.get(index).getDataType();
+            this.kinds[index] = getKind(columnDefinitions.get(index));
+        }
+    }
+
+    /**
+     * Bind the column values to the prepared statement.
+     *
+     * Integers are widened for long columns, and UUIDs are bound as strings
+     * for character columns.  Other values that do not have the Java type of
+     * their column are bound with setObject and left to the driver to convert.
+     *
+     * @param  preparedStatement  the prepared statement.
+     * @param  values             the column values in column order.
+     *
+     * @throws  SQLException  if unable to bind the column values.
+     */
+    public void bind(final PreparedStatement preparedStatement, final Object[] values) throws SQLException {
+        this.bind(preparedStatement, values, 0);
+    }
+
+    /**
+     * Bind the column values to the prepared statement, starting after the
+     * parameter offset.
+     *
+     * @param  preparedStatement  the prepared statement.
+     * @param  values             the column values in column order.
+     * @param  offset             the number of parameters before the first column.
+     *
+     * @throws  SQLException  if unable to bind the column values.
+     */
+    public void bind(final PreparedStatement preparedStatement, final Object[] values, final int offset) throws SQLException {
+
+        // Loop through the columns.
+        for (int index = 0; index < this.kinds.length; index++) {
+
+            int parameterIndex = offset + index + 1;
+            Object value = values[index];
+
+            // Check if the value is null.
+            if (value == null) {
+                preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+            } else if (this.kinds[index] == BOOLEAN && value instanceof Boolean) {
+                preparedStatement.setBoolean(parameterIndex, (Boolean)value);
+            } else if (this.kinds[index] == INT && value instanceof Integer) {
+                preparedStatement.setInt(parameterIndex, (Integer)value);
+            } else if (this.kinds[index] == LONG && (value instanceof Long || value instanceof Integer)) {
+                preparedStatement.setLong(parameterIndex, ((Number)value).longValue());
+            } else if (this.kinds[index] == STRING && (value instanceof String || value instanceof UUID)) {
+                preparedStatement.setString(parameterIndex, value.toString());
+            } else if (this.kinds[index] == TIMESTAMP && value instanceof Timestamp) {
+                preparedStatement.setTimestamp(parameterIndex, (Timestamp)value);
+            } else {
+                preparedStatement.setObject(parameterIndex, value);
+            }
+        }
+    }
+
+    /**
+     * Copy the column values of the current row of the result set to the
+     * prepared statement.
+     *
+     * @param  resultSet          the result set.
+     * @param  preparedStatement  the prepared statement.
+     *
+     * @throws  SQLException  if unable to copy the column values.
+     */
+    public void copy(final ResultSet resultSet, final PreparedStatement preparedStatement) throws SQLException {
+        this.copy(resultSet, preparedStatement, 0);
+    }
+
+    /**
+     * Copy the column values of the current row of the result set to the
+     * prepared statement, starting after the parameter offset.
+     *
+     * @param  resultSet          the result set.
+     * @param  preparedStatement  the prepared statement.
+     * @param  offset             the number of parameters before the first column.
+     *
+     * @throws  SQLException  if unable to copy the column values.
+     */
+    public void copy(final ResultSet resultSet, final PreparedStatement preparedStatement, final int offset) throws SQLException {
+
+        // Loop through the columns.
+        for (int index = 0; index < this.kinds.length; index++) {
+
+            int columnIndex = index + 1;
+            int parameterIndex = offset + columnIndex;
+
+            switch (this.kinds[index]) {
+
+                case BOOLEAN:
+                    boolean booleanValue = resultSet.getBoolean(columnIndex);
+                    if (resultSet.wasNull()) {
+                        preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+                    } else {
+                        preparedStatement.setBoolean(parameterIndex, booleanValue);
+                    }
+                    break;
+
+                case DOUBLE:
+                    double doubleValue = resultSet.getDouble(columnIndex);
+                    if (resultSet.wasNull()) {
+                        preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+                    } else {
+                        preparedStatement.setDouble(parameterIndex, doubleValue);
+                    }
+                    break;
+
+                case FLOAT:
+                    float floatValue = resultSet.getFloat(columnIndex);
+                    if (resultSet.wasNull()) {
+                        preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+                    } else {
+                        preparedStatement.setFloat(parameterIndex, floatValue);
+                    }
+                    break;
+
+                case INT:
+                    int intValue = resultSet.getInt(columnIndex);
+                    if (resultSet.wasNull()) {
+                        preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+                    } else {
+                        preparedStatement.setInt(parameterIndex, intValue);
+                    }
+                    break;
+
+                case LONG:
+                    long longValue = resultSet.getLong(columnIndex);
+                    if (resultSet.wasNull()) {
+                        preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+                    } else {
+                        preparedStatement.setLong(parameterIndex, longValue);
+                    }
+                    break;
+
+                default:
+                    Object value = this.get(resultSet, index);
+                    if (value == null) {
+                        preparedStatement.setNull(parameterIndex, this.dataTypes[index]);
+                    } else {
+                        this.set(preparedStatement, parameterIndex, index, value);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the column value from the current row of the result set.
+     *
+     * @param  resultSet  the result set.
+     * @param  index      the column index, starting at zero.
+     *
+     * @return  the column value, or null if the column is null.
+     *
+     * @throws  SQLException  if unable to get the column value.
+     */
+    private Object get(final ResultSet resultSet, final int index) throws SQLException {
+
+        int columnIndex = index + 1;
+        Object value;
+
+        switch (this.kinds[index]) {
+
+            case BOOLEAN:
+                value = resultSet.getBoolean(columnIndex);
+                break;
+
+            case BYTES:
+                value = resultSet.getBytes(columnIndex);
+                break;
+
+            case DATE:
+                value = resultSet.getDate(columnIndex);
+                break;
+
+            case DECIMAL:
+                value = resultSet.getBigDecimal(columnIndex);
+                break;
+
+            case DOUBLE:
+                value = resultSet.getDouble(columnIndex);
+                break;
+
+            case FLOAT:
+                value = resultSet.getFloat(columnIndex);
+                break;
+
+            case INT:
+                value = resultSet.getInt(columnIndex);
+                break;
+
+            case LONG:
+                value = resultSet.getLong(columnIndex);
+                break;
+
+            case STRING:
+                value = resultSet.getString(columnIndex);
+                break;
+
+            case TIME:
+                value = resultSet.getTime(columnIndex);
+                break;
+
+            case TIMESTAMP:
+                value = resultSet.getTimestamp(columnIndex);
+                break;
+
+            default:
+                value = resultSet.getObject(columnIndex);
+                break;
+        }
+
+        return (resultSet.wasNull()) ? null : value;
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return  the number of columns.
+     */
+    public int getColumnCount() {
+        return this.kinds.length;
+    }
+
+    /**
+     * Get the accessor kind for the column.
+     *
+     * @param  columnDefinition  the column definition.
+     *
+     * @return  the accessor kind.
+     */
+    private static int getKind(final ColumnDefinition columnDefinition) {
+
+        int kind;
+
+        switch (columnDefinition.getDataType()) {
+
+            case Types.BIT:
+            case Types.BOOLEAN:
+                kind = BOOLEAN;
+                break;
+
+            case Types.BINARY:
+            case Types.LONGVARBINARY:
+            case Types.VARBINARY:
+                kind = BYTES;
+                break;
+
+            case Types.DATE:
+                kind = DATE;
+                break;
+
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                kind = DECIMAL;
+                break;
+
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                kind = DOUBLE;
+                break;
+
+            case Types.REAL:
+                kind = FLOAT;
+                break;
+
+            case Types.INTEGER:
+                kind = (columnDefinition.isUnsigned()) ? LONG : INT;
+                break;
+
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                kind = INT;
+                break;
+
+            case Types.BIGINT:
+                kind = (columnDefinition.isUnsigned()) ? OBJECT : LONG;
+                break;
+
+            case Types.CHAR:
+            case Types.LONGNVARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.VARCHAR:
+                kind = STRING;
+                break;
+
+            case Types.TIME:
+                kind = TIME;
+                break;
+
+            case Types.TIMESTAMP:
+                kind = TIMESTAMP;
+                break;
+
+            default:
+                kind = OBJECT;
+                break;
+        }
+
+        return kind;
+    }
+
+    /**
+     * Read the column values of the current row of the result set.
+     *
+     * @param  resultSet  the result set.
+     *
+     * @return  the column values in column order.
+     *
+     * @throws  SQLException  if unable to read the column values.
+     */
+    public Object[] read(final ResultSet resultSet) throws SQLException {
+        return this.read(resultSet, new Object[this.kinds.length]);
+    }
+
+    /**
+     * Read the column values of the current row of the result set into the
+     * array.
+     *
+     * @param  resultSet  the result set.
+     * @param  values     the array for the column values, reused between rows.
+     *
+     * @return  the column values in column order.
+     *
+     * @throws  SQLException  if unable to read the column values.
+     */
+    public Object[] read(final ResultSet resultSet, final Object[] values) throws SQLException {
+
+        // Loop through the columns.
+        for (int index = 0; index < this.kinds.length; index++) {
+            values[index] = this.get(resultSet, index);
+        }
+
+        return values;
+    }
+
+    /**
+     * Set the non-null column value on the prepared statement.
+     *
+     * @param  preparedStatement  the prepared statement.
+     * @param  parameterIndex     the parameter index, starting at one.
+     * @param  index              the column index, starting at zero.
+     * @param  value              the column value.
+     *
+     * @throws  SQLException  if unable to set the column value.
+     */
+    private void set(final PreparedStatement preparedStatement, final int parameterIndex, final int index, final Object value) throws SQLException {
+
+        switch (this.kinds[index]) {
+
+            case BYTES:
+                preparedStatement.setBytes(parameterIndex, (byte[])value);
+                break;
+
+            case DATE:
+                preparedStatement.setDate(parameterIndex, (Date)value);
+                break;
+
+            case DECIMAL:
+                preparedStatement.setBigDecimal(parameterIndex, (BigDecimal)value);
+                break;
+
+            case STRING:
+                preparedStatement.setString(parameterIndex, (String)value);
+                break;
+
+            case TIME:
+                preparedStatement.setTime(parameterIndex, (Time)value);
+                break;
+
+            case TIMESTAMP:
+                preparedStatement.setTimestamp(parameterIndex, (Timestamp)value);
+                break;
+
+            default:
+                preparedStatement.setObject(parameterIndex, value);
+                break;
+        }
+    }
+
+    /**
+     * Create a new instance of the row copier class.
+     *
+     * @param  columnDefinitions  the column definitions.
+     *
+     * @return  a new instance of the row copier class.
+     */
+    public static RowCopier newInstance(final List<ColumnDefinition> columnDefinitions) {
+        return new RowCopier(columnDefinitions);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped counter.
+ *
+ * The counter spreads its value over cells selected by thread, so threads
+ * updating the counter at the same time rarely touch the same cache line.
+ * Updates never lock, and reading the counter sums the cells.
+ *
+ * @author  Ron Rickard
+ */
+final class StripedCounter {
+
+    /**
+     * The distance in longs between cells, one cache line.
+     */
+    private static final int PADDING = 8;
+
+    static final int STRIPES = getStripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Hide the constructor.
+     */
+    private StripedCounter() {
+    }
+
+    /**
+     * Add the value to the counter.
+     *
+     * @param  value  the value.
+     */
+    public void add(final long value) {
+        this.cells.getAndAdd(getStripe() * PADDING, value);
+    }
+
+    /**
+     * Get the stripe of the current thread.
+     *
+     * @return  the stripe of the current thread.
+     */
+    static int getStripe() {
+        return (int)Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * Get the number of stripes, the number of processors rounded up to a
+     * power of two, at most 64.
+     *
+     * @return  the number of stripes.
+     */
+    private static int getStripes() {
+
+        int stripes = 1;
+
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) {
+            stripes <<= 1;
+        }
+
+        return stripes;
+    }
+
+    /**
+     * Increment the counter.
+     */
+    public void increment() {
+        this.add(1);
+    }
+
+    /**
+     * Reset the counter to zero.
+     *
+     * Updates made while the counter is reset may be lost.
+     */
+    public void reset() {
+
+        // Loop through the cells.
+        for (int index = 0; index < this.cells.length(); index += PADDING) {
+            this.cells.set(index, 0);
+        }
+    }
+
+    /**
+     * Get the value of the counter.
+     *
+     * @return  the sum of the cells.
+     */
+    public long sum() {
+
+        long sum = 0;
+
+        // Loop through the cells.
+        for (int index = 0; index < this.cells.length(); index += PADDING) {
+            sum += this.cells.get(index);
+        }
+
+        return sum;
+    }
+
+    /**
+     * Create a new instance of the striped counter class.
+     *
+     * @return  a new instance of the striped counter class.
+     */
+    public static StripedCounter newInstance() {
+        return new StripedCounter();
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Target connection pool.
+ *
+ * A small pool of long-lived connections to one target data source, used to
+ * write history rows.  Each connection caches its prepared insert statements
+ * so they are prepared once per history table and connection rather than
+ * once per write.  A connection idle for longer than the validation interval
+ * is validated before it is reused, and a connection that fails validation
+ * or a write is closed and replaced with a new connection.
+ *
+ * The pool is not used while a JTA transaction is active, since a
+ * connection from a container data source is enlisted in the transaction
+ * active when it is made.  Such history rows are written on a connection
+ * from the target data source instead, in the transaction.
+ *
+ * @author  Ron Rickard
+ */
+final class TargetConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(TargetConnectionPool.class);
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    private volatile boolean closed;
+    private final DataSource dataSource;
+    private final BlockingQueue<PooledConnection> idleConnections;
+    private final Semaphore permits;
+    private final TransactionSynchronizationRegistry registry;
+    private final int statementCacheSize;
+    private final long validationInterval;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  dataSource          the target data source.
+     * @param  registry            the transaction synchronization registry, or null if there are no JTA transactions.
+     * @param  connections         the maximum number of connections.
+     * @param  statementCacheSize  the maximum number of prepared statements cached on each connection.
+     * @param  validationInterval  the number of milliseconds a connection may be idle before it is validated.
+     */
+    private TargetConnectionPool(final DataSource dataSource, final TransactionSynchronizationRegistry registry, final int connections, final int statementCacheSize, final long validationInterval) {
+        this.dataSource = dataSource;
+        this.idleConnections = new LinkedBlockingQueue<PooledConnection>();
+        this.permits = new Semaphore(connections, true);
+        this.registry = registry;
+        this.statementCacheSize = statementCacheSize;
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * Borrow a connection, waiting if all the connections are in use.
+     *
+     * An idle connection is reused if it is still valid, otherwise a new
+     * connection is made.
+     *
+     * @return  the connection.
+     *
+     * @throws  SQLException  if unable to connect to the target database.
+     */
+    public PooledConnection borrow() throws SQLException {
+
+        PooledConnection connection = null;
+
+        try {
+            this.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a target connection.", e);
+        }
+
+        try {
+
+            // Loop through the idle connections until a valid one is found.
+            while (connection == null && (connection = this.idleConnections.poll()) != null) {
+
+                // Check if the connection is no longer valid.
+                if (!connection.isValid(this.validationInterval)) {
+                    logger.info("Replacing an invalid connection to the target data source {}.", this.dataSource);
+                    connection.close();
+                    connection = null;
+                }
+            }
+
+            // Check if a new connection is needed.
+            if (connection == null) {
+                connection = new PooledConnection(HistoryTableImpl.connect(this.dataSource), this.statementCacheSize);
+            }
+        } finally {
+
+            // Give the permit back if no connection was borrowed.
+            if (connection == null) {
+                this.permits.release();
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * Close the idle connections.  Connections in use are closed when they
+     * are given back.
+     */
+    public void close() {
+
+        this.closed = true;
+
+        // Loop through the idle connections.
+        PooledConnection connection;
+        while ((connection = this.idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Give back a borrowed connection.
+     *
+     * @param  connection  the connection.
+     * @param  healthy     true if the connection can be reused, false if it failed and is closed.
+     */
+    public void giveBack(final PooledConnection connection, final boolean healthy) {
+
+        try {
+
+            // Check if the connection can be reused.
+            if (healthy && !this.closed) {
+                connection.touch();
+                this.idleConnections.offer(connection);
+            } else {
+                connection.close();
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Check if there is a JTA transaction on the current thread, in which
+     * case the pool must not be used.
+     *
+     * @return  true if there is a JTA transaction on the current thread, otherwise false.
+     */
+    public boolean isTransactionActive() {
+        return this.registry != null && this.registry.getTransactionStatus() != Status.STATUS_NO_TRANSACTION;
+    }
+
+    /**
+     * Create a new instance of the target connection pool class.
+     *
+     * The transaction synchronization registry of the transaction buffer is
+     * used to detect JTA transactions.  If it cannot be found, there are no
+     * JTA transactions and the pool is always used.
+     *
+     * @param  dataSource     the target data source.
+     * @param  configuration  the persistence history configuration.
+     *
+     * @return  a new instance of the target connection pool class.
+     */
+    public static TargetConnectionPool newInstance(final DataSource dataSource, final PersistenceHistoryConfiguration configuration) {
+
+        TransactionSynchronizationRegistry registry = null;
+
+        try {
+            registry = TransactionHistoryBuffer.lookupRegistry(configuration);
+        } catch (NamingException e) {
+            logger.debug("Unable to find the transaction synchronization registry {}, so the target connections are always pooled.", configuration.getTransactionBufferRegistry());
+        }
+
+        return newInstance(
+                dataSource,
+                registry,
+                configuration.getTargetConnectionPoolConnections(),
+                configuration.getTargetConnectionPoolStatementCacheSize(),
+                configuration.getTargetConnectionPoolValidationInterval());
+    }
+
+    /**
+     * Create a new instance of the target connection pool class.
+     *
+     * @param  dataSource          the target data source.
+     * @param  connections         the maximum number of connections.
+     * @param  statementCacheSize  the maximum number of prepared statements cached on each connection.
+     * @param  validationInterval  the number of milliseconds a connection may be idle before it is validated.
+     *
+     * @return  a new instance of the target connection pool class.
+     */
+    public static TargetConnectionPool newInstance(final DataSource dataSource, final int connections, final int statementCacheSize, final long validationInterval) {
+        return newInstance(dataSource, null, connections, statementCacheSize, validationInterval);
+    }
+
+    /**
+     * Create a new instance of the target connection pool class.
+     *
+     * @param  dataSource          the target data source.
+     * @param  registry            the transaction synchronization registry, or null if there are no JTA transactions.
+     * @param  connections         the maximum number of connections.
+     * @param  statementCacheSize  the maximum number of prepared statements cached on each connection.
+     * @param  validationInterval  the number of milliseconds a connection may be idle before it is validated.
+     *
+     * @return  a new instance of the target connection pool class.
+     */
+    public static TargetConnectionPool newInstance(final DataSource dataSource, final TransactionSynchronizationRegistry registry, final int connections, final int statementCacheSize, final long validationInterval) {
+        return new TargetConnectionPool(dataSource, registry, connections, statementCacheSize, validationInterval);
+    }
+
+    /**
+     * Pooled connection.
+     *
+     * A connection with its cached prepared statements.  A pooled connection
+     * is used by one thread at a time.
+     */
+    static final class PooledConnection {
+
+        private final Connection connection;
+        private long lastUsedTime;
+        private final Map<String,PreparedStatement> statements;
+
+        /**
+         * Create the pooled connection.
+         *
+         * @param  connection          the connection.
+         * @param  statementCacheSize  the maximum number of prepared statements cached.
+         */
+        PooledConnection(final Connection connection, final int statementCacheSize) {
+
+            this.connection = connection;
+            this.lastUsedTime = System.currentTimeMillis();
+
+            // Close the least recently used prepared statement when the cache is full.
+            this.statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String,PreparedStatement> eldest) {
+                    boolean remove = this.size() > statementCacheSize;
+                    if (remove) {
+                        HistoryTableImpl.disconnect(null, eldest.getValue(), null);
+                    }
+                    return remove;
+                }
+            };
+        }
+
+        /**
+         * Close the prepared statements and the connection.
+         */
+        void close() {
+
+            // Loop through the cached prepared statements.
+            for (PreparedStatement preparedStatement : this.statements.values()) {
+                HistoryTableImpl.disconnect(null, preparedStatement, null);
+            }
+
+            this.statements.clear();
+            HistoryTableImpl.disconnect(this.connection, null, null);
+        }
+
+        /**
+         * Get the connection.
+         *
+         * @return  the connection.
+         */
+        public Connection getConnection() {
+            return this.connection;
+        }
+
+        /**
+         * Check if the connection is valid.
+         *
+         * The connection is only checked with the database if it has been
+         * idle for longer than the validation interval.
+         *
+         * @param  validationInterval  the number of milliseconds the connection may be idle before it is validated.
+         *
+         * @return  true if the connection is valid, otherwise false.
+         */
+        boolean isValid(final long validationInterval) {
+
+            boolean valid;
+
+            try {
+                valid = !this.connection.isClosed() &&
+                        (System.currentTimeMillis() - this.lastUsedTime <= validationInterval || this.connection.isValid(VALIDATION_TIMEOUT));
+            } catch (SQLException e) {
+                valid = false;
+            }
+
+            return valid;
+        }
+
+        /**
+         * Prepare the statement, or get it from the cache if it was prepared
+         * before on this connection.
+         *
+         * The statement must not be closed by the caller.
+         *
+         * @param  sql  the SQL string.
+         *
+         * @return  the prepared statement.
+         *
+         * @throws  SQLException  if unable to prepare the statement.
+         */
+        public PreparedStatement prepareStatement(final String sql) throws SQLException {
+
+            PreparedStatement preparedStatement = this.statements.get(sql);
+
+            // Check if the statement is not cached.
+            if (preparedStatement == null) {
+                preparedStatement = this.connection.prepareStatement(sql);
+                this.statements.put(sql, preparedStatement);
+            }
+
+            return preparedStatement;
+        }
+
+        /**
+         * Mark the connection as used now.
+         */
+        void touch() {
+            this.lastUsedTime = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.lazydog.persistence.history.HistoryTable.Action;
+import org.lazydog.persistence.history.HistoryTableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transaction history buffer.
+ *
+ * History rows written while a JTA transaction is active are kept on the
+ * transaction, using the transaction synchronization registry, and written
+ * before the transaction completes, with one connection per target data
+ * source and one batch per history table.  History rows written outside a
+ * transaction are refused, so the caller writes them itself.
+ *
+ * If the history table descriptor coalesces changes, only the final state of
+ * each entity is written.  An insert followed by updates is written as one
+ * insert, an insert followed by a delete is not written, and any other
+ * change replaces the previous change to the entity.
+ *
+ * @author  Ron Rickard
+ */
+final class TransactionHistoryBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionHistoryBuffer.class);
+
+    private final TransactionSynchronizationRegistry registry;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  registry  the transaction synchronization registry.
+     */
+    private TransactionHistoryBuffer(final TransactionSynchronizationRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Check if there is a transaction on the current thread.
+     *
+     * @return  true if there is a transaction on the current thread, otherwise false.
+     */
+    public boolean isTransactionActive() {
+        return this.registry.getTransactionStatus() != Status.STATUS_NO_TRANSACTION;
+    }
+
+    /**
+     * Lookup the transaction synchronization registry in JNDI.
+     *
+     * @param  configuration  the persistence history configuration.
+     *
+     * @return  the transaction synchronization registry.
+     *
+     * @throws  NamingException  if the transaction synchronization registry cannot be found.
+     */
+    static TransactionSynchronizationRegistry lookupRegistry(final PersistenceHistoryConfiguration configuration) throws NamingException {
+        return (TransactionSynchronizationRegistry)new InitialContext().lookup(configuration.getTransactionBufferRegistry());
+    }
+
+    /**
+     * Create a new instance of the transaction history buffer class.
+     *
+     * @param  configuration  the persistence history configuration.
+     *
+     * @return  a new instance of the transaction history buffer class, or null if the transaction synchronization registry cannot be found.
+     */
+    public static TransactionHistoryBuffer newInstance(final PersistenceHistoryConfiguration configuration) {
+
+        TransactionHistoryBuffer buffer = null;
+
+        try {
+            buffer = newInstance(lookupRegistry(configuration));
+        } catch (NamingException e) {
+            logger.warn("Unable to find the transaction synchronization registry {}, so history rows are not buffered.", configuration.getTransactionBufferRegistry(), e);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Create a new instance of the transaction history buffer class.
+     *
+     * @param  registry  the transaction synchronization registry.
+     *
+     * @return  a new instance of the transaction history buffer class.
+     */
+    public static TransactionHistoryBuffer newInstance(final TransactionSynchronizationRegistry registry) {
+        return new TransactionHistoryBuffer(registry);
+    }
+
+    /**
+     * Write the history row.
+     *
+     * @param  row  the history row.
+     *
+     * @return  true if the history row was buffered, or false if there is no active transaction.
+     */
+    public boolean write(final HistoryRow row) {
+
+        boolean buffered = false;
+
+        // Check if there is an active transaction.
+        if (this.registry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+
+            // Get the flusher of the transaction.
+            Flusher flusher = (Flusher)this.registry.getResource(this);
+
+            // Check if this is the first history row of the transaction.
+            if (flusher == null) {
+                flusher = new Flusher();
+                this.registry.putResource(this, flusher);
+                this.registry.registerInterposedSynchronization(flusher);
+            }
+
+            flusher.add(row);
+            buffered = true;
+        }
+
+        return buffered;
+    }
+
+    /**
+     * Flusher.
+     *
+     * Buffers the history rows of a transaction, and writes them before the
+     * transaction completes.  Coalesced history rows are replaced in place,
+     * or set to null if they are not written.
+     */
+    private class Flusher implements Synchronization {
+
+        private HistoryRowIndex index;
+        private final List<HistoryRow> rows = new ArrayList<HistoryRow>();
+
+        /**
+         * Add the history row.
+         *
+         * @param  row  the history row.
+         */
+        public void add(final HistoryRow row) {
+
+            // Check if the changes to the entity are not coalesced.
+            if (!row.getDescriptor().isCoalesce()) {
+                this.rows.add(row);
+            } else {
+
+                // Check if the index does not exist.
+                if (this.index == null) {
+                    this.index = HistoryRowIndex.newInstance();
+                }
+
+                // Get the previous history row for the entity.
+                int position = this.index.get(row);
+                HistoryRow previousRow = (position != -1) ? this.rows.get(position) : null;
+
+                // Check if there is no previous history row, or the entity was deleted and inserted again.
+                if (previousRow == null || Action.DELETE.toString().equals(previousRow.getAction())) {
+                    this.index.put(row, this.rows.size());
+                    this.rows.add(row);
+                }
+
+                // Check if the entity was inserted in the transaction.
+                else if (Action.INSERT.toString().equals(previousRow.getAction())) {
+                    this.rows.set(position, (Action.DELETE.toString().equals(row.getAction())) ?
+                            null :
+                            HistoryRow.newInstance(row, Action.INSERT.toString()));
+                } else {
+                    this.rows.set(position, row);
+                }
+            }
+        }
+
+        /**
+         * Invalidate the cached state of the entities of the buffered
+         * history rows if the transaction did not commit, since the history
+         * rows written before completion were rolled back or never written.
+         *
+         * @param  status  the transaction status.
+         */
+        @Override
+        public void afterCompletion(final int status) {
+
+            // Check if the transaction did not commit.
+            if (status != Status.STATUS_COMMITTED) {
+                logger.trace("Invalidate the cached state of {} rolled back history rows.", this.rows.size());
+                HistoryTableImpl.invalidate(this.getRows());
+            }
+        }
+
+        /**
+         * Get the buffered history rows, without the coalesced history rows
+         * that are not written.
+         *
+         * @return  the buffered history rows.
+         */
+        private List<HistoryRow> getRows() {
+
+            List<HistoryRow> rows = this.rows;
+
+            // Check if any history rows were coalesced.
+            if (this.index != null) {
+                rows = new ArrayList<HistoryRow>(this.rows.size());
+                for (HistoryRow row : this.rows) {
+                    if (row != null) {
+                        rows.add(row);
+                    }
+                }
+            }
+
+            return rows;
+        }
+
+        /**
+         * Write the buffered history rows unless the transaction is going to
+         * roll back.
+         *
+         * @throws  HistoryTableException  if unable to write the history rows, which rolls back the transaction.
+         */
+        @Override
+        public void beforeCompletion() {
+
+            // Check if the transaction is not going to roll back.
+            if (TransactionHistoryBuffer.this.registry.getTransactionStatus() != Status.STATUS_MARKED_ROLLBACK) {
+
+                List<HistoryRow> rows = this.getRows();
+
+                try {
+                    logger.trace("Write {} buffered history rows.", rows.size());
+                    HistoryTableImpl.insert(rows);
+                } catch (SQLException e) {
+                    throw new HistoryTableException(null, "Unable to write " + rows.size() + " buffered history rows.", e);
+                }
+            }
+        }
+    }
+}
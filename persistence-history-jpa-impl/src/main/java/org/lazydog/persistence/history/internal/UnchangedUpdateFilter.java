@@ -0,0 +1,187 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.lazydog.persistence.history.HistoryTable;
+
+/**
+ * Unchanged update filter.
+ *
+ * Skips update history rows whose column values are the same as the last
+ * captured column values of the entity.  The last captured column values of
+ * the most recently changed entities are kept in a bounded cache, so an
+ * unchanged update of an entity that was evicted from the cache is not
+ * skipped.  The cached column values of an entity are invalidated when its
+ * history row is not written or its transaction rolls back, so an update is
+ * never compared with column values that were not committed.
+ *
+ * The cache is split into stripes selected by the entity identifier, each
+ * with its own lock and its share of the cache size, so updates of
+ * different entities rarely wait for each other.
+ *
+ * @author  Ron Rickard
+ */
+final class UnchangedUpdateFilter {
+
+    private final HistoryTableMetrics metrics;
+    private final List<Map<List<Object>,Object[]>> stripes;
+
+    /**
+     * Hide the constructor.
+     *
+     * @param  cacheSize  the number of entities whose last captured column values are cached.
+     * @param  metrics    the history table metrics.
+     */
+    private UnchangedUpdateFilter(final int cacheSize, final HistoryTableMetrics metrics) {
+
+        final int stripeSize = Math.max(1, (cacheSize + StripedCounter.STRIPES - 1) / StripedCounter.STRIPES);
+
+        this.metrics = metrics;
+        this.stripes = new ArrayList<Map<List<Object>,Object[]>>(StripedCounter.STRIPES);
+
+        // Loop through the stripes.
+        for (int count = 0; count < StripedCounter.STRIPES; count++) {
+
+            // Evict the least recently used entity of the stripe when the stripe is full.
+            this.stripes.add(new LinkedHashMap<List<Object>,Object[]>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<List<Object>,Object[]> eldest) {
+                    return this.size() > stripeSize;
+                }
+            });
+        }
+    }
+
+    /**
+     * Check if the history row is written.
+     *
+     * An update history row is not written if its column values are the
+     * same as the last captured column values of the entity.  The cache is
+     * updated with the column values of every other history row.
+     *
+     * @param  row  the history row.
+     *
+     * @return  true if the history row is written, otherwise false.
+     */
+    public boolean accept(final HistoryRow row) {
+
+        boolean accept = true;
+        boolean cacheHit = false;
+        List<Object> key = Arrays.asList(row.getId());
+        Object[] values = row.getValues();
+        Map<List<Object>,Object[]> stripe = this.getStripe(key);
+
+        synchronized (stripe) {
+
+            // Check if the entity was deleted.
+            if (HistoryTable.Action.DELETE.toString().equals(row.getAction())) {
+                stripe.remove(key);
+            } else {
+
+                Object[] previousValues = stripe.get(key);
+
+                // Check if this is an update of a cached entity.
+                if (previousValues != null && HistoryTable.Action.UPDATE.toString().equals(row.getAction())) {
+                    accept = !equals(values, previousValues);
+                    cacheHit = true;
+                }
+
+                // Check if the history row is written.
+                if (accept) {
+                    stripe.put(key, values);
+                }
+            }
+        }
+
+        // Record the cache hit outside the lock.
+        if (cacheHit) {
+            this.metrics.recordUnchangedCacheHit(!accept);
+        }
+
+        return accept;
+    }
+
+    /**
+     * Check if the column values are equal.
+     *
+     * @param  values1  the first column values.
+     * @param  values2  the second column values.
+     *
+     * @return  true if every column value is equal or both null, otherwise false.
+     */
+    private static boolean equals(final Object[] values1, final Object[] values2) {
+
+        boolean equals = values1.length == values2.length;
+
+        // Loop through the column values.
+        for (int index = 0; index < values1.length && equals; index++) {
+            equals = HistoryDeltaEncoder.equals(values1[index], values2[index]);
+        }
+
+        return equals;
+    }
+
+    /**
+     * Get the stripe of the cache key.
+     *
+     * @param  key  the cache key.
+     *
+     * @return  the stripe.
+     */
+    private Map<List<Object>,Object[]> getStripe(final List<Object> key) {
+        int hash = key.hashCode();
+        return this.stripes.get((hash ^ (hash >>> 16)) & (StripedCounter.STRIPES - 1));
+    }
+
+    /**
+     * Invalidate the cached column values of the entity of the history row.
+     *
+     * Called when the history row could not be written or its transaction
+     * rolled back.
+     *
+     * @param  row  the history row.
+     */
+    public void invalidate(final HistoryRow row) {
+
+        List<Object> key = Arrays.asList(row.getId());
+        Map<List<Object>,Object[]> stripe = this.getStripe(key);
+
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    /**
+     * Create a new instance of the unchanged update filter class.
+     *
+     * @param  cacheSize  the number of entities whose last captured column values are cached.
+     * @param  metrics    the history table metrics.
+     *
+     * @return  a new instance of the unchanged update filter class.
+     */
+    public static UnchangedUpdateFilter newInstance(final int cacheSize, final HistoryTableMetrics metrics) {
+        return new UnchangedUpdateFilter(cacheSize, metrics);
+    }
+}
@@ -18,7 +18,11 @@
  */
 package org.lazydog.persistence.history.listener;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.ejb.EJBContext;
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -44,6 +48,8 @@ public class HistoryTableListener {
     private static final Logger logger = LoggerFactory.getLogger(HistoryTableListener.class);
     private static final String DEFAULT_USERNAME = "default";
     private static final String INITIAL_CREATION_USERNAME = "initial_creation";
+    private static final Set<Class<?>> knownHistoryTables = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>,Boolean>());
+    private static final ConcurrentMap<Class<?>,Object> historyTableLocks = new ConcurrentHashMap<Class<?>,Object>();
 
     /**
      * Insert a persist row into the history table.
@@ -81,6 +87,10 @@ public class HistoryTableListener {
     /**
      * Create the history table for the entity if it does not exist.
      *
+     * Once the history table is known to exist, it is not checked again.
+     * The first writes for an entity class are serialized on a lock for that
+     * entity class, so the history table is created and populated only once.
+     *
      * @param  entity  the entity.
      */
     @PrePersist
@@ -88,20 +98,80 @@ public class HistoryTableListener {
     @PreUpdate
     public void createHistoryTable(Object entity) {
 
-        // Get the history table.
-        HistoryTable historyTable = HistoryTableFactory.newInstance().getHistoryTable(entity.getClass());
+        Class<?> entityClass = entity.getClass();
+
+        // Check if the history table is not known to exist.
+        if (!knownHistoryTables.contains(entityClass)) {
+
+            synchronized (getHistoryTableLock(entityClass)) {
+
+                // Check if another thread did not create the history table while this thread waited.
+                if (!knownHistoryTables.contains(entityClass)) {
+
+                    // Get the history table.
+                    HistoryTable historyTable = HistoryTableFactory.newInstance().getHistoryTable(entity);
+
+                    // Check if the history table does not exist.
+                    if (!historyTable.exists()) {
+
+                        // Create the history table.
+                        logger.debug("Creating the history table for entity {}.", entityClass.getSimpleName());
+                        historyTable.create();
+
+                        // Populate the history table.
+                        logger.debug("Populating the history table for entity {}.", entityClass.getSimpleName());
+                        try {
+                            historyTable.populate(INITIAL_CREATION_USERNAME, new Date());
+                        } catch (RuntimeException e) {
+                            dropHistoryTable(historyTable, entityClass);
+                            throw e;
+                        }
+                    }
+
+                    knownHistoryTables.add(entityClass);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Drop the partially populated history table that was just created, so
+     * it is created and populated again the next time it is needed.
+     *
+     * @param  historyTable  the history table.
+     * @param  entityClass   the entity class.
+     */
+    private static void dropHistoryTable(final HistoryTable historyTable, final Class<?> entityClass) {
+
+        try {
+            logger.warn("Dropping the partially populated history table for entity {}.", entityClass.getSimpleName());
+            historyTable.drop();
+        } catch (RuntimeException e) {
+            logger.error("Unable to drop the partially populated history table for entity {}.", entityClass.getSimpleName(), e);
+        }
+    }
 
-        // Check if the history table does not exist.
-        if (!historyTable.exists()) {
+    /**
+     * Get the lock used to create the history table for the entity class.
+     *
+     * @param  entityClass  the entity class.
+     *
+     * @return  the history table lock.
+     */
+    private static Object getHistoryTableLock(Class<?> entityClass) {
 
-            // Create the history table.
-            logger.debug("Creating the history table for entity {}.", entity.getClass().getSimpleName());
-            historyTable.create();
+        Object lock = historyTableLocks.get(entityClass);
 
-            // Populate the history table.
-            logger.debug("Populating the history table for entity {}.", entity.getClass().getSimpleName());
-            historyTable.populate(INITIAL_CREATION_USERNAME, new Date());
+        // Check if the lock does not exist.
+        if (lock == null) {
+            lock = new Object();
+            Object existingLock = historyTableLocks.putIfAbsent(entityClass, lock);
+            if (existingLock != null) {
+                lock = existingLock;
+            }
         }
+
+        return lock;
     }
     
     /**
@@ -18,6 +18,8 @@
  */
 package org.lazydog.addressbook.model;
 
+import javax.persistence.Column;
+
 /**
  * Address.
  *
@@ -43,6 +45,7 @@ public class Address {
      *
      * @return  the ID.
      */
+    @Column(name = "address_id")
     public Integer getId() {
         return this.id;
     }
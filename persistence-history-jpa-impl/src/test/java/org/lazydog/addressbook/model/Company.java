@@ -18,5 +18,49 @@
  */
 package org.lazydog.addressbook.model;
 
-public class Company {  
+/**
+ * Company.
+ *
+ * @author  Ron Rickard
+ */
+public class Company {
+
+    private Integer id;
+    private String name;
+
+    /**
+     * Get the ID.
+     *
+     * @return  the ID.
+     */
+    public Integer getId() {
+        return this.id;
+    }
+
+    /**
+     * Get the name.
+     *
+     * @return  the name.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Set the ID.
+     *
+     * @param  id  the ID.
+     */
+    public void setId(final Integer id) {
+        this.id = id;
+    }
+
+    /**
+     * Set the name.
+     *
+     * @param  name  the name.
+     */
+    public void setName(final String name) {
+        this.name = name;
+    }
 }
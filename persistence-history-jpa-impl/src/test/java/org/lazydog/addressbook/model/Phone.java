@@ -18,5 +18,49 @@
  */
 package org.lazydog.addressbook.model;
 
-public class Phone {  
+/**
+ * Phone.
+ *
+ * @author  Ron Rickard
+ */
+public class Phone {
+
+    private Integer extension;
+    private Integer phoneTestId;
+
+    /**
+     * Get the extension.
+     *
+     * @return  the extension.
+     */
+    public Integer getExtension() {
+        return this.extension;
+    }
+
+    /**
+     * Get the phone test ID.
+     *
+     * @return  the phone test ID.
+     */
+    public Integer getPhoneTestId() {
+        return this.phoneTestId;
+    }
+
+    /**
+     * Set the extension.
+     *
+     * @param  extension  the extension.
+     */
+    public void setExtension(final Integer extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Set the phone test ID.
+     *
+     * @param  phoneTestId  the phone test ID.
+     */
+    public void setPhoneTestId(final Integer phoneTestId) {
+        this.phoneTestId = phoneTestId;
+    }
 }
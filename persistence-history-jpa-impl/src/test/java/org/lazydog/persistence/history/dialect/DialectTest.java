@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.dialect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Dialect test.
+ *
+ * @author  Ron Rickard
+ */
+public class DialectTest {
+
+    @BeforeClass
+    public static void beforeClass() {
+
+        // Ensure the derby.log file is in the target directory.
+        System.setProperty("derby.system.home", "./target");
+    }
+
+    @Test
+    public void testDerby() throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:derby:memory:./target/dialect;create=true");
+        try {
+            Dialect dialect = Dialect.getInstance(connection.getMetaData());
+            assertSame(DerbyDialect.class, dialect.getClass());
+            assertEquals("DIALECT_TEST", dialect.getStoredIdentifier(connection.getMetaData(), "dialect_test"));
+            assertEquals(3, createAndInsert(connection, dialect));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testH2() throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:dialect");
+        try {
+            Dialect dialect = Dialect.getInstance(connection.getMetaData());
+            assertSame(H2Dialect.class, dialect.getClass());
+            assertEquals("DIALECT_TEST", dialect.getStoredIdentifier(connection.getMetaData(), "dialect_test"));
+            assertEquals(3, createAndInsert(connection, dialect));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testMySQL() throws Exception {
+        Dialect dialect = Dialect.getInstance(createMetaData("MySQL"));
+        assertSame(MySQLDialect.class, dialect.getClass());
+        assertEquals("int(10) unsigned", dialect.getColumnType("int", Types.INTEGER, 10, 0, true));
+        assertEquals("datetime", dialect.getTimestampType());
+        assertEquals("rewriteBatchedStatements", dialect.getBatchRewriteProperty());
+        assertEquals("?", dialect.getTypedParameter("varchar(255)"));
+    }
+
+    @Test
+    public void testPostgreSQL() throws Exception {
+        DatabaseMetaData metaData = createMetaData("PostgreSQL");
+        Dialect dialect = Dialect.getInstance(metaData);
+        assertSame(PostgreSQLDialect.class, dialect.getClass());
+        assertEquals("dialect_test", dialect.getStoredIdentifier(metaData, "DIALECT_TEST"));
+        assertEquals("numeric(10,2)", dialect.getColumnType("numeric", Types.NUMERIC, 10, 2, false));
+        assertEquals(32767, dialect.getMaxParameters());
+    }
+
+    @Test
+    public void testStandard() throws Exception {
+        Dialect dialect = Dialect.getInstance(createMetaData("Unknown"));
+        assertSame(StandardDialect.class, dialect.getClass());
+        assertEquals(1, dialect.getMaxInsertRows());
+        assertEquals("cast(? as timestamp)", dialect.getTypedParameter(dialect.getTimestampType()));
+    }
+
+    private static int createAndInsert(Connection connection, Dialect dialect) throws Exception {
+
+        Statement statement = connection.createStatement();
+        statement.executeUpdate("create table dialect_test ("
+                + dialect.getIdentityColumn("dialect_test_id") + ", "
+                + "name " + dialect.getColumnType("VARCHAR", Types.VARCHAR, 20, 0, false) + ", "
+                + "amount " + dialect.getColumnType("DECIMAL", Types.DECIMAL, 10, 2, false) + ", "
+                + "action_time " + dialect.getTimestampType() + " not null, "
+                + "primary key (dialect_test_id))");
+
+        PreparedStatement preparedStatement = connection.prepareStatement("insert into dialect_test (name, amount, action_time) values (?, ?, ?), (?, ?, ?), (?, ?, ?)");
+        for (int row = 0; row < 3; row++) {
+            preparedStatement.setString(row * 3 + 1, "name" + row);
+            preparedStatement.setNull(row * 3 + 2, Types.DECIMAL);
+            preparedStatement.setTimestamp(row * 3 + 3, new Timestamp(System.currentTimeMillis()));
+        }
+        preparedStatement.executeUpdate();
+        preparedStatement.close();
+
+        ResultSet resultSet = statement.executeQuery("select count(*) from dialect_test");
+        resultSet.next();
+        int rowCount = resultSet.getInt(1);
+        statement.executeUpdate("drop table dialect_test");
+        statement.close();
+
+        return rowCount;
+    }
+
+    private static DatabaseMetaData createMetaData(final String databaseProductName) {
+        return (DatabaseMetaData)Proxy.newProxyInstance(DialectTest.class.getClassLoader(), new Class<?>[] {DatabaseMetaData.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return (method.getName().equals("getDatabaseProductName")) ? databaseProductName : Boolean.FALSE;
+            }
+        });
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import java.util.Arrays;
+import javax.persistence.EmbeddedId;
+import org.junit.Test;
+import org.lazydog.addressbook.model.Address;
+import org.lazydog.addressbook.model.Company;
+
+/**
+ * Entity accessor test.
+ *
+ * @author  Ron Rickard
+ */
+public class EntityAccessorTest {
+
+    @Test
+    public void testGetValues() throws Exception {
+        Company company = new Company();
+        company.setId(7);
+        company.setName("Initech");
+        EntityAccessor entityAccessor = EntityAccessor.newInstance(Company.class, Arrays.asList("NAME", "ID"));
+        assertArrayEquals(new Object[] {"Initech", 7}, entityAccessor.getValues(company));
+    }
+
+    @Test
+    public void testGetValuesEmbeddedId() throws Exception {
+        Membership membership = new Membership();
+        membership.id = new MembershipKey();
+        membership.id.companyId = 3L;
+        membership.id.personId = "42";
+        membership.role = "owner";
+        EntityAccessor entityAccessor = EntityAccessor.newInstance(Membership.class, Arrays.asList("COMPANY_ID", "PERSON_ID", "ROLE"));
+        assertArrayEquals(new Object[] {3L, "42", "owner"}, entityAccessor.getValues(membership));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNewInstanceUnmappedColumn() {
+        EntityAccessor.newInstance(Address.class, Arrays.asList("ID", "STREET_ADDRESS"));
+    }
+
+    private static class Membership {
+        @EmbeddedId
+        private MembershipKey id;
+        private String role;
+    }
+
+    private static class MembershipKey {
+        private Long companyId;
+        private String personId;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+import org.lazydog.persistence.history.HistoryTable;
+import org.lazydog.persistence.history.HistoryTableFactory;
+
+/**
+ * History table factory implementation test.
+ *
+ * @author  Ron Rickard
+ */
+public class HistoryTableFactoryImplTest {
+
+    @After
+    public void afterTest() {
+        HistoryTableFactory.unregister();
+    }
+
+    @Test
+    public void testNewInstance() {
+        HistoryTableFactory factory = HistoryTableFactory.newInstance();
+        assertTrue(factory instanceof HistoryTableFactoryImpl);
+        assertSame(factory, HistoryTableFactory.newInstance());
+    }
+
+    @Test
+    public void testRegister() {
+        HistoryTableFactory factory = new HistoryTableFactory() {
+            @Override
+            public HistoryTable getHistoryTable(Object entity) {
+                return null;
+            }
+        };
+        HistoryTableFactory.register(factory);
+        assertSame(factory, HistoryTableFactory.newInstance());
+        HistoryTableFactory.unregister();
+        assertTrue(HistoryTableFactory.newInstance() instanceof HistoryTableFactoryImpl);
+    }
+
+    @Test
+    public void testRegisterClosesReplaced() {
+        final boolean[] closed = new boolean[1];
+        HistoryTableFactory factory = new HistoryTableFactory() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+            @Override
+            public HistoryTable getHistoryTable(Object entity) {
+                return null;
+            }
+        };
+        HistoryTableFactory.register(factory);
+        HistoryTableFactory.register(factory);
+        assertFalse(closed[0]);
+        HistoryTableFactory.register(new HistoryTableFactory() {
+            @Override
+            public HistoryTable getHistoryTable(Object entity) {
+                return null;
+            }
+        });
+        assertTrue(closed[0]);
+    }
+
+    @Test
+    public void testUnregisterCloses() {
+        final boolean[] closed = new boolean[1];
+        HistoryTableFactory.register(new HistoryTableFactory() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+            @Override
+            public HistoryTable getHistoryTable(Object entity) {
+                return null;
+            }
+        });
+        assertFalse(closed[0]);
+        HistoryTableFactory.unregister();
+        assertTrue(closed[0]);
+    }
+}
@@ -18,10 +18,36 @@
  */
 package org.lazydog.persistence.history.internal;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLNonTransientConnectionException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import org.apache.derby.jdbc.EmbeddedDataSource;
 import org.dbunit.database.DatabaseConnection;
 import org.dbunit.database.IDatabaseConnection;
@@ -33,7 +59,14 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.lazydog.addressbook.model.Address;
+import org.lazydog.addressbook.model.Company;
+import org.lazydog.addressbook.model.Department;
+import org.lazydog.addressbook.model.Phone;
 import org.lazydog.persistence.history.HistoryTable;
+import org.lazydog.persistence.history.HistoryTableException;
+import org.lazydog.persistence.history.HistoryVersion;
+import org.lazydog.persistence.history.HistoryVersionHandler;
+import org.lazydog.persistence.history.HistoryVersionIterator;
 
 /**
  *
@@ -70,6 +103,9 @@ public class HistoryTableImplTest {
         ((EmbeddedDataSource)targetDataSource).setCreateDatabase("create");
         targetDataSource.getConnection();
         
+        // Create the target tables.
+        createTargetTables();
+        
         System.out.println("sourceDataSource: " + sourceDataSource);
         System.out.println("targetDataSource: " + targetDataSource);
     }
@@ -104,18 +140,660 @@ public class HistoryTableImplTest {
         
         // Close the database connection.
         databaseConnection.close();
+        
+        // Clear the target tables.
+        execute(targetDataSource, "delete from company_audit");
+        execute(targetDataSource, "delete from address_audit");
     }
     
     @Test
-    public void testCreate() {
+    public void testCreate() throws Exception {
         Address address = new Address();
         address.setCity("Flagstaff");
         address.setState("AZ");
         HistoryTable historyTable = HistoryTableImpl.newInstance(address, sourceDataSource, targetDataSource);
-        //historyTable.create();
+        execute(targetDataSource, "drop table address_audit");
+        assertFalse(historyTable.exists());
+        historyTable.create();
+        assertTrue(historyTable.exists());
+        historyTable.insert(HistoryTable.Action.INSERT, "test", new Date());
+        assertEquals(1, countRows("address_audit"));
+    }
+    
+    @Test
+    public void testInsert() throws Exception {
+        Company company = new Company();
+        company.setId(1);
+        HistoryTable historyTable = HistoryTableImpl.newInstance(company, sourceDataSource, targetDataSource);
+        historyTable.insert(HistoryTable.Action.INSERT, "test", new Date());
+        assertEquals(1, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testInsertAsynchronously() throws Exception {
+        Company company = new Company();
+        company.setId(2);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        AsynchronousHistoryWriter writer = AsynchronousHistoryWriter.newInstance(100, 2, 10, 50);
+        for (int count = 0; count < 25; count++) {
+            HistoryTableImpl.newInstance(company, descriptor, null, writer).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        }
+        writer.shutdown();
+        assertEquals(25, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testInsertAsynchronouslyFailed() throws Exception {
+        Address address = new Address();
+        address.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        AsynchronousHistoryWriter writer = AsynchronousHistoryWriter.newInstance(100, 1, 10, 50);
+        execute(targetDataSource, "rename table address_audit to address_audit_down");
+        try {
+            HistoryTableImpl.newInstance(address, descriptor, null, writer).insert(HistoryTable.Action.UPDATE, "test", new Date());
+            writer.shutdown();
+        } finally {
+            execute(targetDataSource, "rename table address_audit_down to address_audit");
+        }
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertEquals(1, countRows("address_audit"));
+        assertEquals(1, descriptor.getMetrics().getDroppedCount());
+    }
+    
+    @Test
+    public void testInsertAsynchronouslyInTransaction() throws Exception {
+        Company company = new Company();
+        company.setId(2);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        TestRegistry registry = new TestRegistry();
+        AsynchronousHistoryWriter writer = AsynchronousHistoryWriter.newInstance(100, 1, 10, 50, registry);
+        for (int count = 0; count < 2; count++) {
+            HistoryTableImpl.newInstance(company, descriptor, null, writer).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        }
+        registry.synchronization.afterCompletion(Status.STATUS_ROLLEDBACK);
+        registry.resources.clear();
+        for (int count = 0; count < 3; count++) {
+            HistoryTableImpl.newInstance(company, descriptor, null, writer).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        }
+        assertEquals(0, writer.getQueueSize());
+        registry.synchronization.afterCompletion(Status.STATUS_COMMITTED);
+        writer.shutdown();
+        assertEquals(3, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testInsertOnTransaction() throws Exception {
+        Company company = new Company();
+        company.setId(2);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        TestRegistry registry = new TestRegistry();
+        TransactionHistoryBuffer buffer = TransactionHistoryBuffer.newInstance(registry);
+        for (int count = 0; count < 3; count++) {
+            HistoryTableImpl.newInstance(company, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        }
+        assertEquals(0, countRows("company_audit"));
+        registry.synchronization.beforeCompletion();
+        assertEquals(3, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testInsertMultipleRows() throws Exception {
+        Company company = new Company();
+        company.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        TestRegistry registry = new TestRegistry();
+        TransactionHistoryBuffer buffer = TransactionHistoryBuffer.newInstance(registry);
+        for (int count = 0; count < 205; count++) {
+            HistoryTableImpl.newInstance(company, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        }
+        registry.synchronization.beforeCompletion();
+        assertEquals(100, descriptor.getInsertRowsPerStatement());
+        assertEquals(205, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testInsertOnTransactionCoalesced() throws Exception {
+        Address address = new Address();
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        TestRegistry registry = new TestRegistry();
+        TransactionHistoryBuffer buffer = TransactionHistoryBuffer.newInstance(registry);
+        address.setId(1);
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.INSERT, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        address.setId(2);
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.INSERT, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.DELETE, "test", new Date());
+        for (int id = 3; id < 40; id++) {
+            address.setId(id);
+            HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date());
+            HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        }
+        registry.synchronization.beforeCompletion();
+        assertEquals(38, countRows("address_audit"));
+        assertEquals(1, countRows("address_audit where action = 'INSERT'"));
+    }
+    
+    @Test
+    public void testInsertOnConnectionPool() throws Exception {
+        Company company = new Company();
+        company.setId(1);
+        TargetConnectionPool connectionPool = TargetConnectionPool.newInstance(targetDataSource, 1, 4, 0);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource, connectionPool, null, null);
+        HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        TargetConnectionPool.PooledConnection pooledConnection = connectionPool.borrow();
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(descriptor.getInsertRowSQL());
+        connectionPool.giveBack(pooledConnection, true);
+        HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        pooledConnection = connectionPool.borrow();
+        assertSame(preparedStatement, pooledConnection.prepareStatement(descriptor.getInsertRowSQL()));
+        connectionPool.giveBack(pooledConnection, false);
+        HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertTrue(preparedStatement.isClosed());
+        assertEquals(3, countRows("company_audit"));
+        connectionPool.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void testInsertOnConnectionPoolInTransaction() throws Exception {
+        Company company = new Company();
+        company.setId(1);
+        TargetConnectionPool connectionPool = TargetConnectionPool.newInstance(targetDataSource, new TestRegistry(), 1, 4, 0);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource, connectionPool, null, null);
+        assertTrue(connectionPool.isTransactionActive());
+        TargetConnectionPool.PooledConnection pooledConnection = connectionPool.borrow();
+        try {
+            HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        } finally {
+            connectionPool.giveBack(pooledConnection, true);
+        }
+        assertEquals(1, countRows("company_audit"));
+        connectionPool.close();
+    }
+    
+    @Test
+    public void testInsertSpooled() throws Exception {
+        Company company = new Company();
+        company.setId(1);
+        final HistoryTableDescriptor drainDescriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        HistorySpool.DescriptorResolver resolver = new HistorySpool.DescriptorResolver() {
+            @Override
+            public HistoryTableDescriptor getDescriptor(String entityClassName) {
+                return drainDescriptor;
+            }
+        };
+        File directory = new File("target/spool-test");
+        new File(directory, "persistence-history.spool").delete();
+        HistorySpool spool = HistorySpool.newInstance(directory, 65536, PersistenceHistoryConfiguration.SpoolMode.FAILOVER, 10, 50, resolver);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource, null, spool, null);
+        assertSame(spool, descriptor.getSpool());
+        assertNull(drainDescriptor.getSpool());
+        execute(targetDataSource, "rename table company_audit to company_audit_down");
+        try {
+            for (int count = 0; count < 3; count++) {
+                HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+            }
+            assertFalse(spool.isEmpty());
+            spool.shutdown();
+        } finally {
+            execute(targetDataSource, "rename table company_audit_down to company_audit");
+        }
+        assertEquals(0, countRows("company_audit"));
+        spool = HistorySpool.newInstance(directory, 65536, PersistenceHistoryConfiguration.SpoolMode.FAILOVER, 10, 50, resolver);
+        descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource, null, spool, null);
+        assertFalse(spool.isEmpty());
+        assertEquals(3, spool.drain());
+        assertTrue(spool.isEmpty());
+        HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        spool.shutdown();
+        assertEquals(4, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testInsertSpooledCorrupt() throws Exception {
+        Company company = new Company();
+        company.setId(1);
+        final HistoryTableDescriptor drainDescriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        HistorySpool.DescriptorResolver resolver = new HistorySpool.DescriptorResolver() {
+            @Override
+            public HistoryTableDescriptor getDescriptor(String entityClassName) {
+                return drainDescriptor;
+            }
+        };
+        File directory = new File("target/spool-corrupt-test");
+        File file = new File(directory, "persistence-history.spool");
+        File quarantineFile = new File(directory, "persistence-history.spool.quarantine");
+        file.delete();
+        quarantineFile.delete();
+        HistorySpool spool = HistorySpool.newInstance(directory, 65536, PersistenceHistoryConfiguration.SpoolMode.FAILOVER, 10, 50, resolver);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource, null, spool, null);
+        execute(targetDataSource, "rename table company_audit to company_audit_down");
+        try {
+            for (int count = 0; count < 3; count++) {
+                HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+            }
+            spool.shutdown();
+        } finally {
+            execute(targetDataSource, "rename table company_audit_down to company_audit");
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(16);
+            randomAccessFile.seek(16 + 8 + randomAccessFile.readInt() + 8 + 2);
+            randomAccessFile.write('X');
+        } finally {
+            randomAccessFile.close();
+        }
+        spool = HistorySpool.newInstance(directory, 65536, PersistenceHistoryConfiguration.SpoolMode.FAILOVER, 10, 50, resolver);
+        assertEquals(1, spool.drain());
+        spool.shutdown();
+        assertEquals(1, countRows("company_audit"));
+        assertTrue(quarantineFile.length() > 0);
+        spool = HistorySpool.newInstance(directory, 65536, PersistenceHistoryConfiguration.SpoolMode.FAILOVER, 10, 50, resolver);
+        long quarantineLength = quarantineFile.length();
+        assertTrue(spool.isEmpty());
+        spool.shutdown();
+        assertEquals(quarantineLength, quarantineFile.length());
+    }
+    
+    @Test
+    public void testInsertUnchangedSkipped() throws Exception {
+        Address address = new Address();
+        address.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.INSERT, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertEquals(1, countRows("address_audit"));
+        execute(sourceDataSource, "update address set city = 'Pasadena' where address_id = 1");
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.DELETE, "test", new Date());
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertEquals(4, countRows("address_audit"));
+        assertEquals(3, descriptor.getMetrics().getUnchangedCacheHitCount());
+        assertEquals(2, descriptor.getMetrics().getUnchangedSkipCount());
+    }
+    
+    @Test
+    public void testInsertUnchangedRolledBack() throws Exception {
+        Address address = new Address();
+        address.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.INSERT, "test", new Date(System.currentTimeMillis() - 2000));
+        TestRegistry registry = new TestRegistry();
+        TransactionHistoryBuffer buffer = TransactionHistoryBuffer.newInstance(registry);
+        execute(sourceDataSource, "update address set city = 'Pasadena' where address_id = 1");
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date(System.currentTimeMillis() - 1000));
+        registry.synchronization.beforeCompletion();
+        execute(sourceDataSource, "update address set city = 'Los Angeles' where address_id = 1");
+        execute(targetDataSource, "delete from address_audit where action = 'UPDATE'");
+        registry.synchronization.afterCompletion(Status.STATUS_ROLLEDBACK);
+        execute(sourceDataSource, "update address set city = 'Pasadena' where address_id = 1");
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertEquals(2, countRows("address_audit"));
+        assertEquals(0, descriptor.getMetrics().getUnchangedSkipCount());
+        assertEquals("Pasadena", HistoryTableImpl.newInstance(address, descriptor).findAsOf(new Date()).getValue("city"));
+    }
+    
+    @Test
+    public void testFind() throws Exception {
+        Company company = new Company();
+        company.setId(3);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {3, "Initech", "INSERT", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 1).getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {3, "Initrode", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 10).getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {3, "Initrode", "DELETE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 20).getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Acme", "INSERT", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 5).getTime())}));
+        HistoryTableImpl.insert(rows);
+        HistoryTable historyTable = HistoryTableImpl.newInstance(company, descriptor);
+        assertNull(historyTable.findAsOf(getDate(2026, Calendar.SEPTEMBER, 1)));
+        assertEquals(HistoryTable.Action.INSERT, historyTable.findAsOf(getDate(2026, Calendar.OCTOBER, 5)).getAction());
+        assertEquals("Initrode", historyTable.findAsOf(getDate(2026, Calendar.OCTOBER, 15)).getValue("name"));
+        assertNull(historyTable.findAsOf(getDate(2026, Calendar.OCTOBER, 25)));
+        HistoryVersionIterator iterator = historyTable.findVersions(getDate(2026, Calendar.OCTOBER, 1), getDate(2026, Calendar.OCTOBER, 20));
+        try {
+            HistoryVersion version = iterator.next();
+            assertEquals("Initech", version.getValue("NAME"));
+            assertEquals(getDate(2026, Calendar.OCTOBER, 1), version.getActionTime());
+            assertEquals(HistoryTable.Action.UPDATE, iterator.next().getAction());
+            assertFalse(iterator.hasNext());
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        Address address = new Address();
+        address.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Los Angeles", "California", "111 Street Avenue", "11111", "INSERT", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 1).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Pasadena", "California", "111 Street Avenue", "11111", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 2).getTime())}, new Object[] {1}));
+        HistoryTableImpl.insert(rows);
+        rows.clear();
+        descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Pasadena", "California", "111 Street Avenue", "91101", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 3).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Glendale", "California", "111 Street Avenue", "91101", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 4).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Burbank", "California", "111 Street Avenue", "91101", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 5).getTime())}, new Object[] {1}));
+        HistoryTableImpl.insert(rows);
+        assertEquals(5, countRows("address_audit"));
+        assertEquals(2, countRows("address_audit where changed_columns is null"));
+        assertEquals(1, countRows("address_audit where changed_columns = '20' and city = 'Pasadena' and state is null and zipcode is null"));
+        assertEquals(1, countRows("address_audit where changed_columns = '01' and city is null and zipcode = '91101'"));
+        assertEquals(1, countRows("address_audit where changed_columns = '20' and city = 'Burbank'"));
+        HistoryTable historyTable = HistoryTableImpl.newInstance(address, descriptor);
+        HistoryVersion version = historyTable.findAsOf(getDate(2026, Calendar.OCTOBER, 3));
+        assertEquals("Pasadena", version.getValue("city"));
+        assertEquals("California", version.getValue("state"));
+        assertEquals("91101", version.getValue("zipcode"));
+        assertEquals("Burbank", historyTable.findAsOf(getDate(2026, Calendar.OCTOBER, 6)).getValue("city"));
+        HistoryVersionIterator iterator = historyTable.findVersions(getDate(2026, Calendar.OCTOBER, 3), getDate(2026, Calendar.OCTOBER, 6));
+        try {
+            version = iterator.next();
+            assertEquals("Pasadena", version.getValue("city"));
+            assertEquals("91101", version.getValue("zipcode"));
+            assertEquals("111 Street Avenue", version.getValue("street_address"));
+            assertEquals("Glendale", iterator.next().getValue("city"));
+            version = iterator.next();
+            assertEquals("Burbank", version.getValue("city"));
+            assertEquals("91101", version.getValue("zipcode"));
+            assertFalse(iterator.hasNext());
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Test
+    public void testDeltaRolledBack() throws Exception {
+        Address address = new Address();
+        address.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.INSERT, "test", new Date(System.currentTimeMillis() - 2000));
+        TestRegistry registry = new TestRegistry();
+        TransactionHistoryBuffer buffer = TransactionHistoryBuffer.newInstance(registry);
+        execute(sourceDataSource, "update address set city = 'Pasadena' where address_id = 1");
+        HistoryTableImpl.newInstance(address, descriptor, buffer, null).insert(HistoryTable.Action.UPDATE, "test", new Date(System.currentTimeMillis() - 1000));
+        registry.synchronization.beforeCompletion();
+        execute(sourceDataSource, "update address set city = 'Los Angeles' where address_id = 1");
+        execute(targetDataSource, "delete from address_audit where action = 'UPDATE'");
+        registry.synchronization.afterCompletion(Status.STATUS_ROLLEDBACK);
+        execute(sourceDataSource, "update address set city = 'Pasadena', zipcode = '91101' where address_id = 1");
+        HistoryTableImpl.newInstance(address, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertEquals(2, countRows("address_audit"));
+        HistoryVersion version = HistoryTableImpl.newInstance(address, descriptor).findAsOf(new Date());
+        assertEquals("Pasadena", version.getValue("city"));
+        assertEquals("91101", version.getValue("zipcode"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        for (int id = 1; id <= 40; id++) {
+            rows.add(HistoryRow.newInstance(descriptor, new Object[] {id, "Company " + id, "INSERT", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 1).getTime())}));
+            rows.add(HistoryRow.newInstance(descriptor, new Object[] {id, "Renamed " + id, "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 10).getTime())}));
+        }
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {7, "Renamed 7", "DELETE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 5).getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {41, "Company 41", "INSERT", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 20).getTime())}));
+        HistoryTableImpl.insert(rows);
+        final Map<Object,Object> names = new HashMap<Object,Object>();
+        long count = HistoryTableImpl.newInstance(new Company(), descriptor).snapshot(getDate(2026, Calendar.OCTOBER, 7), new HistoryVersionHandler() {
+            @Override
+            public void handle(HistoryVersion version) {
+                assertNull(names.put(version.getValue("id"), version.getValue("name")));
+            }
+        });
+        assertEquals(39, count);
+        assertEquals(39, names.size());
+        assertEquals("Company 1", names.get(1));
+        assertFalse(names.containsKey(7));
+        assertFalse(names.containsKey(41));
+    }
+
+    @Test
+    public void testPartition() throws Exception {
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Phone.class, sourceDataSource, targetDataSource);
+        HistoryTablePartitioner partitioner = descriptor.getPartitioner();
+        Date october = getDate(2026, Calendar.OCTOBER, 17);
+        Date december = getDate(2026, Calendar.DECEMBER, 1);
+        assertEquals("phone_test_history_202610", partitioner.getPartitionName(october));
+        assertEquals("phone_test_history_202610", partitioner.createPartitions(october));
+        assertEquals(0, countRows("phone_test_history_202612"));
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, 100, "INSERT", "test", new Timestamp(october.getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, 101, "UPDATE", "test", new Timestamp(october.getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, 102, "UPDATE", "test", new Timestamp(december.getTime())}));
+        HistoryTableImpl.insert(rows);
+        assertEquals(2, countRows("phone_test_history_202610"));
+        assertEquals(3, countRows("phone_test_history"));
+        assertEquals(1, partitioner.dropPartitionsBefore(getDate(2026, Calendar.NOVEMBER, 1)));
+        assertEquals(1, countRows("phone_test_history"));
+    }
+
+    @Test
+    public void testPartitionMaintained() throws Exception {
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Phone.class, sourceDataSource, targetDataSource);
+        HistoryTablePartitioner partitioner = descriptor.getPartitioner();
+        partitioner.maintain(getDate(2027, Calendar.MARCH, 17));
+        assertEquals(0, countRows("phone_test_history_202703"));
+        assertEquals(0, countRows("phone_test_history_202704"));
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, 100, "INSERT", "test", new Timestamp(getDate(2027, Calendar.APRIL, 1).getTime())}));
+        HistoryTableImpl.insert(rows);
+        assertEquals(1, countRows("phone_test_history_202704"));
+        partitioner.dropPartitions();
+        assertEquals(0, partitioner.dropPartitions());
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        Date october = getDate(2026, Calendar.OCTOBER, 17);
+        Date december = getDate(2026, Calendar.DECEMBER, 1);
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        for (int count = 0; count < 5; count++) {
+            rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Acme", "UPDATE", "test", new Timestamp(october.getTime())}));
+        }
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Acme", "UPDATE", "test", new Timestamp(december.getTime())}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Acme", "UPDATE", "test", new Timestamp(october.getTime())}));
+        HistoryTableImpl.insert(rows);
+        HistoryTablePurger purger = HistoryTablePurger.newInstance(Collections.<HistoryTableDescriptor>emptyList(), 3600000, 2, 0);
+        try {
+            assertEquals(6, purger.purge(descriptor, getDate(2026, Calendar.NOVEMBER, 1)));
+        } finally {
+            purger.shutdown();
+        }
+        assertEquals(1, countRows("company_audit"));
+        assertEquals(6, descriptor.getMetrics().getPurgeCount());
+    }
+
+    @Test
+    public void testPurgeDelta() throws Exception {
+        Address address = new Address();
+        address.setId(1);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        List<HistoryRow> rows = new ArrayList<HistoryRow>();
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Los Angeles", "California", "111 Street Avenue", "11111", "INSERT", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 1).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Pasadena", "California", "111 Street Avenue", "11111", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 2).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Pasadena", "California", "111 Street Avenue", "91101", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 3).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Glendale", "California", "111 Street Avenue", "91101", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 4).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Burbank", "California", "111 Street Avenue", "91101", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.OCTOBER, 5).getTime())}, new Object[] {1}));
+        rows.add(HistoryRow.newInstance(descriptor, new Object[] {1, "Burbank", "California", "111 Street Avenue", "91502", "UPDATE", "test", new Timestamp(getDate(2026, Calendar.DECEMBER, 1).getTime())}, new Object[] {1}));
+        HistoryTableImpl.insert(rows);
+        assertEquals(2, countRows("address_audit where changed_columns is null"));
+        HistoryTablePurger purger = HistoryTablePurger.newInstance(Collections.<HistoryTableDescriptor>emptyList(), 3600000, 2, 0);
+        try {
+            assertEquals(3, purger.purge(descriptor, getDate(2026, Calendar.NOVEMBER, 1)));
+        } finally {
+            purger.shutdown();
+        }
+        assertEquals(3, countRows("address_audit"));
+        HistoryTable historyTable = HistoryTableImpl.newInstance(address, descriptor);
+        HistoryVersion version = historyTable.findAsOf(getDate(2026, Calendar.DECEMBER, 2));
+        assertEquals("Burbank", version.getValue("city"));
+        assertEquals("California", version.getValue("state"));
+        assertEquals("91502", version.getValue("zipcode"));
+        HistoryVersionIterator iterator = historyTable.findVersions(getDate(2026, Calendar.NOVEMBER, 1), getDate(2026, Calendar.DECEMBER, 2));
+        try {
+            version = iterator.next();
+            assertEquals("111 Street Avenue", version.getValue("street_address"));
+            assertEquals("91502", version.getValue("zipcode"));
+            assertFalse(iterator.hasNext());
+        } finally {
+            iterator.close();
+        }
+        execute(targetDataSource, "delete from address_audit where changed_columns is null");
+        try {
+            historyTable.findAsOf(getDate(2026, Calendar.DECEMBER, 2));
+            fail();
+        } catch (HistoryTableException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testPopulate() throws Exception {
+        Company company = new Company();
+        HistoryTable historyTable = HistoryTableImpl.newInstance(company, sourceDataSource, targetDataSource);
+        historyTable.populate("test", new Date());
+        assertEquals(2, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testPopulateFailed() throws Exception {
+        Company company = new Company();
+        HistoryTable historyTable = HistoryTableImpl.newInstance(company, sourceDataSource, targetDataSource);
+        execute(sourceDataSource, "rename table company to company_down");
+        try {
+            historyTable.populate("test", new Date());
+            fail();
+        } catch (HistoryTableException e) {
+            assertTrue(historyTable.exists());
+        } finally {
+            execute(sourceDataSource, "rename table company_down to company");
+        }
+    }
+    
+    @Test
+    public void testPopulateManaged() throws Exception {
+        Company company = new Company();
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        TransactionHistoryBuffer buffer = TransactionHistoryBuffer.newInstance(new TestRegistry());
+        HistoryTableImpl.newInstance(company, descriptor, buffer, null).populate("test", new Date());
+        assertEquals(2, countRows("company_audit"));
+    }
+    
+    @Test
+    public void testPopulateInsertSelect() throws Exception {
+        Company company = new Company();
+        HistoryTable historyTable = HistoryTableImpl.newInstance(company, targetDataSource, targetDataSource);
+        historyTable.populate("o'test\\", new Date());
+        assertEquals(3, countRows("company_audit"));
+        assertEquals(3, countRows("company_audit where action_by = 'o''test\\'"));
+    }
+    
+    @Test
+    public void testMetrics() throws Exception {
+        Company company = new Company();
+        company.setId(2);
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        HistoryTableImpl.newInstance(company, descriptor).insert(HistoryTable.Action.UPDATE, "test", new Date());
+        assertEquals(1, descriptor.getMetrics().getInsertCount());
+        assertEquals(0, descriptor.getMetrics().getInsertFailureCount());
+        assertEquals(1, descriptor.getMetrics().getRowsPerBatchMax());
+    }
+    
+    @Test
+    public void testDescriptor() {
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        assertEquals(5, descriptor.getColumnDefinitions().size());
+        assertEquals("insert into address_audit (ADDRESS_ID, CITY, STATE, STREET_ADDRESS, ZIPCODE, action, action_by, action_time, changed_columns) values (?, ?, ?, ?, ?, ?, ?, ?, ?)", descriptor.getInsertRowSQL());
+        assertEquals("select ADDRESS_ID, CITY, STATE, STREET_ADDRESS, ZIPCODE from address where ADDRESS_ID = ?", descriptor.getSelectRowSQL());
+        assertEquals("create table address_audit (address_audit_id int generated always as identity not null, ADDRESS_ID INTEGER, CITY VARCHAR(255), STATE VARCHAR(255), STREET_ADDRESS VARCHAR(255), ZIPCODE VARCHAR(255), action varchar(255) not null, action_by varchar(255) not null, action_time timestamp not null, changed_columns varchar(2), primary key (address_audit_id))", descriptor.getCreateTableSQL());
+        assertEquals("insert into address_audit (ADDRESS_ID, CITY, STATE, STREET_ADDRESS, ZIPCODE, action, action_by, action_time, changed_columns) values (?, ?, ?, ?, ?, ?, ?, ?, ?), (?, ?, ?, ?, ?, ?, ?, ?, ?)", descriptor.createInsertRowsSQL("address_audit", 2));
+        assertEquals("create index address_audit_ix on address_audit (ADDRESS_ID, action_time, address_audit_id)", descriptor.createCreateIndexSQL("address_audit"));
+        assertEquals("select ADDRESS_ID, CITY, STATE, STREET_ADDRESS, ZIPCODE, action, action_by, action_time, address_audit_id, changed_columns from address_audit where ADDRESS_ID = ? and action_time <= ? order by action_time desc, address_audit_id desc", descriptor.getSelectVersionAsOfSQL());
+    }
+    
+    @Test
+    public void testRowCodec() throws Exception {
+        HistoryTableDescriptor descriptor = HistoryTableDescriptor.newInstance(Address.class, sourceDataSource, targetDataSource);
+        Timestamp actionTime = new Timestamp(System.currentTimeMillis());
+        actionTime.setNanos(123456789);
+        Object[] parameters = new Object[] {-1, "Flagstaff \u00e9\u4e2d\ud83d\ude00", null, new BigDecimal("12.50"), UUID.randomUUID(), "UPDATE", "test", actionTime};
+        HistoryRow row = HistoryRow.newInstance(descriptor, parameters, new Object[] {-1});
+        ByteBuffer buffer = ByteBuffer.wrap(descriptor.getRowCodec().encode(row));
+        HistoryRow decodedRow = descriptor.getRowCodec().decode(descriptor, buffer);
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(parameters, decodedRow.getParameters());
+        assertArrayEquals(new Object[] {-1}, decodedRow.getId());
+        HistoryTableDescriptor companyDescriptor = HistoryTableDescriptor.newInstance(Company.class, sourceDataSource, targetDataSource);
+        try {
+            companyDescriptor.getRowCodec().decode(companyDescriptor, ByteBuffer.wrap(descriptor.getRowCodec().encode(row)));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        parameters[1] = new StringBuilder("Flagstaff");
+        try {
+            descriptor.getRowCodec().encode(HistoryRow.newInstance(descriptor, parameters, new Object[] {-1}));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testDescriptorInvalidId() {
+        HistoryTableDescriptor.newInstance(Department.class, sourceDataSource, targetDataSource);
+    }
+    
+    private static int countRows(String tableName) throws Exception {
+        
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet resultSet = null;
+        
+        try {
+            
+            // Count the rows.
+            connection = targetDataSource.getConnection();
+            statement = connection.createStatement();
+            resultSet = statement.executeQuery("select count(*) from " + tableName);
+            resultSet.next();
+            return resultSet.getInt(1);
+        } finally {
+            
+            // Close the connection.
+            resultSet.close();
+            statement.close();
+            connection.close();
+        }
     }
     
     private static void createSourceTables() throws Exception {
+        execute(sourceDataSource, "create table address(address_id int primary key, city varchar(255), state varchar(255), street_address varchar(255), zipcode varchar(255))");
+        execute(sourceDataSource, "create table company(id int primary key, name varchar(255))");
+        execute(sourceDataSource, "create table phone_test(phone_test_id int primary key, extension int)");
+    }
+    
+    private static void createTargetTables() throws Exception {
+        execute(targetDataSource, "create table company_audit(company_audit_id int generated always as identity, id int, name varchar(255), action varchar(255) not null, action_by varchar(255) not null, action_time timestamp not null, primary key (company_audit_id))");
+        execute(targetDataSource, "create table address_audit(address_audit_id int generated always as identity, address_id int, city varchar(255), state varchar(255), street_address varchar(255), zipcode varchar(255), action varchar(255) not null, action_by varchar(255) not null, action_time timestamp not null, changed_columns varchar(2), primary key (address_audit_id))");
+        execute(targetDataSource, "create table company(id int primary key, name varchar(255))");
+        execute(targetDataSource, "insert into company values (1, 'Acme'), (2, 'Globex'), (3, 'Initech')");
+    }
+    
+    private static Date getDate(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day);
+        return calendar.getTime();
+    }
+    
+    private static void execute(DataSource dataSource, String sql) throws Exception {
         
         Connection connection = null;
         Statement statement = null;
@@ -123,11 +801,11 @@ public class HistoryTableImplTest {
         try {
             
             // Get the connection.
-            connection = sourceDataSource.getConnection();  
+            connection = dataSource.getConnection();  
             
-            // Create the database.
+            // Execute the SQL.
             statement = connection.createStatement();
-            statement.execute("create table address(id int primary key, city varchar(255), state varchar(255), street_address varchar(255), zipcode varchar(255))");
+            statement.execute(sql);
         } finally {
             
             // Close the connection.
@@ -143,4 +821,44 @@ public class HistoryTableImplTest {
     private static IDataSet getDataSet() throws Exception {
         return new FlatXmlDataSetBuilder().build(Thread.currentThread().getContextClassLoader().getResourceAsStream(TEST_FILE));
     }
+
+    private static class TestRegistry implements TransactionSynchronizationRegistry {
+
+        private Map<Object,Object> resources = new HashMap<Object,Object>();
+        private Synchronization synchronization;
+
+        @Override
+        public Object getTransactionKey() {
+            return this;
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            this.resources.put(key, value);
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            return this.resources.get(key);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization synchronization) {
+            this.synchronization = synchronization;
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import org.lazydog.addressbook.model.Company;
+
+/**
+ * History table metrics test.
+ *
+ * @author  Ron Rickard
+ */
+public class HistoryTableMetricsTest {
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = Histogram.newInstance();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(100, histogram.getMax());
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        HistoryTableMetrics metrics = HistoryTableMetrics.newInstance(Company.class, true, null);
+        metrics.recordCreate(System.nanoTime(), false);
+        metrics.register();
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("org.lazydog.persistence.history:type=HistoryTable,entity=\"org.lazydog.addressbook.model.Company\"");
+        assertTrue(mBeanServer.isRegistered(objectName));
+        assertEquals(1L, mBeanServer.getAttribute(objectName, "CreateFailureCount"));
+        mBeanServer.unregisterMBean(objectName);
+    }
+
+    @Test
+    public void testStripedCounter() {
+        StripedCounter counter = StripedCounter.newInstance();
+        counter.increment();
+        counter.add(41);
+        assertEquals(42, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * History table populator test.
+ *
+ * @author  Ron Rickard
+ */
+public class HistoryTablePopulatorTest {
+
+    @Test
+    public void testSplit() {
+        List<long[]> idRanges = HistoryTablePopulator.split(1, 10, 4);
+        assertEquals(4, idRanges.size());
+        assertArrayEquals(new long[] {1, 3}, idRanges.get(0));
+        assertArrayEquals(new long[] {4, 6}, idRanges.get(1));
+        assertArrayEquals(new long[] {7, 9}, idRanges.get(2));
+        assertArrayEquals(new long[] {10, 10}, idRanges.get(3));
+    }
+
+    @Test
+    public void testSplitNarrowRange() {
+        List<long[]> idRanges = HistoryTablePopulator.split(5, 6, 8);
+        assertEquals(2, idRanges.size());
+        assertArrayEquals(new long[] {5, 5}, idRanges.get(0));
+        assertArrayEquals(new long[] {6, 6}, idRanges.get(1));
+    }
+
+    @Test
+    public void testSplitWideRange() {
+        List<long[]> idRanges = HistoryTablePopulator.split(Long.MIN_VALUE, Long.MAX_VALUE, 2);
+        assertEquals(2, idRanges.size());
+        assertArrayEquals(new long[] {Long.MIN_VALUE, -1}, idRanges.get(0));
+        assertArrayEquals(new long[] {0, Long.MAX_VALUE}, idRanges.get(1));
+    }
+}
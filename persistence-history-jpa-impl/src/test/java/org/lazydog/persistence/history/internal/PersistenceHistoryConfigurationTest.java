@@ -19,6 +19,12 @@
 package org.lazydog.persistence.history.internal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import java.net.URL;
+import java.net.URLClassLoader;
 import org.junit.Test;
 import org.lazydog.addressbook.model.Address;
 import org.lazydog.addressbook.model.Company;
@@ -38,6 +44,107 @@ public class PersistenceHistoryConfigurationTest {
         PersistenceHistoryConfiguration.newInstance();
     }
    
+    @Test
+    public void testGetInstance() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.getInstance();
+        assertSame(configuration, PersistenceHistoryConfiguration.getInstance());
+        assertNotSame(configuration, PersistenceHistoryConfiguration.newInstance());
+        assertEquals(configuration.getTableName(Address.class), "address");
+    }
+   
+    @Test
+    public void testGetInstanceNotLoaded() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[0], null));
+        try {
+            PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.getInstance();
+            assertFalse(configuration.isLoaded());
+            assertNotSame(configuration, PersistenceHistoryConfiguration.getInstance());
+        } finally {
+            Thread.currentThread().setContextClassLoader(classLoader);
+        }
+        assertTrue(PersistenceHistoryConfiguration.getInstance().isLoaded());
+    }
+   
+    @Test
+    public void testRelease() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.getInstance();
+        PersistenceHistoryConfiguration.release();
+        assertNotSame(configuration, PersistenceHistoryConfiguration.getInstance());
+    }
+   
+    @Test
+    public void testGetCaptureMode() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertEquals(configuration.getCaptureMode(Address.class), PersistenceHistoryConfiguration.CaptureMode.SOURCE);
+        assertEquals(configuration.getCaptureMode(Employee.class), PersistenceHistoryConfiguration.CaptureMode.ENTITY);
+    }
+   
+    @Test
+    public void testIsCoalesce() {
+        assertTrue(PersistenceHistoryConfiguration.newInstance().isCoalesce(Address.class));
+        assertFalse(PersistenceHistoryConfiguration.newInstance().isCoalesce(Company.class));
+    }
+
+    @Test
+    public void testGetPartitionPeriod() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertEquals(configuration.getPartitionPeriod(Address.class), PersistenceHistoryConfiguration.PartitionPeriod.NONE);
+        assertEquals(configuration.getPartitionPeriod(Phone.class), PersistenceHistoryConfiguration.PartitionPeriod.MONTH);
+        assertEquals(configuration.getPartitionsAhead(Address.class), 1);
+        assertEquals(configuration.getPartitionsAhead(Phone.class), 2);
+    }
+
+    @Test
+    public void testGetStorageMode() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertEquals(configuration.getStorageMode(Address.class), PersistenceHistoryConfiguration.StorageMode.DELTA);
+        assertEquals(configuration.getStorageMode(Company.class), PersistenceHistoryConfiguration.StorageMode.FULL);
+        assertEquals(configuration.getSnapshotInterval(Address.class), 3);
+        assertEquals(configuration.getSnapshotInterval(Company.class), 10);
+        assertEquals(configuration.getDeltaCacheSize(Address.class), 1000);
+    }
+
+    @Test
+    public void testIsSkipUnchanged() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertTrue(configuration.isSkipUnchanged(Address.class));
+        assertFalse(configuration.isSkipUnchanged(Company.class));
+        assertEquals(configuration.getUnchangedCacheSize(Address.class), 100);
+        assertEquals(configuration.getUnchangedCacheSize(Company.class), 1000);
+    }
+
+    @Test
+    public void testGetTargetConnectionPool() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertTrue(configuration.isTargetConnectionPoolEnabled());
+        assertEquals(configuration.getTargetConnectionPoolConnections(), 2);
+        assertEquals(configuration.getTargetConnectionPoolStatementCacheSize(), 4);
+        assertEquals(configuration.getTargetConnectionPoolValidationInterval(), 0);
+    }
+
+    @Test
+    public void testGetSpool() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertTrue(configuration.isSpoolEnabled());
+        assertEquals(configuration.getSpoolDirectory(), "target/spool");
+        assertEquals(configuration.getSpoolCapacity(), 1048576);
+        assertEquals(configuration.getSpoolMode(), PersistenceHistoryConfiguration.SpoolMode.FAILOVER);
+        assertEquals(configuration.getSpoolReplayBatchSize(), 100);
+        assertEquals(configuration.getSpoolReplayInterval(), 500);
+    }
+
+    @Test
+    public void testGetPurger() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertTrue(configuration.isPurgerEnabled());
+        assertEquals(configuration.getPurgerChunkSize(), 2);
+        assertEquals(configuration.getPurgerInterval(), 3600000);
+        assertEquals(configuration.getPurgerPause(), 0);
+        assertEquals(configuration.getRetentionDays(Address.class), 0);
+        assertEquals(configuration.getRetentionDays(Phone.class), 365);
+    }
+
     @Test
     public void testGetHistoryTableIdColumnName() {
         PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
@@ -58,6 +165,26 @@ public class PersistenceHistoryConfigurationTest {
         assertEquals(configuration.getHistoryTableName(Phone.class), "phone_test_history");
     }
            
+    @Test
+    public void testIsTransactionBufferEnabled() {
+        assertFalse(PersistenceHistoryConfiguration.newInstance().isTransactionBufferEnabled());
+        assertEquals("java:comp/TransactionSynchronizationRegistry", PersistenceHistoryConfiguration.newInstance().getTransactionBufferRegistry());
+    }
+
+    @Test
+    public void testIsMetricsEnabled() {
+        assertTrue(PersistenceHistoryConfiguration.newInstance().isMetricsEnabled());
+    }
+
+    @Test
+    public void testGetPopulate() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertEquals(configuration.getPopulateCommitSize(), 2);
+        assertEquals(configuration.getPopulateFetchSize(), 100);
+        assertEquals(configuration.getPopulateParallelism(), 2);
+        assertEquals(configuration.getPopulateInsertSelectMode(), PersistenceHistoryConfiguration.InsertSelectMode.AUTO);
+    }
+           
     @Test
     public void testGetSourceDataSource() {
         PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
@@ -89,4 +216,14 @@ public class PersistenceHistoryConfigurationTest {
         PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
         assertEquals(configuration.getTargetDataSource(), "jdbc/AddressbookHistoryPool");
     }
+   
+    @Test
+    public void testGetAsynchronousWriter() {
+        PersistenceHistoryConfiguration configuration = PersistenceHistoryConfiguration.newInstance();
+        assertFalse(configuration.isAsynchronousWriterEnabled());
+        assertEquals(configuration.getAsynchronousWriterBatchSize(), 100);
+        assertEquals(configuration.getAsynchronousWriterFlushInterval(), 1000);
+        assertEquals(configuration.getAsynchronousWriterQueueCapacity(), 10000);
+        assertEquals(configuration.getAsynchronousWriterThreads(), 1);
+    }
 }
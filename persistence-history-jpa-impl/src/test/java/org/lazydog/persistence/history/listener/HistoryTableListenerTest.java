@@ -0,0 +1,174 @@
+/**
+ * Copyright 2010-2013 lazydog.org.
+ *
+ * This file is part of persistence history.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lazydog.persistence.history.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lazydog.addressbook.model.Department;
+import org.lazydog.addressbook.model.Employee;
+import org.lazydog.addressbook.model.Phone;
+import org.lazydog.persistence.history.HistoryTable;
+import org.lazydog.persistence.history.HistoryTableException;
+import org.lazydog.persistence.history.HistoryVersion;
+import org.lazydog.persistence.history.HistoryVersionHandler;
+import org.lazydog.persistence.history.HistoryVersionIterator;
+import org.lazydog.persistence.history.HistoryTableFactory;
+
+/**
+ * History table listener test.
+ *
+ * @author  Ron Rickard
+ */
+public class HistoryTableListenerTest {
+
+    private final AtomicInteger createCount = new AtomicInteger();
+    private final AtomicInteger dropCount = new AtomicInteger();
+    private final AtomicInteger existsCount = new AtomicInteger();
+    private final AtomicInteger populateCount = new AtomicInteger();
+    private final AtomicInteger populateFailures = new AtomicInteger();
+
+    @Before
+    public void beforeTest() {
+        HistoryTableFactory.register(new HistoryTableFactory() {
+            @Override
+            public HistoryTable getHistoryTable(Object entity) {
+                return new CountingHistoryTable();
+            }
+        });
+    }
+
+    @After
+    public void afterTest() {
+        HistoryTableFactory.unregister();
+    }
+
+    @Test
+    public void testCreateHistoryTableOnce() {
+        HistoryTableListener listener = new HistoryTableListener();
+        listener.createHistoryTable(new Department());
+        listener.createHistoryTable(new Department());
+        listener.createHistoryTable(new Department());
+        assertEquals(1, this.existsCount.get());
+        assertEquals(1, this.createCount.get());
+        assertEquals(1, this.populateCount.get());
+    }
+
+    @Test
+    public void testCreateHistoryTableConcurrently() throws Exception {
+
+        final HistoryTableListener listener = new HistoryTableListener();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int count = 0; count < 8; count++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        listener.createHistoryTable(new Employee());
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, this.createCount.get());
+        assertEquals(1, this.populateCount.get());
+    }
+
+    @Test
+    public void testCreateHistoryTablePopulateFailed() {
+        HistoryTableListener listener = new HistoryTableListener();
+        this.populateFailures.set(1);
+        try {
+            listener.createHistoryTable(new Phone());
+            fail();
+        } catch (HistoryTableException e) {
+            assertEquals(1, this.dropCount.get());
+        }
+        listener.createHistoryTable(new Phone());
+        assertEquals(2, this.createCount.get());
+        assertEquals(1, this.dropCount.get());
+        assertEquals(2, this.populateCount.get());
+    }
+
+    private class CountingHistoryTable implements HistoryTable {
+
+        @Override
+        public void create() {
+            createCount.incrementAndGet();
+        }
+
+        @Override
+        public void drop() {
+            dropCount.incrementAndGet();
+        }
+
+        @Override
+        public boolean exists() {
+            existsCount.incrementAndGet();
+            return createCount.get() > dropCount.get();
+        }
+
+        @Override
+        public HistoryVersion findAsOf(Date time) {
+            return null;
+        }
+
+        @Override
+        public HistoryVersionIterator findVersions(Date from, Date to) {
+            return null;
+        }
+
+        @Override
+        public void insert(HistoryTable.Action action, String actionBy, Date actionTime) {
+            // Do nothing.
+        }
+
+        @Override
+        public void populate(String actionBy, Date actionTime) {
+            populateCount.incrementAndGet();
+            if (populateFailures.getAndDecrement() > 0) {
+                throw new HistoryTableException(null, "Unable to populate the history table.");
+            }
+        }
+
+        @Override
+        public long snapshot(Date time, HistoryVersionHandler handler) {
+            return 0;
+        }
+    }
+}